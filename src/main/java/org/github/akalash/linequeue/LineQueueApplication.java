@@ -1,26 +1,46 @@
 package org.github.akalash.linequeue;
 
 import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.github.akalash.linequeue.command.AckCommand;
 import org.github.akalash.linequeue.command.CommandExecutor;
 import org.github.akalash.linequeue.command.GetCommand;
+import org.github.akalash.linequeue.command.NackCommand;
 import org.github.akalash.linequeue.command.PutCommand;
 import org.github.akalash.linequeue.command.QuitCommand;
+import org.github.akalash.linequeue.command.ReadCommand;
 import org.github.akalash.linequeue.command.ShutdownCommand;
+import org.github.akalash.linequeue.command.SnapshotCommand;
+import org.github.akalash.linequeue.command.StatsCommand;
+import org.github.akalash.linequeue.network.ConnectionBalancer;
+import org.github.akalash.linequeue.network.ConnectionThreads;
 import org.github.akalash.linequeue.network.PortListenWorker;
 import org.github.akalash.linequeue.network.ReadWriteSocketWorker;
+import org.github.akalash.linequeue.network.ThreadPerConnectionWorker;
+import org.github.akalash.linequeue.request.BlockingRequestHandler;
 import org.github.akalash.linequeue.request.DataExchanger;
 import org.github.akalash.linequeue.request.RequestExecutionWorker;
+import org.github.akalash.linequeue.request.RequestFacade;
 import org.github.akalash.linequeue.request.RequestRegistry;
 import org.github.akalash.linequeue.storage.LineQueue;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+import org.github.akalash.linequeue.storage.PriorityOrder;
+import org.github.akalash.linequeue.storage.QueueCapacity;
+import org.github.akalash.linequeue.storage.SpillStorage;
+import org.github.akalash.linequeue.storage.WriteAheadLog;
 
 import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newScheduledThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 
 /**
  * Entry point of application which configure and start all activity.
@@ -32,6 +52,18 @@ public class LineQueueApplication {
     private ExecutorService readWriteSocketService;
     private ExecutorService newConnectionService;
 
+    /** Trigger of periodic snapshots or {@code null} if they are disabled. */
+    private ScheduledExecutorService snapshotService;
+
+    /** Flusher of write-ahead logs of all queues or {@code null} if the logs are disabled. */
+    private ScheduledExecutorService walFlushService;
+
+    /** Spiller of lines of all queues or {@code null} if the spilling is disabled. */
+    private ScheduledExecutorService spillService;
+
+    /** Lines storages. */
+    private LineQueueRegistry queues;
+
     /** Start the application. */
     public void start(
         String dumpFilePath,
@@ -40,40 +72,206 @@ public class LineQueueApplication {
         int readWriteSocketThreadCount,
         int listenPortThreadCount	
     ) throws IOException {
-        LineQueue lineQueue = new LineQueue(dumpFilePath);
+        start(new LineQueueConfiguration()
+            .setDumpFilePath(dumpFilePath)
+            .setPort(port)
+            .setCommandExecutorThreadCount(commandExecutorThreadCount)
+            .setReadWriteSocketThreadCount(readWriteSocketThreadCount)
+            .setListenPortThreadCount(listenPortThreadCount)
+        );
+    }
+
+    /** Start the application. */
+    public void start(LineQueueConfiguration cfg) throws IOException {
+        QueueCapacity capacity = cfg.getMaxQueueLines() > 0 || cfg.getMaxQueueSize() > 0 ?
+            new QueueCapacity(cfg.getMaxQueueLines(), cfg.getMaxQueueSize()) : null;
+
+        //Every queue, stripe and lane has its own log and spill storage, but they share the threads. The closed queue
+        //writes the rest of its log by itself, so the threads don't keep the process alive after SHUTDOWN.
+        walFlushService = cfg.getWalPath() == null ? null :
+            newScheduledThreadPool(cfg.getWalFlusherThreadCount(), new ThreadNamedFactory("wal-flusher-", true));
+
+        spillService = cfg.getSpillPath() == null ? null :
+            newScheduledThreadPool(cfg.getSpillerThreadCount(), new ThreadNamedFactory("line-queue-spiller-", true));
+
+        queues = new LineQueueRegistry(cfg.getDumpFilePath(), cfg.getWalPath(), cfg.getStripeCount(), (name, stripe, dumpFilePath) -> {
+            WriteAheadLog wal = cfg.getWalPath() == null ? null : new WriteAheadLog(
+                LineQueueRegistry.queueDirectory(name, stripe, cfg.getWalPath()),
+                cfg.getWalSegmentSize(),
+                cfg.getWalBufferSize(),
+                cfg.getWalFlushFrequency(),
+                walFlushService
+            );
+
+            SpillStorage spill = cfg.getSpillPath() == null ? null : new SpillStorage(
+                LineQueueRegistry.queueDirectory(name, stripe, cfg.getSpillPath()),
+                cfg.getSpillThreshold(),
+                cfg.getSpillSegmentSize(),
+                cfg.getSpillWindow(),
+                cfg.isCompression(),
+                spillService
+            );
+
+            return new LineQueue(
+                dumpFilePath,
+                wal,
+                spill,
+                cfg.isConsumerGroups(),
+                cfg.isCompression(),
+                cfg.getDumpWriterCount()
+            );
+        }, capacity, priorityOrder(cfg), cfg.getMaxQueueCount());
+
+        if (!queues.restore()) {
+            closeStorage();
 
-        if (!lineQueue.restore())
             return;
+        }
 
-        commandExecutionService = newFixedThreadPool(commandExecutorThreadCount, new ThreadNamedFactory("command-executor-"));
-        readWriteSocketService = newFixedThreadPool(readWriteSocketThreadCount, new ThreadNamedFactory("read-write-socket-"));
-        newConnectionService = newFixedThreadPool(listenPortThreadCount, new ThreadNamedFactory("port-listener-"));
+        ServerSocketChannel serverChannel;
 
-        RequestRegistry requestRegistry = new RequestRegistry();
+        try {
+            serverChannel = PortListenWorker.bind(cfg.getBindAddress(), cfg.getPort(), cfg.getBacklog());
+        }
+        catch (IOException e) {
+            closeStorage();
+
+            throw e;
+        }
 
         CommandExecutor commandExecutor = new CommandExecutor(Arrays.asList(
-            new PutCommand(lineQueue),
-            new GetCommand(lineQueue),
-            new ShutdownCommand(lineQueue, this::stop),
+            new PutCommand(queues, cfg.isBlockWhenFull()),
+            new GetCommand(queues),
+            new ReadCommand(queues),
+            new AckCommand(queues),
+            new NackCommand(queues),
+            new ShutdownCommand(queues, this::stopActivity),
+            new SnapshotCommand(queues),
+            new StatsCommand(queues),
             new QuitCommand()
         ));
 
+        if (cfg.getServerEngine() == ServerEngine.THREAD_PER_CONNECTION) {
+            commandExecutionService = null;
+            readWriteSocketService = null;
+            newConnectionService = newFixedThreadPool(1, new ThreadNamedFactory("port-listener-"));
+
+            newConnectionService.submit(new ThreadPerConnectionWorker(
+                serverChannel,
+                ConnectionThreads.factory("connection-"),
+                new BlockingRequestHandler(commandExecutor, cfg.getMaxLineSize())
+            ));
+        }
+        else
+            startSelectorEngine(cfg, serverChannel, commandExecutor);
+
+        if (cfg.getSnapshotFrequency() > 0) {
+            snapshotService = newSingleThreadScheduledExecutor(new ThreadNamedFactory("snapshot-"));
+
+            long freq = cfg.getSnapshotFrequency();
+
+            //The failed snapshot shouldn't cancel the next ones.
+            snapshotService.scheduleWithFixedDelay(() -> {
+                try {
+                    queues.snapshot().join();
+                }
+                catch (RuntimeException e) {
+                    log.error("Periodic snapshot is failed.", e);
+                }
+            }, freq, freq, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Start selector threads which serve connections and threads which execute commands.
+     *
+     * @param cfg Configuration.
+     * @param serverChannel Bound channel which accepts new connections.
+     * @param commandExecutor The executor of commands.
+     * @throws IOException If fail.
+     */
+    private void startSelectorEngine(
+        LineQueueConfiguration cfg,
+        ServerSocketChannel serverChannel,
+        CommandExecutor commandExecutor
+    ) throws IOException {
+        commandExecutionService = newFixedThreadPool(cfg.getCommandExecutorThreadCount(), new ThreadNamedFactory("command-executor-"));
+        readWriteSocketService = newFixedThreadPool(cfg.getReadWriteSocketThreadCount(), new ThreadNamedFactory("read-write-socket-"));
+        newConnectionService = newFixedThreadPool(cfg.getListenPortThreadCount(), new ThreadNamedFactory("port-listener-"));
+
+        RequestRegistry requestRegistry = new RequestRegistry();
+
         RequestExecutionWorker requestExecutionWorker = new RequestExecutionWorker(requestRegistry, commandExecutor);
 
-        ReadWriteSocketWorker readWriteSocketWorker = new ReadWriteSocketWorker(
-            (responseReadyNotifier) -> new DataExchanger(requestRegistry::offer, responseReadyNotifier)
-        );
+        //Every connection is pinned to one worker, so the requests of the client are read in order.
+        ReadWriteSocketWorker[] readWriteSocketWorkers = new ReadWriteSocketWorker[cfg.getReadWriteSocketThreadCount()];
+
+        Consumer<RequestFacade> requestReadyNotifier = cfg.isInlineExecution() ?
+            requestExecutionWorker::executeInline : requestRegistry::offer;
 
-        PortListenWorker portListenWorker =
-            new PortListenWorker(port, readWriteSocketWorker::establishNewConnection);
+        for (int i = 0; i < readWriteSocketWorkers.length; i++) {
+            readWriteSocketWorkers[i] = new ReadWriteSocketWorker(
+                (responseReadyNotifier) -> new DataExchanger(
+                    requestReadyNotifier,
+                    responseReadyNotifier,
+                    cfg.getMaxPendingRequestSize(),
+                    cfg.getMaxLineSize()
+                )
+            );
+        }
+
+        ConnectionBalancer balancer = new ConnectionBalancer(readWriteSocketWorkers);
 
         commandExecutionService.submit(requestExecutionWorker);
-        readWriteSocketService.submit(readWriteSocketWorker);
-        newConnectionService.submit(portListenWorker);
+
+        for (ReadWriteSocketWorker readWriteSocketWorker : readWriteSocketWorkers)
+            readWriteSocketService.submit(readWriteSocketWorker);
+
+        for (int i = 0; i < cfg.getListenPortThreadCount(); i++)
+            newConnectionService.submit(new PortListenWorker(serverChannel, balancer));
     }
 
-    /** Stop all activity. */
+    /**
+     * @param cfg Configuration.
+     * @return Order of priority lanes of queues.
+     * @throws IllegalArgumentException If the weights don't match the number of lanes.
+     */
+    private static PriorityOrder priorityOrder(LineQueueConfiguration cfg) {
+        int[] weights = cfg.getPriorityWeights();
+
+        if (weights == null)
+            return PriorityOrder.strict(cfg.getPriorityLevels());
+
+        if (weights.length != cfg.getPriorityLevels())
+            throw new IllegalArgumentException("Every priority level should have its weight :: levels = " +
+                cfg.getPriorityLevels() + ", weights = " + Arrays.toString(weights));
+
+        return PriorityOrder.weighted(weights);
+    }
+
+    /** Stop all activity and release the storage. */
     public void stop() {
+        stopActivity();
+
+        closeStorage();
+    }
+
+    /** Close all queues and stop the threads which write them to the disk. */
+    private void closeStorage() {
+        queues.close();
+
+        if (walFlushService != null)
+            walFlushService.shutdownNow();
+
+        if (spillService != null)
+            spillService.shutdownNow();
+    }
+
+    /** Stop all activity. */
+    private void stopActivity() {
+        if (snapshotService != null)
+            snapshotService.shutdownNow();
+
         newConnectionService.shutdownNow();
 
         try {
@@ -83,6 +281,10 @@ public class LineQueueApplication {
             log.error("Accept connection worker is failed during stop.", e);
         }
 
+        //The threads of the selector engine are not started by the thread-per-connection engine.
+        if (readWriteSocketService == null)
+            return;
+
         readWriteSocketService.shutdownNow();
         try {
             readWriteSocketService.awaitTermination(10_000, TimeUnit.MILLISECONDS);
@@ -101,13 +303,7 @@ public class LineQueueApplication {
     }
 
     public static void main(String[] args) throws IOException {
-        new LineQueueApplication().start(
-            "line_queue.dump",
-	    10042,
-            1,
-            2,
-            4
-        );
+        new LineQueueApplication().start(new LineQueueConfiguration());
     }
 
     /**
@@ -115,15 +311,29 @@ public class LineQueueApplication {
      */
     private static class ThreadNamedFactory implements ThreadFactory {
         private final String namePrefix;
+        private final boolean daemon;
         private final AtomicInteger number = new AtomicInteger();
 
         private ThreadNamedFactory(String prefix) {
+            this(prefix, false);
+        }
+
+        /**
+         * @param prefix Prefix of the thread name.
+         * @param daemon {@code true} if the threads shouldn't keep the process alive.
+         */
+        private ThreadNamedFactory(String prefix, boolean daemon) {
             namePrefix = prefix;
+            this.daemon = daemon;
         }
 
         /** {@inheritDoc} */
         @Override public Thread newThread(Runnable r) {
-            return new Thread(r, namePrefix + number.getAndIncrement());
+            Thread t = new Thread(r, namePrefix + number.getAndIncrement());
+
+            t.setDaemon(daemon);
+
+            return t;
         }
     }
 }
@@ -0,0 +1,460 @@
+package org.github.akalash.linequeue;
+
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+
+/**
+ * Configuration of {@link LineQueueApplication}.
+ */
+public class LineQueueConfiguration {
+    /** Default size of the segment of write-ahead log. */
+    public static final long DFLT_WAL_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /** Default size of the append buffer of write-ahead log. */
+    public static final int DFLT_WAL_BUFFER_SIZE = 1024 * 1024;
+
+    /** Default max time between the append of the record and its write to the file. */
+    public static final long DFLT_WAL_FLUSH_FREQUENCY = 10;
+
+    /** Default size of lines in memory after which the spilling to the disk starts. */
+    public static final long DFLT_SPILL_THRESHOLD = 256L * 1024 * 1024;
+
+    /** Default size of the spilled segment file. */
+    public static final int DFLT_SPILL_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Default number of lines at the head and at the tail of the queue which are always kept in memory. */
+    public static final int DFLT_SPILL_WINDOW = 16 * 1024;
+
+    /** Default size of received requests of one connection which are not handled yet, the reading stops after it. */
+    public static final long DFLT_MAX_PENDING_REQUEST_SIZE = 1024 * 1024;
+
+    /** Default max size of one request. */
+    public static final int DFLT_MAX_LINE_SIZE = 16 * 1024 * 1024;
+
+    /** Path to file which the queue should be dumped to/restored from. */
+    private String dumpFilePath = "line_queue.dump";
+
+    /** Local port for binding. */
+    private int port = 10042;
+
+    /** Number of threads which execute the commands. */
+    private int commandExecutorThreadCount = 1;
+
+    /** Number of threads which read from/write to sockets, every thread serves its own part of connections. */
+    private int readWriteSocketThreadCount = Runtime.getRuntime().availableProcessors();
+
+    /** Number of threads which accept new connections on the shared server socket. */
+    private int listenPortThreadCount = 1;
+
+    /** Directory of the write-ahead log or {@code null} if the queue is kept only in memory. */
+    private String walPath;
+
+    /** Size of the segment of write-ahead log after which the next one should be started. */
+    private long walSegmentSize = DFLT_WAL_SEGMENT_SIZE;
+
+    /** Initial size of the append buffer of write-ahead log. */
+    private int walBufferSize = DFLT_WAL_BUFFER_SIZE;
+
+    /** Max time in milliseconds between the append of the record and its write to the file. */
+    private long walFlushFrequency = DFLT_WAL_FLUSH_FREQUENCY;
+
+    /** Number of threads which flush write-ahead logs of all queues. */
+    private int walFlusherThreadCount = 1;
+
+    /** Directory of the spilled segments or {@code null} if all lines are kept in memory. */
+    private String spillPath;
+
+    /** Approximate size of lines in memory in bytes after which the spilling to the disk starts. */
+    private long spillThreshold = DFLT_SPILL_THRESHOLD;
+
+    /** Size of the spilled segment file. */
+    private int spillSegmentSize = DFLT_SPILL_SEGMENT_SIZE;
+
+    /** Number of lines at the head and at the tail of the queue which are always kept in memory. */
+    private int spillWindow = DFLT_SPILL_WINDOW;
+
+    /** Number of threads which spill lines of all queues to the disk. */
+    private int spillerThreadCount = 1;
+
+    /**
+     * Number of stripes of every queue. One stripe keeps strict global FIFO, several stripes remove the contention of
+     * producers and consumers, but the order is kept only for lines of the same producer.
+     */
+    private int stripeCount = 1;
+
+    /** Time in milliseconds between periodic snapshots of the queue or {@code 0} if they are disabled. */
+    private long snapshotFrequency;
+
+    /**
+     * {@code true} if lines are kept until all consumer groups read them by READ, GET reads them as the default group.
+     * {@code false} if lines are removed by GET and READ isn't supported.
+     */
+    private boolean consumerGroups;
+
+    /** {@code true} if spilled segments, dumps and snapshots are compressed in blocks of lines. */
+    private boolean compression;
+
+    /** Max number of lines of all queues or {@code 0} if it is unlimited. */
+    private long maxQueueLines;
+
+    /** Max size of lines of all queues in bytes or {@code 0} if it is unlimited. */
+    private long maxQueueSize;
+
+    /** Max number of named queues, PUT to the new queue is rejected after it. */
+    private int maxQueueCount = LineQueueRegistry.DFLT_MAX_QUEUE_COUNT;
+
+    /** {@code true} if PUT waits for the room when the limit of queues is reached, {@code false} if it replies BUSY. */
+    private boolean blockWhenFull = true;
+
+    /** Size of received requests of one connection which are not handled yet, the reading stops after it. */
+    private long maxPendingRequestSize = DFLT_MAX_PENDING_REQUEST_SIZE;
+
+    /** Max size of one request, the connection is closed if the request is bigger. */
+    private int maxLineSize = DFLT_MAX_LINE_SIZE;
+
+    /** Max number of threads which write the dump of one stripe in parallel, the big dump is split to segments. */
+    private int dumpWriterCount = 1;
+
+    /** Local address for binding or {@code null} for all local addresses. */
+    private String bindAddress = "localhost";
+
+    /** Max number of pending connections of the server socket or {@code 0} for the default of the system. */
+    private int backlog;
+
+    /**
+     * {@code true} if requests are executed right on the I/O thread which read them and only slow commands go to the
+     * command executor threads, {@code false} if all requests are passed to the command executor threads.
+     */
+    private boolean inlineExecution;
+
+    /** Network engine which serves connections. */
+    private ServerEngine serverEngine = ServerEngine.SELECTOR;
+
+    /** Number of priority lanes of every queue, PUT chooses the lane and the bigger one is more urgent. */
+    private int priorityLevels = 1;
+
+    /**
+     * Shares of polls by priority lanes or {@code null} if the more urgent lane is always polled first. The number of
+     * weights should be equal to the number of lanes.
+     */
+    private int[] priorityWeights;
+
+    public String getDumpFilePath() {
+        return dumpFilePath;
+    }
+
+    public LineQueueConfiguration setDumpFilePath(String dumpFilePath) {
+        this.dumpFilePath = dumpFilePath;
+
+        return this;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public LineQueueConfiguration setPort(int port) {
+        this.port = port;
+
+        return this;
+    }
+
+    public int getCommandExecutorThreadCount() {
+        return commandExecutorThreadCount;
+    }
+
+    public LineQueueConfiguration setCommandExecutorThreadCount(int commandExecutorThreadCount) {
+        this.commandExecutorThreadCount = commandExecutorThreadCount;
+
+        return this;
+    }
+
+    public int getReadWriteSocketThreadCount() {
+        return readWriteSocketThreadCount;
+    }
+
+    public LineQueueConfiguration setReadWriteSocketThreadCount(int readWriteSocketThreadCount) {
+        this.readWriteSocketThreadCount = readWriteSocketThreadCount;
+
+        return this;
+    }
+
+    public int getListenPortThreadCount() {
+        return listenPortThreadCount;
+    }
+
+    public LineQueueConfiguration setListenPortThreadCount(int listenPortThreadCount) {
+        this.listenPortThreadCount = listenPortThreadCount;
+
+        return this;
+    }
+
+    public String getWalPath() {
+        return walPath;
+    }
+
+    public LineQueueConfiguration setWalPath(String walPath) {
+        this.walPath = walPath;
+
+        return this;
+    }
+
+    public long getWalSegmentSize() {
+        return walSegmentSize;
+    }
+
+    public LineQueueConfiguration setWalSegmentSize(long walSegmentSize) {
+        this.walSegmentSize = walSegmentSize;
+
+        return this;
+    }
+
+    public int getWalBufferSize() {
+        return walBufferSize;
+    }
+
+    public LineQueueConfiguration setWalBufferSize(int walBufferSize) {
+        this.walBufferSize = walBufferSize;
+
+        return this;
+    }
+
+    public long getWalFlushFrequency() {
+        return walFlushFrequency;
+    }
+
+    public LineQueueConfiguration setWalFlushFrequency(long walFlushFrequency) {
+        this.walFlushFrequency = walFlushFrequency;
+
+        return this;
+    }
+
+    public int getWalFlusherThreadCount() {
+        return walFlusherThreadCount;
+    }
+
+    public LineQueueConfiguration setWalFlusherThreadCount(int walFlusherThreadCount) {
+        this.walFlusherThreadCount = walFlusherThreadCount;
+
+        return this;
+    }
+
+    public String getSpillPath() {
+        return spillPath;
+    }
+
+    public LineQueueConfiguration setSpillPath(String spillPath) {
+        this.spillPath = spillPath;
+
+        return this;
+    }
+
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public LineQueueConfiguration setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+
+        return this;
+    }
+
+    public int getSpillSegmentSize() {
+        return spillSegmentSize;
+    }
+
+    public LineQueueConfiguration setSpillSegmentSize(int spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+
+        return this;
+    }
+
+    public int getSpillWindow() {
+        return spillWindow;
+    }
+
+    public LineQueueConfiguration setSpillWindow(int spillWindow) {
+        this.spillWindow = spillWindow;
+
+        return this;
+    }
+
+    public int getSpillerThreadCount() {
+        return spillerThreadCount;
+    }
+
+    public LineQueueConfiguration setSpillerThreadCount(int spillerThreadCount) {
+        this.spillerThreadCount = spillerThreadCount;
+
+        return this;
+    }
+
+    public long getSnapshotFrequency() {
+        return snapshotFrequency;
+    }
+
+    public LineQueueConfiguration setSnapshotFrequency(long snapshotFrequency) {
+        this.snapshotFrequency = snapshotFrequency;
+
+        return this;
+    }
+
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    public LineQueueConfiguration setStripeCount(int stripeCount) {
+        this.stripeCount = stripeCount;
+
+        return this;
+    }
+
+    public boolean isConsumerGroups() {
+        return consumerGroups;
+    }
+
+    public LineQueueConfiguration setConsumerGroups(boolean consumerGroups) {
+        this.consumerGroups = consumerGroups;
+
+        return this;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public LineQueueConfiguration setCompression(boolean compression) {
+        this.compression = compression;
+
+        return this;
+    }
+
+    public long getMaxQueueLines() {
+        return maxQueueLines;
+    }
+
+    public LineQueueConfiguration setMaxQueueLines(long maxQueueLines) {
+        this.maxQueueLines = maxQueueLines;
+
+        return this;
+    }
+
+    public long getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public LineQueueConfiguration setMaxQueueSize(long maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+
+        return this;
+    }
+
+    public int getMaxQueueCount() {
+        return maxQueueCount;
+    }
+
+    public LineQueueConfiguration setMaxQueueCount(int maxQueueCount) {
+        this.maxQueueCount = maxQueueCount;
+
+        return this;
+    }
+
+    public boolean isBlockWhenFull() {
+        return blockWhenFull;
+    }
+
+    public LineQueueConfiguration setBlockWhenFull(boolean blockWhenFull) {
+        this.blockWhenFull = blockWhenFull;
+
+        return this;
+    }
+
+    public long getMaxPendingRequestSize() {
+        return maxPendingRequestSize;
+    }
+
+    public LineQueueConfiguration setMaxPendingRequestSize(long maxPendingRequestSize) {
+        this.maxPendingRequestSize = maxPendingRequestSize;
+
+        return this;
+    }
+
+    public int getMaxLineSize() {
+        return maxLineSize;
+    }
+
+    public LineQueueConfiguration setMaxLineSize(int maxLineSize) {
+        this.maxLineSize = maxLineSize;
+
+        return this;
+    }
+
+    public int getPriorityLevels() {
+        return priorityLevels;
+    }
+
+    public LineQueueConfiguration setPriorityLevels(int priorityLevels) {
+        this.priorityLevels = priorityLevels;
+
+        return this;
+    }
+
+    public int[] getPriorityWeights() {
+        return priorityWeights;
+    }
+
+    public LineQueueConfiguration setPriorityWeights(int... priorityWeights) {
+        this.priorityWeights = priorityWeights;
+
+        return this;
+    }
+
+    public int getDumpWriterCount() {
+        return dumpWriterCount;
+    }
+
+    public LineQueueConfiguration setDumpWriterCount(int dumpWriterCount) {
+        this.dumpWriterCount = dumpWriterCount;
+
+        return this;
+    }
+
+    public String getBindAddress() {
+        return bindAddress;
+    }
+
+    public LineQueueConfiguration setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+
+        return this;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public LineQueueConfiguration setBacklog(int backlog) {
+        this.backlog = backlog;
+
+        return this;
+    }
+
+    public boolean isInlineExecution() {
+        return inlineExecution;
+    }
+
+    public LineQueueConfiguration setInlineExecution(boolean inlineExecution) {
+        this.inlineExecution = inlineExecution;
+
+        return this;
+    }
+
+    public ServerEngine getServerEngine() {
+        return serverEngine;
+    }
+
+    public LineQueueConfiguration setServerEngine(ServerEngine serverEngine) {
+        this.serverEngine = serverEngine;
+
+        return this;
+    }
+}
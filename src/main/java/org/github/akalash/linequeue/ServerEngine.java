@@ -0,0 +1,18 @@
+package org.github.akalash.linequeue;
+
+/**
+ * Network engine of {@link LineQueueApplication}.
+ */
+public enum ServerEngine {
+    /**
+     * Connections are spread across selector threads which read and write in non-blocking way, requests are executed
+     * by the command executor threads or inline, see {@link LineQueueConfiguration#isInlineExecution()}.
+     */
+    SELECTOR,
+
+    /**
+     * Every connection is served by its own thread which reads, executes and writes in blocking way. Virtual threads are
+     * used when the runtime has them, otherwise platform threads.
+     */
+    THREAD_PER_CONNECTION
+}
@@ -0,0 +1,45 @@
+package org.github.akalash.linequeue.command;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+
+/**
+ * Confirmation of lines which are leased by {@code GET:LEASE=<timeoutMs>}, so they are never redelivered. The request
+ * is {@code ACK <leaseId>}, the lease which is unknown or already expired is an error.
+ */
+public class AckCommand implements Command {
+    /** Lines storages. */
+    private final LineQueueRegistry queues;
+
+    public AckCommand(LineQueueRegistry queues) {
+        this.queues = queues;
+    }
+
+    /** {@inheritDoc} */
+    @Override public String name() {
+        return "ACK";
+    }
+
+    /** {@inheritDoc} */
+    @Override public byte[] execute(byte[] leaseId) {
+        return ack(null, leaseId);
+    }
+
+    /** Confirmation of the lease of the queue given by the qualifier. */
+    @Override public CompletableFuture<byte[]> execute(byte[] leaseId, Map<String, String> qualifiers, int client) {
+        Command.checkQualifiers(qualifiers, QUEUE);
+
+        return CompletableFuture.completedFuture(ack(qualifiers.get(QUEUE), leaseId));
+    }
+
+    private byte[] ack(String queue, byte[] leaseId) {
+        long id = Long.parseLong(new String(leaseId, StandardCharsets.US_ASCII).trim());
+
+        if (!queues.queue(queue).leases().ack(id))
+            throw new IllegalArgumentException("Lease is not active :: " + id);
+
+        return OK;
+    }
+}
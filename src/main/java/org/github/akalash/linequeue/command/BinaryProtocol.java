@@ -0,0 +1,176 @@
+package org.github.akalash.linequeue.command;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary protocol which is chosen by the client with {@link #MAGIC} as the first byte of the connection, the text
+ * protocol is used otherwise. Lines are length-prefixed and one frame carries a batch of lines, so the request is
+ * parsed once per frame instead of once per line.
+ *
+ * Both protocols share queues, so lines are stored in the same format: the line of the binary request is stored with
+ * {@code \r\n} like the line of the text one and the line break is removed from the line of the binary response.
+ * Hence the line of the binary request can't contain {@code \r} or {@code \n}, the request is failed otherwise.
+ *
+ * All numbers are big-endian. The request frame is {@code [int length][byte op][body]} and the response frame is
+ * {@code [int length][byte status][body]}, where the length covers the op or the status with the body. The
+ * qualifiers of the request have the format of the text protocol, like {@code QUEUE=q:DURABILITY=FSYNCED}.
+ * <ul>
+ *     <li>{@link #OP_PUT}: {@code [short size][qualifiers][int count]} and {@code count} lines
+ *     {@code [int size][line]}. The response is {@code [int stored]}, it is sent when the stored lines reach the
+ *     durability. The status is {@link #STATUS_BUSY} if not all lines were stored because the queues are full.</li>
+ *     <li>{@link #OP_GET}: {@code [short size][qualifiers][int count][long timeoutMs]}. The response is
+ *     {@code [long leaseId][int count]} and {@code count} lines {@code [int size][line]}, the id of the lease is
+ *     {@code 0} if the lines aren't leased.</li>
+ *     <li>{@link #OP_TEXT}: any request of the text protocol, like {@code ACK 5\r\n}. The response is the text
+ *     response.</li>
+ * </ul>
+ */
+public final class BinaryProtocol {
+    /** First byte of the connection which chooses the binary protocol, it is never the first byte of a text command. */
+    public static final byte MAGIC = (byte)0xB1;
+
+    /** Size of the length of the frame. */
+    public static final int LENGTH_SIZE = Integer.BYTES;
+
+    /** Batch of lines which should be stored. */
+    public static final byte OP_PUT = 1;
+
+    /** Request of lines. */
+    public static final byte OP_GET = 2;
+
+    /** Request of the text protocol. */
+    public static final byte OP_TEXT = 3;
+
+    /** Status of the successful request. */
+    public static final byte STATUS_OK = 0;
+
+    /** Status of the failed request, the body is empty. */
+    public static final byte STATUS_ERROR = 1;
+
+    /** Status of the request which was rejected because the queues reached their limit. */
+    public static final byte STATUS_BUSY = 2;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @param buf Body of the request.
+     * @return Qualifiers in text format.
+     */
+    static String readQualifiers(ByteBuffer buf) {
+        byte[] qualifiers = new byte[buf.getShort() & 0xFFFF];
+
+        buf.get(qualifiers);
+
+        return new String(qualifiers, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param buf Body of the request.
+     * @return Length-prefixed lines which follow their number, every line is completed by {@code \r\n}.
+     * @throws IllegalArgumentException If the line contains the line break.
+     */
+    static List<byte[]> readLines(ByteBuffer buf) {
+        int count = buf.getInt();
+
+        if (count < 0 || count > buf.remaining() / Integer.BYTES)
+            throw new IllegalArgumentException("Number of lines is incorrect :: " + count);
+
+        List<byte[]> lines = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            int size = buf.getInt();
+
+            if (size < 0 || size > buf.remaining())
+                throw new IllegalArgumentException("Size of the line is incorrect :: " + size);
+
+            byte[] line = new byte[size + 2];
+
+            buf.get(line, 0, size);
+
+            for (int j = 0; j < size; j++) {
+                if (line[j] == '\r' || line[j] == '\n')
+                    throw new IllegalArgumentException("Line contains the line break :: position = " + j);
+            }
+
+            line[size] = '\r';
+            line[size + 1] = '\n';
+
+            lines.add(line);
+        }
+
+        return lines;
+    }
+
+    /**
+     * @param status Status of the response.
+     * @param body Parts of the body of the response.
+     * @return Response frame, the parts of the body follow the header without copying.
+     */
+    static List<byte[]> frame(byte status, List<byte[]> body) {
+        long size = 1;
+
+        for (byte[] part : body)
+            size += part.length;
+
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Response is too big :: " + size);
+
+        List<byte[]> res = new ArrayList<>(body.size() + 1);
+
+        res.add(ByteBuffer.allocate(LENGTH_SIZE + 1).putInt((int)size).put(status).array());
+        res.addAll(body);
+
+        return res;
+    }
+
+    /**
+     * @param leaseId Id of the lease or {@code 0}.
+     * @param lines Lines of the response as they are stored.
+     * @return Response frame of lines without their line breaks, the lines are separate parts of it.
+     */
+    static List<byte[]> linesFrame(long leaseId, List<byte[]> lines) {
+        long size = 1 + Long.BYTES + Integer.BYTES;
+
+        for (byte[] line : lines)
+            size += Integer.BYTES + lineSize(line);
+
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Response is too big :: " + size);
+
+        List<byte[]> res = new ArrayList<>(2 * lines.size() + 1);
+
+        res.add(ByteBuffer.allocate(LENGTH_SIZE + 1 + Long.BYTES + Integer.BYTES)
+            .putInt((int)size)
+            .put(STATUS_OK)
+            .putLong(leaseId)
+            .putInt(lines.size())
+            .array());
+
+        for (byte[] line : lines) {
+            int lineSize = lineSize(line);
+
+            res.add(ByteBuffer.allocate(Integer.BYTES).putInt(lineSize).array());
+            res.add(lineSize == line.length ? line : Arrays.copyOf(line, lineSize));
+        }
+
+        return res;
+    }
+
+    /**
+     * @param line Stored line.
+     * @return Size of the line without its line break, the text request can end with several of them.
+     */
+    private static int lineSize(byte[] line) {
+        int size = line.length;
+
+        while (size > 0 && (line[size - 1] == '\r' || line[size - 1] == '\n'))
+            size--;
+
+        return size;
+    }
+}
@@ -1,10 +1,29 @@
 package org.github.akalash.linequeue.command;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
- * Common interface of all commands.
+ * Common interface of all commands. Requests and responses are raw bytes, so lines are never transcoded.
  */
 public interface Command {
-    static final String NO_RESULT = "";
+    static final byte[] NO_RESULT = new byte[0];
+
+    /** Acknowledgement of the successful execution. */
+    static final byte[] OK = "OK\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** Rejection of the request because the queues reached their limit, the request can be repeated later. */
+    static final byte[] BUSY = "BUSY\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Qualifier of the name of the queue, the default queue is used without it. The named queue is created by PUT, the
+     * other commands fail for the unknown queue.
+     */
+    static final String QUEUE = "QUEUE";
 
     /**
      * Name of the command which should be the same as in request.
@@ -13,11 +32,98 @@ public interface Command {
      */
     String name();
 
+    /**
+     * @return {@code true} if the command can hold the thread for long, like the commands which start the background
+     * work or touch the disk synchronously. Such commands are never executed on the I/O thread.
+     */
+    default boolean isSlow() {
+        return false;
+    }
+
     /**
      * Execute specific logic of this command and return the response.
      *
      * @param payload Command specific input data from request.
      * @return Response which should be send to the client or {@code null} if response can be missed.
      */
-    String execute(String payload);
+    byte[] execute(byte[] payload);
+
+    /**
+     * Execute specific logic of this command with the qualifiers given after its name in request, like
+     * {@code PUT:DURABILITY=FSYNCED}. The response can be completed later without holding the calling thread.
+     *
+     * @param payload Command specific input data from request.
+     * @param qualifiers Qualifiers of the command name or empty map if there are none.
+     * @param client Id of the client which sent the request.
+     * @return Future of the response, see {@link #execute(byte[])}.
+     */
+    default CompletableFuture<byte[]> execute(byte[] payload, Map<String, String> qualifiers, int client) {
+        if (!qualifiers.isEmpty())
+            throw new IllegalArgumentException("Qualifiers are not supported :: " + qualifiers.keySet());
+
+        return CompletableFuture.completedFuture(execute(payload));
+    }
+
+    /**
+     * Execute the command like {@link #execute(byte[], Map, int)}, but return the response by parts which are sent one
+     * after another, so the big response, like a batch of lines, isn't joined into one array before the sending.
+     *
+     * @param payload Command specific input data from request.
+     * @param qualifiers Qualifiers of the command name or empty map if there are none.
+     * @param client Id of the client which sent the request.
+     * @return Future of parts of the response or of {@code null} if response can be missed.
+     */
+    default CompletableFuture<List<byte[]>> executeParts(byte[] payload, Map<String, String> qualifiers, int client) {
+        return execute(payload, qualifiers, client).thenApply(Command::parts);
+    }
+
+    /**
+     * @param response Response or {@code null}.
+     * @return Response as the only part, no parts for the empty response or {@code null} for {@code null}.
+     */
+    static List<byte[]> parts(byte[] response) {
+        if (response == null)
+            return null;
+
+        return response.length == 0 ? Collections.emptyList() : Collections.singletonList(response);
+    }
+
+    /**
+     * @param parts Parts of the response or {@code null}.
+     * @return All parts one by one or {@code null} for {@code null}.
+     */
+    static byte[] concat(List<byte[]> parts) {
+        if (parts == null)
+            return null;
+
+        if (parts.size() == 1)
+            return parts.get(0);
+
+        int size = 0;
+
+        for (byte[] part : parts)
+            size += part.length;
+
+        byte[] res = new byte[size];
+
+        int pos = 0;
+
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, res, pos, part.length);
+
+            pos += part.length;
+        }
+
+        return res;
+    }
+
+    /**
+     * @param qualifiers Qualifiers of the command name.
+     * @param supported Keys of the qualifiers which are supported by the command.
+     * @throws IllegalArgumentException If there is the qualifier which isn't supported.
+     */
+    static void checkQualifiers(Map<String, String> qualifiers, String... supported) {
+        if (!Arrays.asList(supported).containsAll(qualifiers.keySet()))
+            throw new IllegalArgumentException("Qualifiers are not supported :: " + qualifiers.keySet());
+    }
 }
@@ -1,9 +1,17 @@
 package org.github.akalash.linequeue.command;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import static java.util.function.Function.identity;
 
@@ -11,8 +19,27 @@ import static java.util.function.Function.identity;
  * Choose and execute the one of available command.
  */
 public class CommandExecutor {
+    private static final Logger log = LogManager.getLogger(CommandExecutor.class);
+
     /** Error message. */
-    static final String ERROR = "ERR\r\n";
+    static final byte[] ERROR = "ERR\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** Error message as the only part of the response. */
+    private static final List<byte[]> ERROR_PARTS = Collections.singletonList(ERROR);
+
+    /** Error message as the result of execution. */
+    private static final CompletableFuture<List<byte[]>> ERROR_RESULT = CompletableFuture.completedFuture(ERROR_PARTS);
+
+    /** Response frame of the failed request of the binary protocol. */
+    private static final List<byte[]> ERROR_FRAME =
+        BinaryProtocol.frame(BinaryProtocol.STATUS_ERROR, Collections.emptyList());
+
+    /** Response frame of the failed request as the result of execution. */
+    private static final CompletableFuture<List<byte[]>> ERROR_FRAME_RESULT =
+        CompletableFuture.completedFuture(ERROR_FRAME);
+
+    /** Separator of the command name and its qualifiers. */
+    private static final char QUALIFIER_SEPARATOR = ':';
 
     /** Holder of all available command. */
     private final Map<String, Command> commandMap;
@@ -27,22 +54,218 @@ public class CommandExecutor {
      * @param request Request which should be handled.
      * @return Result for the response to the client.
      */
-    public String handleRequest(String request) {
-        int index = request.indexOf(' ');
+    public byte[] handleRequest(byte[] request) {
+        return handleRequestAsync(request).join();
+    }
 
-        String commandName = index == -1 ? request.trim() : request.substring(0, index);
-        String payload = index == -1 ? null : request.substring(commandName.length() + 1);
+    /**
+     * Execute command according to the request. The command can complete its result later, for example when the line
+     * is forced to the disk.
+     *
+     * @param request Request which should be handled.
+     * @return Future of the result for the response to the client.
+     */
+    public CompletableFuture<byte[]> handleRequestAsync(byte[] request) {
+        return handleRequestAsync(request, 0);
+    }
+
+    /**
+     * Execute command according to the request of the given client.
+     *
+     * @param request Request which should be handled.
+     * @param client Id of the client which sent the request.
+     * @return Future of the result for the response to the client.
+     */
+    public CompletableFuture<byte[]> handleRequestAsync(byte[] request, int client) {
+        return handleRequestPartsAsync(request, client).thenApply(Command::concat);
+    }
+
+    /**
+     * Execute command according to the request of the given client and return the response by parts, see
+     * {@link Command#executeParts(byte[], Map, int)}.
+     *
+     * @param request Request which should be handled.
+     * @param client Id of the client which sent the request.
+     * @return Future of parts of the result for the response to the client or of {@code null} if the connection should
+     * be finished.
+     */
+    public CompletableFuture<List<byte[]>> handleRequestPartsAsync(byte[] request, int client) {
+        int index = indexOf(request, (byte)' ');
+
+        String commandToken = index == -1
+            ? new String(request, StandardCharsets.US_ASCII).trim()
+            : new String(request, 0, index, StandardCharsets.US_ASCII);
+
+        byte[] payload = index == -1 ? null : Arrays.copyOfRange(request, index + 1, request.length);
+
+        int qualifierIndex = commandToken.indexOf(QUALIFIER_SEPARATOR);
+        String commandName = qualifierIndex == -1 ? commandToken : commandToken.substring(0, qualifierIndex);
 
         Command command = commandMap.get(commandName);
 
         if (command == null)
-            return ERROR;
+            return ERROR_RESULT;
 
         try {
-            return command.execute(payload);
+            Map<String, String> qualifiers = qualifierIndex == -1
+                ? Collections.emptyMap()
+                : parseQualifiers(commandToken.substring(qualifierIndex + 1));
+
+            return command.executeParts(payload, qualifiers, client).exceptionally(ex -> ERROR_PARTS);
+        }
+        catch (IllegalArgumentException | IllegalStateException ex) {
+            return ERROR_RESULT;
         }
-        catch (IllegalArgumentException ex) {
-            return ERROR;
+        catch (RuntimeException ex) {
+            //The request is executed by the I/O thread as well, so the failure of the command can't fail the thread.
+            log.error("Command is failed :: " + commandName, ex);
+
+            return ERROR_RESULT;
         }
     }
+
+    /**
+     * Execute the frame of the binary protocol of the given client, see {@link BinaryProtocol}. The batch of lines is
+     * parsed at once by their lengths and it is passed to the command without splitting into requests.
+     *
+     * @param frame Frame without its length, it starts with the operation.
+     * @param client Id of the client which sent the request.
+     * @return Future of parts of the response frame or of {@code null} if the connection should be finished.
+     */
+    public CompletableFuture<List<byte[]>> handleFrameAsync(byte[] frame, int client) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(frame);
+
+            byte op = buf.get();
+
+            if (op == BinaryProtocol.OP_TEXT)
+                return handleRequestPartsAsync(Arrays.copyOfRange(frame, 1, frame.length), client)
+                    .thenApply(parts -> parts == null ? null : BinaryProtocol.frame(BinaryProtocol.STATUS_OK, parts));
+
+            String qualifiersValue = BinaryProtocol.readQualifiers(buf);
+
+            Map<String, String> qualifiers = qualifiersValue.isEmpty()
+                ? Collections.emptyMap()
+                : parseQualifiers(qualifiersValue);
+
+            CompletableFuture<List<byte[]>> res;
+
+            if (op == BinaryProtocol.OP_PUT) {
+                List<byte[]> lines = BinaryProtocol.readLines(buf);
+
+                checkFrameEnd(buf);
+
+                res = command("PUT", PutCommand.class).executeBatch(lines, qualifiers, client).thenApply(stored ->
+                    BinaryProtocol.frame(
+                        stored < lines.size() ? BinaryProtocol.STATUS_BUSY : BinaryProtocol.STATUS_OK,
+                        Collections.singletonList(ByteBuffer.allocate(Integer.BYTES).putInt(stored).array())
+                    )
+                );
+            }
+            else if (op == BinaryProtocol.OP_GET) {
+                int count = buf.getInt();
+                long timeoutMs = buf.getLong();
+
+                checkFrameEnd(buf);
+
+                res = command("GET", GetCommand.class).executeFrame(qualifiers, count, timeoutMs, client);
+            }
+            else
+                throw new IllegalArgumentException("Unknown operation :: " + op);
+
+            return res.exceptionally(ex -> ERROR_FRAME);
+        }
+        catch (IllegalArgumentException | IllegalStateException | BufferUnderflowException ex) {
+            return ERROR_FRAME_RESULT;
+        }
+        catch (RuntimeException ex) {
+            log.error("Frame is failed :: op = " + (frame.length == 0 ? "none" : frame[0]), ex);
+
+            return ERROR_FRAME_RESULT;
+        }
+    }
+
+    /**
+     * @param request Request which should be handled.
+     * @return {@code true} if the command of the request can hold the thread, so it shouldn't be executed on the I/O
+     * thread.
+     */
+    public boolean isSlow(byte[] request) {
+        return isSlow(request, 0);
+    }
+
+    /**
+     * @param frame Frame of the binary protocol without its length.
+     * @return {@code true} if the frame is the text request of the slow command, see {@link #isSlow(byte[])}.
+     */
+    public boolean isSlowFrame(byte[] frame) {
+        return frame.length > 0 && frame[0] == BinaryProtocol.OP_TEXT && isSlow(frame, 1);
+    }
+
+    /**
+     * @param request Request which should be handled.
+     * @param start Start of the request.
+     * @return {@code true} if the command of the request is slow.
+     */
+    private boolean isSlow(byte[] request, int start) {
+        int end = start;
+
+        while (end < request.length && request[end] != ' ' && request[end] != QUALIFIER_SEPARATOR &&
+            request[end] != '\r' && request[end] != '\n')
+            end++;
+
+        Command command = commandMap.get(new String(request, start, end - start, StandardCharsets.US_ASCII));
+
+        return command != null && command.isSlow();
+    }
+
+    /**
+     * @param name Name of the command.
+     * @param cls Class of the command.
+     * @return Available command.
+     * @throws IllegalArgumentException If the command isn't available.
+     */
+    private <T extends Command> T command(String name, Class<T> cls) {
+        Command command = commandMap.get(name);
+
+        if (!cls.isInstance(command))
+            throw new IllegalArgumentException("Command is not available :: " + name);
+
+        return cls.cast(command);
+    }
+
+    private static void checkFrameEnd(ByteBuffer buf) {
+        if (buf.hasRemaining())
+            throw new IllegalArgumentException("Unexpected bytes at the end of the frame :: " + buf.remaining());
+    }
+
+    private static int indexOf(byte[] arr, byte b) {
+        for (int i = 0; i < arr.length; i++) {
+            if (arr[i] == b)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Parse qualifiers of the command in format {@code KEY=VALUE:KEY=VALUE}.
+     *
+     * @param qualifiers Qualifiers in text format.
+     * @return Qualifiers by their keys.
+     */
+    private static Map<String, String> parseQualifiers(String qualifiers) {
+        Map<String, String> res = new HashMap<>();
+
+        for (String qualifier : qualifiers.split(String.valueOf(QUALIFIER_SEPARATOR))) {
+            int index = qualifier.indexOf('=');
+
+            if (index <= 0)
+                throw new IllegalArgumentException("Qualifier is incorrect :: " + qualifier);
+
+            res.put(qualifier.substring(0, index), qualifier.substring(index + 1));
+        }
+
+        return res;
+    }
 }
@@ -1,17 +1,44 @@
 package org.github.akalash.linequeue.command;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.github.akalash.linequeue.storage.LineQueue;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+import org.github.akalash.linequeue.storage.StripedLineQueue;
 
 /**
- * Returning of the number of requested lines from {@link LineQueue}.
+ * Returning of the number of requested lines from {@link LineQueue}. The request {@code GET <count> <timeoutMs>} waits
+ * for lines up to the given time if there are not enough of them, without holding the thread.
+ *
+ * The request {@code GET:MODE=UPTO <count>} returns available lines, but not more than requested, the response starts
+ * with the line of their actual number.
+ *
+ * The request {@code GET:LEASE=<timeoutMs> <count>} leases lines instead of removing them: the response starts with the
+ * line of the id of the lease, the lines are redelivered if the lease isn't confirmed by {@link AckCommand} in time.
+ * The id is {@code 0} if nothing was leased.
  */
 public class GetCommand implements Command {
-    /** Lines storage. */
-    private final LineQueue lineQueue;
+    /** Qualifier of the mode of the request. */
+    static final String MODE = "MODE";
 
-    public GetCommand(LineQueue lineQueue) {
-        this.lineQueue = lineQueue;
+    /** Mode which returns available lines up to the requested number. */
+    static final String UP_TO_MODE = "UPTO";
+
+    /** Qualifier of the visibility timeout of leased lines in milliseconds. */
+    static final String LEASE = "LEASE";
+
+    /** Id of the lease of lines which aren't leased. */
+    private static final long NOT_LEASED = -1;
+
+    /** Lines storages. */
+    private final LineQueueRegistry queues;
+
+    public GetCommand(LineQueueRegistry queues) {
+        this.queues = queues;
     }
 
     /** {@inheritDoc} */
@@ -20,12 +47,129 @@ public class GetCommand implements Command {
     }
 
     /** {@inheritDoc} */
-    @Override public String execute(String lineCount) {
-        List<String> poll = lineQueue.poll(Integer.parseInt(lineCount.trim()));
+    @Override public byte[] execute(byte[] lineCount) {
+        return poll(queues.queue(null), lineCount, 0);
+    }
+
+    /** Returning of lines from the queue given by the qualifier. */
+    @Override public CompletableFuture<byte[]> execute(byte[] lineCount, Map<String, String> qualifiers, int client) {
+        return executeParts(lineCount, qualifiers, client).thenApply(Command::concat);
+    }
+
+    /** Returning of lines from the queue given by the qualifier, every line is a separate part of the response. */
+    @Override public CompletableFuture<List<byte[]>> executeParts(
+        byte[] lineCount,
+        Map<String, String> qualifiers,
+        int client
+    ) {
+        String[] args = new String(lineCount, StandardCharsets.US_ASCII).trim().split(" +");
+
+        if (args.length > 2)
+            throw new IllegalArgumentException("Unexpected arguments :: " + Arrays.toString(args));
+
+        int count = Integer.parseInt(args[0]);
+        long timeoutMs = args.length == 2 ? Long.parseLong(args[1]) : 0;
+
+        boolean upTo = qualifiers.containsKey(MODE);
+
+        return take(qualifiers, count, timeoutMs, client).thenApply(polled -> {
+            List<byte[]> res = upTo ? counted(polled.lines) : polled.lines;
+
+            return polled.leaseId == NOT_LEASED ? res :
+                prepend((polled.leaseId + "\r\n").getBytes(StandardCharsets.US_ASCII), res);
+        });
+    }
+
+    /**
+     * Returning of lines for the frame of the binary protocol, see {@link BinaryProtocol#OP_GET}.
+     *
+     * @param qualifiers Qualifiers of the request.
+     * @param count Number of requested lines.
+     * @param timeoutMs Time of waiting for lines in milliseconds.
+     * @param client Id of the client which sent the request.
+     * @return Future of parts of the response frame.
+     */
+    public CompletableFuture<List<byte[]>> executeFrame(
+        Map<String, String> qualifiers,
+        int count,
+        long timeoutMs,
+        int client
+    ) {
+        return take(qualifiers, count, timeoutMs, client)
+            .thenApply(polled -> BinaryProtocol.linesFrame(Math.max(polled.leaseId, 0), polled.lines));
+    }
+
+    /**
+     * Poll lines and lease them if it is requested.
+     *
+     * @return Future of polled lines.
+     */
+    private CompletableFuture<Polled> take(Map<String, String> qualifiers, int count, long timeoutMs, int client) {
+        Command.checkQualifiers(qualifiers, QUEUE, MODE, LEASE);
+
+        String mode = qualifiers.get(MODE);
+
+        if (mode != null && !mode.equals(UP_TO_MODE))
+            throw new IllegalArgumentException("Unknown mode :: " + mode);
+
+        StripedLineQueue queue = queues.queue(qualifiers.get(QUEUE));
 
+        if (count < 0 || timeoutMs < 0)
+            throw new IllegalArgumentException("Arguments should not be negative :: " + count + ", " + timeoutMs);
+
+        String lease = qualifiers.get(LEASE);
+        long leaseMs = lease != null ? Long.parseLong(lease) : 0;
+
+        if (leaseMs < 0)
+            throw new IllegalArgumentException("Lease timeout should not be negative :: " + leaseMs);
+
+        CompletableFuture<List<byte[]>> res = mode != null ? queue.pollUpTo(count, client, timeoutMs) :
+            queue.poll(count, client, timeoutMs).thenApply(GetCommand::checked);
+
+        if (lease == null)
+            return res.thenApply(poll -> new Polled(NOT_LEASED, poll));
+
+        return res.thenApply(poll -> new Polled(poll.isEmpty() ? 0 : queue.leases().lease(poll, leaseMs), poll));
+    }
+
+    /** Prepend the number of polled lines to them. */
+    static List<byte[]> counted(List<byte[]> poll) {
+        return prepend((poll.size() + "\r\n").getBytes(StandardCharsets.US_ASCII), poll);
+    }
+
+    private static List<byte[]> prepend(byte[] header, List<byte[]> parts) {
+        List<byte[]> res = new ArrayList<>(parts.size() + 1);
+
+        res.add(header);
+        res.addAll(parts);
+
+        return res;
+    }
+
+    private static byte[] poll(StripedLineQueue lineQueue, byte[] lineCount, int client) {
+        int count = Integer.parseInt(new String(lineCount, StandardCharsets.US_ASCII).trim());
+
+        return Command.concat(checked(lineQueue.poll(count, client)));
+    }
+
+    static List<byte[]> checked(List<byte[]> poll) {
         if (poll == null)
             throw new IllegalArgumentException("Number of requested lines are incorrect");
 
-        return String.join("", poll);
+        return poll;
+    }
+
+    /** Polled lines with the id of their lease. */
+    private static class Polled {
+        /** Id of the lease or {@link #NOT_LEASED}. */
+        final long leaseId;
+
+        /** Polled lines. */
+        final List<byte[]> lines;
+
+        Polled(long leaseId, List<byte[]> lines) {
+            this.leaseId = leaseId;
+            this.lines = lines;
+        }
     }
 }
@@ -0,0 +1,45 @@
+package org.github.akalash.linequeue.command;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+
+/**
+ * Returning of lines which are leased by {@code GET:LEASE=<timeoutMs>}, so they are redelivered without waiting for the
+ * end of the lease. The request is {@code NACK <leaseId>}, the lease which is unknown or already expired is an error.
+ */
+public class NackCommand implements Command {
+    /** Lines storages. */
+    private final LineQueueRegistry queues;
+
+    public NackCommand(LineQueueRegistry queues) {
+        this.queues = queues;
+    }
+
+    /** {@inheritDoc} */
+    @Override public String name() {
+        return "NACK";
+    }
+
+    /** {@inheritDoc} */
+    @Override public byte[] execute(byte[] leaseId) {
+        return nack(null, leaseId);
+    }
+
+    /** Returning of the lease of the queue given by the qualifier. */
+    @Override public CompletableFuture<byte[]> execute(byte[] leaseId, Map<String, String> qualifiers, int client) {
+        Command.checkQualifiers(qualifiers, QUEUE);
+
+        return CompletableFuture.completedFuture(nack(qualifiers.get(QUEUE), leaseId));
+    }
+
+    private byte[] nack(String queue, byte[] leaseId) {
+        long id = Long.parseLong(new String(leaseId, StandardCharsets.US_ASCII).trim());
+
+        if (!queues.queue(queue).leases().nack(id))
+            throw new IllegalArgumentException("Lease is not active :: " + id);
+
+        return OK;
+    }
+}
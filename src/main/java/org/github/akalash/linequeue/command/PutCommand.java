@@ -1,16 +1,68 @@
 package org.github.akalash.linequeue.command;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.github.akalash.linequeue.storage.Durability;
 import org.github.akalash.linequeue.storage.LineQueue;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+import org.github.akalash.linequeue.storage.ProducerSequences;
+import org.github.akalash.linequeue.storage.StripedLineQueue;
 
 /**
- * Storing new line to {@link LineQueue}.
+ * Storing new line to {@link LineQueue}. If the limit of lines is reached, the request waits for the room without
+ * holding the thread, so the next requests of the client wait as well, or it is rejected by {@link #BUSY}.
+ *
+ * The request {@code PUT:QUEUE=<name> <line>} creates the named queue if it doesn't exist yet, it is rejected by
+ * {@code ERR} when the max number of queues is reached.
+ *
+ * The request {@code PUT:TTL=<ms> <line>} stores the line which is dropped if it isn't polled in the given time.
+ *
+ * The request {@code PUT:PRIORITY=<level> <line>} stores the line to the given priority lane of the queue, the lane
+ * {@code 0} is the default one and the bigger one is more urgent.
+ *
+ * The request {@code PUT:PRODUCER=<id>:SEQ=<n> <line>} stores the line only if its number is bigger than the last
+ * number of the producer which is seen by the queue, so the producer can resend the lines which are not acknowledged
+ * after the reconnect. The retransmit is dropped and it is responded as the stored line.
+ *
+ * The batch of lines of the binary protocol is stored by {@link #executeBatch(List, Map, int)}.
  */
 public class PutCommand implements Command {
-    /** Lines storage. */
-    private final LineQueue lineQueue;
+    /** Qualifier of the durability which should be reached before the acknowledgement. */
+    static final String DURABILITY = "DURABILITY";
 
-    public PutCommand(LineQueue queue) {
-        lineQueue = queue;
+    /** Qualifier of the time to live of the line in milliseconds. */
+    static final String TTL = "TTL";
+
+    /** Qualifier of the priority lane of the line. */
+    static final String PRIORITY = "PRIORITY";
+
+    /** Qualifier of the id of the producer which numbers its lines. */
+    static final String PRODUCER = "PRODUCER";
+
+    /** Qualifier of the sequence number of the line of the producer. */
+    static final String SEQ = "SEQ";
+
+    /** Lines storages. */
+    private final LineQueueRegistry queues;
+
+    /** {@code true} if the request waits for the room, {@code false} if it is rejected when the limit is reached. */
+    private final boolean blockWhenFull;
+
+    public PutCommand(LineQueueRegistry queues) {
+        this(queues, true);
+    }
+
+    /**
+     * @param queues Lines storages.
+     * @param blockWhenFull {@code true} if the request should wait for the room, {@code false} if it should be rejected
+     * by {@link #BUSY} when the limit of lines is reached.
+     */
+    public PutCommand(LineQueueRegistry queues, boolean blockWhenFull) {
+        this.queues = queues;
+        this.blockWhenFull = blockWhenFull;
     }
 
     /** {@inheritDoc} */
@@ -19,9 +71,170 @@ public class PutCommand implements Command {
     }
 
     /** {@inheritDoc} */
-    @Override public String execute(String newLine) {
-        lineQueue.add(newLine);
+    @Override public byte[] execute(byte[] newLine) {
+        return execute(newLine, Collections.emptyMap(), 0).join();
+    }
+
+    /**
+     * Storing new line to the requested queue with the requested durability. The line without durability qualifier
+     * isn't acknowledged, otherwise {@link #OK} is responded when the line reaches the requested durability.
+     */
+    @Override public CompletableFuture<byte[]> execute(byte[] newLine, Map<String, String> qualifiers, int client) {
+        Options opts = new Options(qualifiers);
+
+        if (!blockWhenFull && !opts.queue.hasRoom())
+            return CompletableFuture.completedFuture(BUSY);
+
+        return opts.add(newLine, opts.seq, client).thenApply(ignore -> opts.res);
+    }
+
+    /**
+     * Storing the batch of lines with the same qualifiers in the order of the batch, the sequence number of the
+     * producer grows by one from line to line. The line which waits for the room holds the next lines of the batch, so
+     * the order is kept.
+     *
+     * @param lines Lines which should be stored.
+     * @param qualifiers Qualifiers of the batch, see {@link #execute(byte[], Map, int)}.
+     * @param client Id of the client which sent the request.
+     * @return Future of the number of stored lines which is completed when they reach the requested durability. The
+     * number is less than the size of the batch if the limit of lines is reached and the request shouldn't wait for
+     * the room, then the rest of the batch isn't stored.
+     */
+    public CompletableFuture<Integer> executeBatch(List<byte[]> lines, Map<String, String> qualifiers, int client) {
+        Options opts = new Options(qualifiers);
+
+        List<CompletableFuture<Void>> added = new ArrayList<>(lines.size());
+
+        //The line which waits for the room, the next lines wait for it.
+        CompletableFuture<Void> waiting = null;
+
+        for (int i = 0; i < lines.size(); i++) {
+            byte[] line = lines.get(i);
+            long seq = opts.producer == null ? 0 : opts.seq + i;
+
+            if (waiting == null && opts.queue.hasRoom())
+                added.add(opts.add(line, seq, client));
+            else if (!blockWhenFull)
+                break;
+            else {
+                waiting = waiting == null ? opts.add(line, seq, client) :
+                    waiting.thenCompose(ignore -> opts.add(line, seq, client));
+
+                added.add(waiting);
+            }
+        }
+
+        int stored = added.size();
+
+        return CompletableFuture.allOf(added.toArray(new CompletableFuture<?>[0])).thenApply(ignore -> stored);
+    }
+
+    /**
+     * @param ttl Value of the qualifier or {@code null}.
+     * @return Time to live in milliseconds or {@code 0} if the line never expires.
+     */
+    private static long ttl(String ttl) {
+        if (ttl == null)
+            return 0;
+
+        long res = Long.parseLong(ttl);
+
+        if (res <= 0)
+            throw new IllegalArgumentException("TTL should be positive :: " + ttl);
+
+        return res;
+    }
+
+    /** Parsed qualifiers of the request. */
+    private class Options {
+        /** Queue of the lines. */
+        final StripedLineQueue queue;
+
+        /** Durability which should be reached before the acknowledgement. */
+        final Durability durability;
+
+        /** Response to the stored line. */
+        final byte[] res;
+
+        /** Time to live of the line or {@code 0}. */
+        final long ttl;
+
+        /** Priority lane of the line. */
+        final int priority;
+
+        /** Id of the producer or {@code null}. */
+        final String producer;
+
+        /** Sequence number of the line of the producer or {@code 0}. */
+        final long seq;
+
+        /**
+         * @param qualifiers Qualifiers of the request.
+         */
+        Options(Map<String, String> qualifiers) {
+            Command.checkQualifiers(qualifiers, QUEUE, DURABILITY, TTL, PRIORITY, PRODUCER, SEQ);
+
+            String durabilityValue = qualifiers.get(DURABILITY);
+
+            durability = durabilityValue == null ? Durability.MEMORY : Durability.valueOf(durabilityValue);
+
+            res = durabilityValue == null ? NO_RESULT : OK;
+
+            ttl = ttl(qualifiers.get(TTL));
+
+            String priorityValue = qualifiers.get(PRIORITY);
+
+            priority = priorityValue == null ? 0 : Integer.parseInt(priorityValue);
+
+            producer = qualifiers.get(PRODUCER);
+
+            String seqValue = qualifiers.get(SEQ);
+
+            if ((producer == null) != (seqValue == null))
+                throw new IllegalArgumentException("Producer and sequence number should be given together");
+
+            seq = seqValue == null ? 0 : Long.parseLong(seqValue);
+
+            //The queue is created by the first line, so the incorrect request doesn't create it.
+            queue = queues.queueOrCreate(qualifiers.get(QUEUE));
+
+            if (priority < 0 || priority >= queue.priorityLevels())
+                throw new IllegalArgumentException("Unknown priority :: " + priority);
+        }
+
+        /**
+         * Add the line when there is room for it, the retransmit of the producer is dropped.
+         *
+         * @param line Line which should be stored.
+         * @param seq Sequence number of the line of the producer, it is ignored without the producer.
+         * @param client Id of the client which sent the request.
+         * @return Future which is completed when the line reaches the durability.
+         */
+        CompletableFuture<Void> add(byte[] line, long seq, int client) {
+            if (producer == null)
+                return queue.addWhenRoom(line, durability, client, ttl, priority);
+
+            ProducerSequences producers = queue.producers();
+
+            if (!producers.accept(producer, seq))
+                return CompletableFuture.completedFuture(null);
+
+            CompletableFuture<Void> added;
+
+            try {
+                //The number is logged together with the line, so the mark is restored after the crash.
+                added = queue.addWhenRoom(line, durability, client, ttl, priority, producer, seq);
+            }
+            catch (RuntimeException e) {
+                producers.failed(producer, seq);
+
+                throw e;
+            }
 
-        return NO_RESULT;
+            return added.whenComplete((ignore, e) -> {
+                if (e != null)
+                    producers.failed(producer, seq);
+            });
+        }
     }
 }
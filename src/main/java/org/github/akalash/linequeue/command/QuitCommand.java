@@ -14,7 +14,7 @@ public class QuitCommand implements Command {
     }
 
     /** {@inheritDoc} */
-    @Override public String execute(String notExpected) {
+    @Override public byte[] execute(byte[] notExpected) {
         return null;//For now, Null is sign of the close the client. TODO: Migrate from string to some ResultObject.
     }
 }
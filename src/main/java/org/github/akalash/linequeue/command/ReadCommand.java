@@ -0,0 +1,77 @@
+package org.github.akalash.linequeue.command;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+import org.github.akalash.linequeue.storage.StripedLineQueue;
+
+import static org.github.akalash.linequeue.command.GetCommand.MODE;
+import static org.github.akalash.linequeue.command.GetCommand.UP_TO_MODE;
+
+/**
+ * Reading of lines by the consumer group without removing them. The request {@code READ <group> <count>} returns the
+ * next lines of the group, every group reads all lines of the queue independently of other groups. It is supported
+ * only by the queues with consumer groups.
+ *
+ * The request {@code READ:MODE=UPTO <group> <count>} returns available lines, but not more than requested, the response
+ * starts with the line of their actual number.
+ */
+public class ReadCommand implements Command {
+    /** Lines storages. */
+    private final LineQueueRegistry queues;
+
+    public ReadCommand(LineQueueRegistry queues) {
+        this.queues = queues;
+    }
+
+    /** {@inheritDoc} */
+    @Override public String name() {
+        return "READ";
+    }
+
+    /** {@inheritDoc} */
+    @Override public byte[] execute(byte[] payload) {
+        return Command.concat(read(queues.queue(null), payload, false, 0));
+    }
+
+    /** Reading of lines from the queue given by the qualifier. */
+    @Override public CompletableFuture<byte[]> execute(byte[] payload, Map<String, String> qualifiers, int client) {
+        return executeParts(payload, qualifiers, client).thenApply(Command::concat);
+    }
+
+    /** Reading of lines from the queue given by the qualifier, every line is a separate part of the response. */
+    @Override public CompletableFuture<List<byte[]>> executeParts(
+        byte[] payload,
+        Map<String, String> qualifiers,
+        int client
+    ) {
+        Command.checkQualifiers(qualifiers, QUEUE, MODE);
+
+        String mode = qualifiers.get(MODE);
+
+        if (mode != null && !mode.equals(UP_TO_MODE))
+            throw new IllegalArgumentException("Unknown mode :: " + mode);
+
+        return CompletableFuture.completedFuture(read(queues.queue(qualifiers.get(QUEUE)), payload, mode != null, client));
+    }
+
+    private static List<byte[]> read(StripedLineQueue queue, byte[] payload, boolean upTo, int client) {
+        String[] args = new String(payload, StandardCharsets.US_ASCII).trim().split(" +");
+
+        if (args.length != 2)
+            throw new IllegalArgumentException("Group and number of lines are expected :: " + Arrays.toString(args));
+
+        int count = Integer.parseInt(args[1]);
+
+        if (count < 0)
+            throw new IllegalArgumentException("Number of lines should not be negative :: " + count);
+
+        if (upTo)
+            return GetCommand.counted(queue.readUpTo(args[0], count, client));
+
+        return GetCommand.checked(queue.read(args[0], count, client));
+    }
+}
@@ -1,19 +1,19 @@
 package org.github.akalash.linequeue.command;
 
-import org.github.akalash.linequeue.storage.LineQueue;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
 
 /**
  *  Finishing all work on current instance, dumping all data from memory to disk and quit the process.
  */
 public class ShutdownCommand implements Command {
-    /** Lines storage. */
-    final LineQueue lineQueue;
+    /** Lines storages. */
+    final LineQueueRegistry queues;
 
     /** The delegate which should stop all instance activity. */
     private final Runnable stopAction;
 
-    public ShutdownCommand(LineQueue queue, Runnable action) {
-        lineQueue = queue;
+    public ShutdownCommand(LineQueueRegistry queues, Runnable action) {
+        this.queues = queues;
         stopAction = action;
     }
 
@@ -23,11 +23,18 @@ public class ShutdownCommand implements Command {
     }
 
     /** {@inheritDoc} */
-    @Override public String execute(String payload) {
+    @Override public boolean isSlow() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override public byte[] execute(byte[] payload) {
         new Thread(() -> {
             stopAction.run();
 
-            lineQueue.dump();
+            queues.dump();
+
+            queues.close();
         }).start();
 
         return NO_RESULT;
@@ -0,0 +1,44 @@
+package org.github.akalash.linequeue.command;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+
+/**
+ * Writing snapshots of all queues or of the given one to disk without pausing of other commands. The reply is sent
+ * when the snapshots are in place.
+ */
+public class SnapshotCommand implements Command {
+    /** Lines storages. */
+    private final LineQueueRegistry queues;
+
+    public SnapshotCommand(LineQueueRegistry queues) {
+        this.queues = queues;
+    }
+
+    /** {@inheritDoc} */
+    @Override public String name() {
+        return "SNAPSHOT";
+    }
+
+    /** {@inheritDoc} */
+    @Override public boolean isSlow() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override public byte[] execute(byte[] payload) {
+        return queues.snapshot().thenApply(ignore -> OK).join();
+    }
+
+    /** {@inheritDoc} */
+    @Override public CompletableFuture<byte[]> execute(byte[] payload, Map<String, String> qualifiers, int client) {
+        Command.checkQualifiers(qualifiers, QUEUE);
+
+        String queue = qualifiers.get(QUEUE);
+
+        CompletableFuture<Void> snapshot = queue == null ? queues.snapshot() : queues.queue(queue).snapshot();
+
+        return snapshot.thenApply(ignore -> OK);
+    }
+}
@@ -0,0 +1,44 @@
+package org.github.akalash.linequeue.command;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+import org.github.akalash.linequeue.storage.StripedLineQueue;
+
+/**
+ * Statistics of the default queue or of the one given by the qualifier. The response is one line of space-separated
+ * {@code <name>=<value>} pairs: {@code lines} is the number of lines which are not polled yet and {@code expired} is
+ * the number of lines which expired before they were delivered.
+ */
+public class StatsCommand implements Command {
+    /** Lines storages. */
+    private final LineQueueRegistry queues;
+
+    public StatsCommand(LineQueueRegistry queues) {
+        this.queues = queues;
+    }
+
+    /** {@inheritDoc} */
+    @Override public String name() {
+        return "STATS";
+    }
+
+    /** {@inheritDoc} */
+    @Override public byte[] execute(byte[] payload) {
+        return stats(queues.queue(null));
+    }
+
+    /** {@inheritDoc} */
+    @Override public CompletableFuture<byte[]> execute(byte[] payload, Map<String, String> qualifiers, int client) {
+        Command.checkQualifiers(qualifiers, QUEUE);
+
+        return CompletableFuture.completedFuture(stats(queues.queue(qualifiers.get(QUEUE))));
+    }
+
+    private static byte[] stats(StripedLineQueue queue) {
+        String stats = "lines=" + queue.size() + " expired=" + queue.expiredLines() + "\r\n";
+
+        return stats.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,100 @@
+package org.github.akalash.linequeue.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers of the current thread. Buffers of every size class are sliced from big slabs, so the socket
+ * reads and writes don't go through the temporary direct buffer of the JDK and the allocation of the slab is rare. The
+ * buffer is leased for one read or for writing of the staged responses and it is released right after that, so the
+ * idle connection holds no buffer.
+ *
+ * The pool isn't thread-safe, every I/O thread has its own one, so leasing costs no synchronization. The buffer which
+ * is released by another thread goes to the pool of that thread.
+ */
+public final class BufferPool {
+    /** Sizes of buffers of the pool, the bigger request gets the unpooled buffer. */
+    static final int[] SIZE_CLASSES = {512, 2 * 1024, 8 * 1024, 32 * 1024};
+
+    /** Size of one slab which is sliced to buffers of one class. */
+    static final int SLAB_SIZE = 256 * 1024;
+
+    /** Max size of free buffers of one class, the released buffers beyond it are left to GC. */
+    static final int MAX_FREE_SIZE = 1024 * 1024;
+
+    /** Pools of I/O threads. */
+    private static final ThreadLocal<BufferPool> LOCAL = ThreadLocal.withInitial(BufferPool::new);
+
+    /** Free buffers by size classes. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<ByteBuffer>[] free = new ArrayDeque[SIZE_CLASSES.length];
+
+    private BufferPool() {
+        for (int i = 0; i < free.length; i++)
+            free[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * @return Pool of the current thread.
+     */
+    public static BufferPool local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * @param size Required size.
+     * @return Index of the smallest size class which fits the size or {@code -1} if it is bigger than all classes.
+     */
+    static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i])
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param size Required size.
+     * @return Cleared buffer which capacity is the smallest size class which fits the size.
+     */
+    public ByteBuffer acquire(int size) {
+        int cls = sizeClass(size);
+
+        if (cls == -1)
+            return ByteBuffer.allocateDirect(size);
+
+        ByteBuffer buf = free[cls].pollLast();
+
+        if (buf == null) {
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+
+            for (int pos = 0; pos < SLAB_SIZE; pos += SIZE_CLASSES[cls]) {
+                slab.limit(pos + SIZE_CLASSES[cls]).position(pos);
+
+                free[cls].add(slab.slice());
+            }
+
+            buf = free[cls].pollLast();
+        }
+
+        buf.clear();
+
+        return buf;
+    }
+
+    /**
+     * Return the buffer to the pool, it shouldn't be used after that.
+     *
+     * @param buf Buffer which is acquired from any pool.
+     */
+    public void release(ByteBuffer buf) {
+        int cls = sizeClass(buf.capacity());
+
+        if (cls == -1 || buf.capacity() != SIZE_CLASSES[cls] || !buf.isDirect())
+            return;
+
+        if ((free[cls].size() + 1) * SIZE_CLASSES[cls] <= MAX_FREE_SIZE)
+            free[cls].addLast(buf);
+    }
+}
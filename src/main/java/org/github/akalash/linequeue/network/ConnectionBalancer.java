@@ -0,0 +1,59 @@
+package org.github.akalash.linequeue.network;
+
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Handler of new connections which spreads them across several {@link ReadWriteSocketWorker}s. The connection goes to
+ * the worker with the least number of connections, the search starts from the next worker round-robin, so the equally
+ * loaded workers get connections in turn. The connection stays with its worker until it is closed.
+ */
+public class ConnectionBalancer implements Consumer<SocketChannel> {
+    /** Workers which serve connections. */
+    private final ReadWriteSocketWorker[] workers;
+
+    /** Number of accepted connections, it chooses the first worker of the search. */
+    private final AtomicInteger turns = new AtomicInteger();
+
+    /**
+     * @param workers Workers which serve connections.
+     */
+    public ConnectionBalancer(ReadWriteSocketWorker... workers) {
+        if (workers.length == 0)
+            throw new IllegalArgumentException("At least one read-write socket worker is expected");
+
+        this.workers = workers;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void accept(SocketChannel client) {
+        next().establishNewConnection(client);
+    }
+
+    /**
+     * @return Worker which should take the next connection.
+     */
+    ReadWriteSocketWorker next() {
+        if (workers.length == 1)
+            return workers[0];
+
+        int first = Math.floorMod(turns.getAndIncrement(), workers.length);
+
+        ReadWriteSocketWorker res = workers[first];
+        int least = res.connectionCount();
+
+        for (int i = 1; i < workers.length && least > 0; i++) {
+            ReadWriteSocketWorker worker = workers[(first + i) % workers.length];
+
+            int count = worker.connectionCount();
+
+            if (count < least) {
+                res = worker;
+                least = count;
+            }
+        }
+
+        return res;
+    }
+}
@@ -15,14 +15,37 @@ public interface ConnectionFacade {
     public void requestReceived(ByteBuffer buffer);
 
     /**
-     * Take the data which should be written to the socket.
+     * Take the data which should be written to the socket by one gathering write. The buffers stay with the handler
+     * until {@link #responsesWritten()}, so the data which isn't written by this pass is taken again by the next one.
      *
-     * @return Data for write.
+     * @param dst Array which should be filled by buffers of data from its start.
+     * @param maxSize Max total number of bytes of the buffers.
+     * @return Number of filled buffers or {@code -1} if the connection should be closed.
      */
-    public ByteBuffer nextResponse();
+    public int nextResponses(ByteBuffer[] dst, long maxSize);
+
+    /**
+     * Notifying that the buffers of {@link #nextResponses(ByteBuffer[], long)} were written to the socket, fully or
+     * partially, so the written data can be dropped.
+     */
+    public void responsesWritten();
 
     /**
      * @return {@code true} if the current handler has more data that await to be written to the socket.
      */
     public boolean hasNextResponse();
+
+    /**
+     * @return {@code true} if the data shouldn't be read from the connection until the received requests are handled.
+     */
+    public default boolean isReadSuspended() {
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the connection should be closed.
+     */
+    public default boolean isFinished() {
+        return false;
+    }
 }
@@ -0,0 +1,60 @@
+package org.github.akalash.linequeue.network;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Factory of threads which serve one connection each. Virtual threads are used when the runtime has them, they are
+ * looked up by reflection since the code is built for Java 8, otherwise the connections get daemon platform threads.
+ */
+public final class ConnectionThreads {
+    private static final Logger log = LogManager.getLogger(ConnectionThreads.class);
+
+    private ConnectionThreads() {
+    }
+
+    /**
+     * @param prefix Prefix of names of threads.
+     * @return Factory of virtual threads or of platform threads if virtual ones aren't supported.
+     */
+    public static ThreadFactory factory(String prefix) {
+        ThreadFactory virtual = virtualFactory(prefix);
+
+        if (virtual != null)
+            return virtual;
+
+        log.info("Virtual threads are not supported, platform threads are used for connections");
+
+        AtomicInteger number = new AtomicInteger();
+
+        return r -> {
+            Thread thread = new Thread(r, prefix + number.getAndIncrement());
+
+            thread.setDaemon(true);
+
+            return thread;
+        };
+    }
+
+    /**
+     * @param prefix Prefix of names of threads.
+     * @return Factory of virtual threads or {@code null} if they aren't supported.
+     */
+    static ThreadFactory virtualFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            Method name = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class);
+
+            builder = name.invoke(builder, prefix, 0L);
+
+            return (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -13,6 +13,9 @@ import org.apache.logging.log4j.Logger;
 
 /**
  * A worker which await new connections on the open socket and proceed it for further handling.
+ *
+ * Several workers can share one server channel, every worker waits on its own selector and the one which accepts the
+ * connection first takes it, the others get nothing.
  */
 public class PortListenWorker implements Runnable {
     private static final Logger log = LogManager.getLogger(PortListenWorker.class);
@@ -23,9 +26,7 @@ public class PortListenWorker implements Runnable {
     /** Consumer which handle new input connection. */
     private final Consumer<SocketChannel> newConnectionHandler;
 
-    /**
-     *
-     */
+    /** Channel which accepts new connections, it is bound on the start if it isn't given. */
     private ServerSocketChannel serverChannel;
 
     public PortListenWorker(int port, Consumer<SocketChannel> register) {
@@ -33,6 +34,46 @@ public class PortListenWorker implements Runnable {
         newConnectionHandler = register;
     }
 
+    /**
+     * @param serverChannel Bound channel which can be shared with other workers.
+     * @param register Consumer which handle new input connection.
+     */
+    public PortListenWorker(ServerSocketChannel serverChannel, Consumer<SocketChannel> register) {
+        this(serverChannel.socket().getLocalPort(), register);
+
+        this.serverChannel = serverChannel;
+    }
+
+    /**
+     * Bind the channel which can be shared by several workers.
+     *
+     * @param host Address for binding, {@code null} for all local addresses.
+     * @param port Local port for binding.
+     * @param backlog Max number of pending connections or {@code 0} for the default of the system.
+     * @return Bound non-blocking channel.
+     * @throws IOException If fail.
+     */
+    public static ServerSocketChannel bind(String host, int port, int backlog) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+
+        try {
+            channel.configureBlocking(false);
+
+            InetSocketAddress hostAddress = host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+
+            channel.bind(hostAddress, backlog);
+
+            log.info("Server bind to address :: " + hostAddress);
+        }
+        catch (IOException e) {
+            channel.close();
+
+            throw e;
+        }
+
+        return channel;
+    }
+
     @Override public void run() {
         try {
             handleIncomingConnections();
@@ -42,8 +83,10 @@ public class PortListenWorker implements Runnable {
         }
         finally {
             try {
-                serverChannel.socket().close();
-                serverChannel.close();
+                if (serverChannel != null) {
+                    serverChannel.socket().close();
+                    serverChannel.close();
+                }
             }
             catch (IOException e) {
                 log.error("Channel can't be closed :: ", e);
@@ -61,16 +104,11 @@ public class PortListenWorker implements Runnable {
     private void handleIncomingConnections() throws IOException {
         Selector selector = Selector.open();
 
-        serverChannel = ServerSocketChannel.open();
-        serverChannel.configureBlocking(false);
-
-        InetSocketAddress hostAddress = new InetSocketAddress("localhost", localPort);
-        serverChannel.bind(hostAddress);
+        if (serverChannel == null)
+            serverChannel = bind("localhost", localPort, 0);
 
         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-        log.info("Server bind to address :: " + hostAddress);
-
         while (!Thread.currentThread().isInterrupted()) {
             int keysCount = selector.select();
 
@@ -88,6 +126,11 @@ public class PortListenWorker implements Runnable {
                     ServerSocketChannel server = (ServerSocketChannel)key.channel();
 
                     SocketChannel client = server.accept();
+
+                    //The connection is taken by another worker.
+                    if (client == null)
+                        continue;
+
                     // Non Blocking I/O.
                     client.configureBlocking(false);
 
@@ -6,35 +6,52 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Worker which read from/write to socket in non-blocked way.
+ *
+ * The interest in reading is dropped while the connection handler has too many received requests, so TCP flow control
+ * slows down the client until the requests are handled.
  */
 public class ReadWriteSocketWorker implements Runnable {
     private static final Logger log = LogManager.getLogger(ReadWriteSocketWorker.class);
 
+    /** Max number of buffers of one gathering write. */
+    private static final int MAX_WRITE_BUFFERS = 64;
+
+    /** Max number of bytes which are written to one connection per pass, so one client can't starve the others. */
+    private static final long MAX_WRITE_SIZE = 256 * 1024;
+
     /** Changes which should be applied in worker threads. */
     private final ConcurrentLinkedQueue<Runnable> changesCallbacks = new ConcurrentLinkedQueue<>();
 
     /** List of clients which connections were established to. */
     private final Set<SocketChannel> activeClients = new HashSet<>();
 
+    /** Number of connections which are served or are being registered by this worker, it is read by other threads. */
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
     /** Specific selector only for current worker. */
     private final Selector readWriteSelector;
 
-    /** Read buffer. */
-    private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    /** Thread of this worker. */
+    private volatile Thread workerThread;
+
+    /** Buffers of the current gathering write. */
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_WRITE_BUFFERS];
 
     /** Factory which create a new connection handler for each new client. */
-    private final Function</* Ready for read callback */Runnable, ConnectionFacade> connectionHandlerFactory;
+    private final Function</* Interest changed callback */Runnable, ConnectionFacade> connectionHandlerFactory;
 
     public ReadWriteSocketWorker(Function<Runnable, ConnectionFacade> factory) throws IOException {
         connectionHandlerFactory = factory;
@@ -66,6 +83,10 @@ public class ReadWriteSocketWorker implements Runnable {
     public void handleReadWriteEvents() throws IOException {
         log.info("Read-write socket worker started");
 
+        workerThread = Thread.currentThread();
+
+        BufferPool pool = BufferPool.local();
+
         while (!Thread.currentThread().isInterrupted()) {
 
             Runnable changes;
@@ -84,41 +105,107 @@ public class ReadWriteSocketWorker implements Runnable {
 
                 keyIterator.remove();
 
-                if (key.isReadable()) {
-                    SocketChannel client = (SocketChannel)key.channel();
+                try {
+                    handleEvents(key, pool);
+                }
+                catch (IOException e) {
+                    log.info("Connection is failed :: " + e.getMessage());
 
-                    readBuffer.clear();
+                    closeClient((SocketChannel)key.channel());
+                }
+            }
+        }
+    }
 
-                    int actualRead = client.read(readBuffer);
+    /**
+     * Read the data of the ready connection and write the data for it.
+     *
+     * @param key Selection key of the connection.
+     * @param pool Buffers of the current thread.
+     * @throws IOException If the connection is failed.
+     */
+    private void handleEvents(SelectionKey key, BufferPool pool) throws IOException {
+        SocketChannel client = (SocketChannel)key.channel();
+        Connection conn = (Connection)key.attachment();
 
-                    if (actualRead == -1) {
-                        closeClient(client);
+        boolean readable = key.isReadable();
 
-                        continue;
-                    }
+        if (readable) {
+            //The buffer is leased only for the read, so the idle connection holds no memory.
+            ByteBuffer readBuffer = pool.acquire(conn.readSize);
+
+            try {
+                int actualRead = client.read(readBuffer);
 
-                    readBuffer.flip();
+                if (actualRead == -1) {
+                    closeClient(client);
 
-                    ((ConnectionFacade)key.attachment()).requestReceived(readBuffer);
+                    return;
                 }
 
-                if (key.isWritable()) {
-                    SocketChannel client = (SocketChannel)key.channel();
-                    ConnectionFacade handler = (ConnectionFacade)key.attachment();
+                conn.readDone(actualRead, readBuffer.capacity());
+
+                readBuffer.flip();
+
+                conn.handler.requestReceived(readBuffer);
+            }
+            finally {
+                pool.release(readBuffer);
+            }
+
+            if (conn.handler.isReadSuspended() || conn.handler.isFinished())
+                updateInterest(key);
+        }
+
+        //The responses of requests which were executed right on this thread are written in the same pass.
+        if (key.isValid() && (key.isWritable() || readable && conn.handler.hasNextResponse())) {
+            ConnectionFacade handler = conn.handler;
 
-                    ByteBuffer data = handler.nextResponse();
+            int count = handler.nextResponses(writeBuffers, MAX_WRITE_SIZE);
 
-                    if (data != null)
-                        client.write(data);
-                    else
-                        closeClient(client);
+            if (count == -1)
+                closeClient(client);
+            else {
+                try {
+                    write(client, count);
+                }
+                finally {
+                    handler.responsesWritten();
 
-                    if (!handler.hasNextResponse()) {
-                        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
-                            key.interestOps(key.interestOps() & (~SelectionKey.OP_WRITE));
-                    }
+                    Arrays.fill(writeBuffers, 0, count, null);
                 }
             }
+
+            if (!handler.hasNextResponse())
+                updateInterest(key);
+        }
+    }
+
+    /**
+     * Write the buffers by gathering writes until they are written or the socket can't take more.
+     *
+     * @param client Channel of the client.
+     * @param count Number of buffers in {@link #writeBuffers}.
+     * @throws IOException If fail.
+     */
+    private void write(SocketChannel client, int count) throws IOException {
+        long size = 0;
+
+        for (int i = 0; i < count; i++)
+            size += writeBuffers[i].remaining();
+
+        int first = 0;
+
+        for (long written; size > 0; size -= written) {
+            //Fully written buffers are skipped, the rest is written from the first partially written one.
+            while (!writeBuffers[first].hasRemaining())
+                first++;
+
+            written = client.write(writeBuffers, first, count - first);
+
+            //The socket buffer is full, the rest is written when the socket becomes writable again.
+            if (written == 0)
+                break;
         }
     }
 
@@ -130,7 +217,8 @@ public class ReadWriteSocketWorker implements Runnable {
         catch (IOException ignore) {
         }
 
-        activeClients.remove(client);
+        if (activeClients.remove(client))
+            connectionCount.decrementAndGet();
 
         client.close();
 
@@ -164,17 +252,21 @@ public class ReadWriteSocketWorker implements Runnable {
      * @param socketChannel Channel with the remote client, which the connection should be established to.
      */
     public void establishNewConnection(SocketChannel socketChannel) {
+        connectionCount.incrementAndGet();
+
         changesCallbacks.add(() -> {
             try {
                 SelectionKey newClient = socketChannel.register(readWriteSelector, SelectionKey.OP_READ, SelectionKey.OP_WRITE);
 
-                newClient.attach(connectionHandlerFactory.apply(() -> readyForWrite(newClient)));
+                newClient.attach(new Connection(connectionHandlerFactory.apply(() -> interestChanged(newClient))));
 
                 activeClients.add(socketChannel);
 
                 log.info("New connection established :: " + socketChannel.getRemoteAddress());
             }
             catch (IOException ex) {
+                connectionCount.decrementAndGet();
+
                 log.info("Registration of new connection failed :: ", ex);
             }
         });
@@ -183,16 +275,113 @@ public class ReadWriteSocketWorker implements Runnable {
     }
 
     /**
-     * Notify the worker that input selection key is ready to provide data for write.
+     * @return Number of connections which are served by this worker.
+     */
+    public int connectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Notify the worker that the handler of input selection key is ready to provide data for write, it can receive data
+     * again or it is finished.
      *
-     * @param key Selection key which has a data for write.
+     * @param key Selection key which handler was changed.
      */
-    public void readyForWrite(SelectionKey key) {
+    public void interestChanged(SelectionKey key) {
+        //The handler is changed by this worker itself, the interest is applied without waking up the selector.
+        if (Thread.currentThread() == workerThread) {
+            try {
+                updateInterest(key);
+            }
+            catch (IOException e) {
+                log.error("Connection with client can't be closed :: ", e);
+            }
+
+            return;
+        }
+
         changesCallbacks.add(() -> {
-            if ((key.interestOps() & SelectionKey.OP_WRITE) == 0)
-                key.interestOps(key.interestOps() | (SelectionKey.OP_WRITE));
+            try {
+                updateInterest(key);
+            }
+            catch (IOException e) {
+                log.error("Connection with client can't be closed :: ", e);
+            }
         });
 
         readWriteSelector.wakeup();
     }
+
+    /** Apply the state of the handler to the interest of the selection key. */
+    private void updateInterest(SelectionKey key) throws IOException {
+        if (!key.isValid())
+            return;
+
+        ConnectionFacade handler = ((Connection)key.attachment()).handler;
+
+        if (handler.isFinished()) {
+            closeClient((SocketChannel)key.channel());
+
+            return;
+        }
+
+        int ops = handler.isReadSuspended() ? 0 : SelectionKey.OP_READ;
+
+        if (handler.hasNextResponse())
+            ops |= SelectionKey.OP_WRITE;
+
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    /**
+     * Handler of the connection with the size of the next read. The size grows at once when the read fills the whole
+     * buffer and it shrinks when several reads in a row fit into the quarter of the buffer, so the chatty connection
+     * reads in big chunks while the connection with short requests takes small buffers.
+     */
+    private static class Connection {
+        /** Initial size of the read. */
+        private static final int INITIAL_READ_SIZE = 2 * 1024;
+
+        /** Number of small reads in a row after which the read size shrinks. */
+        private static final int SHRINK_AFTER = 2;
+
+        /** Handler of the connection. */
+        final ConnectionFacade handler;
+
+        /** Size of the next read. */
+        int readSize = INITIAL_READ_SIZE;
+
+        /** Number of reads in a row which fit into the quarter of the buffer. */
+        private int smallReads;
+
+        Connection(ConnectionFacade handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * @param read Number of read bytes.
+         * @param capacity Capacity of the buffer of the read.
+         */
+        void readDone(int read, int capacity) {
+            if (read == capacity) {
+                int cls = BufferPool.sizeClass(capacity);
+
+                if (cls != -1 && cls + 1 < BufferPool.SIZE_CLASSES.length)
+                    readSize = BufferPool.SIZE_CLASSES[cls + 1];
+
+                smallReads = 0;
+            }
+            else if (read <= capacity / 4 && ++smallReads >= SHRINK_AFTER) {
+                int cls = BufferPool.sizeClass(capacity);
+
+                if (cls > 0)
+                    readSize = BufferPool.SIZE_CLASSES[cls - 1];
+
+                smallReads = 0;
+            }
+            else if (read > capacity / 4)
+                smallReads = 0;
+        }
+    }
 }
@@ -0,0 +1,135 @@
+package org.github.akalash.linequeue.network;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A worker which accepts new connections in blocking way and serves every connection by its own thread, see
+ * {@link ConnectionThreads}. The handler of the connection reads and writes in blocking way as well, so it needs no
+ * selector and no handoff between threads. It is the alternative of {@link PortListenWorker} with
+ * {@link ReadWriteSocketWorker}.
+ *
+ * All connections are closed when the worker is interrupted, so their threads are released from blocking reads.
+ */
+public class ThreadPerConnectionWorker implements Runnable {
+    private static final Logger log = LogManager.getLogger(ThreadPerConnectionWorker.class);
+
+    /** Bound channel which accepts new connections. */
+    private final ServerSocketChannel serverChannel;
+
+    /** Factory of threads of connections. */
+    private final ThreadFactory threadFactory;
+
+    /** Handler which serves the connection until it is closed, it is called by the thread of the connection. */
+    private final ConnectionHandler connectionHandler;
+
+    /** Connections which are being served. */
+    private final Set<SocketChannel> activeClients = ConcurrentHashMap.newKeySet();
+
+    /** {@code true} if the worker is stopped, so the new connection is closed at once. */
+    private volatile boolean stopped;
+
+    /**
+     * @param serverChannel Bound channel which accepts new connections.
+     * @param threadFactory Factory of threads of connections.
+     * @param connectionHandler Handler which serves the connection until it is closed.
+     */
+    public ThreadPerConnectionWorker(
+        ServerSocketChannel serverChannel,
+        ThreadFactory threadFactory,
+        ConnectionHandler connectionHandler
+    ) {
+        this.serverChannel = serverChannel;
+        this.threadFactory = threadFactory;
+        this.connectionHandler = connectionHandler;
+    }
+
+    @Override public void run() {
+        try {
+            serverChannel.configureBlocking(true);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                SocketChannel client = serverChannel.accept();
+
+                activeClients.add(client);
+
+                if (stopped) {
+                    closeClient(client);
+
+                    break;
+                }
+
+                threadFactory.newThread(() -> serve(client)).start();
+            }
+        }
+        catch (Exception ex) {
+            if (!Thread.currentThread().isInterrupted())
+                log.error("Error during the handling incoming connections", ex);
+        }
+        finally {
+            stop();
+
+            log.info("Handling of incoming connection was finished");
+        }
+    }
+
+    /** Serve the connection by the current thread and close it. */
+    private void serve(SocketChannel client) {
+        try {
+            log.info("New connection established :: " + client.getRemoteAddress());
+
+            connectionHandler.serve(client);
+        }
+        catch (Exception ex) {
+            if (!stopped)
+                log.info("Connection is failed :: " + ex);
+        }
+        finally {
+            closeClient(client);
+        }
+    }
+
+    private void closeClient(SocketChannel client) {
+        activeClients.remove(client);
+
+        try {
+            client.close();
+        }
+        catch (IOException e) {
+            log.error("Connection with client can't be closed :: ", e);
+        }
+    }
+
+    /** Close the server channel and all open connections. */
+    public void stop() {
+        stopped = true;
+
+        try {
+            serverChannel.close();
+        }
+        catch (IOException e) {
+            log.error("Channel can't be closed :: ", e);
+        }
+
+        for (SocketChannel client : activeClients)
+            closeClient(client);
+    }
+
+    /** Handler which serves one connection by the calling thread. */
+    @FunctionalInterface
+    public interface ConnectionHandler {
+        /**
+         * Read requests and write responses in blocking way until the connection is finished.
+         *
+         * @param client Blocking channel of the client, it is closed by the worker after the return.
+         * @throws IOException If the connection is failed.
+         */
+        void serve(SocketChannel client) throws IOException;
+    }
+}
@@ -0,0 +1,121 @@
+package org.github.akalash.linequeue.request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.github.akalash.linequeue.command.CommandExecutor;
+import org.github.akalash.linequeue.network.ThreadPerConnectionWorker;
+
+/**
+ * Handler of the connection which is served by its own thread. Requests are read, executed and responded one after
+ * another in blocking way, so the order of requests of the client is kept by the thread itself and the slow client is
+ * slowed down by TCP flow control.
+ *
+ * Responses of the requests of one read are collected and written together by one gathering write. They are written
+ * before waiting for the result which isn't ready yet, so the client doesn't wait for responses which are ready.
+ */
+public class BlockingRequestHandler implements ThreadPerConnectionWorker.ConnectionHandler {
+    private static final Logger log = LogManager.getLogger(BlockingRequestHandler.class);
+
+    /** Size of the read buffer of one connection, it is kept small since the connections can be many. */
+    private static final int READ_BUFFER_SIZE = 2 * 1024;
+
+    /** Generator of client ids. */
+    private static final AtomicInteger CLIENT_IDS = new AtomicInteger();
+
+    /** The executor of command which chooses the command according to the request. */
+    private final CommandExecutor commandExecutor;
+
+    /** Max size of one request, the connection is closed if the request is bigger. */
+    private final int maxLineSize;
+
+    /**
+     * @param commandExecutor The executor of command which chooses the command according to the request.
+     * @param maxLineSize Max size of one request, the connection is closed if the request is bigger.
+     */
+    public BlockingRequestHandler(CommandExecutor commandExecutor, int maxLineSize) {
+        this.commandExecutor = commandExecutor;
+        this.maxLineSize = maxLineSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void serve(SocketChannel client) throws IOException {
+        int clientId = CLIENT_IDS.getAndIncrement();
+
+        RequestDecoder requestDecoder = new RequestDecoder(maxLineSize);
+
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        List<ByteBuffer> responses = new ArrayList<>();
+
+        while (client.read(readBuffer) != -1) {
+            readBuffer.flip();
+
+            List<byte[]> requests;
+
+            try {
+                requests = requestDecoder.decode(readBuffer);
+            }
+            catch (IllegalStateException e) {
+                log.warn("Connection is finished :: client = " + clientId + ", reason = " + e.getMessage());
+
+                return;
+            }
+
+            readBuffer.clear();
+
+            for (byte[] request : requests) {
+                CompletableFuture<List<byte[]>> result = requestDecoder.isBinary()
+                    ? commandExecutor.handleFrameAsync(request, clientId)
+                    : commandExecutor.handleRequestPartsAsync(request, clientId);
+
+                if (!result.isDone())
+                    write(client, responses);
+
+                List<byte[]> parts = result.join();
+
+                //The connection is finished by the command.
+                if (parts == null) {
+                    write(client, responses);
+
+                    return;
+                }
+
+                for (byte[] part : parts)
+                    responses.add(ByteBuffer.wrap(part));
+            }
+
+            write(client, responses);
+        }
+    }
+
+    /**
+     * Write the responses by gathering writes and clear them.
+     *
+     * @param client Blocking channel of the client.
+     * @param responses Responses which should be written.
+     * @throws IOException If fail.
+     */
+    private static void write(SocketChannel client, List<ByteBuffer> responses) throws IOException {
+        if (responses.isEmpty())
+            return;
+
+        ByteBuffer[] bufs = responses.toArray(new ByteBuffer[0]);
+
+        long size = 0;
+
+        for (ByteBuffer buf : bufs)
+            size += buf.remaining();
+
+        for (long written = 0; written < size; )
+            written += client.write(bufs);
+
+        responses.clear();
+    }
+}
@@ -1,72 +1,149 @@
 package org.github.akalash.linequeue.request;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.github.akalash.linequeue.network.ConnectionFacade;
 
 /**
  * Mediator between socket data and command data.
+ *
+ * The received requests which are not handled yet are limited: when their size exceeds the limit, the reading from the
+ * connection is suspended until they are handled, so the slow handling slows down the client by TCP flow control
+ * instead of buffering everything in memory.
  */
 public class DataExchanger implements ConnectionFacade, RequestFacade {
-    private final ByteBuffer writeSocketBuffer = ByteBuffer.allocate(1024);
+    private static final Logger log = LogManager.getLogger(DataExchanger.class);
 
-    /** Helper class for splitting monotonic input data to the string line. */
-    private final LineTokenizer lineTokenizer = new LineTokenizer();
+    /** Generator of client ids. */
+    private static final AtomicInteger CLIENT_IDS = new AtomicInteger();
+
+    /** Id of the client of this connection. */
+    private final int clientId = CLIENT_IDS.getAndIncrement();
+
+    /** Helper class for splitting monotonic input data to requests of the protocol chosen by the client. */
+    private final RequestDecoder requestDecoder;
+
+    /** Max size of received requests which are not handled yet, the reading is suspended after it. */
+    private final long maxPendingSize;
+
+    /** Size of received requests which are not handled yet. */
+    private final AtomicLong pendingSize = new AtomicLong();
 
     /** Consumer which should be notified when new request is ready to handle. */
     private final Consumer<RequestFacade> requestReadyNotifier;
 
-    /** Callback for notification the consumer that the data is ready to be written to the socket. */
+    /** Callback for notification that the data is ready to be written to the socket or the reading can be resumed. */
     private final Runnable responseReadyNotifier;
 
     /** Prepared requests which can be handled. */
-    private final Queue<String> requests = new ConcurrentLinkedDeque<>();
+    private final Queue<byte[]> requests = new ConcurrentLinkedDeque<>();
 
-    /** Prepared responses that can be written to the socket. */
+    /** Prepared responses that can be written to the socket, the first one can be written partially. */
     private final Queue<ByteBuffer> responses = new ConcurrentLinkedDeque<>();
 
+    /** Response which limit was cut by the last {@link #nextResponses(ByteBuffer[], long)} or {@code null}. */
+    private ByteBuffer cutResponse;
+
+    /** Original limit of {@link #cutResponse}. */
+    private int cutLimit;
+
     private volatile boolean finish = false;
 
     public DataExchanger(Consumer<RequestFacade> requestReadyNotifier, Runnable responseReadyNotifier) {
+        this(requestReadyNotifier, responseReadyNotifier, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param requestReadyNotifier Consumer which should be notified when new request is ready to handle.
+     * @param responseReadyNotifier Callback for notification that the data is ready to be written to the socket or the
+     * reading can be resumed.
+     * @param maxPendingSize Max size of received requests which are not handled yet, the reading is suspended after it.
+     * @param maxLineSize Max size of one request, the connection is closed if the request is bigger.
+     */
+    public DataExchanger(
+        Consumer<RequestFacade> requestReadyNotifier,
+        Runnable responseReadyNotifier,
+        long maxPendingSize,
+        int maxLineSize
+    ) {
         this.requestReadyNotifier = requestReadyNotifier;
         this.responseReadyNotifier = responseReadyNotifier;
+        this.maxPendingSize = maxPendingSize;
 
-        writeSocketBuffer.compact();
+        requestDecoder = new RequestDecoder(maxLineSize);
     }
 
     /** {@inheritDoc} */
-    @Override public ByteBuffer nextResponse() {
-        if(finish)
-            return null;
+    @Override public int nextResponses(ByteBuffer[] dst, long maxSize) {
+        if (finish)
+            return -1;
 
-        if (writeSocketBuffer.hasRemaining())
-            writeSocketBuffer.compact();
-        else
-            writeSocketBuffer.clear();
+        int count = 0;
+        long size = 0;
 
-        ByteBuffer src = responses.peek();
+        for (ByteBuffer response : responses) {
+            if (count == dst.length || size == maxSize)
+                break;
 
-        while (writeSocketBuffer.hasRemaining() && src != null) {
-            if (!src.hasRemaining()) {
-                responses.poll();
+            //The response is written up to the cap, the rest of it stays for the next pass.
+            if (response.remaining() > maxSize - size) {
+                cutResponse = response;
+                cutLimit = response.limit();
 
-                src = responses.peek();
+                response.limit(response.position() + (int)(maxSize - size));
             }
 
-            if (src != null)
-                writeSocketBuffer.put(src.get());
+            size += response.remaining();
+
+            dst[count++] = response;
+        }
+
+        return count;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void responsesWritten() {
+        if (cutResponse != null) {
+            cutResponse.limit(cutLimit);
+
+            cutResponse = null;
         }
 
-        writeSocketBuffer.flip();
+        for (ByteBuffer response; (response = responses.peek()) != null && !response.hasRemaining(); )
+            responses.poll();
+    }
 
-        return writeSocketBuffer;
+    /** {@inheritDoc} */
+    @Override public int clientId() {
+        return clientId;
     }
 
     /** {@inheritDoc} */
     @Override public void requestReceived(ByteBuffer buffer) {
-        requests.addAll(lineTokenizer.extractCompletedLines(buffer));
+        List<byte[]> lines;
+
+        try {
+            lines = requestDecoder.decode(buffer);
+        }
+        catch (IllegalStateException e) {
+            log.warn("Connection is finished :: client = " + clientId + ", reason = " + e.getMessage());
+
+            finish();
+
+            return;
+        }
+
+        for (byte[] line : lines)
+            pendingSize.addAndGet(line.length);
+
+        requests.addAll(lines);
 
         requestReadyNotifier.accept(this);
     }
@@ -79,8 +156,31 @@ public class DataExchanger implements ConnectionFacade, RequestFacade {
     }
 
     /** {@inheritDoc} */
-    @Override public String nextRequest() {
-        return requests.poll();
+    @Override public void responseReceived(List<byte[]> parts) {
+        for (byte[] part : parts)
+            responses.add(ByteBuffer.wrap(part));
+
+        responseReadyNotifier.run();
+    }
+
+    /** {@inheritDoc} */
+    @Override public byte[] nextRequest() {
+        byte[] request = requests.poll();
+
+        if (request != null) {
+            long pending = pendingSize.addAndGet(-request.length);
+
+            //The reading was suspended by the worker, so it should be resumed.
+            if (pending <= maxPendingSize && pending + request.length > maxPendingSize)
+                responseReadyNotifier.run();
+        }
+
+        return request;
+    }
+
+    /** {@inheritDoc} */
+    @Override public byte[] peekRequest() {
+        return finish ? null : requests.peek();
     }
 
     /** {@inheritDoc} */
@@ -88,13 +188,30 @@ public class DataExchanger implements ConnectionFacade, RequestFacade {
         return !requests.isEmpty() && !finish;
     }
 
+    /** {@inheritDoc} */
+    @Override public boolean isBinary() {
+        return requestDecoder.isBinary();
+    }
+
     /** {@inheritDoc} */
     @Override public void finish() {
         finish = true;
+
+        responseReadyNotifier.run();
     }
 
     /** {@inheritDoc} */
     @Override public boolean hasNextResponse() {
-        return !finish && (writeSocketBuffer.hasRemaining() || !responses.isEmpty());
+        return !finish && !responses.isEmpty();
+    }
+
+    /** {@inheritDoc} */
+    @Override public boolean isReadSuspended() {
+        return pendingSize.get() > maxPendingSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override public boolean isFinished() {
+        return finish;
     }
 }
@@ -0,0 +1,134 @@
+package org.github.akalash.linequeue.request;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import org.github.akalash.linequeue.command.BinaryProtocol;
+
+/**
+ * Helper class for splitting monotonic input data of the binary protocol to frames, see {@link BinaryProtocol}. The end
+ * of the frame is known from its length, so the data is copied once per frame instead of being scanned byte by byte.
+ * It stateful class which temporarily stored the data of the frame which isn't received completely.
+ */
+public class FrameTokenizer {
+    /** Length of the frame which is received partially. */
+    private final ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.LENGTH_SIZE);
+
+    /** Data of the frame which is received partially. It awaits more data for the next try. */
+    private final Queue<byte[]> unfinishedFrame = new LinkedList<>();
+
+    /** Total size of unfinished data. */
+    private int unfinishedSize = 0;
+
+    /** Length of the frame which is received partially or {@code -1} if its length isn't received yet. */
+    private int frameSize = -1;
+
+    /** Max size of one frame. */
+    private final int maxFrameSize;
+
+    /**
+     * @param maxFrameSize Max size of one frame.
+     */
+    public FrameTokenizer(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Extract completed frames from a given input and from earlier stored unfinished frame.
+     *
+     * @param input Data which frames should be extracted from.
+     * @return Completed frames without their length.
+     * @throws IllegalStateException If the length of the frame is incorrect or it is bigger than the max size.
+     */
+    public List<byte[]> extractFrames(ByteBuffer input) {
+        List<byte[]> res = new ArrayList<>();
+
+        while (input.hasRemaining()) {
+            if (frameSize == -1 && !readSize(input))
+                break;
+
+            int size = Math.min(frameSize - unfinishedSize, input.remaining());
+
+            //The whole frame is in the input, so it is copied at once.
+            if (unfinishedSize == 0 && size == frameSize) {
+                byte[] frame = new byte[frameSize];
+
+                input.get(frame);
+
+                res.add(frame);
+
+                frameSize = -1;
+
+                continue;
+            }
+
+            byte[] unfinished = new byte[size];
+
+            input.get(unfinished);
+
+            unfinishedFrame.add(unfinished);
+            unfinishedSize += size;
+
+            if (unfinishedSize == frameSize)
+                res.add(makeFrame());
+        }
+
+        return res;
+    }
+
+    /**
+     * Read the length of the next frame.
+     *
+     * @param input Data which the length should be read from.
+     * @return {@code true} if the length is read, {@code false} if it needs more data.
+     */
+    private boolean readSize(ByteBuffer input) {
+        int size;
+
+        if (header.position() == 0 && input.remaining() >= header.capacity())
+            size = input.getInt();
+        else {
+            while (header.hasRemaining() && input.hasRemaining())
+                header.put(input.get());
+
+            if (header.hasRemaining())
+                return false;
+
+            header.flip();
+
+            size = header.getInt();
+
+            header.clear();
+        }
+
+        if (size <= 0 || size > maxFrameSize)
+            throw new IllegalStateException("Frame size is incorrect :: size = " + size +
+                ", max size = " + maxFrameSize);
+
+        frameSize = size;
+
+        return true;
+    }
+
+    /**
+     * @return Frame which is made of unfinished data.
+     */
+    private byte[] makeFrame() {
+        byte[] frame = new byte[frameSize];
+        int ind = 0;
+
+        for (byte[] part : unfinishedFrame) {
+            System.arraycopy(part, 0, frame, ind, part.length);
+
+            ind += part.length;
+        }
+
+        unfinishedFrame.clear();
+        unfinishedSize = 0;
+        frameSize = -1;
+
+        return frame;
+    }
+}
@@ -2,7 +2,6 @@ package org.github.akalash.linequeue.request;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -18,66 +17,89 @@ public class LineTokenizer {
     /** Total size of unfinished data. */
     private int unfinishedSize = 0;
 
+    /** Max size of one line, the unfinished data can't be bigger. */
+    private final int maxLineSize;
+
+    public LineTokenizer() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxLineSize Max size of one line, the unfinished data can't be bigger.
+     */
+    public LineTokenizer(int maxLineSize) {
+        this.maxLineSize = maxLineSize;
+    }
+
     /**
      * Extract completed a line from a given input and from earlier stored unfinished lines.
      *
      * @param input Data which line should be extracted from.
      * @return Completed lines.
+     * @throws IllegalStateException If the unfinished line is bigger than the max size of the line.
      */
-    public List<String> extractCompletedLines(ByteBuffer input) {
-        int start = 0, size = input.remaining();
+    public List<byte[]> extractCompletedLines(ByteBuffer input) {
+        int start = input.position(), size = input.limit();
         boolean endOfLine = false;
 
-        List<String> res = new ArrayList<>();
+        List<byte[]> res = new ArrayList<>();
 
-        byte[] temp = new byte[size];
-
-        for (int i = 0; input.hasRemaining(); i++) {
-            byte b = input.get();
-            temp[i] = b;
+        for (int i = start; i < size; i++) {
+            byte b = input.get(i);
 
             if (b == '\n' || b == '\r')
                 endOfLine = true;
             else if (endOfLine) {
-                makeLine(res, temp, start, i);
+                makeLine(res, input, start, i);
 
                 start = i;
                 endOfLine = false;
             }
         }
         if (endOfLine)
-            makeLine(res, temp, start, size);
-        else {
-            unfinishedLines.add(Arrays.copyOfRange(temp, start, size));
-            unfinishedSize += size - start;
+            makeLine(res, input, start, size);
+        else if (start != size) {
+            if ((long)unfinishedSize + size - start > maxLineSize)
+                throw new IllegalStateException("Line is too long :: max size = " + maxLineSize);
+
+            byte[] unfinished = new byte[size - start];
+
+            input.position(start);
+            input.get(unfinished);
+
+            unfinishedLines.add(unfinished);
+            unfinishedSize += unfinished.length;
         }
 
+        input.position(size);
+
         return res;
     }
 
     /**
-     * Make new line from 'start' to 'end' using 'temp' array and unfinished lines.
+     * Make new line from 'start' to 'end' using 'input' buffer and unfinished lines.
      *
      * @param res List which result should be stored to.
-     * @param temp Array which will be used to make line.
-     * @param start Start position in temp.
-     * @param end End position in temp.
+     * @param input Buffer which will be used to make line.
+     * @param start Start position in input.
+     * @param end End position in input.
      */
-    private void makeLine(List<String> res, byte[] temp, int start, int end) {
+    private void makeLine(List<byte[]> res, ByteBuffer input, int start, int end) {
         if (start != end) {
             byte[] line = new byte[unfinishedSize + (end - start)];
             int ind = 0;
             for (byte[] unfinishedLine : unfinishedLines) {
-                for (byte b1 : unfinishedLine)
-                    line[ind++] = b1;
+                System.arraycopy(unfinishedLine, 0, line, ind, unfinishedLine.length);
+
+                ind += unfinishedLine.length;
             }
 
-            for (int j = start; j < end; j++)
-                line[ind++] = temp[j];
+            input.position(start);
+            input.get(line, ind, end - start);
 
             unfinishedSize = 0;
             unfinishedLines.clear();
-            res.add(new String(line));
+            res.add(line);
         }
     }
 }
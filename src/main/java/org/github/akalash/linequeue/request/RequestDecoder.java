@@ -0,0 +1,62 @@
+package org.github.akalash.linequeue.request;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import org.github.akalash.linequeue.command.BinaryProtocol;
+
+/**
+ * Splitter of input data of one connection to requests. The protocol is chosen by the first byte of the connection:
+ * {@link BinaryProtocol#MAGIC} chooses frames of the binary protocol, any other byte starts the first line of the text
+ * protocol, so text clients work as before.
+ */
+public class RequestDecoder {
+    /** Max size of one request. */
+    private final int maxRequestSize;
+
+    /** Splitter of the text protocol or {@code null} if the protocol isn't the text one. */
+    private LineTokenizer lineTokenizer;
+
+    /** Splitter of the binary protocol or {@code null} if the protocol isn't the binary one. */
+    private FrameTokenizer frameTokenizer;
+
+    /**
+     * @param maxRequestSize Max size of one request, the line or the frame.
+     */
+    public RequestDecoder(int maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * Extract completed requests from a given input, the protocol is chosen by the first input.
+     *
+     * @param input Data which requests should be extracted from.
+     * @return Completed lines of the text protocol or frames of the binary one.
+     * @throws IllegalStateException If the request is bigger than the max size or it is incorrect.
+     */
+    public List<byte[]> decode(ByteBuffer input) {
+        if (lineTokenizer == null && frameTokenizer == null) {
+            if (!input.hasRemaining())
+                return Collections.emptyList();
+
+            if (input.get(input.position()) == BinaryProtocol.MAGIC) {
+                input.get();
+
+                frameTokenizer = new FrameTokenizer(maxRequestSize);
+            }
+            else
+                lineTokenizer = new LineTokenizer(maxRequestSize);
+        }
+
+        return frameTokenizer != null
+            ? frameTokenizer.extractFrames(input)
+            : lineTokenizer.extractCompletedLines(input);
+    }
+
+    /**
+     * @return {@code true} if the client chose the binary protocol.
+     */
+    public boolean isBinary() {
+        return frameTokenizer != null;
+    }
+}
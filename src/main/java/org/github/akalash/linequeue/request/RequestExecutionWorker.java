@@ -1,5 +1,7 @@
 package org.github.akalash.linequeue.request;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -8,6 +10,9 @@ import org.github.akalash.linequeue.command.CommandExecutor;
 /**
  * A worker which take the next available request and executes it in corresponded command. It is guaranteed that
  * requests from one client will be handled in the same order as they were received.
+ *
+ * The requests can also be executed by {@link #executeInline(RequestFacade)} on the I/O thread which received them,
+ * then the worker only executes the slow commands and the requests which follow the deferred result.
  */
 public class RequestExecutionWorker implements Runnable {
     private static final Logger log = LogManager.getLogger(RequestExecutionWorker.class);
@@ -48,20 +53,92 @@ public class RequestExecutionWorker implements Runnable {
             requestFacade = requestRegistry.poll(1000, TimeUnit.MILLISECONDS);
 
             if (requestFacade != null && requestFacade.hasNextRequest()) {
-                String request = requestFacade.nextRequest();
+                byte[] request = requestFacade.nextRequest();
 
-                String result = commandExecutor.handleRequest(request);
+                CompletableFuture<List<byte[]>> result = execute(requestFacade, request);
 
-                if (result == null)
-                    requestFacade.finish();
-                else if (!result.isEmpty())
-                    requestFacade.responseReceived(result.getBytes());
+                if (result.isDone())
+                    complete(requestFacade, result.join());
+                else {
+                    //The facade stays awaited until the result is ready, so the next requests of this client wait for it
+                    //without holding the current thread.
+                    RequestFacade deferredFacade = requestFacade;
 
-                requestRegistry.markAsDone(requestFacade);
+                    result.thenAccept(res -> complete(deferredFacade, res));
+                }
+            }
+        }
+    }
+
+    /**
+     * Execute requests of the client on the current thread until the slow command or the result which isn't ready
+     * yet, so the fast request costs no handoff between threads. The rest of requests is passed to the workers, the
+     * facade stays acquired until then, so the requests of one client are still handled in order.
+     *
+     * @param requestFacade Facade of the client which received new requests.
+     */
+    public void executeInline(RequestFacade requestFacade) {
+        //The facade is being handled by the worker or it waits for the result, the requests are taken from there.
+        if (!requestRegistry.tryAcquire(requestFacade))
+            return;
+
+        for (byte[] request; (request = requestFacade.peekRequest()) != null; ) {
+            if (requestFacade.isBinary() ? commandExecutor.isSlowFrame(request) : commandExecutor.isSlow(request)) {
+                requestRegistry.handOver(requestFacade);
 
-                if (requestFacade.hasNextRequest())
-                    requestRegistry.offer(requestFacade);
+                return;
             }
+
+            requestFacade.nextRequest();
+
+            CompletableFuture<List<byte[]>> result = execute(requestFacade, request);
+
+            if (!result.isDone()) {
+                result.thenAccept(res -> complete(requestFacade, res));
+
+                return;
+            }
+
+            respond(requestFacade, result.join());
         }
+
+        requestRegistry.markAsDone(requestFacade);
+    }
+
+    /**
+     * @param requestFacade Facade of the client.
+     * @param request Line of the text protocol or frame of the binary one.
+     * @return Future of parts of the result of the request.
+     */
+    private CompletableFuture<List<byte[]>> execute(RequestFacade requestFacade, byte[] request) {
+        return requestFacade.isBinary()
+            ? commandExecutor.handleFrameAsync(request, requestFacade.clientId())
+            : commandExecutor.handleRequestPartsAsync(request, requestFacade.clientId());
+    }
+
+    /**
+     * Send the result of the request to the client and let the next request of this client be handled.
+     *
+     * @param requestFacade Facade of the client.
+     * @param result Parts of the result of the request, the lines of GET are sent as they are stored without joining.
+     */
+    private void complete(RequestFacade requestFacade, List<byte[]> result) {
+        respond(requestFacade, result);
+
+        requestRegistry.markAsDone(requestFacade);
+
+        if (requestFacade.hasNextRequest())
+            requestRegistry.offer(requestFacade);
+    }
+
+    /**
+     * @param requestFacade Facade of the client.
+     * @param result Parts of the result of the request or {@code null} if the connection should be finished.
+     */
+    private static void respond(RequestFacade requestFacade, List<byte[]> result) {
+        if (result == null)
+            requestFacade.finish();
+        else if (!result.isEmpty())
+            requestFacade.responseReceived(result);
     }
 }
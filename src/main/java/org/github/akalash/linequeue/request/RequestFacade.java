@@ -1,6 +1,7 @@
 package org.github.akalash.linequeue.request;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * It is an interface of interaction with commands -
@@ -14,18 +15,45 @@ public interface RequestFacade {
      */
     void responseReceived(byte[] in);
 
+    /**
+     * Notifying that the response was received from the command by parts, the parts are sent one after another.
+     *
+     * @param parts Parts of the response.
+     */
+    default void responseReceived(List<byte[]> parts) {
+        for (byte[] part : parts)
+            responseReceived(part);
+    }
+
+    /**
+     * @return Id of the client which is unique among connected clients.
+     */
+    int clientId();
+
     /**
      * Take the request which should be handled by command.
      *
      * @return Request for handle.
      */
-    String nextRequest();
+    byte[] nextRequest();
+
+    /**
+     * @return Request which should be handled next or {@code null} if there are none, the request isn't taken.
+     */
+    byte[] peekRequest();
 
     /**
      * @return {@code true} if the current handler has more requests that await to be handled by command.
      */
     boolean hasNextRequest();
 
+    /**
+     * @return {@code true} if the requests are frames of the binary protocol, {@code false} if they are text lines.
+     */
+    default boolean isBinary() {
+        return false;
+    }
+
     /**
      * Finish all activity connected with this facade.
      */
@@ -21,8 +21,23 @@ public class RequestRegistry {
 
     /** Add a new facade to handling. */
     public void offer(RequestFacade requestFacade) {
-        if (awaitedFacades.add(requestFacade))
-            requestFacades.add(requestFacade);
+        if (tryAcquire(requestFacade))
+            handOver(requestFacade);
+    }
+
+    /**
+     * Mark that the facade is being handled by the current thread, so its requests aren't taken by others until
+     * {@link #markAsDone(RequestFacade)}.
+     *
+     * @return {@code false} if the facade is already being handled.
+     */
+    public boolean tryAcquire(RequestFacade requestFacade) {
+        return awaitedFacades.add(requestFacade);
+    }
+
+    /** Pass the facade which is acquired by the current thread to the workers. */
+    public void handOver(RequestFacade requestFacade) {
+        requestFacades.add(requestFacade);
     }
 
     /** Get first facade for handling. */
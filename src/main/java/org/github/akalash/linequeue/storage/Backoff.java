@@ -0,0 +1,36 @@
+package org.github.akalash.linequeue.storage;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wait strategy for the thread which awaits the element published by another thread: it spins first, then yields the
+ * processor and parks at last, so short waits are cheap and long waits don't burn the processor.
+ */
+final class Backoff {
+    /** Number of attempts which only spin. */
+    private static final int SPIN_TRIES = 100;
+
+    /** Number of attempts which yield the processor after spinning. */
+    private static final int YIELD_TRIES = 200;
+
+    /** Time of the park when spinning and yielding didn't help. */
+    private static final long PARK_NANOS = 50_000;
+
+    private Backoff() {
+    }
+
+    /**
+     * Wait before the next attempt.
+     *
+     * @param attempt Number of failed attempts before.
+     */
+    static void idle(int attempt) {
+        if (attempt < SPIN_TRIES)
+            return;
+
+        if (attempt < YIELD_TRIES)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(PARK_NANOS);
+    }
+}
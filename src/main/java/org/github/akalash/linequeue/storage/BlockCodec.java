@@ -0,0 +1,162 @@
+package org.github.akalash.linequeue.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec of blocks of lines. The block keeps up to {@link #BLOCK_LINES} length-prefixed lines one by one, the whole
+ * block is compressed at once, so the repetitive lines are compressed much better than separately. The block is
+ * decompressed whole as well.
+ *
+ * Format of the block: {@code [int storedSize][int lineCount][int rawSize][stored bytes]}, where the stored bytes are
+ * compressed or raw depending on the storage.
+ */
+final class BlockCodec {
+    /**
+     * First bytes of the compressed dump of the format v1, "LQZ1". The raw dump of the format v1 starts from the length
+     * of the first line instead. Such dumps are only read, the new ones are written by {@link DumpWriter}.
+     */
+    static final int MAGIC = 0x4C515A31;
+
+    /** Max number of lines in one block. */
+    static final int BLOCK_LINES = 256;
+
+    /** Size of the header of the block. */
+    static final int HEADER_SIZE = 3 * Integer.BYTES;
+
+    /** Compressors of the current threads, the fastest level is used since the lines are compressed on the fly. */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(
+        () -> new Deflater(Deflater.BEST_SPEED, true));
+
+    /** Decompressors of the current threads. */
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private BlockCodec() {
+    }
+
+    /**
+     * @param lines Lines of the block.
+     * @param compress {@code true} if the lines should be compressed.
+     * @return Block which is ready for reading.
+     */
+    static ByteBuffer encode(List<byte[]> lines, boolean compress) {
+        int rawSize = 0;
+
+        for (byte[] line : lines)
+            rawSize += Integer.BYTES + line.length;
+
+        ByteBuffer raw = ByteBuffer.allocate(rawSize);
+
+        for (byte[] line : lines) {
+            raw.putInt(line.length);
+            raw.put(line);
+        }
+
+        byte[] stored = raw.array();
+        int storedSize = rawSize;
+
+        if (compress) {
+            Deflater deflater = DEFLATER.get();
+
+            deflater.reset();
+            deflater.setInput(raw.array());
+            deflater.finish();
+
+            //Incompressible data can become a bit bigger.
+            stored = new byte[rawSize + rawSize / 100 + 64];
+
+            storedSize = 0;
+
+            while (!deflater.finished()) {
+                if (storedSize == stored.length)
+                    stored = Arrays.copyOf(stored, stored.length * 2);
+
+                storedSize += deflater.deflate(stored, storedSize, stored.length - storedSize);
+            }
+        }
+
+        ByteBuffer res = ByteBuffer.allocate(HEADER_SIZE + storedSize);
+
+        res.putInt(storedSize);
+        res.putInt(lines.size());
+        res.putInt(rawSize);
+        res.put(stored, 0, storedSize);
+
+        res.flip();
+
+        return res;
+    }
+
+    /**
+     * Read the block which starts at the current position of the buffer and move the position after the block.
+     *
+     * @param src Buffer with the block.
+     * @param compressed {@code true} if the lines of the block are compressed.
+     * @return Lines of the block.
+     * @throws IllegalStateException If the block is corrupted.
+     */
+    static List<byte[]> decode(ByteBuffer src, boolean compressed) {
+        int storedSize = src.getInt();
+        int lineCount = src.getInt();
+        int rawSize = src.getInt();
+
+        ByteBuffer raw;
+
+        if (compressed) {
+            byte[] stored = new byte[storedSize];
+
+            src.get(stored);
+
+            byte[] bytes = new byte[rawSize];
+
+            Inflater inflater = INFLATER.get();
+
+            inflater.reset();
+            inflater.setInput(stored);
+
+            try {
+                int size = 0;
+
+                while (size < rawSize && !inflater.finished()) {
+                    int inflated = inflater.inflate(bytes, size, rawSize - size);
+
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+
+                    size += inflated;
+                }
+
+                if (size != rawSize)
+                    throw new IllegalStateException("Block is corrupted :: expected = " + rawSize + ", actual = " + size);
+            }
+            catch (DataFormatException e) {
+                throw new IllegalStateException("Block is corrupted", e);
+            }
+
+            raw = ByteBuffer.wrap(bytes);
+        }
+        else {
+            raw = src.slice();
+            raw.limit(rawSize);
+
+            src.position(src.position() + rawSize);
+        }
+
+        List<byte[]> lines = new ArrayList<>(lineCount);
+
+        for (int i = 0; i < lineCount; i++) {
+            byte[] line = new byte[raw.getInt()];
+
+            raw.get(line);
+
+            lines.add(line);
+        }
+
+        return lines;
+    }
+}
@@ -0,0 +1,247 @@
+package org.github.akalash.linequeue.storage;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free storage of elements indexed by their sequence number which starts from 1. Elements are kept in the chain
+ * of fixed-size chunks found through the directory, so neither the sequence is boxed nor hashed. The slot itself is the
+ * flag of publication: it is {@code null} until the element is published and after it is taken.
+ *
+ * The lock is taken only to create the chunk or to release it, that is once per {@link #CHUNK_SIZE} elements. The chunk
+ * is released when all its elements are consumed and it is reused for new elements if the recycling is enabled.
+ *
+ * @param <T> Type of element.
+ */
+class ChunkedRingBuffer<T> {
+    /** Binary logarithm of the chunk size. */
+    private static final int CHUNK_SHIFT = 10;
+
+    /** Number of elements in one chunk. */
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    /** Mask of the element position inside of the chunk. */
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** Max number of released chunks which are kept for reuse. */
+    private static final int MAX_POOLED_CHUNKS = 16;
+
+    /** {@code true} if released chunks should be reused. */
+    private final boolean recycle;
+
+    /** Guard of the creation and the release of chunks. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Released chunks which can be reused. Guarded by the lock. */
+    private final ArrayDeque<Chunk<T>> pool = new ArrayDeque<>();
+
+    /** Index of the first chunk which isn't released yet, all chunks before it are released. Guarded by the lock. */
+    private long releasedUpTo;
+
+    /**
+     * Indexes of released chunks after {@link #releasedUpTo}, chunks can be released out of order by concurrent
+     * consumers. Guarded by the lock.
+     */
+    private final Set<Long> releasedAhead = new HashSet<>();
+
+    /** Actual directory of chunks. It is replaced under the lock when it should grow. */
+    private volatile Directory<T> directory = new Directory<>(0, 16);
+
+    /**
+     * @param recycle {@code true} if released chunks should be reused. It is safe only if nobody but the producer and
+     * the consumer of the element accesses it.
+     */
+    ChunkedRingBuffer(boolean recycle) {
+        this.recycle = recycle;
+    }
+
+    /**
+     * Publish the element.
+     *
+     * @param seq Sequence number of the element.
+     * @param value Element.
+     */
+    void put(long seq, T value) {
+        long pos = seq - 1;
+
+        chunk(pos >>> CHUNK_SHIFT, true).slots.set((int)(pos & CHUNK_MASK), value);
+    }
+
+    /**
+     * @param seq Sequence number of the element.
+     * @return Published element or {@code null} if it isn't published or it was already taken.
+     */
+    T get(long seq) {
+        long pos = seq - 1;
+        long chunkIndex = pos >>> CHUNK_SHIFT;
+
+        Chunk<T> chunk = chunk(chunkIndex, false);
+
+        if (chunk == null)
+            return null;
+
+        T res = chunk.slots.get((int)(pos & CHUNK_MASK));
+
+        //The chunk could be reused for other elements while the slot was being read.
+        return chunk.index == chunkIndex ? res : null;
+    }
+
+    /**
+     * Take the element out of its slot. The element isn't considered as consumed until {@link #consumed} is called.
+     *
+     * @param seq Sequence number of the element.
+     * @return Taken element or {@code null} if it isn't published or it was already taken.
+     */
+    T take(long seq) {
+        long pos = seq - 1;
+
+        Chunk<T> chunk = chunk(pos >>> CHUNK_SHIFT, false);
+
+        return chunk == null ? null : chunk.slots.getAndSet((int)(pos & CHUNK_MASK), null);
+    }
+
+    /**
+     * Mark taken elements as consumed, the chunks which have all elements consumed are released.
+     *
+     * @param fromSeq Sequence number of the first consumed element.
+     * @param toSeq Sequence number of the last consumed element.
+     */
+    void consumed(long fromSeq, long toSeq) {
+        for (long pos = fromSeq - 1; pos < toSeq; ) {
+            long chunkIndex = pos >>> CHUNK_SHIFT;
+            long chunkEnd = Math.min(toSeq, (chunkIndex + 1) << CHUNK_SHIFT);
+
+            Chunk<T> chunk = chunk(chunkIndex, false);
+
+            if (chunk != null && chunk.consumed.addAndGet((int)(chunkEnd - pos)) == CHUNK_SIZE)
+                release(chunk);
+
+            pos = chunkEnd;
+        }
+    }
+
+    /**
+     * Find the chunk in the actual directory.
+     *
+     * @param chunkIndex Index of the chunk.
+     * @param create {@code true} if the chunk should be created if it doesn't exist.
+     * @return Chunk or {@code null} if it doesn't exist.
+     */
+    private Chunk<T> chunk(long chunkIndex, boolean create) {
+        Chunk<T> chunk = directory.get(chunkIndex);
+
+        if (chunk != null && chunk.index == chunkIndex)
+            return chunk;
+
+        lock.lock();
+        try {
+            Directory<T> dir = directory;
+
+            chunk = dir.get(chunkIndex);
+
+            if (chunk != null || !create || chunkIndex < dir.base)
+                return chunk;
+
+            if (chunkIndex - dir.base >= dir.chunks.length())
+                directory = dir = dir.grow(chunkIndex, releasedUpTo);
+
+            chunk = pool.isEmpty() ? new Chunk<>() : pool.poll();
+
+            chunk.index = chunkIndex;
+
+            dir.chunks.set((int)(chunkIndex - dir.base), chunk);
+
+            return chunk;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remove the chunk from the directory and keep it for reuse if it is possible. */
+    private void release(Chunk<T> chunk) {
+        lock.lock();
+        try {
+            Directory<T> dir = directory;
+
+            dir.chunks.set((int)(chunk.index - dir.base), null);
+
+            //The empty slot can also belong to the chunk which isn't created yet, so only released ones move the base.
+            if (chunk.index == releasedUpTo) {
+                releasedUpTo++;
+
+                while (releasedAhead.remove(releasedUpTo))
+                    releasedUpTo++;
+            }
+            else
+                releasedAhead.add(chunk.index);
+
+            if (recycle && pool.size() < MAX_POOLED_CHUNKS) {
+                chunk.consumed.set(0);
+
+                pool.add(chunk);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Fixed-size part of the storage. */
+    private static class Chunk<T> {
+        /** Index of this chunk, it is changed when the chunk is reused. */
+        volatile long index;
+
+        /** Elements of this chunk. */
+        final AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(CHUNK_SIZE);
+
+        /** Number of consumed elements of this chunk. */
+        final AtomicInteger consumed = new AtomicInteger();
+    }
+
+    /** Array of chunks starting from the base index. */
+    private static class Directory<T> {
+        /** Index of the first chunk in this directory. */
+        final long base;
+
+        final AtomicReferenceArray<Chunk<T>> chunks;
+
+        Directory(long base, int capacity) {
+            this.base = base;
+
+            chunks = new AtomicReferenceArray<>(capacity);
+        }
+
+        Chunk<T> get(long chunkIndex) {
+            long offset = chunkIndex - base;
+
+            return offset >= 0 && offset < chunks.length() ? chunks.get((int)offset) : null;
+        }
+
+        /**
+         * Make the new directory which contains the given index. Released chunks at the beginning are dropped.
+         *
+         * @param chunkIndex Index of the chunk which should fit to the new directory.
+         * @param newBase Index of the first chunk which isn't released.
+         * @return New directory.
+         */
+        Directory<T> grow(long chunkIndex, long newBase) {
+            int first = (int)(newBase - base);
+            int capacity = chunks.length();
+
+            while (chunkIndex - newBase >= capacity / 2)
+                capacity *= 2;
+
+            Directory<T> res = new Directory<>(newBase, capacity);
+
+            for (int i = first; i < chunks.length(); i++)
+                res.chunks.set(i - first, chunks.get(i));
+
+            return res;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Consumer group of {@link LineQueue} which reads lines without removing them. Members of the group share its offset,
+ * so every line is read by one member of every group.
+ */
+class ConsumerGroup {
+    /** Suffix of the file of offsets which is added to the path of the dump or the snapshot. */
+    static final String FILE_SUFFIX = ".groups";
+
+    /** Valid name of the group, the name is a part of the file of offsets. */
+    private static final Pattern GROUP_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    /** Id of the last line which is claimed by members of this group. */
+    final AtomicLong claimedId;
+
+    /** Id of the last line which is read by members of this group, all lines before it are read as well. */
+    final AtomicLong readId;
+
+    /**
+     * @param readId Id of the last line which is read by this group.
+     */
+    ConsumerGroup(long readId) {
+        claimedId = new AtomicLong(readId);
+        this.readId = new AtomicLong(readId);
+    }
+
+    /**
+     * @param name Name of the group.
+     * @throws IllegalArgumentException If the name is incorrect.
+     */
+    static void validateName(String name) {
+        if (!GROUP_NAME.matcher(name).matches())
+            throw new IllegalArgumentException("Group name is incorrect :: " + name);
+    }
+
+    /**
+     * Write offsets of groups to the file through the temporary one.
+     *
+     * @param path Path to the file.
+     * @param offsets Offsets by names of groups.
+     * @throws IOException If fail.
+     */
+    static void writeOffsets(Path path, Map<String, Long> offsets) throws IOException {
+        List<String> lines = new ArrayList<>(offsets.size());
+
+        for (Map.Entry<String, Long> entry : offsets.entrySet())
+            lines.add(entry.getKey() + ' ' + entry.getValue());
+
+        Path tmp = Paths.get(path + ".tmp");
+
+        Files.write(tmp, lines, StandardCharsets.US_ASCII);
+
+        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * @param path Path to the file.
+     * @return Offsets by names of groups or empty map if there is no file.
+     * @throws IOException If the file can't be read or it is corrupted.
+     */
+    static Map<String, Long> readOffsets(Path path) throws IOException {
+        Map<String, Long> res = new LinkedHashMap<>();
+
+        if (!Files.exists(path))
+            return res;
+
+        for (String line : Files.readAllLines(path, StandardCharsets.US_ASCII)) {
+            if (line.isEmpty())
+                continue;
+
+            int index = line.lastIndexOf(' ');
+
+            try {
+                res.put(index == 0 ? "" : line.substring(0, index), Long.parseLong(line.substring(index + 1)));
+            }
+            catch (RuntimeException e) {
+                throw new IOException("Offsets of groups are corrupted :: " + path, e);
+            }
+        }
+
+        return res;
+    }
+}
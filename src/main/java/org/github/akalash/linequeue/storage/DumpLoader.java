@@ -0,0 +1,441 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Lazy loader of the dump. The dump is memory-mapped and only the length prefixes and the checksums of blocks are
+ * scanned at the start to build the index of batches, so the queue is available right after the scan and the corrupted
+ * dump is refused before the queue is restored. The batches are loaded to the queue by background
+ * threads in order of ids, while the batch which is requested by poll is loaded immediately by the polling thread.
+ *
+ * The dump of {@link DumpWriter} consists of blocks, every block is one batch which is checked and decompressed whole
+ * by the loading thread. The manifest of segments is loaded as one dump of all segments. The dump of the format v1 is
+ * still recognized: either raw length-prefixed lines or compressed blocks after {@link BlockCodec#MAGIC}.
+ */
+class DumpLoader {
+    private static final Logger log = LogManager.getLogger(DumpLoader.class);
+
+    /** Max number of lines in one batch. */
+    static final int BATCH_SIZE = 1024;
+
+    /** Preferred size of one mapped region of the dump. */
+    private static final int REGION_SIZE = 1 << 30;
+
+    /** State of the batch which isn't loaded yet. */
+    private static final int NEW = 0;
+
+    /** State of the batch which is being loaded. */
+    private static final int LOADING = 1;
+
+    /** State of the loaded batch. */
+    private static final int LOADED = 2;
+
+    /** State of the batch which failed to be loaded. */
+    private static final int FAILED = 3;
+
+    /** Mapped regions of the dump, every line is entirely inside of one region. */
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+
+    /** Id of the first line of the dump. */
+    private final long firstId;
+
+    /** Id of the first line of every batch. */
+    private long[] batchFirstIds = new long[16];
+
+    /** Region of every batch. */
+    private int[] batchRegions = new int[16];
+
+    /** Position of the first line of every batch inside of its region. */
+    private int[] batchOffsets = new int[16];
+
+    /** Number of batches. */
+    private int batchCount;
+
+    /** {@code true} if the dump consists of blocks. */
+    private boolean blocks;
+
+    /** {@code true} if the blocks are compressed. */
+    private boolean compressed;
+
+    /** {@code true} if every block is followed by its checksum. */
+    private boolean checksums;
+
+    /** Id of the last line of the dump. */
+    private long lastId;
+
+    /** States of batches. */
+    private AtomicIntegerArray states;
+
+    /** Next batch which should be loaded by the background threads. */
+    private final AtomicInteger nextBatch = new AtomicInteger();
+
+    /** Number of loaded batches. */
+    private final AtomicInteger loadedBatches = new AtomicInteger();
+
+    /** Future which is completed when all batches are loaded. */
+    final CompletableFuture<Void> loaded = new CompletableFuture<>();
+
+    /** Receiver of loaded lines by their ids. */
+    private final LineSink sink;
+
+    private volatile boolean closed;
+
+    /**
+     * @param firstId Id of the first line of the dump.
+     * @param sink Receiver of loaded lines by their ids.
+     */
+    private DumpLoader(long firstId, LineSink sink) {
+        this.firstId = firstId;
+        this.sink = sink;
+
+        lastId = firstId - 1;
+    }
+
+    /**
+     * Map the dump and build the index of its batches.
+     *
+     * @param path Path to the dump.
+     * @param firstId Id which the first line of the dump should get.
+     * @param sink Receiver of loaded lines by their ids.
+     * @return Loader of the dump.
+     * @throws IOException If the dump can't be read or it is corrupted.
+     */
+    static DumpLoader open(Path path, long firstId, LineSink sink) throws IOException {
+        DumpLoader loader = new DumpLoader(firstId, sink);
+
+        try (FileChannel ch = FileChannel.open(path, READ)) {
+            if (DumpWriter.isManifest(ch)) {
+                for (DumpWriter.Segment segment : DumpWriter.readManifest(ch)) {
+                    long segmentFirstId = loader.lastId + 1;
+
+                    try (FileChannel segmentCh = FileChannel.open(path.resolveSibling(segment.name), READ)) {
+                        loader.scan(segmentCh);
+                    }
+
+                    if (loader.lastId - segmentFirstId + 1 != segment.lines) {
+                        throw new IOException("Segment of the dump is corrupted :: name = " + segment.name +
+                            ", expected lines = " + segment.lines + ", actual = " + (loader.lastId - segmentFirstId + 1));
+                    }
+                }
+            }
+            else
+                loader.scan(ch);
+        }
+
+        loader.states = new AtomicIntegerArray(loader.batchCount);
+
+        if (loader.batchCount == 0)
+            loader.loaded.complete(null);
+
+        return loader;
+    }
+
+    /** Walk through the length prefixes of the dump without reading the lines. */
+    private void scan(FileChannel ch) throws IOException {
+        long size = ch.size();
+
+        long pos = 0;
+
+        blocks = compressed = checksums = false;
+
+        if (size >= DumpWriter.FILE_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(DumpWriter.FILE_HEADER_SIZE);
+
+            for (int read = 0; read >= 0 && header.hasRemaining(); )
+                read = ch.read(header, header.position());
+
+            if (header.getInt(0) == DumpWriter.MAGIC) {
+                blocks = checksums = true;
+                compressed = (header.getInt(Integer.BYTES) & DumpWriter.COMPRESSED) != 0;
+
+                pos = DumpWriter.FILE_HEADER_SIZE;
+            }
+            else if (header.getInt(0) == BlockCodec.MAGIC) {
+                blocks = compressed = true;
+
+                pos = Integer.BYTES;
+            }
+        }
+
+        //The entry is the line of the raw dump or the block.
+        int headerSize = blocks ? BlockCodec.HEADER_SIZE : Integer.BYTES;
+        int trailerSize = checksums ? Integer.BYTES : 0;
+
+        long fileFirstId = lastId + 1;
+        boolean ended = false;
+
+        MappedByteBuffer region = null;
+        long regionStart = 0;
+        int linesInBatch = BATCH_SIZE;
+
+        while (pos < size) {
+            if (size - pos < headerSize)
+                throw new IOException("Not enough data. Perhaps the dump was corrupted :: position = " + pos);
+
+            boolean newRegion = region == null || pos + headerSize > regionStart + region.capacity();
+
+            if (newRegion) {
+                regionStart = pos;
+                region = map(ch, pos, headerSize);
+            }
+
+            int entrySize = region.getInt((int)(pos - regionStart));
+
+            if (checksums && entrySize == DumpWriter.END_MARKER) {
+                long lines = region.getLong((int)(pos - regionStart) + Integer.BYTES);
+
+                if (lines != lastId - fileFirstId + 1 || pos + DumpWriter.END_SIZE != size) {
+                    throw new IOException("End of the dump is corrupted :: position = " + pos + ", lines = " + lines +
+                        ", actual lines = " + (lastId - fileFirstId + 1));
+                }
+
+                ended = true;
+
+                break;
+            }
+
+            if (entrySize < 0 || entrySize > size - pos - headerSize - trailerSize ||
+                entrySize > Integer.MAX_VALUE - headerSize - trailerSize) {
+                throw new IOException("Not enough data. Perhaps the dump was corrupted :: " +
+                    "position = " + pos + ", entry size = " + entrySize);
+            }
+
+            if (pos + headerSize + entrySize + trailerSize > regionStart + region.capacity()) {
+                newRegion = true;
+                regionStart = pos;
+                region = map(ch, pos, headerSize + entrySize + trailerSize);
+            }
+
+            if (checksums && !checksumMatches(region, (int)(pos - regionStart)))
+                throw new IOException("Block is corrupted, checksum doesn't match :: position = " + pos);
+
+            if (blocks) {
+                int lineCount = region.getInt((int)(pos - regionStart) + Integer.BYTES);
+
+                if (lineCount <= 0)
+                    throw new IOException("Block is corrupted :: position = " + pos + ", line count = " + lineCount);
+
+                addBatch(lastId + 1, regions.size() - 1, (int)(pos - regionStart));
+
+                lastId += lineCount;
+            }
+            else {
+                if (newRegion || linesInBatch == BATCH_SIZE) {
+                    addBatch(lastId + 1, regions.size() - 1, (int)(pos - regionStart));
+
+                    linesInBatch = 0;
+                }
+
+                linesInBatch++;
+                lastId++;
+            }
+
+            pos += headerSize + entrySize + trailerSize;
+        }
+
+        if (checksums && !ended)
+            throw new IOException("Dump is incomplete, the end is not found :: size = " + size);
+    }
+
+    /** Map the next region of the dump which starts from the given position. */
+    private MappedByteBuffer map(FileChannel ch, long pos, int minSize) throws IOException {
+        MappedByteBuffer region = ch.map(
+            FileChannel.MapMode.READ_ONLY,
+            pos,
+            Math.max(minSize, Math.min(REGION_SIZE, ch.size() - pos))
+        );
+
+        regions.add(region);
+
+        return region;
+    }
+
+    private void addBatch(long batchFirstId, int region, int offset) {
+        if (batchCount == batchFirstIds.length) {
+            batchFirstIds = Arrays.copyOf(batchFirstIds, batchCount * 2);
+            batchRegions = Arrays.copyOf(batchRegions, batchCount * 2);
+            batchOffsets = Arrays.copyOf(batchOffsets, batchCount * 2);
+        }
+
+        batchFirstIds[batchCount] = batchFirstId;
+        batchRegions[batchCount] = region;
+        batchOffsets[batchCount] = offset;
+
+        batchCount++;
+    }
+
+    /** @return Id of the last line of the dump. */
+    long lastId() {
+        return lastId;
+    }
+
+    /**
+     * Load the first batch by the calling thread and the rest of batches by the given number of background threads.
+     *
+     * @param threads Number of background threads.
+     * @return Future which is completed when all batches are loaded.
+     */
+    CompletableFuture<Void> start(int threads) {
+        //The head of the queue is requested first.
+        if (batchCount > 0)
+            load(0);
+
+        for (int i = 0; i < Math.min(threads, batchCount - 1); i++) {
+            Thread loader = new Thread(this::loadLoop, "line-queue-restore-" + i);
+
+            loader.setDaemon(true);
+            loader.start();
+        }
+
+        return loaded;
+    }
+
+    /** Load batches in order until all of them are claimed. */
+    private void loadLoop() {
+        try {
+            int batch;
+
+            while (!closed && (batch = nextBatch.getAndIncrement()) < batchCount)
+                load(batch);
+        }
+        catch (Exception e) {
+            log.error("Something was going wrong during the restore :: ", e);
+        }
+    }
+
+    /**
+     * Load the batch which contains the given line if nobody loads it yet.
+     *
+     * @param id Id of the line.
+     * @return {@code true} if the batch was loaded by this call, {@code false} if the line doesn't belong to the dump
+     * or its batch is loaded by somebody else.
+     */
+    boolean load(long id) {
+        if (id < firstId || id > lastId)
+            return false;
+
+        int batch = Arrays.binarySearch(batchFirstIds, 0, batchCount, id);
+
+        return load(batch >= 0 ? batch : -batch - 2);
+    }
+
+    /** Load all batches which are not loaded yet by the calling thread and wait for the rest of them. */
+    void loadAll() {
+        for (int batch = 0; batch < batchCount; batch++)
+            load(batch);
+
+        loaded.join();
+    }
+
+    /**
+     * Load lines of the batch.
+     *
+     * @param batch Index of the batch.
+     * @return {@code true} if the batch was loaded by this call.
+     */
+    private boolean load(int batch) {
+        if (!states.compareAndSet(batch, NEW, LOADING)) {
+            //The lines of the failed batch are never handed over, so the reader should fail instead of waiting for them.
+            if (states.get(batch) == FAILED) {
+                throw new IllegalStateException("Batch of the dump failed to be loaded :: " +
+                    "first id = " + batchFirstIds[batch]);
+            }
+
+            return false;
+        }
+
+        try {
+            ByteBuffer buf = regions.get(batchRegions[batch]).duplicate();
+
+            buf.position(batchOffsets[batch]);
+
+            long toId = batch + 1 < batchCount ? batchFirstIds[batch + 1] - 1 : lastId;
+
+            if (blocks) {
+                if (checksums && !checksumMatches(buf, buf.position()))
+                    throw new IllegalStateException("Block is corrupted, checksum doesn't match");
+
+                long id = batchFirstIds[batch];
+
+                for (byte[] line : BlockCodec.decode(buf, compressed))
+                    sink.accept(id++, line);
+
+                if (id != toId + 1)
+                    throw new IllegalStateException("Block is corrupted :: first id = " + batchFirstIds[batch]);
+            }
+            else {
+                for (long id = batchFirstIds[batch]; id <= toId; id++) {
+                    byte[] line = new byte[buf.getInt()];
+
+                    buf.get(line);
+
+                    sink.accept(id, line);
+                }
+            }
+        }
+        catch (RuntimeException | Error e) {
+            //Some lines can be already handed over and polled, so the batch can't be loaded again.
+            states.set(batch, FAILED);
+
+            loaded.completeExceptionally(e);
+
+            throw e;
+        }
+
+        states.set(batch, LOADED);
+
+        if (loadedBatches.incrementAndGet() == batchCount)
+            loaded.complete(null);
+
+        return true;
+    }
+
+    /**
+     * @param buf Buffer which contains the block.
+     * @param pos Position of the block which is followed by its checksum.
+     * @return {@code true} if the checksum matches.
+     */
+    private static boolean checksumMatches(ByteBuffer buf, int pos) {
+        int end = pos + BlockCodec.HEADER_SIZE + buf.getInt(pos);
+
+        ByteBuffer bytes = buf.duplicate();
+
+        bytes.limit(end);
+        bytes.position(pos);
+
+        CRC32 crc = new CRC32();
+
+        crc.update(bytes);
+
+        return (int)crc.getValue() == buf.getInt(end);
+    }
+
+    /** Stop the background loading. */
+    void close() {
+        closed = true;
+    }
+
+    /** Receiver of loaded lines. */
+    interface LineSink {
+        /**
+         * @param id Id of the line.
+         * @param line Loaded line.
+         */
+        void accept(long id, byte[] line);
+    }
+}
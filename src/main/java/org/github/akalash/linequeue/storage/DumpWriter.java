@@ -0,0 +1,514 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongFunction;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writer of the dump in the format v2. The file starts from {@link #MAGIC} and the flags, then blocks of
+ * {@link BlockCodec} go, every block is followed by CRC32 of its bytes. The file ends with {@link #END_MARKER} and the
+ * number of lines, so the truncated file is recognized as well as the corrupted block.
+ *
+ * Blocks are staged in several big direct buffers which are written by one gathering write when all of them are full.
+ *
+ * The big dump can be written by several threads in parallel, then every thread writes its own segment file of the
+ * continuous range of lines and the dump itself is the manifest of segments: {@link #MANIFEST_MAGIC}, the number of
+ * segments, the name and the number of lines of every segment and CRC32 of all of that. The names of segments have the
+ * generation of the dump which is the next one after the generation of the previous manifest, so the previous dump
+ * stays valid until the manifest is renamed over it and its segments are never overwritten.
+ *
+ * Every file is written to the temporary one first and then it is renamed atomically.
+ */
+final class DumpWriter {
+    /** First bytes of the dump of the format v2, "LQD2". */
+    static final int MAGIC = 0x4C514432;
+
+    /** First bytes of the manifest of the dump which is split to segments, "LQDM". */
+    static final int MANIFEST_MAGIC = 0x4C51444D;
+
+    /** Flag of the dump which blocks are compressed. */
+    static final int COMPRESSED = 1;
+
+    /** Size of the header of the file: the magic and the flags. */
+    static final int FILE_HEADER_SIZE = 2 * Integer.BYTES;
+
+    /** Size which the block is preceded by instead of its stored size at the end of the file. */
+    static final int END_MARKER = -1;
+
+    /** Size of the end of the file: the marker and the number of lines. */
+    static final int END_SIZE = Integer.BYTES + Long.BYTES;
+
+    /** Max number of lines in one block. */
+    private static final int MAX_BLOCK_LINES = 1024;
+
+    /** Size of lines after which the block is finished. */
+    private static final int MAX_BLOCK_SIZE = 256 * 1024;
+
+    /** Size of one staging buffer. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** Number of staging buffers which are written at once. */
+    private static final int BUFFER_COUNT = 4;
+
+    /** Min number of lines of one segment, the smaller dump is written by fewer threads. */
+    static final int MIN_SEGMENT_LINES = 64 * 1024;
+
+    /** Channel of the file. */
+    private final FileChannel ch;
+
+    /** {@code true} if blocks are compressed. */
+    private final boolean compress;
+
+    /** Staging buffers. */
+    private final ByteBuffer[] bufs = new ByteBuffer[BUFFER_COUNT];
+
+    /** Index of the buffer which is being filled. */
+    private int cur;
+
+    /** Lines of the current block. */
+    private final List<byte[]> block = new ArrayList<>(MAX_BLOCK_LINES);
+
+    /** Size of lines of the current block with their length prefixes. */
+    private int blockSize;
+
+    /** Reusable buffer of the raw block. */
+    private ByteBuffer raw = ByteBuffer.allocate(MAX_BLOCK_SIZE * 2);
+
+    /** Checksum of blocks. */
+    private final CRC32 crc = new CRC32();
+
+    /** Number of written lines. */
+    private long lines;
+
+    /**
+     * @param ch Channel of the file, the header is written immediately.
+     * @param compress {@code true} if the blocks should be compressed.
+     */
+    DumpWriter(FileChannel ch, boolean compress) {
+        this.ch = ch;
+        this.compress = compress;
+
+        for (int i = 0; i < BUFFER_COUNT; i++)
+            bufs[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        bufs[0].putInt(MAGIC);
+        bufs[0].putInt(compress ? COMPRESSED : 0);
+    }
+
+    /**
+     * @param line Next line of the dump.
+     * @throws IOException If fail.
+     */
+    void append(byte[] line) throws IOException {
+        block.add(line);
+
+        blockSize += Integer.BYTES + line.length;
+
+        if (block.size() == MAX_BLOCK_LINES || blockSize >= MAX_BLOCK_SIZE)
+            writeBlock();
+    }
+
+    /**
+     * Write the rest of lines and the end of the file and force it to the disk.
+     *
+     * @return Number of written lines.
+     * @throws IOException If fail.
+     */
+    long finish() throws IOException {
+        writeBlock();
+
+        ByteBuffer end = ByteBuffer.allocate(END_SIZE);
+
+        end.putInt(END_MARKER);
+        end.putLong(lines);
+        end.flip();
+
+        put(end);
+
+        flush();
+
+        ch.force(true);
+
+        return lines;
+    }
+
+    /** Encode the current block and stage it with its checksum. */
+    private void writeBlock() throws IOException {
+        if (block.isEmpty())
+            return;
+
+        ByteBuffer encoded;
+
+        if (compress)
+            encoded = BlockCodec.encode(block, true);
+        else {
+            if (raw.capacity() < BlockCodec.HEADER_SIZE + blockSize)
+                raw = ByteBuffer.allocate(BlockCodec.HEADER_SIZE + blockSize);
+
+            raw.clear();
+
+            raw.putInt(blockSize);
+            raw.putInt(block.size());
+            raw.putInt(blockSize);
+
+            for (byte[] line : block) {
+                raw.putInt(line.length);
+                raw.put(line);
+            }
+
+            raw.flip();
+
+            encoded = raw;
+        }
+
+        crc.reset();
+        crc.update(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+
+        put(encoded);
+
+        ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES);
+
+        checksum.putInt((int)crc.getValue());
+        checksum.flip();
+
+        put(checksum);
+
+        lines += block.size();
+
+        block.clear();
+        blockSize = 0;
+    }
+
+    /** Copy the bytes to the staging buffers, the buffers are written when all of them are full. */
+    private void put(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            ByteBuffer buf = bufs[cur];
+
+            if (!buf.hasRemaining()) {
+                if (++cur == BUFFER_COUNT)
+                    flush();
+
+                continue;
+            }
+
+            int len = Math.min(buf.remaining(), src.remaining());
+
+            ByteBuffer part = src.duplicate();
+
+            part.limit(part.position() + len);
+
+            buf.put(part);
+
+            src.position(src.position() + len);
+        }
+    }
+
+    /** Write all staged bytes by the gathering write. */
+    private void flush() throws IOException {
+        int count = Math.min(cur + 1, BUFFER_COUNT);
+
+        for (int i = 0; i < count; i++)
+            bufs[i].flip();
+
+        while (bufs[count - 1].hasRemaining())
+            ch.write(bufs, 0, count);
+
+        for (ByteBuffer buf : bufs)
+            buf.clear();
+
+        cur = 0;
+    }
+
+    /**
+     * Write lines to the dump. The dump is written to the temporary file, which replaces the previous dump atomically,
+     * the segments of the previous dump are deleted after that.
+     *
+     * @param path Path to the dump.
+     * @param fromId Id of the line before the first one of the dump.
+     * @param toId Id of the last line of the dump.
+     * @param source Function which returns the line by its id or {@code null} if it should be skipped, it is called by
+     * several threads at the same time if there are several writers.
+     * @param compress {@code true} if the blocks should be compressed.
+     * @param writers Max number of threads which write the dump in parallel.
+     * @throws IOException If fail.
+     */
+    static void write(
+        Path path,
+        long fromId,
+        long toId,
+        LongFunction<byte[]> source,
+        boolean compress,
+        int writers
+    ) throws IOException {
+        List<Path> obsolete = segments(path);
+
+        long count = toId - fromId;
+        int segmentCount = (int)Math.max(1, Math.min(writers, count / MIN_SEGMENT_LINES));
+
+        if (segmentCount == 1) {
+            Path tmp = Paths.get(path + ".tmp");
+
+            writeFile(tmp, fromId, toId, source, compress);
+
+            Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        else
+            writeSegments(path, fromId, toId, source, compress, segmentCount, nextGeneration(path, obsolete));
+
+        for (Path segment : obsolete)
+            Files.deleteIfExists(segment);
+    }
+
+    /**
+     * @param path Path to the dump.
+     * @param obsolete Segments of the previous dump.
+     * @return Generation of the new segments which is bigger than the generation of the previous segments.
+     */
+    private static long nextGeneration(Path path, List<Path> obsolete) {
+        String prefix = path.getFileName() + ".seg";
+
+        long res = 1;
+
+        for (Path segment : obsolete) {
+            String name = segment.getFileName().toString();
+
+            int end = name.lastIndexOf('-');
+
+            if (!name.startsWith(prefix) || end <= prefix.length())
+                continue;
+
+            try {
+                res = Math.max(res, Long.parseLong(name.substring(prefix.length(), end)) + 1);
+            }
+            catch (NumberFormatException ignored) {
+                //The segment is named by somebody else, its name can't match the new names anyway.
+            }
+        }
+
+        return res;
+    }
+
+    /** Write lines by several threads to segment files and then write the manifest of them. */
+    private static void writeSegments(
+        Path path,
+        long fromId,
+        long toId,
+        LongFunction<byte[]> source,
+        boolean compress,
+        int segmentCount,
+        long generation
+    ) throws IOException {
+        String prefix = path.getFileName() + ".seg" + generation + "-";
+
+        List<CompletableFuture<Long>> futures = new ArrayList<>(segmentCount);
+        List<String> names = new ArrayList<>(segmentCount);
+
+        long step = (toId - fromId + segmentCount - 1) / segmentCount;
+
+        for (int i = 0; i < segmentCount; i++) {
+            long segmentFrom = fromId + i * step;
+            long segmentTo = Math.min(toId, segmentFrom + step);
+
+            Path segment = path.resolveSibling(prefix + i);
+
+            CompletableFuture<Long> future = new CompletableFuture<>();
+
+            Thread writer = new Thread(() -> {
+                try {
+                    future.complete(writeFile(segment, segmentFrom, segmentTo, source, compress));
+                }
+                catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }, "line-queue-dump-" + i);
+
+            writer.setDaemon(true);
+            writer.start();
+
+            names.add(segment.getFileName().toString());
+            futures.add(future);
+        }
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        }
+        catch (CompletionException e) {
+            for (String name : names)
+                Files.deleteIfExists(path.resolveSibling(name));
+
+            throw new IOException("Segment of the dump can't be written", e.getCause());
+        }
+
+        ByteBuffer manifest = ByteBuffer.allocate(3 * Integer.BYTES + segmentCount * (Short.BYTES + Long.BYTES) +
+            names.stream().mapToInt(String::length).sum());
+
+        manifest.putInt(MANIFEST_MAGIC);
+        manifest.putInt(segmentCount);
+
+        for (int i = 0; i < segmentCount; i++) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.US_ASCII);
+
+            manifest.putShort((short)name.length);
+            manifest.put(name);
+            manifest.putLong(futures.get(i).join());
+        }
+
+        CRC32 crc = new CRC32();
+
+        crc.update(manifest.array(), 0, manifest.position());
+
+        manifest.putInt((int)crc.getValue());
+        manifest.flip();
+
+        Path tmp = Paths.get(path + ".tmp");
+
+        try (FileChannel ch = FileChannel.open(tmp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            while (manifest.hasRemaining())
+                ch.write(manifest);
+
+            ch.force(true);
+        }
+
+        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * @return Number of written lines.
+     */
+    private static long writeFile(
+        Path file,
+        long fromId,
+        long toId,
+        LongFunction<byte[]> source,
+        boolean compress
+    ) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            DumpWriter writer = new DumpWriter(ch, compress);
+
+            for (long id = fromId + 1; id <= toId; id++) {
+                byte[] line = source.apply(id);
+
+                if (line != null)
+                    writer.append(line);
+            }
+
+            return writer.finish();
+        }
+    }
+
+    /**
+     * @param path Path to the dump.
+     * @return Segment files of the dump if the dump is the manifest, otherwise the empty list.
+     * @throws IOException If the manifest can't be read or it is corrupted.
+     */
+    static List<Path> segments(Path path) throws IOException {
+        if (!Files.exists(path))
+            return Collections.emptyList();
+
+        List<Path> res = new ArrayList<>();
+
+        try (FileChannel ch = FileChannel.open(path, READ)) {
+            if (!isManifest(ch))
+                return Collections.emptyList();
+
+            for (Segment segment : readManifest(ch))
+                res.add(path.resolveSibling(segment.name));
+        }
+
+        return res;
+    }
+
+    /**
+     * @param ch Channel of the dump.
+     * @return {@code true} if the dump is the manifest of segments.
+     * @throws IOException If fail.
+     */
+    static boolean isManifest(FileChannel ch) throws IOException {
+        if (ch.size() < Integer.BYTES)
+            return false;
+
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+
+        for (int read = 0; read >= 0 && magic.hasRemaining(); )
+            read = ch.read(magic, magic.position());
+
+        return magic.getInt(0) == MANIFEST_MAGIC;
+    }
+
+    /**
+     * @param ch Channel of the manifest.
+     * @return Segments of the dump in order of their lines.
+     * @throws IOException If the manifest can't be read or it is corrupted.
+     */
+    static List<Segment> readManifest(FileChannel ch) throws IOException {
+        if (ch.size() > Integer.MAX_VALUE)
+            throw new IOException("Manifest of the dump is corrupted, size = " + ch.size());
+
+        ByteBuffer buf = ByteBuffer.allocate((int)ch.size());
+
+        for (int read = 0; read >= 0 && buf.hasRemaining(); )
+            read = ch.read(buf, buf.position());
+
+        buf.flip();
+
+        try {
+            CRC32 crc = new CRC32();
+
+            crc.update(buf.array(), buf.arrayOffset(), buf.limit() - Integer.BYTES);
+
+            if ((int)crc.getValue() != buf.getInt(buf.limit() - Integer.BYTES))
+                throw new IOException("Manifest of the dump is corrupted, checksum doesn't match");
+
+            buf.getInt();
+
+            int count = buf.getInt();
+
+            List<Segment> res = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[buf.getShort()];
+
+                buf.get(name);
+
+                res.add(new Segment(new String(name, StandardCharsets.US_ASCII), buf.getLong()));
+            }
+
+            return res;
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Manifest of the dump is corrupted", e);
+        }
+    }
+
+    /** Segment of the dump. */
+    static class Segment {
+        /** Name of the file, it is in the directory of the manifest. */
+        final String name;
+
+        /** Number of lines. */
+        final long lines;
+
+        Segment(String name, long lines) {
+            this.name = name;
+            this.lines = lines;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.github.akalash.linequeue.storage;
+
+/**
+ * Level of durability which should be reached before the stored line is acknowledged to the client.
+ */
+public enum Durability {
+    /** The line is acknowledged as soon as it is in memory, the log record is written in background. */
+    MEMORY,
+
+    /** The line is acknowledged when its log record is written to the file, so it survives the crash of process. */
+    WRITTEN,
+
+    /** The line is acknowledged when its log record is forced to the disk, so it survives the crash of OS. */
+    FSYNCED
+}
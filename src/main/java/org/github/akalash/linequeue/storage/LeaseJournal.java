@@ -0,0 +1,257 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only log of leases of the queue which has the write-ahead log. Leased lines are consumed in the log of their
+ * stripe when they are polled, so the lease keeps them in this log until it is acknowledged. Lines of returned leases
+ * stay in the log until they are polled again.
+ *
+ * The record is written to the file right away without {@code fsync}, so it survives the crash of the process like the
+ * records of the write-ahead log which are not forced yet. The log is rewritten by the actual leases when it grows
+ * over {@link #COMPACTION_SIZE} and by every snapshot.
+ */
+class LeaseJournal implements AutoCloseable {
+    /** Suffix of the log which is added to the path of the dump. */
+    static final String FILE_SUFFIX = ".leases.log";
+
+    /** Size of the log after which it is rewritten by the actual leases. */
+    static final long COMPACTION_SIZE = 16 * 1024 * 1024;
+
+    /** Record of the lease with its lines. */
+    private static final byte LEASE_RECORD = 1;
+
+    /** Record of the acknowledged lease. */
+    private static final byte ACK_RECORD = 2;
+
+    /** Record of the first lines of the returned lease which are polled again. */
+    private static final byte TAKE_RECORD = 3;
+
+    /** Size of the record without lines: type, id of the lease, number of lines. */
+    private static final int RECORD_HEADER_SIZE = 1 + Long.BYTES + Integer.BYTES;
+
+    /** Path to the log. */
+    private final Path path;
+
+    /** Channel of the log, guarded by this. */
+    private FileChannel ch;
+
+    /** Size of the log, guarded by this. */
+    private long size;
+
+    /**
+     * Open the log and write the given leases to it, everything which was in the log is replaced.
+     *
+     * @param path Path to the log.
+     * @param leases Lines of leases by ids of the leases.
+     * @throws IOException If fail.
+     */
+    LeaseJournal(Path path, Map<Long, ? extends Collection<byte[]>> leases) throws IOException {
+        this.path = path;
+
+        rewrite(leases);
+    }
+
+    /**
+     * @param id Id of the lease.
+     * @param lines Leased lines.
+     * @throws IOException If fail.
+     */
+    synchronized void lease(long id, Collection<byte[]> lines) throws IOException {
+        write(leaseRecord(id, lines));
+    }
+
+    /**
+     * @param id Id of the acknowledged lease.
+     * @throws IOException If fail.
+     */
+    synchronized void ack(long id) throws IOException {
+        write(record(ACK_RECORD, id, 0));
+    }
+
+    /**
+     * @param id Id of the returned lease.
+     * @param count Number of first lines of the lease which are polled again.
+     * @throws IOException If fail.
+     */
+    synchronized void take(long id, int count) throws IOException {
+        write(record(TAKE_RECORD, id, count));
+    }
+
+    /**
+     * @return {@code true} if the log should be rewritten by the actual leases.
+     */
+    synchronized boolean isOversized() {
+        return size > COMPACTION_SIZE;
+    }
+
+    /**
+     * Replace the log by the given leases through the temporary file.
+     *
+     * @param leases Lines of leases by ids of the leases.
+     * @throws IOException If fail.
+     */
+    synchronized void rewrite(Map<Long, ? extends Collection<byte[]>> leases) throws IOException {
+        Path tmp = Paths.get(path + ".tmp");
+
+        long newSize = 0;
+
+        try (FileChannel tmpCh = FileChannel.open(tmp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            for (Map.Entry<Long, ? extends Collection<byte[]>> entry : leases.entrySet()) {
+                ByteBuffer buf = leaseRecord(entry.getKey(), entry.getValue());
+
+                newSize += buf.remaining();
+
+                while (buf.hasRemaining())
+                    tmpCh.write(buf);
+            }
+
+            tmpCh.force(true);
+        }
+
+        if (ch != null)
+            ch.close();
+
+        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+
+        ch = FileChannel.open(path, WRITE, APPEND);
+        size = newSize;
+    }
+
+    /**
+     * Read the leases of the log which are not acknowledged.
+     *
+     * @param path Path to the log.
+     * @return Lines of leases by ids of the leases, the map is empty if there is no log.
+     * @throws IOException If the log can't be read.
+     */
+    static TreeMap<Long, ArrayDeque<byte[]>> replay(Path path) throws IOException {
+        TreeMap<Long, ArrayDeque<byte[]>> res = new TreeMap<>();
+
+        if (!Files.exists(path))
+            return res;
+
+        try (FileChannel ch = FileChannel.open(path, READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+            //The tail of the log can be torn by the crash, the record which isn't complete is skipped.
+            try {
+                while (buf.remaining() >= RECORD_HEADER_SIZE) {
+                    byte type = buf.get();
+                    long id = buf.getLong();
+                    int count = buf.getInt();
+
+                    if (type == LEASE_RECORD) {
+                        ArrayDeque<byte[]> lines = new ArrayDeque<>(count);
+
+                        for (int i = 0; i < count; i++) {
+                            byte[] line = new byte[buf.getInt()];
+
+                            buf.get(line);
+
+                            lines.add(line);
+                        }
+
+                        res.put(id, lines);
+                    }
+                    else if (type == ACK_RECORD)
+                        res.remove(id);
+                    else if (type == TAKE_RECORD) {
+                        ArrayDeque<byte[]> lines = res.get(id);
+
+                        for (int i = 0; lines != null && i < count && !lines.isEmpty(); i++)
+                            lines.poll();
+
+                        if (lines != null && lines.isEmpty())
+                            res.remove(id);
+                    }
+                    else
+                        throw new IOException("Log of leases is corrupted :: " + path);
+                }
+            }
+            catch (BufferUnderflowException | NegativeArraySizeException e) {
+                //The torn record.
+            }
+        }
+
+        return res;
+    }
+
+    /** Close the log and delete it. */
+    synchronized void delete() throws IOException {
+        close();
+
+        Files.deleteIfExists(path);
+    }
+
+    /** {@inheritDoc} */
+    @Override public synchronized void close() throws IOException {
+        if (ch != null) {
+            ch.close();
+
+            ch = null;
+        }
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        if (ch == null)
+            throw new IOException("Log of leases is closed :: " + path);
+
+        size += buf.remaining();
+
+        while (buf.hasRemaining())
+            ch.write(buf);
+    }
+
+    private static ByteBuffer leaseRecord(long id, Collection<byte[]> lines) {
+        int recordSize = RECORD_HEADER_SIZE;
+
+        for (byte[] line : lines)
+            recordSize += Integer.BYTES + line.length;
+
+        ByteBuffer buf = ByteBuffer.allocate(recordSize);
+
+        buf.put(LEASE_RECORD);
+        buf.putLong(id);
+        buf.putInt(lines.size());
+
+        for (byte[] line : lines) {
+            buf.putInt(line.length);
+            buf.put(line);
+        }
+
+        buf.flip();
+
+        return buf;
+    }
+
+    private static ByteBuffer record(byte type, long id, int count) {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+        buf.put(type);
+        buf.putLong(id);
+        buf.putInt(count);
+        buf.flip();
+
+        return buf;
+    }
+}
@@ -0,0 +1,520 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Lines which are polled by consumers but not acknowledged yet. The lines of one poll are leased together for the
+ * visibility timeout, so the lease costs one object and one entry of the timing wheel regardless of the number of
+ * lines. The lease which is returned by the consumer or which is expired is redelivered before any new line, in order
+ * of its original delivery.
+ *
+ * Leased lines are counted by {@link QueueCapacity} until they are acknowledged. If the queue has the write-ahead log,
+ * leases are written to {@link LeaseJournal} after their lines are consumed from the log, so they survive the crash.
+ * Otherwise they are written by every snapshot.
+ */
+public class Leases {
+    private static final Logger log = LogManager.getLogger(Leases.class);
+
+    /** Suffix of the file of unacknowledged lines which is added to the path of the dump. */
+    static final String FILE_SUFFIX = ".leases";
+
+    /** Timer of leases of all queues. */
+    private static final TimingWheel WHEEL = new TimingWheel("line-queue-lease-timer", 10, 64);
+
+    /** Number of bits of the lease id which are given by the counter after the start time of the process. */
+    private static final int LEASE_ID_COUNTER_BITS = 20;
+
+    /**
+     * Id of the last lease, the ids are unique across queues. The counter starts from the time of the start, so the ids
+     * aren't given again after the restart unless more than a million leases were given per millisecond of the uptime.
+     */
+    private static final AtomicLong lastLeaseId = new AtomicLong(System.currentTimeMillis() << LEASE_ID_COUNTER_BITS);
+
+    /** Leases which are waiting for acknowledgement by their ids. */
+    private final ConcurrentHashMap<Long, Lease> active = new ConcurrentHashMap<>();
+
+    /** Lines of returned leases by the ids of the leases, guarded by itself. */
+    private final TreeMap<Long, ArrayDeque<byte[]>> returned = new TreeMap<>();
+
+    /** Number of lines which should be redelivered. */
+    private volatile int returnedLines;
+
+    /** Action which is run when lines are returned for redelivery. */
+    private final Runnable onReturn;
+
+    /** Limit of lines which is shared with other queues or {@code null} if it is unlimited. */
+    private final QueueCapacity capacity;
+
+    /** Log of leases or {@code null} if leases are written only by snapshots, it is opened by the restore. */
+    private volatile LeaseJournal journal;
+
+    /**
+     * @param onReturn Action which is run when lines are returned for redelivery.
+     * @param capacity Limit of lines which is shared with other queues or {@code null} if it is unlimited.
+     */
+    Leases(Runnable onReturn, QueueCapacity capacity) {
+        this.onReturn = onReturn;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Lease lines for the given time.
+     *
+     * @param lines Lines which are polled by the consumer.
+     * @param timeoutMs Visibility timeout in milliseconds, the lines are redelivered if they aren't acknowledged in time.
+     * @return Id of the lease.
+     */
+    public long lease(List<byte[]> lines, long timeoutMs) {
+        Lease lease = new Lease(lastLeaseId.incrementAndGet(), lines);
+
+        if (capacity != null)
+            capacity.reserve(lines.size(), size(lines));
+
+        //The lease is published before it is logged, so the compaction of the log can't lose it.
+        active.put(lease.id, lease);
+
+        LeaseJournal journal = this.journal;
+
+        if (journal != null) {
+            try {
+                journal.lease(lease.id, lines);
+
+                if (journal.isOversized())
+                    compact(journal);
+            }
+            catch (IOException e) {
+                log.error("Something was going wrong during the write of the lease :: ", e);
+            }
+        }
+
+        WHEEL.schedule(lease, timeoutMs);
+
+        return lease.id;
+    }
+
+    /**
+     * Confirm that lines of the lease are processed, so they are removed forever.
+     *
+     * @param id Id of the lease.
+     * @return {@code true} if the lease was active, {@code false} if it is unknown or it is already expired.
+     */
+    public boolean ack(long id) {
+        Lease lease = active.get(id);
+
+        //The lease stays visible until it is acknowledged, so the compaction of the log can't lose the returned one.
+        if (lease == null || !lease.state.compareAndSet(Lease.ACTIVE, Lease.ACKED))
+            return false;
+
+        active.remove(id);
+
+        LeaseJournal journal = this.journal;
+
+        if (journal != null) {
+            try {
+                journal.ack(id);
+            }
+            catch (IOException e) {
+                log.error("Something was going wrong during the write of the acknowledgement :: ", e);
+            }
+        }
+
+        if (capacity != null)
+            capacity.release(lease.lines.size(), size(lease.lines));
+
+        return true;
+    }
+
+    /**
+     * Return lines of the lease for redelivery without waiting for its timeout.
+     *
+     * @param id Id of the lease.
+     * @return {@code true} if the lease was active, {@code false} if it is unknown or it is already expired.
+     */
+    public boolean nack(long id) {
+        Lease lease = active.get(id);
+
+        return lease != null && lease.giveBack();
+    }
+
+    /**
+     * Take lines which should be redelivered and add new lines after them.
+     *
+     * @param count Number of lines which should be taken.
+     * @param upTo {@code true} if any number of lines up to the given count is enough.
+     * @param poll Function which polls the given number of new lines or returns {@code null} if there are not enough
+     * of them. It is called only if there are not enough returned lines.
+     * @return Lines, {@code null} if there are no returned lines or if there are not enough lines at all and
+     * {@code upTo} is {@code false}.
+     */
+    List<byte[]> takeReturned(int count, boolean upTo, IntFunction<List<byte[]>> poll) {
+        if (returnedLines == 0)
+            return null;
+
+        List<byte[]> res;
+        int fromReturned;
+        long takenSize = 0;
+
+        synchronized (returned) {
+            fromReturned = Math.min(count, returnedLines);
+
+            if (fromReturned == 0)
+                return null;
+
+            List<byte[]> polled = Collections.emptyList();
+
+            if (fromReturned < count) {
+                polled = poll.apply(count - fromReturned);
+
+                if (polled == null) {
+                    if (!upTo)
+                        return null;
+
+                    polled = Collections.emptyList();
+                }
+            }
+
+            res = new ArrayList<>(fromReturned + polled.size());
+
+            LeaseJournal journal = this.journal;
+
+            while (res.size() < fromReturned) {
+                Map.Entry<Long, ArrayDeque<byte[]>> first = returned.firstEntry();
+
+                int taken = Math.min(first.getValue().size(), fromReturned - res.size());
+
+                for (int i = 0; i < taken; i++) {
+                    byte[] line = first.getValue().poll();
+
+                    takenSize += line.length;
+
+                    res.add(line);
+                }
+
+                if (first.getValue().isEmpty())
+                    returned.pollFirstEntry();
+
+                if (journal != null) {
+                    try {
+                        journal.take(first.getKey(), taken);
+                    }
+                    catch (IOException e) {
+                        log.error("Something was going wrong during the write of the redelivery :: ", e);
+                    }
+                }
+            }
+
+            returnedLines -= fromReturned;
+
+            res.addAll(polled);
+        }
+
+        //The lines are counted again if they are leased again. Waiting producers are let go outside of the lock.
+        if (capacity != null)
+            capacity.release(fromReturned, takenSize);
+
+        return res;
+    }
+
+    /**
+     * @return Lines of all leases which are not acknowledged yet in order of their delivery. The leases stay active.
+     */
+    List<byte[]> unacknowledged() {
+        List<byte[]> res = new ArrayList<>();
+
+        for (Collection<byte[]> lines : leases().values())
+            res.addAll(lines);
+
+        return res;
+    }
+
+    /**
+     * @return Lines of all leases which are not acknowledged yet by the ids of the leases.
+     */
+    private TreeMap<Long, Collection<byte[]>> leases() {
+        TreeMap<Long, Collection<byte[]>> leases = new TreeMap<>();
+
+        //The returned lease is moved from the active ones under the same lock, so it is taken exactly once.
+        synchronized (returned) {
+            for (Lease lease : active.values())
+                leases.put(lease.id, lease.lines);
+
+            for (Map.Entry<Long, ArrayDeque<byte[]>> entry : returned.entrySet())
+                leases.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+
+        return leases;
+    }
+
+    /**
+     * Return polled lines which are not delivered to the consumer, like the lines of the request which couldn't be
+     * completed. They are polled again before any new line and they are logged like the returned lease. Waiting
+     * consumers aren't woken up, since the lines are put back by the poll which is made for them.
+     *
+     * @param lines Polled lines.
+     */
+    void putBack(List<byte[]> lines) {
+        long id = lastLeaseId.incrementAndGet();
+
+        if (capacity != null)
+            capacity.reserve(lines.size(), size(lines));
+
+        synchronized (returned) {
+            returned.put(id, new ArrayDeque<>(lines));
+
+            returnedLines += lines.size();
+
+            LeaseJournal journal = this.journal;
+
+            if (journal != null) {
+                try {
+                    journal.lease(id, lines);
+                }
+                catch (IOException e) {
+                    log.error("Something was going wrong during the write of the returned lines :: ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param lines Lines which should be redelivered before any new line, like the restored unacknowledged lines.
+     */
+    void redeliver(List<byte[]> lines) {
+        if (lines.isEmpty())
+            return;
+
+        if (capacity != null)
+            capacity.reserve(lines.size(), size(lines));
+
+        synchronized (returned) {
+            //The restored lines lose their leases, so they share the id which is never given.
+            returned.computeIfAbsent(0L, id -> new ArrayDeque<>()).addAll(lines);
+
+            returnedLines += lines.size();
+        }
+    }
+
+    /**
+     * Write lines of all leases which are not acknowledged yet to the file in the format of the dump, so they are
+     * redelivered after the restart. The file is deleted if there are no such lines. The log of leases is cleared,
+     * since the file replaces it.
+     *
+     * @param path Path to the file.
+     * @throws IOException If fail.
+     */
+    void dump(Path path) throws IOException {
+        write(path, unacknowledged());
+
+        LeaseJournal journal = this.journal;
+
+        if (journal != null)
+            journal.rewrite(Collections.emptyMap());
+    }
+
+    /**
+     * Write leases which are not acknowledged yet by the snapshot of the queue: the log of leases is rewritten by them
+     * if the queue has the write-ahead log, otherwise they are written to the file like by {@link #dump(Path)}. The
+     * lines which are leased after the snapshots of stripes are started can be redelivered twice, but they aren't lost.
+     *
+     * @param path Path to the file.
+     * @throws IOException If fail.
+     */
+    void snapshot(Path path) throws IOException {
+        LeaseJournal journal = this.journal;
+
+        if (journal != null)
+            compact(journal);
+        else
+            write(path, unacknowledged());
+    }
+
+    /**
+     * Rewrite the log by the leases which are not acknowledged yet. The leases are taken under the lock of the log, so
+     * no record which is written after them is lost.
+     *
+     * @param journal Log of leases.
+     * @throws IOException If fail.
+     */
+    private void compact(LeaseJournal journal) throws IOException {
+        synchronized (returned) {
+            synchronized (journal) {
+                journal.rewrite(leases());
+            }
+        }
+    }
+
+    private static void write(Path path, List<byte[]> lines) throws IOException {
+        if (lines.isEmpty()) {
+            Files.deleteIfExists(path);
+
+            return;
+        }
+
+        Path tmp = Paths.get(path + ".tmp");
+
+        try (FileChannel ch = FileChannel.open(tmp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            for (byte[] line : lines) {
+                ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES + line.length);
+
+                buf.putInt(line.length);
+                buf.put(line);
+                buf.flip();
+
+                while (buf.hasRemaining())
+                    ch.write(buf);
+            }
+
+            ch.force(true);
+        }
+
+        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * Schedule lines of the file which is written by {@link #dump(Path)} for redelivery.
+     *
+     * @param path Path to the file.
+     * @throws IOException If the file can't be read or it is corrupted.
+     */
+    void restore(Path path) throws IOException {
+        restore(path, null);
+    }
+
+    /**
+     * Schedule lines of the file which is written by {@link #dump(Path)} and lines of the log of leases for redelivery.
+     * If the queue has the write-ahead log, the log of leases is opened for new leases with the restored lines and the
+     * file is deleted. Otherwise the file is kept until the next snapshot, so the lines survive one more crash.
+     *
+     * @param path Path to the file.
+     * @param journalPath Path to the log of leases or {@code null} if the queue has no write-ahead log.
+     * @throws IOException If the file or the log can't be read or it is corrupted.
+     */
+    void restore(Path path, Path journalPath) throws IOException {
+        List<byte[]> lines = new ArrayList<>();
+
+        if (Files.exists(path))
+            DumpLoader.open(path, 1, (id, line) -> lines.add(line)).loadAll();
+
+        if (journalPath != null) {
+            for (ArrayDeque<byte[]> leased : LeaseJournal.replay(journalPath).values())
+                lines.addAll(leased);
+        }
+
+        redeliver(lines);
+
+        if (journalPath == null)
+            return;
+
+        synchronized (returned) {
+            journal = new LeaseJournal(journalPath, returned);
+        }
+
+        Files.deleteIfExists(path);
+    }
+
+    /** Close the log of leases if it is opened. */
+    void close() {
+        LeaseJournal journal = this.journal;
+
+        if (journal == null)
+            return;
+
+        try {
+            journal.close();
+        }
+        catch (IOException e) {
+            log.error("Something was going wrong during the close of the log of leases :: ", e);
+        }
+    }
+
+    private static long size(Collection<byte[]> lines) {
+        long size = 0;
+
+        for (byte[] line : lines)
+            size += line.length;
+
+        return size;
+    }
+
+    /** Lines which are leased by one poll. */
+    private class Lease extends TimingWheel.Task {
+        /** State of the lease which waits for acknowledgement. */
+        private static final int ACTIVE = 0;
+
+        /** State of the acknowledged lease. */
+        private static final int ACKED = 1;
+
+        /** State of the lease which lines are returned for redelivery. */
+        private static final int RETURNED = 2;
+
+        /** Id of the lease. */
+        final long id;
+
+        /** Leased lines. */
+        final List<byte[]> lines;
+
+        /** State of this lease. */
+        final AtomicInteger state = new AtomicInteger();
+
+        Lease(long id, List<byte[]> lines) {
+            this.id = id;
+            this.lines = lines;
+        }
+
+        /** {@inheritDoc} */
+        @Override boolean isCancelled() {
+            return state.get() != ACTIVE;
+        }
+
+        /** {@inheritDoc} */
+        @Override void expire() {
+            giveBack();
+        }
+
+        /**
+         * Return the lines for redelivery if this lease is still active.
+         *
+         * @return {@code true} if the lines were returned by this call.
+         */
+        boolean giveBack() {
+            if (!state.compareAndSet(ACTIVE, RETURNED))
+                return false;
+
+            synchronized (returned) {
+                active.remove(id);
+
+                returned.put(id, new ArrayDeque<>(lines));
+
+                returnedLines += lines.size();
+            }
+
+            onReturn.run();
+
+            return true;
+        }
+    }
+}
@@ -1,31 +1,52 @@
 package org.github.akalash.linequeue.storage;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.github.akalash.linequeue.network.PortListenWorker;
 
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.READ;
-import static java.nio.file.StandardOpenOption.WRITE;
-
 /**
  * Thread-safe FIFO storage of line.
+ *
+ * The queue with consumer groups keeps lines until all groups read them, GET reads lines as the default group. In this
+ * mode {@link #lastReadId} is the id of the last line which is read by all groups.
+ *
+ * The dump and the snapshot are written by {@link DumpWriter} and their blocks of lines can be compressed, the restore
+ * recognizes the format v1 as well.
+ *
+ * The line can be added with TTL. Lines of the same queue which expire at the same tick of the timing wheel are kept
+ * as one range of ids, so the wheel holds one task per range. The expired range is skipped by poll and read without
+ * delivering its lines, the range at the head is removed by the wheel right away. TTL isn't persisted, the restored
+ * lines never expire.
  */
-public class LineQueue {
+public class LineQueue implements AutoCloseable {
     private static final Logger log = LogManager.getLogger(PortListenWorker.class);
 
-    /** Byte buffer size for write/read operation. */
-    private static final int MAX_BUFFER_SIZE = 1024;
+    /** Suffix of the snapshot file which is added to the dump file path. */
+    static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    /** Name of the group which is read by GET if the queue has consumer groups. */
+    static final String DEFAULT_GROUP = "";
+
+    /** Max number of lines which are removed at once when all groups read them. */
+    private static final int MAX_TRIM_BATCH = 64 * 1024;
+
+    /** Result of adding which doesn't wait for anything. */
+    private static final CompletableFuture<Void> ADDED = CompletableFuture.completedFuture(null);
 
     /** Path to file which this queue should be dumped to/restored from. */
     private final String dumpFilePath;
@@ -36,15 +57,281 @@ public class LineQueue {
     /** Inner sequential number of last read entry. */
     private final AtomicLong lastReadId = new AtomicLong();
 
-    private final ConcurrentHashMap<Long, String> storage = new ConcurrentHashMap<>();
+    /** Lines by their ids. */
+    private final ChunkedRingBuffer<byte[]> storage;
+
+    /** Log of all changes of this queue or {@code null} if the queue is kept only in memory. */
+    private final WriteAheadLog wal;
+
+    /** Disk tier of this queue or {@code null} if all lines are kept in memory. */
+    private final SpillStorage spill;
+
+    /** Snapshot which is being written or {@code null} if there is no such. */
+    private volatile Snapshot snapshot;
+
+    /** Loader of the dump which is being restored or {@code null} if the restore is finished. */
+    private volatile DumpLoader loader;
+
+    /** Future which is completed when the restore is finished and the restored files are cleaned up. */
+    private volatile CompletableFuture<Void> restored = ADDED;
+
+    /** Consumer groups by their names or {@code null} if lines are removed by GET. */
+    private final ConcurrentHashMap<String, ConsumerGroup> groups;
+
+    /** Guard of the registration of groups and the removal of lines which are read by all groups. */
+    private final ReentrantLock trimLock = new ReentrantLock();
+
+    /** {@code true} if the dump and the snapshot are written in the compressed format. */
+    private final boolean compression;
+
+    /** Max number of threads which write the dump in parallel. */
+    private final int dumpWriters;
+
+    /** Limit of lines which is shared with other queues or {@code null} if it is unlimited, it is set before use. */
+    private QueueCapacity capacity;
+
+    /** Marks of producers of the queue which this stripe belongs to or {@code null}, it is set before the restore. */
+    private ProducerSequences producers;
+
+    /** Expired ranges of ids which the head didn't pass yet, the first id of the range is mapped to the last one. */
+    private final ConcurrentSkipListMap<Long, Long> expired = new ConcurrentSkipListMap<>();
+
+    /** Guard of {@link #lastExpiring}. */
+    private final ReentrantLock expiryLock = new ReentrantLock();
+
+    /** Last range which waits for its expiration, the next line with the same deadline can extend it. */
+    private volatile ExpiringRange lastExpiring;
+
+    /** Number of lines which expired before they were delivered. */
+    private final LongAdder expiredLines = new LongAdder();
 
     public LineQueue(String dumpFilePath) {
+        this(dumpFilePath, null);
+    }
+
+    public LineQueue(String dumpFilePath, WriteAheadLog wal) {
+        this.dumpFilePath = dumpFilePath;
+        this.wal = wal;
+
+        spill = null;
+        groups = null;
+        compression = false;
+        dumpWriters = 1;
+        storage = new ChunkedRingBuffer<>(true);
+    }
+
+    public LineQueue(String dumpFilePath, WriteAheadLog wal, SpillStorage spill) throws IOException {
+        this(dumpFilePath, wal, spill, false);
+    }
+
+    /**
+     * @param dumpFilePath Path to file which this queue should be dumped to/restored from.
+     * @param wal Log of all changes of this queue or {@code null} if the queue is kept only in memory.
+     * @param spill Disk tier of this queue or {@code null} if all lines are kept in memory.
+     * @param consumerGroups {@code true} if lines should be kept until all consumer groups read them.
+     * @throws IOException If the disk tier can't be started.
+     */
+    public LineQueue(
+        String dumpFilePath,
+        WriteAheadLog wal,
+        SpillStorage spill,
+        boolean consumerGroups
+    ) throws IOException {
+        this(dumpFilePath, wal, spill, consumerGroups, false);
+    }
+
+    /**
+     * @param dumpFilePath Path to file which this queue should be dumped to/restored from.
+     * @param wal Log of all changes of this queue or {@code null} if the queue is kept only in memory.
+     * @param spill Disk tier of this queue or {@code null} if all lines are kept in memory.
+     * @param consumerGroups {@code true} if lines should be kept until all consumer groups read them.
+     * @param compression {@code true} if the dump and the snapshot should be written in the compressed format.
+     * @throws IOException If the disk tier can't be started.
+     */
+    public LineQueue(
+        String dumpFilePath,
+        WriteAheadLog wal,
+        SpillStorage spill,
+        boolean consumerGroups,
+        boolean compression
+    ) throws IOException {
+        this(dumpFilePath, wal, spill, consumerGroups, compression, 1);
+    }
+
+    /**
+     * @param dumpFilePath Path to file which this queue should be dumped to/restored from.
+     * @param wal Log of all changes of this queue or {@code null} if the queue is kept only in memory.
+     * @param spill Disk tier of this queue or {@code null} if all lines are kept in memory.
+     * @param consumerGroups {@code true} if lines should be kept until all consumer groups read them.
+     * @param compression {@code true} if the dump and the snapshot should be written in the compressed format.
+     * @param dumpWriters Max number of threads which write the dump in parallel, the big dump is split to segments.
+     * @throws IOException If the disk tier can't be started.
+     */
+    public LineQueue(
+        String dumpFilePath,
+        WriteAheadLog wal,
+        SpillStorage spill,
+        boolean consumerGroups,
+        boolean compression,
+        int dumpWriters
+    ) throws IOException {
+        if (dumpWriters < 1)
+            throw new IllegalArgumentException("Number of dump writers should be positive :: " + dumpWriters);
+
         this.dumpFilePath = dumpFilePath;
+        this.wal = wal;
+        this.spill = spill;
+        this.compression = compression;
+        this.dumpWriters = dumpWriters;
+
+        groups = consumerGroups ? new ConcurrentHashMap<>() : null;
+
+        //The spiller accesses lines which it doesn't own, so the chunk can't be reused safely.
+        storage = new ChunkedRingBuffer<>(spill == null);
+
+        if (spill != null)
+            spill.start(storage, lastStoredId, lastReadId);
     }
 
     /** Adding new value to queue. */
-    public void add(String value) {
-        storage.put(lastStoredId.incrementAndGet(), value);
+    public void add(byte[] value) {
+        add(value, Durability.MEMORY);
+    }
+
+    /**
+     * Adding new value to queue.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @return Future which is completed when the value reaches the requested durability.
+     * @throws IllegalArgumentException If the requested durability can't be provided by this queue.
+     */
+    public CompletableFuture<Void> add(byte[] value, Durability durability) {
+        return add(value, durability, 0);
+    }
+
+    /**
+     * Adding new value to queue which is dropped if it isn't delivered in time.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param ttlMs Time to live in milliseconds or {@code 0} if the value never expires.
+     * @return Future which is completed when the value reaches the requested durability.
+     * @throws IllegalArgumentException If the requested durability can't be provided by this queue.
+     */
+    public CompletableFuture<Void> add(byte[] value, Durability durability, long ttlMs) {
+        return add(value, durability, ttlMs, null, 0);
+    }
+
+    /**
+     * Adding new value of the producer which numbers its lines, the sequence number is logged together with the value.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param ttlMs Time to live in milliseconds or {@code 0} if the value never expires.
+     * @param producer Id of the producer or {@code null} if the producer doesn't number its lines.
+     * @param seq Sequence number of the value of the producer.
+     * @return Future which is completed when the value reaches the requested durability.
+     * @throws IllegalArgumentException If the requested durability can't be provided by this queue.
+     */
+    public CompletableFuture<Void> add(byte[] value, Durability durability, long ttlMs, String producer, long seq) {
+        if (wal == null && durability != Durability.MEMORY)
+            throw new IllegalArgumentException("Durability requires the write-ahead log :: " + durability);
+
+        long id = lastStoredId.incrementAndGet();
+
+        CompletableFuture<Void> logged = wal == null ? ADDED : wal.appendPut(id, value, durability, producer, seq);
+
+        store(id, value);
+
+        if (ttlMs > 0)
+            expireAfter(id, ttlMs);
+
+        return logged;
+    }
+
+    /**
+     * Schedule the expiration of the stored line. The line joins the last range if it is next to it and it expires at
+     * the same tick, otherwise it starts the new range.
+     */
+    private void expireAfter(long id, long ttlMs) {
+        long deadline = ExpiryTimer.WHEEL.deadline(ttlMs);
+
+        ExpiringRange range;
+
+        expiryLock.lock();
+        try {
+            ExpiringRange last = lastExpiring;
+
+            if (last != null && last.deadline == deadline && last.lastId == id - 1) {
+                last.lastId = id;
+
+                return;
+            }
+
+            range = lastExpiring = new ExpiringRange(id, deadline);
+        }
+        finally {
+            expiryLock.unlock();
+        }
+
+        ExpiryTimer.WHEEL.scheduleAt(range, deadline);
+    }
+
+    /**
+     * Remember the expired range, so it is skipped by consumers. The range at the head is removed right away.
+     *
+     * @param firstId Id of the first line of the range.
+     * @param lastId Id of the last line of the range.
+     */
+    private void onExpired(long firstId, long lastId) {
+        if (lastId <= lastReadId.get())
+            return;
+
+        expired.put(firstId, lastId);
+
+        //The head of the queue with groups is moved only by groups.
+        if (groups == null)
+            claim(0, true);
+    }
+
+    private void store(long id, byte[] value) {
+        if (capacity != null)
+            capacity.reserve(value.length);
+
+        if (spill != null)
+            spill.onAdded(value);
+
+        storage.put(id, value);
+    }
+
+    /**
+     * @param capacity Limit of lines which is shared with other queues, it should be set before the queue is used.
+     */
+    void capacity(QueueCapacity capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param producers Marks of producers which are restored from the write-ahead log, they should be set before the
+     * restore.
+     */
+    void producers(ProducerSequences producers) {
+        this.producers = producers;
+    }
+
+    /**
+     * @return Path to file which this queue should be dumped to/restored from.
+     */
+    String dumpFilePath() {
+        return dumpFilePath;
+    }
+
+    /**
+     * @return {@code true} if this queue has the write-ahead log.
+     */
+    boolean isLogged() {
+        return wal != null;
     }
 
     /**
@@ -53,127 +340,659 @@ public class LineQueue {
      * @param count Number of lines which should be polled.
      * @return First requested lines or {@code null} if requested count is incorrect.
      */
-    public List<String> poll(int count) {
+    public List<byte[]> poll(int count) {
+        if (groups != null)
+            return read(DEFAULT_GROUP, count, false);
+
+        return claim(count, false);
+    }
+
+    /**
+     * Poll first lines from this queue, but not more than {@code count}.
+     *
+     * @param count Max number of lines which should be polled.
+     * @return First available lines, the list is empty if there are no lines.
+     */
+    public List<byte[]> pollUpTo(int count) {
+        if (groups != null)
+            return read(DEFAULT_GROUP, count, true);
+
+        return claim(count, true);
+    }
+
+    /**
+     * Move the head over the requested number of lines and the expired ranges between them and take them out.
+     *
+     * @param count Number of lines which should be polled.
+     * @param upTo {@code true} if any number of lines up to the given count is enough.
+     * @return Polled lines, {@code null} if there are not enough lines and {@code upTo} is {@code false}.
+     */
+    private List<byte[]> claim(int count, boolean upTo) {
         long firstId;
+        long lastId;
+        List<long[]> skipped;
         do {
             firstId = this.lastReadId.get();
 
-            if (firstId + count > lastStoredId.get())
-                return null;
+            skipped = expired.isEmpty() ? null : new ArrayList<>();
+
+            lastId = skipped == null ? Math.min(firstId + count, lastStoredId.get()) : claimEnd(firstId, count, skipped);
+
+            if (upTo ? lastId == firstId : lastId - firstId - rangesSize(skipped) < count)
+                return upTo ? Collections.emptyList() : null;
+        }
+        while (!this.lastReadId.compareAndSet(firstId, lastId));
+
+        return take(firstId, (int)(lastId - firstId), skipped);
+    }
+
+    /**
+     * Find the last id of the claim which has the requested number of lines which are not expired. The expired ranges
+     * right after the lines are included as well.
+     *
+     * @param firstId Id of the line before the claim.
+     * @param count Number of lines which are not expired.
+     * @param skipped Expired ranges of the claim, they are added as pairs of the first and the last id.
+     * @return Last id of the claim, the claim has fewer lines if there are not enough of them.
+     */
+    private long claimEnd(long firstId, int count, List<long[]> skipped) {
+        long lastStored = lastStoredId.get();
+
+        Map.Entry<Long, Long> range = expired.floorEntry(firstId + 1);
+
+        if (range == null || range.getValue() <= firstId)
+            range = expired.higherEntry(firstId + 1);
+
+        long end = firstId;
+        int lines = 0;
+
+        while (true) {
+            if (range != null && range.getKey() <= end + 1 && end < lastStored) {
+                long rangeEnd = Math.min(range.getValue(), lastStored);
+
+                skipped.add(new long[] {end + 1, rangeEnd});
+
+                end = rangeEnd;
+                range = expired.higherEntry(range.getKey());
+
+                continue;
+            }
+
+            long runEnd = range == null ? lastStored : Math.min(range.getKey() - 1, lastStored);
+            int run = (int)Math.min(count - lines, runEnd - end);
+
+            if (run <= 0)
+                return end;
+
+            lines += run;
+            end += run;
+        }
+    }
+
+    /**
+     * @param ranges Pairs of the first and the last id or {@code null}.
+     * @return Number of ids of the ranges.
+     */
+    private static long rangesSize(List<long[]> ranges) {
+        long size = 0;
+
+        if (ranges != null) {
+            for (long[] range : ranges)
+                size += range[1] - range[0] + 1;
         }
-        while (!this.lastReadId.compareAndSet(firstId, firstId + count));
 
-        List<String> res = new ArrayList<>(count);
+        return size;
+    }
+
+    /**
+     * @param firstId Id of the line before the checked ones.
+     * @param lastId Id of the last checked line.
+     * @return Expired ranges of the given lines, pairs of the first and the last id, or {@code null} if there are no
+     * such ranges.
+     */
+    private List<long[]> expiredRanges(long firstId, long lastId) {
+        if (expired.isEmpty())
+            return null;
+
+        List<long[]> res = null;
+
+        Long from = expired.floorKey(firstId + 1);
+
+        for (Map.Entry<Long, Long> range : expired.tailMap(from != null ? from : firstId + 1).entrySet()) {
+            if (range.getKey() > lastId)
+                break;
+
+            if (range.getValue() <= firstId)
+                continue;
+
+            if (res == null)
+                res = new ArrayList<>();
+
+            res.add(new long[] {Math.max(range.getKey(), firstId + 1), Math.min(range.getValue(), lastId)});
+        }
+
+        return res;
+    }
+
+    /**
+     * @param lastId Id of the last line which is passed by the head.
+     */
+    private void forgetExpired(long lastId) {
+        for (Map.Entry<Long, Long> range; (range = expired.firstEntry()) != null && range.getValue() <= lastId; )
+            expired.remove(range.getKey(), range.getValue());
+    }
+
+    /**
+     * @return Number of lines which are not polled yet, including the ones which are expired but not removed yet.
+     */
+    public long size() {
+        return Math.max(0, lastStoredId.get() - lastReadId.get());
+    }
+
+    /**
+     * @return Number of lines which expired before they were delivered.
+     */
+    public long expiredLines() {
+        return expiredLines.sum();
+    }
+
+    /**
+     * Read lines by the consumer group without removing them. The group is registered by the first read and it starts
+     * from the first line which isn't read by other groups yet.
+     *
+     * @param name Name of the group.
+     * @param count Number of lines which should be read.
+     * @param upTo {@code true} if any number of lines up to the given count is enough.
+     * @return Read lines, {@code null} if there are not enough lines and {@code upTo} is {@code false}.
+     * @throws IllegalArgumentException If the name of the group is incorrect.
+     * @throws IllegalStateException If this queue has no consumer groups.
+     */
+    public List<byte[]> read(String name, int count, boolean upTo) {
+        if (groups == null)
+            throw new IllegalStateException("Queue has no consumer groups");
+
+        ConsumerGroup group = group(name);
+
+        long firstId;
+        int claimed;
+        List<long[]> skipped;
+        do {
+            firstId = group.claimedId.get();
+
+            skipped = expired.isEmpty() ? null : new ArrayList<>();
+
+            long lastId = skipped == null ? Math.min(firstId + count, lastStoredId.get()) :
+                claimEnd(firstId, count, skipped);
+
+            if (upTo ? lastId == firstId : lastId - firstId - rangesSize(skipped) < count)
+                return upTo ? Collections.emptyList() : null;
+
+            claimed = (int)(lastId - firstId);
+        }
+        while (!group.claimedId.compareAndSet(firstId, firstId + claimed));
+
+        List<byte[]> res = new ArrayList<>(claimed);
+        int range = 0;
+        for (long i = firstId + 1; i <= firstId + claimed; i++) {
+            if (skipped != null && range < skipped.size() && i >= skipped.get(range)[0]) {
+                i = skipped.get(range++)[1];
+
+                continue;
+            }
+
+            byte[] line;
+
+            //The line can be reserved by the producer but not published yet.
+            for (int attempt = 0; (line = peek(i)) == null; attempt++)
+                Backoff.idle(attempt);
+
+            res.add(line);
+        }
+
+        //Members of the group read in parallel, but their progress is published in order of claims.
+        for (int attempt = 0; !group.readId.compareAndSet(firstId, firstId + claimed); attempt++)
+            Backoff.idle(attempt);
+
+        trim();
+
+        return res;
+    }
+
+    /** Find the group or register the new one which starts from the first line which isn't read by all groups. */
+    private ConsumerGroup group(String name) {
+        ConsumerGroup group = groups.get(name);
+
+        if (group != null)
+            return group;
+
+        if (!name.equals(DEFAULT_GROUP))
+            ConsumerGroup.validateName(name);
+
+        trimLock.lock();
+        try {
+            return groups.computeIfAbsent(name, ignore -> new ConsumerGroup(lastReadId.get()));
+        }
+        finally {
+            trimLock.unlock();
+        }
+    }
+
+    /** Remove lines which are read by all groups. It is skipped if somebody else does it right now. */
+    private void trim() {
+        if (!trimLock.tryLock())
+            return;
+
+        try {
+            long readByAll = Long.MAX_VALUE;
+
+            for (ConsumerGroup group : groups.values())
+                readByAll = Math.min(readByAll, group.readId.get());
+
+            for (long head = lastReadId.get(); head < readByAll; head = lastReadId.get()) {
+                int count = (int)Math.min(readByAll - head, MAX_TRIM_BATCH);
+
+                lastReadId.set(head + count);
+
+                take(head, count, expiredRanges(head, head + count));
+            }
+
+            forgetExpired(lastReadId.get());
+        }
+        finally {
+            trimLock.unlock();
+        }
+    }
+
+    /**
+     * @param base Id of the line before the first one which is persisted.
+     * @return Offsets of groups relatively to the first persisted line.
+     */
+    private Map<String, Long> groupOffsets(long base) {
+        Map<String, Long> res = new HashMap<>();
+
+        for (Map.Entry<String, ConsumerGroup> entry : groups.entrySet())
+            res.put(entry.getKey(), Math.max(0, entry.getValue().readId.get() - base));
+
+        return res;
+    }
+
+    /**
+     * Take the claimed lines out of the storage.
+     *
+     * @param firstId Id of the line before the claimed ones.
+     * @param count Number of claimed lines.
+     * @param skipped Expired ranges of the claim, pairs of the first and the last id, or {@code null} if there are no
+     * such ranges. Their lines are removed, but they aren't returned.
+     * @return Claimed lines which are not expired.
+     */
+    private List<byte[]> take(long firstId, int count, List<long[]> skipped) {
+        if (wal != null)
+            wal.appendConsumed(firstId + count);
+
+        Snapshot snapshot = this.snapshot;
+
+        long size = 0;
+
+        long expiredCount = rangesSize(skipped);
+        int range = 0;
+
+        List<byte[]> res = new ArrayList<>((int)(count - expiredCount));
         for (long i = firstId + 1; i <= firstId + count; i++) {
-            String remove = null;
+            byte[] line;
 
-            while (remove == null)
-                remove = storage.remove(i);
+            //The line can be reserved by the producer but not published yet.
+            for (int attempt = 0; (line = storage.take(i)) == null; attempt++) {
+                if (!load(i))
+                    Backoff.idle(attempt);
+            }
+
+            if (spill != null)
+                spill.onRemoved(line);
+
+            if (snapshot != null)
+                snapshot.preserve(i, line);
 
-            res.add(remove);
+            size += line.length;
+
+            while (skipped != null && range < skipped.size() && i > skipped.get(range)[1])
+                range++;
+
+            if (skipped == null || range == skipped.size() || i < skipped.get(range)[0])
+                res.add(line);
+        }
+
+        storage.consumed(firstId + 1, firstId + count);
+
+        if (capacity != null)
+            capacity.release(count, size);
+
+        if (skipped != null) {
+            expiredLines.add(expiredCount);
+
+            forgetExpired(firstId + count);
         }
 
         return res;
     }
 
+    /**
+     * Load the line to memory if it is still in the restored dump or it is spilled to the disk.
+     *
+     * @param id Id of the line.
+     * @return {@code true} if the line was loaded by this call.
+     */
+    private boolean load(long id) {
+        DumpLoader loader = this.loader;
+
+        return (loader != null && loader.load(id)) || (spill != null && spill.load(id));
+    }
+
     /** Dumping this queue to the configured file. */
     public void dump() {
-        ByteBuffer writeBuffer = ByteBuffer.allocate(MAX_BUFFER_SIZE);
+        DumpLoader loader = this.loader;
 
-        try (FileChannel ch = FileChannel.open(Paths.get(dumpFilePath), WRITE, CREATE)) {
-            for (long i = lastReadId.get() + 1; i <= lastStoredId.get(); i++) {
-                byte[] bytes = storage.get(i).getBytes();
-                writeBuffer.clear();
+        //The dump which is being restored is replaced by the new one.
+        try {
+            if (loader != null)
+                loader.loadAll();
 
-                if (writeBuffer.remaining() < bytes.length + Integer.BYTES)
-                    writeBuffer = ByteBuffer.allocate(bytes.length + Integer.BYTES);
-                else
-                    writeBuffer.limit(bytes.length + Integer.BYTES);
+            restored.join();
+        }
+        catch (RuntimeException e) {
+            //The restored files are kept, since they have the lines which failed to be loaded.
+            log.error("The dump is skipped, the restore failed :: ", e);
 
-                writeBuffer.putInt(bytes.length);
-                writeBuffer.put(bytes);
+            return;
+        }
 
-                writeBuffer.flip();
+        Path path = Paths.get(dumpFilePath);
 
-                while (writeBuffer.hasRemaining())
-                    ch.write(writeBuffer);
-            }
+        try {
+            long fromId = lastReadId.get();
 
-            ch.force(true);
+            if (groups != null)
+                ConsumerGroup.writeOffsets(offsetsPath(path), groupOffsets(fromId));
+
+            DumpWriter.write(path, fromId, lastStoredId.get(), this::lineToDump, compression, dumpWriters);
         }
         catch (IOException e) {
             log.error("Something was going wrong during the dump :: ", e);
         }
     }
 
-    /** Restoring from the dump if it exists. */
+    /**
+     * @param id Id of the line.
+     * @return Line which should be dumped or {@code null} if it is expired.
+     */
+    private byte[] lineToDump(long id) {
+        //Offsets of groups count all lines, so the expired ones are skipped only without groups.
+        if (groups == null && !expired.isEmpty() && isExpired(id))
+            return null;
+
+        byte[] bytes;
+
+        //The line can be spilled to the disk or being loaded back right now.
+        while ((bytes = peek(id)) == null)
+            Thread.yield();
+
+        return bytes;
+    }
+
+    /**
+     * @param id Id of the line.
+     * @return {@code true} if the line is in the expired range.
+     */
+    private boolean isExpired(long id) {
+        Map.Entry<Long, Long> range = expired.floorEntry(id);
+
+        return range != null && range.getValue() >= id;
+    }
+
+    /**
+     * @param id Id of the line.
+     * @return Line which is still in this queue or {@code null} if it isn't published or it was polled.
+     */
+    private byte[] peek(long id) {
+        byte[] line = storage.get(id);
+
+        DumpLoader loader = this.loader;
+
+        if (line == null && loader != null && loader.load(id))
+            line = storage.get(id);
+
+        if (line == null && spill != null && (line = spill.get(id)) == null)
+            line = storage.get(id);
+
+        return line;
+    }
+
+    /**
+     * Start writing of the snapshot of this queue in background. Only one snapshot is written at the same time.
+     *
+     * @return Future which is completed when the snapshot is in place.
+     */
+    public synchronized CompletableFuture<Void> snapshot() {
+        Snapshot running = snapshot;
+
+        if (running != null)
+            return running.future;
+
+        Snapshot newSnapshot = new Snapshot(Paths.get(dumpFilePath + SNAPSHOT_SUFFIX), compression);
+
+        //Poll reads the snapshot after it moves the head, so the head is read after the snapshot is published.
+        snapshot = newSnapshot;
+
+        long fromId = lastReadId.get();
+
+        newSnapshot.freeze(fromId, lastStoredId.get(), groups != null ? groupOffsets(fromId) : null);
+
+        Thread writer = new Thread(() -> {
+            try {
+                newSnapshot.write(this::peek);
+
+                newSnapshot.future.complete(null);
+            }
+            catch (Exception e) {
+                log.error("Something was going wrong during the snapshot :: ", e);
+
+                newSnapshot.future.completeExceptionally(e);
+            }
+            finally {
+                snapshot = null;
+            }
+        }, "line-queue-snapshot");
+
+        writer.setDaemon(true);
+        writer.start();
+
+        return newSnapshot.future;
+    }
+
+    /**
+     * Restoring from the dump if it exists, otherwise from the write-ahead log if it was written by the previous run,
+     * otherwise from the latest snapshot. The dump is taken after stop of all activity, so it is newer than anything.
+     *
+     * The dump and the snapshot are loaded lazily: this method returns as soon as the files are indexed and the rest of
+     * lines are loaded in background. The files are kept until all their lines are loaded.
+     */
     public boolean restore() {
         Path path = Paths.get(dumpFilePath);
+        Path snapshotPath = Paths.get(dumpFilePath + SNAPSHOT_SUFFIX);
 
-        if (!path.toFile().exists())
-            return true;
+        boolean restored;
 
-        ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-        try (FileChannel ch = FileChannel.open(path, READ)) {
-            while (true) {
-                ch.read(readBuffer);
+        if (path.toFile().exists())
+            //The snapshot is older than the dump.
+            restored = restoreDump(path, path, snapshotPath);
+        else if (wal != null && wal.hasRecoverySegments())
+            restored = wal.replay(this::add, this::restoreMark);
+        else if (snapshotPath.toFile().exists())
+            restored = restoreDump(snapshotPath);
+        else
+            restored = true;
 
-                readBuffer.flip();
+        return restored && (wal == null || wal.finishRecovery());
+    }
 
-                if (!readBuffer.hasRemaining())
-                    break;
+    /**
+     * Restore the replayed mark of the producer and carry it to the new log, so it outlives the replayed segments.
+     *
+     * @param producer Id of the producer.
+     * @param seq Sequence number of the last accepted line of the producer.
+     */
+    private void restoreMark(String producer, long seq) {
+        if (producers != null)
+            producers.merge(producer, seq);
+
+        wal.appendMark(producer, seq);
+    }
 
-                int entrySize = readBuffer.getInt();
+    /**
+     * Restoring from the existing dump.
+     *
+     * @param path Path to the dump.
+     * @param obsolete Files which should be deleted when all lines of the dump are loaded.
+     */
+    private boolean restoreDump(Path path, Path... obsolete) {
+        long base = lastStoredId.get();
 
-                byte[] value = new byte[entrySize];
+        DumpLoader newLoader;
+        Map<String, Long> offsets;
 
-                int i = 0;
-                do {
-                    for (; i < entrySize && readBuffer.hasRemaining(); i++)
-                        value[i] = readBuffer.get();
+        try {
+            offsets = groups != null ? ConsumerGroup.readOffsets(offsetsPath(path)) : Collections.emptyMap();
 
-                    //If entry was too big for one buffer, try to read more data until whole entry wouldn't be read.
-                    if (i < entrySize) {
-                        readBuffer.clear();
+            newLoader = DumpLoader.open(path, base + 1, this::store);
+        }
+        catch (IOException e) {
+            log.error("Something was going wrong during the restore :: ", e);
 
-                        ch.read(readBuffer);
+            return false;
+        }
 
-                        readBuffer.flip();
+        //Lines of the dump are going before any new line.
+        lastStoredId.set(newLoader.lastId());
 
-                        if (!readBuffer.hasRemaining()) {
-                            log.error(
-                                "Not enough data. Perhaps the dump was corrupted. " +
-                                    "Expected entry size = {}, but read only = {}", entrySize, i
-                            );
+        //Groups continue from their offsets, the lines which are read by all groups weren't persisted.
+        for (Map.Entry<String, Long> entry : offsets.entrySet())
+            groups.put(entry.getKey(), new ConsumerGroup(Math.min(base + entry.getValue(), newLoader.lastId())));
 
-                            return false;
-                        }
-                    }
-                }
-                while (i < entrySize);
+        if (wal == null) {
+            loader = newLoader;
 
-                if (readBuffer.hasRemaining())
-                    readBuffer.compact();
-                else
-                    readBuffer.clear();
+            restored = newLoader.start(Runtime.getRuntime().availableProcessors()).thenRun(() -> {
+                loader = null;
 
-                add(new String(value));
-            }
+                deleteRestored(obsolete);
+            });
 
             return true;
         }
-        catch (IOException e) {
+
+        //Every line should be in the log before the new lines are accepted and the restored files are deleted.
+        try {
+            newLoader.start(Runtime.getRuntime().availableProcessors()).join();
+
+            //The restored line can be already spilled to the disk.
+            for (long id = lastReadId.get() + 1; id <= newLoader.lastId(); id++)
+                wal.appendPut(id, peek(id), Durability.MEMORY);
+
+            wal.sync().join();
+        }
+        catch (Exception e) {
             log.error("Something was going wrong during the restore :: ", e);
 
             return false;
         }
-        finally {
+
+        //The restored files are deleted only after the log is marked as the complete copy of them.
+        if (!wal.finishRecovery())
+            return false;
+
+        deleteRestored(obsolete);
+
+        return true;
+    }
+
+    /**
+     * @param path Path to the dump or the snapshot.
+     * @return Path to the offsets of consumer groups which are persisted together with the given file.
+     */
+    private static Path offsetsPath(Path path) {
+        return Paths.get(path + ConsumerGroup.FILE_SUFFIX);
+    }
+
+    private static void deleteRestored(Path... files) {
+        for (Path file : files) {
             try {
-                Files.delete(path);//TODO: should be do so?
+                for (Path segment : DumpWriter.segments(file))
+                    Files.deleteIfExists(segment);
+
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(offsetsPath(file));
             }
-            catch (IOException exception) {
-                log.error("Deletion dump file filed :: ", exception);
+            catch (IOException e) {
+                log.error("Deletion of the restored file failed :: " + file, e);
             }
         }
     }
+
+    /** Write everything from the log to the disk, stop it and release the disk tier. */
+    @Override public void close() {
+        DumpLoader loader = this.loader;
+
+        if (loader != null)
+            loader.close();
+
+        if (wal != null)
+            wal.close();
+
+        if (spill != null)
+            spill.close();
+    }
+
+    /** Timer of expiration of lines of all queues, it is started by the first line with TTL. */
+    private static class ExpiryTimer {
+        /** Wheel of expiring ranges. */
+        static final TimingWheel WHEEL = new TimingWheel("line-queue-expiry-timer", 10, 64);
+    }
+
+    /** Consecutive lines which expire at the same tick. */
+    private class ExpiringRange extends TimingWheel.Task {
+        /** Id of the first line. */
+        final long firstId;
+
+        /** Tick of the expiration. */
+        final long deadline;
+
+        /** Id of the last line, it grows while the range is the last one. */
+        volatile long lastId;
+
+        ExpiringRange(long id, long deadline) {
+            firstId = id;
+            lastId = id;
+
+            this.deadline = deadline;
+        }
+
+        /** {@inheritDoc} */
+        @Override boolean isCancelled() {
+            //The range which isn't the last one can't grow, so it is useless when all its lines are delivered.
+            return lastExpiring != this && lastId <= lastReadId.get();
+        }
+
+        /** {@inheritDoc} */
+        @Override void expire() {
+            expiryLock.lock();
+            try {
+                if (lastExpiring == this)
+                    lastExpiring = null;
+            }
+            finally {
+                expiryLock.unlock();
+            }
+
+            onExpired(firstId, lastId);
+        }
+    }
 }
@@ -0,0 +1,574 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Named queues of one instance. Every queue has its own storage, ids and files. The named queue is created by the first
+ * line which is put to it or by the restore, other commands fail for the unknown queue, and producers can create only
+ * the limited number of queues. The default queue always exists.
+ *
+ * The default queue uses the configured dump file, the named queue uses the same path with suffix {@code @<name>}.
+ * Every queue consists of the configured number of stripes, the first stripe uses the files of the queue, the next ones
+ * add suffix {@code #<stripe>}. The stripes of priority lanes follow the stripes of the default lane, so the queue with
+ * one lane keeps its files.
+ *
+ * Files of stripes are addressed by their indexes, so the number of stripes and the number of priority lanes of the
+ * queue are written next to its files with suffix {@code .layout}. The queue which was persisted with another layout
+ * isn't restored, since its lines would be lost or moved to other lanes.
+ *
+ * The queue is created and restored outside of the map of queues, so the restore of one queue doesn't block the access
+ * to others. Concurrent callers of the queue which is being created wait for the first one.
+ */
+public class LineQueueRegistry implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(LineQueueRegistry.class);
+
+    /** Name of the default queue. */
+    public static final String DEFAULT_QUEUE = "";
+
+    /** Default max number of named queues. */
+    public static final int DFLT_MAX_QUEUE_COUNT = 1024;
+
+    /** Separator of the dump file path and the name of the queue. */
+    private static final char QUEUE_SEPARATOR = '@';
+
+    /** Separator of the files of the queue and the index of the stripe. */
+    private static final char STRIPE_SEPARATOR = '#';
+
+    /** Suffix of the file of the layout of the queue which is added to the path of the queue. */
+    static final String LAYOUT_SUFFIX = ".layout";
+
+    /** Key of the number of stripes of every lane in the file of the layout. */
+    private static final String STRIPES_KEY = "stripes";
+
+    /** Key of the number of priority lanes in the file of the layout, the layout without it has one lane. */
+    private static final String LEVELS_KEY = "levels";
+
+    /** Valid name of the queue, the name is a part of file names. */
+    private static final Pattern QUEUE_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    /** Path to file which the default queue should be dumped to/restored from. */
+    private final String dumpFilePath;
+
+    /** Directory of write-ahead logs or {@code null} if the queues are kept only in memory. */
+    private final String walPath;
+
+    /** Number of stripes of every queue. */
+    private final int stripeCount;
+
+    /** Factory of stripes of new queues. */
+    private final QueueFactory factory;
+
+    /** Limit of lines of all queues or {@code null} if it is unlimited. */
+    private final QueueCapacity capacity;
+
+    /** Order of priority lanes of every queue. */
+    private final PriorityOrder order;
+
+    /** Max number of named queues which can be created by producers, the restored queues are never rejected. */
+    private final int maxQueueCount;
+
+    /** Queues by their names, the future is completed when the queue is created and restored. */
+    private final ConcurrentHashMap<String, CompletableFuture<StripedLineQueue>> queues = new ConcurrentHashMap<>();
+
+    /** Number of named queues including the ones which are being created. */
+    private final AtomicInteger namedQueues = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    /**
+     * Registry of queues which are kept only in memory and dumped on shutdown.
+     *
+     * @param dumpFilePath Path to file which the default queue should be dumped to/restored from.
+     */
+    public LineQueueRegistry(String dumpFilePath) {
+        this(dumpFilePath, null, 1, (name, stripe, path) -> new LineQueue(path));
+    }
+
+    /**
+     * @param dumpFilePath Path to file which the default queue should be dumped to/restored from.
+     * @param walPath Directory of write-ahead logs or {@code null} if the queues are kept only in memory. The log of
+     * the default queue is in this directory, the log of the named queue is in its subdirectory.
+     * @param stripeCount Number of stripes of every queue, {@code 1} keeps strict global FIFO of the queue.
+     * @param factory Factory of stripes of new queues.
+     */
+    public LineQueueRegistry(String dumpFilePath, String walPath, int stripeCount, QueueFactory factory) {
+        this(dumpFilePath, walPath, stripeCount, factory, null);
+    }
+
+    /**
+     * @param dumpFilePath Path to file which the default queue should be dumped to/restored from.
+     * @param walPath Directory of write-ahead logs or {@code null} if the queues are kept only in memory. The log of
+     * the default queue is in this directory, the log of the named queue is in its subdirectory.
+     * @param stripeCount Number of stripes of every queue, {@code 1} keeps strict global FIFO of the queue.
+     * @param factory Factory of stripes of new queues.
+     * @param capacity Limit of lines of all queues or {@code null} if it is unlimited.
+     */
+    public LineQueueRegistry(
+        String dumpFilePath,
+        String walPath,
+        int stripeCount,
+        QueueFactory factory,
+        QueueCapacity capacity
+    ) {
+        this(dumpFilePath, walPath, stripeCount, factory, capacity, PriorityOrder.strict(1));
+    }
+
+    /**
+     * @param dumpFilePath Path to file which the default queue should be dumped to/restored from.
+     * @param walPath Directory of write-ahead logs or {@code null} if the queues are kept only in memory. The log of
+     * the default queue is in this directory, the log of the named queue is in its subdirectory.
+     * @param stripeCount Number of stripes of every priority lane, {@code 1} keeps strict FIFO of the lane.
+     * @param factory Factory of stripes of new queues.
+     * @param capacity Limit of lines of all queues or {@code null} if it is unlimited.
+     * @param order Order of priority lanes of every queue.
+     */
+    public LineQueueRegistry(
+        String dumpFilePath,
+        String walPath,
+        int stripeCount,
+        QueueFactory factory,
+        QueueCapacity capacity,
+        PriorityOrder order
+    ) {
+        this(dumpFilePath, walPath, stripeCount, factory, capacity, order, DFLT_MAX_QUEUE_COUNT);
+    }
+
+    /**
+     * @param dumpFilePath Path to file which the default queue should be dumped to/restored from.
+     * @param walPath Directory of write-ahead logs or {@code null} if the queues are kept only in memory. The log of
+     * the default queue is in this directory, the log of the named queue is in its subdirectory.
+     * @param stripeCount Number of stripes of every priority lane, {@code 1} keeps strict FIFO of the lane.
+     * @param factory Factory of stripes of new queues.
+     * @param capacity Limit of lines of all queues or {@code null} if it is unlimited.
+     * @param order Order of priority lanes of every queue.
+     * @param maxQueueCount Max number of named queues which can be created by producers.
+     */
+    public LineQueueRegistry(
+        String dumpFilePath,
+        String walPath,
+        int stripeCount,
+        QueueFactory factory,
+        QueueCapacity capacity,
+        PriorityOrder order,
+        int maxQueueCount
+    ) {
+        if (stripeCount < 1)
+            throw new IllegalArgumentException("Number of stripes should be positive :: " + stripeCount);
+
+        if (maxQueueCount < 0)
+            throw new IllegalArgumentException("Number of queues shouldn't be negative :: " + maxQueueCount);
+
+        this.dumpFilePath = dumpFilePath;
+        this.walPath = walPath;
+        this.stripeCount = stripeCount;
+        this.factory = factory;
+        this.capacity = capacity;
+        this.order = order;
+        this.maxQueueCount = maxQueueCount;
+    }
+
+    /**
+     * Find the existing queue, the default queue is created and restored on the first call.
+     *
+     * @param name Name of the queue or {@code null} for the default queue.
+     * @return Queue.
+     * @throws IllegalArgumentException If the name is incorrect or the queue is unknown.
+     * @throws IllegalStateException If the default queue can't be created or the registry is closed.
+     */
+    public StripedLineQueue queue(String name) {
+        if (name == null)
+            name = DEFAULT_QUEUE;
+
+        CompletableFuture<StripedLineQueue> fut = queues.get(name);
+
+        if (fut != null && fut.isDone() && !fut.isCompletedExceptionally())
+            return fut.join();
+
+        if (fut != null || name.equals(DEFAULT_QUEUE))
+            return getOrCreate(name, false);
+
+        checkName(name);
+
+        throw new IllegalArgumentException("Queue is unknown :: " + name);
+    }
+
+    /**
+     * Find the queue or create and restore the new one, it is used by producers.
+     *
+     * @param name Name of the queue or {@code null} for the default queue.
+     * @return Queue.
+     * @throws IllegalArgumentException If the name is incorrect.
+     * @throws IllegalStateException If the queue can't be created, the max number of queues is reached or the registry
+     * is closed.
+     */
+    public StripedLineQueue queueOrCreate(String name) {
+        if (name == null)
+            name = DEFAULT_QUEUE;
+
+        CompletableFuture<StripedLineQueue> fut = queues.get(name);
+
+        if (fut != null && fut.isDone() && !fut.isCompletedExceptionally())
+            return fut.join();
+
+        checkName(name);
+
+        return getOrCreate(name, true);
+    }
+
+    /**
+     * Find the queue or create it if it doesn't exist. The queue is created by the first caller while others wait for
+     * it, and they try again if the creation fails.
+     *
+     * @param name Name of the queue.
+     * @param limited {@code true} if the queue is created by the producer, so the max number of queues is checked.
+     * @return Queue.
+     */
+    private StripedLineQueue getOrCreate(String name, boolean limited) {
+        while (true) {
+            CompletableFuture<StripedLineQueue> fut = queues.get(name);
+
+            if (fut == null) {
+                CompletableFuture<StripedLineQueue> placeholder = new CompletableFuture<>();
+
+                fut = queues.putIfAbsent(name, placeholder);
+
+                if (fut == null) {
+                    StripedLineQueue queue;
+
+                    try {
+                        queue = createQueue(name, limited);
+                    }
+                    catch (RuntimeException e) {
+                        queues.remove(name, placeholder);
+
+                        placeholder.completeExceptionally(e);
+
+                        throw e;
+                    }
+
+                    placeholder.complete(queue);
+
+                    return queue;
+                }
+            }
+
+            try {
+                return fut.join();
+            }
+            catch (CompletionException e) {
+                //The failed placeholder is already removed, so the queue is created again.
+            }
+        }
+    }
+
+    private static void checkName(String name) {
+        if (!name.equals(DEFAULT_QUEUE) && !QUEUE_NAME.matcher(name).matches())
+            throw new IllegalArgumentException("Queue name is incorrect :: " + name);
+    }
+
+    /**
+     * @param name Name of the queue.
+     * @param limited {@code true} if the queue is created by the producer, so the max number of queues is checked.
+     * @return Created and restored queue.
+     */
+    private StripedLineQueue createQueue(String name, boolean limited) {
+        if (closed)
+            throw new IllegalStateException("Registry is closed");
+
+        if (name.equals(DEFAULT_QUEUE))
+            return openQueue(name);
+
+        if (namedQueues.incrementAndGet() > maxQueueCount && limited) {
+            namedQueues.decrementAndGet();
+
+            throw new IllegalStateException("Too many queues :: max = " + maxQueueCount);
+        }
+
+        try {
+            return openQueue(name);
+        }
+        catch (RuntimeException e) {
+            namedQueues.decrementAndGet();
+
+            throw e;
+        }
+    }
+
+    private StripedLineQueue openQueue(String name) {
+        checkLayout(name);
+
+        LineQueue[] stripes = new LineQueue[stripeCount * order.levels()];
+
+        try {
+            for (int i = 0; i < stripes.length; i++)
+                stripes[i] = factory.create(name, i, queueDumpFilePath(name, i));
+        }
+        catch (IOException e) {
+            for (LineQueue stripe : stripes) {
+                if (stripe != null)
+                    stripe.close();
+            }
+
+            throw new IllegalStateException("Queue can't be created :: " + name, e);
+        }
+
+        StripedLineQueue queue = new StripedLineQueue(capacity, order, stripes);
+
+        if (!queue.restore()) {
+            queue.close();
+
+            throw new IllegalStateException("Queue can't be restored :: " + name);
+        }
+
+        //The log is written right away, so the layout should be in place before the first line.
+        if (walPath != null)
+            writeLayout(name);
+
+        return queue;
+    }
+
+    /**
+     * Check that the queue was persisted with the same layout of stripes and lanes if it was persisted at all.
+     *
+     * @param name Name of the queue.
+     * @throws IllegalStateException If the layout is different or it can't be read.
+     */
+    private void checkLayout(String name) {
+        Path path = layoutPath(name);
+
+        if (!Files.exists(path))
+            return;
+
+        Map<String, Integer> layout;
+
+        try {
+            layout = readLayout(path);
+        }
+        catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Layout of the queue can't be read :: " + path, e);
+        }
+
+        Integer stripes = layout.get(STRIPES_KEY);
+
+        if (stripes == null || stripes.intValue() != stripeCount)
+            throw new IllegalStateException("Queue was persisted with another number of stripes :: name = " + name +
+                ", persisted = " + stripes + ", configured = " + stripeCount);
+
+        int levels = layout.getOrDefault(LEVELS_KEY, 1);
+
+        if (levels != order.levels())
+            throw new IllegalStateException("Queue was persisted with another number of priority levels :: name = " +
+                name + ", persisted = " + levels + ", configured = " + order.levels());
+    }
+
+    private static Map<String, Integer> readLayout(Path path) throws IOException {
+        Map<String, Integer> layout = new HashMap<>();
+
+        for (String line : Files.readAllLines(path, StandardCharsets.US_ASCII)) {
+            int index = line.indexOf('=');
+
+            if (index > 0)
+                layout.put(line.substring(0, index), Integer.parseInt(line.substring(index + 1)));
+        }
+
+        return layout;
+    }
+
+    /**
+     * Write the layout of stripes and lanes of the queue next to its files through the temporary file.
+     *
+     * @param name Name of the queue.
+     */
+    private void writeLayout(String name) {
+        Path path = layoutPath(name);
+        Path tmp = Paths.get(path + ".tmp");
+
+        List<String> lines = Arrays.asList(STRIPES_KEY + "=" + stripeCount, LEVELS_KEY + "=" + order.levels());
+
+        try {
+            Files.write(tmp, lines, StandardCharsets.US_ASCII);
+
+            Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            log.error("Layout of the queue can't be written :: " + path, e);
+        }
+    }
+
+    private Path layoutPath(String name) {
+        return Paths.get(queueDumpFilePath(name, 0) + LAYOUT_SUFFIX);
+    }
+
+    /**
+     * @param name Name of the queue.
+     * @param stripe Index of the stripe.
+     * @return Path to file which the stripe should be dumped to/restored from.
+     */
+    private String queueDumpFilePath(String name, int stripe) {
+        String path = name.equals(DEFAULT_QUEUE) ? dumpFilePath : dumpFilePath + QUEUE_SEPARATOR + name;
+
+        return stripe == 0 ? path : path + STRIPE_SEPARATOR + stripe;
+    }
+
+    /**
+     * @param name Name of the queue.
+     * @param stripe Index of the stripe.
+     * @param dir Common directory of the queues.
+     * @return Directory of the given stripe.
+     */
+    public static Path queueDirectory(String name, int stripe, String dir) {
+        Path path = name.equals(DEFAULT_QUEUE) ? Paths.get(dir) : Paths.get(dir, name);
+
+        return stripe == 0 ? path : path.resolve(String.valueOf(STRIPE_SEPARATOR) + stripe);
+    }
+
+    /**
+     * Restoring of the default queue and all named queues which were persisted by the previous run.
+     *
+     * @return {@code true} if all queues were restored.
+     */
+    public boolean restore() {
+        Set<String> names = new TreeSet<>();
+
+        names.add(DEFAULT_QUEUE);
+
+        try {
+            collectPersistedNames(names);
+        }
+        catch (IOException e) {
+            log.error("Persisted queues can't be found :: ", e);
+
+            return false;
+        }
+
+        boolean restored = true;
+
+        for (String name : names) {
+            try {
+                getOrCreate(name, false);
+            }
+            catch (IllegalStateException e) {
+                log.error("Something was going wrong during the restore :: ", e);
+
+                restored = false;
+            }
+        }
+
+        return restored;
+    }
+
+    /** Find names of the queues which have a dump, a snapshot or a write-ahead log. */
+    private void collectPersistedNames(Set<String> names) throws IOException {
+        Path dump = Paths.get(dumpFilePath).toAbsolutePath();
+        String prefix = dump.getFileName().toString() + QUEUE_SEPARATOR;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dump.getParent(), prefix + "*")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString().substring(prefix.length());
+
+                //Stripes, snapshots and their temporary files have a suffix after the name.
+                int suffix = 0;
+
+                while (suffix < name.length() && name.charAt(suffix) != '.' && name.charAt(suffix) != STRIPE_SEPARATOR)
+                    suffix++;
+
+                addName(names, name.substring(0, suffix));
+            }
+        }
+
+        if (walPath != null && Files.isDirectory(Paths.get(walPath))) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(walPath), Files::isDirectory)) {
+                for (Path path : stream)
+                    addName(names, path.getFileName().toString());
+            }
+        }
+    }
+
+    private static void addName(Set<String> names, String name) {
+        if (QUEUE_NAME.matcher(name).matches())
+            names.add(name);
+    }
+
+    /** Dumping all queues to their files. */
+    public void dump() {
+        for (Map.Entry<String, StripedLineQueue> entry : createdQueues().entrySet()) {
+            writeLayout(entry.getKey());
+
+            entry.getValue().dump();
+        }
+    }
+
+    /**
+     * Start writing of snapshots of all queues in background.
+     *
+     * @return Future which is completed when all snapshots are in place.
+     */
+    public CompletableFuture<Void> snapshot() {
+        Map<String, StripedLineQueue> created = createdQueues();
+
+        for (String name : created.keySet())
+            writeLayout(name);
+
+        return CompletableFuture.allOf(created.values().stream()
+            .map(StripedLineQueue::snapshot)
+            .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * @return Queues which are already created and restored by their names.
+     */
+    private Map<String, StripedLineQueue> createdQueues() {
+        Map<String, StripedLineQueue> res = new HashMap<>();
+
+        for (Map.Entry<String, CompletableFuture<StripedLineQueue>> entry : queues.entrySet()) {
+            CompletableFuture<StripedLineQueue> fut = entry.getValue();
+
+            if (fut.isDone() && !fut.isCompletedExceptionally())
+                res.put(entry.getKey(), fut.join());
+        }
+
+        return res;
+    }
+
+    /** Release all queues, the queues which are being created are released as soon as they are created. */
+    @Override public void close() {
+        closed = true;
+
+        for (CompletableFuture<StripedLineQueue> fut : queues.values())
+            fut.thenAccept(StripedLineQueue::close);
+    }
+
+    /** Factory of stripes of new queues. */
+    @FunctionalInterface
+    public interface QueueFactory {
+        /**
+         * @param name Name of the queue, {@link #DEFAULT_QUEUE} for the default one.
+         * @param stripe Index of the stripe across all priority lanes.
+         * @param dumpFilePath Path to file which the stripe should be dumped to/restored from.
+         * @return New stripe.
+         * @throws IOException If the stripe can't be created.
+         */
+        LineQueue create(String name, int stripe, String dumpFilePath) throws IOException;
+    }
+}
@@ -0,0 +1,113 @@
+package org.github.akalash.linequeue.storage;
+
+import java.util.Arrays;
+
+/**
+ * Order in which consumers visit priority lanes of the queue. Lane {@code 0} is the default one and the lane with the
+ * bigger index is more urgent, every lane is a set of independent {@link LineQueue} stripes.
+ *
+ * The strict order always starts from the most urgent lane, so the less urgent lanes are polled only when the more
+ * urgent ones have not enough lines. The weighted order gives every lane its share of polls: the first lane of the poll
+ * is taken from the precomputed smooth round-robin schedule by the number of the poll, so the choice is O(1). The other
+ * lanes are visited after it from the most urgent one, so the poll doesn't fail while any lane has enough lines.
+ */
+public final class PriorityOrder {
+    /** Max sum of weights, it is the length of the schedule. */
+    static final int MAX_TOTAL_WEIGHT = 1024;
+
+    /** Number of lanes. */
+    private final int levels;
+
+    /** First lanes of polls by the number of the poll modulo the length or {@code null} for the strict order. */
+    private final int[] schedule;
+
+    private PriorityOrder(int levels, int[] schedule) {
+        this.levels = levels;
+        this.schedule = schedule;
+    }
+
+    /**
+     * @param levels Number of lanes.
+     * @return Order which always prefers the more urgent lane.
+     * @throws IllegalArgumentException If the number of lanes isn't positive.
+     */
+    public static PriorityOrder strict(int levels) {
+        if (levels < 1)
+            throw new IllegalArgumentException("Number of priority levels should be positive :: " + levels);
+
+        return new PriorityOrder(levels, null);
+    }
+
+    /**
+     * @param weights Shares of polls by lanes, the number of lanes is the number of weights.
+     * @return Order which starts polls from lanes in proportion to their weights.
+     * @throws IllegalArgumentException If the weights are incorrect.
+     */
+    public static PriorityOrder weighted(int... weights) {
+        if (weights.length < 1)
+            throw new IllegalArgumentException("Weights of priority levels are expected");
+
+        int total = 0;
+
+        for (int weight : weights) {
+            if (weight < 1)
+                throw new IllegalArgumentException("Weights should be positive :: " + Arrays.toString(weights));
+
+            total += weight;
+
+            if (total > MAX_TOTAL_WEIGHT)
+                throw new IllegalArgumentException("Sum of weights is too big :: " + Arrays.toString(weights));
+        }
+
+        //Smooth round-robin spreads the turns of every lane evenly instead of giving them in a row.
+        int[] schedule = new int[total];
+        int[] current = new int[weights.length];
+
+        for (int turn = 0; turn < total; turn++) {
+            int best = 0;
+
+            for (int lane = 0; lane < weights.length; lane++) {
+                current[lane] += weights[lane];
+
+                //The more urgent lane wins the tie.
+                if (current[lane] >= current[best])
+                    best = lane;
+            }
+
+            current[best] -= total;
+            schedule[turn] = best;
+        }
+
+        return new PriorityOrder(weights.length, schedule);
+    }
+
+    /**
+     * @return Number of lanes.
+     */
+    public int levels() {
+        return levels;
+    }
+
+    /**
+     * @return {@code true} if the lane of the poll depends on its number.
+     */
+    boolean isWeighted() {
+        return schedule != null;
+    }
+
+    /**
+     * @param turn Number of the poll.
+     * @param i Index of the visit, from {@code 0} to {@code levels() - 1}.
+     * @return Lane which should be visited.
+     */
+    int lane(long turn, int i) {
+        int first = schedule == null ? levels - 1 : schedule[(int)(turn % schedule.length)];
+
+        if (i == 0)
+            return first;
+
+        int lane = levels - i;
+
+        return lane <= first ? lane - 1 : lane;
+    }
+}
@@ -0,0 +1,216 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * High-water marks of sequence numbers of producers. The producer numbers its lines by the growing sequence and the
+ * line which number isn't bigger than the mark is a retransmit of the line which is already accepted, so it is dropped.
+ * The producer costs one mark regardless of the number of its lines, gaps in the sequence are allowed.
+ *
+ * The accepted line can wait for the room or fail before it is stored, so only the mark of stored lines is persisted:
+ * it is below the first accepted line which isn't stored yet and below the first failed line which isn't retransmitted
+ * yet. So the line is never lost by the restart, but the retransmit of the line which was stored after the mark can be
+ * accepted again after the restart.
+ *
+ * The marks are written next to the dump and by every snapshot of the queue without the write-ahead log. The queue with
+ * the log keeps them in its records instead, so the retransmits are recognized after the restart or the crash as well.
+ */
+public class ProducerSequences {
+    /** Suffix of the file of marks which is added to the path of the dump. */
+    static final String FILE_SUFFIX = ".producers";
+
+    /** Valid id of the producer, the id is a part of the file of marks. */
+    private static final Pattern PRODUCER_ID = Pattern.compile("[A-Za-z0-9_.-]{1,64}");
+
+    /** Sequences by ids of producers. */
+    private final ConcurrentHashMap<String, Sequence> sequences = new ConcurrentHashMap<>();
+
+    /**
+     * Accept the line of the producer if its number is bigger than the mark or if the line failed to be stored before.
+     * The accepted line should be reported by {@link #stored} or {@link #failed}.
+     *
+     * @param producer Id of the producer.
+     * @param seq Sequence number of the line, it should be positive.
+     * @return {@code true} if the line is accepted or {@code false} if it is a retransmit which should be dropped.
+     * @throws IllegalArgumentException If the id or the number is incorrect.
+     */
+    public boolean accept(String producer, long seq) {
+        if (!PRODUCER_ID.matcher(producer).matches())
+            throw new IllegalArgumentException("Producer id is incorrect :: " + producer);
+
+        if (seq <= 0)
+            throw new IllegalArgumentException("Sequence number should be positive :: " + seq);
+
+        Sequence sequence = sequences.computeIfAbsent(producer, id -> new Sequence());
+
+        synchronized (sequence) {
+            if (seq <= sequence.accepted && !sequence.failed.remove(seq))
+                return false;
+
+            sequence.accepted = Math.max(sequence.accepted, seq);
+            sequence.pending.add(seq);
+
+            return true;
+        }
+    }
+
+    /**
+     * Report that the accepted line is stored in the queue, so it can be persisted by the mark.
+     *
+     * @param producer Id of the producer.
+     * @param seq Sequence number of the stored line.
+     */
+    void stored(String producer, long seq) {
+        Sequence sequence = sequences.get(producer);
+
+        if (sequence == null)
+            return;
+
+        synchronized (sequence) {
+            sequence.pending.remove(seq);
+
+            sequence.stored = Math.max(sequence.stored, seq);
+        }
+    }
+
+    /**
+     * Report that the accepted line wasn't stored or it didn't reach its durability, so its retransmit is accepted.
+     *
+     * @param producer Id of the producer.
+     * @param seq Sequence number of the failed line.
+     */
+    public void failed(String producer, long seq) {
+        Sequence sequence = sequences.get(producer);
+
+        if (sequence == null)
+            return;
+
+        synchronized (sequence) {
+            sequence.pending.remove(seq);
+            sequence.failed.add(seq);
+        }
+    }
+
+    /**
+     * @param producer Id of the producer.
+     * @return Sequence number up to which all accepted lines are stored or {@code 0} if the producer is unknown.
+     */
+    public long mark(String producer) {
+        Sequence sequence = sequences.get(producer);
+
+        return sequence == null ? 0 : sequence.mark();
+    }
+
+    /**
+     * Raise the mark of the producer to the restored one.
+     *
+     * @param producer Id of the producer.
+     * @param seq Restored sequence number.
+     */
+    void merge(String producer, long seq) {
+        Sequence sequence = sequences.computeIfAbsent(producer, id -> new Sequence());
+
+        synchronized (sequence) {
+            sequence.accepted = Math.max(sequence.accepted, seq);
+            sequence.stored = Math.max(sequence.stored, seq);
+        }
+    }
+
+    /**
+     * Write marks to the file through the temporary one. The file is deleted if there are no marks.
+     *
+     * @param path Path to the file.
+     * @throws IOException If fail.
+     */
+    void dump(Path path) throws IOException {
+        List<String> lines = new ArrayList<>(sequences.size());
+
+        for (Map.Entry<String, Sequence> entry : sequences.entrySet()) {
+            long mark = entry.getValue().mark();
+
+            if (mark > 0)
+                lines.add(entry.getKey() + ' ' + mark);
+        }
+
+        if (lines.isEmpty()) {
+            Files.deleteIfExists(path);
+
+            return;
+        }
+
+        Path tmp = Paths.get(path + ".tmp");
+
+        Files.write(tmp, lines, StandardCharsets.US_ASCII);
+
+        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * Read marks of the file which is written by {@link #dump(Path)}. The file is kept, so the marks survive the crash
+     * after the restart, and it is replaced by the next dump.
+     *
+     * @param path Path to the file.
+     * @throws IOException If the file can't be read or it is corrupted.
+     */
+    void restore(Path path) throws IOException {
+        if (!Files.exists(path))
+            return;
+
+        for (String line : Files.readAllLines(path, StandardCharsets.US_ASCII)) {
+            if (line.isEmpty())
+                continue;
+
+            int index = line.lastIndexOf(' ');
+
+            try {
+                merge(line.substring(0, index), Long.parseLong(line.substring(index + 1)));
+            }
+            catch (RuntimeException e) {
+                throw new IOException("Sequences of producers are corrupted :: " + path, e);
+            }
+        }
+    }
+
+    /** Numbers of lines of one producer, guarded by itself. */
+    private static class Sequence {
+        /** Biggest accepted number. */
+        long accepted;
+
+        /** Biggest stored number. */
+        long stored;
+
+        /** Accepted numbers which lines are not stored yet. */
+        final TreeSet<Long> pending = new TreeSet<>();
+
+        /** Accepted numbers which lines failed to be stored and which are not retransmitted yet. */
+        final TreeSet<Long> failed = new TreeSet<>();
+
+        /**
+         * @return Number up to which all accepted lines are stored.
+         */
+        synchronized long mark() {
+            long res = stored;
+
+            if (!pending.isEmpty())
+                res = Math.min(res, pending.first() - 1);
+
+            if (!failed.isEmpty())
+                res = Math.min(res, failed.first() - 1);
+
+            return res;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.github.akalash.linequeue.storage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit of lines and their bytes which are kept by queues. Every stored line is counted, including the restored ones,
+ * and it is released when it is removed from the queue or, if it is leased, when its lease is acknowledged. The limit
+ * is checked before adding, so it can be exceeded by at most one line of every concurrent producer.
+ *
+ * Producers which wait for the room are parked as futures and they are completed in order of their arrival when lines
+ * are released.
+ */
+public class QueueCapacity {
+    /** Max number of lines or {@code 0} if it is unlimited. */
+    private final long maxLines;
+
+    /** Max number of bytes of lines or {@code 0} if it is unlimited. */
+    private final long maxBytes;
+
+    /** Number of stored lines. */
+    private final AtomicLong lines = new AtomicLong();
+
+    /** Number of bytes of stored lines. */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** Producers which wait for the room. */
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param maxLines Max number of lines or {@code 0} if it is unlimited.
+     * @param maxBytes Max number of bytes of lines or {@code 0} if it is unlimited.
+     */
+    public QueueCapacity(long maxLines, long maxBytes) {
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return {@code true} if one more line can be added.
+     */
+    public boolean hasRoom() {
+        return (maxLines == 0 || lines.get() < maxLines) && (maxBytes == 0 || bytes.get() < maxBytes);
+    }
+
+    /**
+     * @return Number of stored lines.
+     */
+    public long lines() {
+        return lines.get();
+    }
+
+    /**
+     * @return Number of bytes of stored lines.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return Future which is completed when there is the room for one more line. The room isn't reserved, so it can be
+     * taken by another producer.
+     */
+    public CompletableFuture<Void> awaitRoom() {
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+
+        waiters.add(waiter);
+
+        //The room could be released before the waiter was visible.
+        if (hasRoom())
+            wakeUp(Integer.MAX_VALUE);
+
+        return waiter;
+    }
+
+    /**
+     * Count the stored line.
+     *
+     * @param size Size of the line.
+     */
+    void reserve(int size) {
+        lines.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * Count lines which are kept outside of the queue, like the leased ones.
+     *
+     * @param count Number of lines.
+     * @param size Total size of lines.
+     */
+    void reserve(int count, long size) {
+        lines.addAndGet(count);
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * Release removed lines and let waiting producers go.
+     *
+     * @param count Number of removed lines.
+     * @param size Total size of removed lines.
+     */
+    void release(int count, long size) {
+        lines.addAndGet(-count);
+        bytes.addAndGet(-size);
+
+        if (!waiters.isEmpty())
+            wakeUp(count);
+    }
+
+    /** Let waiting producers go, not more than one per released line, while there is the room. */
+    private void wakeUp(int count) {
+        CompletableFuture<Void> waiter;
+
+        for (int i = 0; i < count && hasRoom() && (waiter = waiters.poll()) != null; i++)
+            waiter.complete(null);
+    }
+}
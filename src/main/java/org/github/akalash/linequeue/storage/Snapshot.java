@@ -0,0 +1,123 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Consistent image of {@link LineQueue} which is written in background while lines are added and polled. The range of
+ * ids is frozen at the start, the lines of this range which are polled before they are written are handed over to the
+ * snapshot by poll, so neither the producers nor the consumers are paused.
+ */
+class Snapshot {
+    /** Path which the snapshot should be renamed to when it is completely written. */
+    private final Path path;
+
+    /** {@code true} if the snapshot should be written in the compressed format. */
+    private final boolean compression;
+
+    /** Id of the last line before the snapshot. */
+    private volatile long fromId;
+
+    /**
+     * Id of the last line of the snapshot. Until the range is frozen, all polled lines are preserved, since the poll
+     * which moved the head after the snapshot was published should hand its lines over.
+     */
+    private volatile long toId = Long.MAX_VALUE;
+
+    /** Lines which were polled before the snapshot had written them. */
+    private final ConcurrentHashMap<Long, byte[]> preserved = new ConcurrentHashMap<>();
+
+    /** Id of the last written line. */
+    private volatile long writtenId;
+
+    /** Offsets of consumer groups relatively to {@link #fromId} or {@code null} if the queue has no groups. */
+    private volatile Map<String, Long> groupOffsets;
+
+    /** Future which is completed when the snapshot is in place. */
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    /**
+     * @param path Path which the snapshot should be renamed to when it is completely written.
+     * @param compression {@code true} if the snapshot should be written in the compressed format.
+     */
+    Snapshot(Path path, boolean compression) {
+        this.path = path;
+        this.compression = compression;
+    }
+
+    /**
+     * Freeze the range of the snapshot. It should be called after the snapshot is visible to poll.
+     *
+     * @param fromId Id of the last line before the snapshot.
+     * @param toId Id of the last line of the snapshot.
+     * @param groupOffsets Offsets of consumer groups relatively to {@code fromId} or {@code null} if there are no groups.
+     */
+    void freeze(long fromId, long toId, Map<String, Long> groupOffsets) {
+        this.fromId = fromId;
+        this.toId = toId;
+        this.groupOffsets = groupOffsets;
+
+        writtenId = fromId;
+    }
+
+    /**
+     * Hand over the line which was polled, if it belongs to the snapshot and it wasn't written yet.
+     *
+     * @param id Id of the polled line.
+     * @param line Polled line.
+     */
+    void preserve(long id, byte[] line) {
+        if (id <= toId && id > writtenId)
+            preserved.put(id, line);
+    }
+
+    /**
+     * Write all lines of the snapshot to the temporary file and rename it to the target path.
+     *
+     * @param lines Function which returns the line of the queue by its id or {@code null} if it is not available now.
+     * @throws IOException If fail.
+     */
+    void write(LongFunction<byte[]> lines) throws IOException {
+        Path tmp = Paths.get(path + ".tmp");
+
+        try (FileChannel ch = FileChannel.open(tmp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            DumpWriter writer = new DumpWriter(ch, compression);
+
+            for (long id = fromId + 1; id <= toId; id++) {
+                byte[] line;
+
+                //The line can be not published yet or it can be being handed over by poll right now.
+                for (int attempt = 0; (line = lines.apply(id)) == null && (line = preserved.remove(id)) == null; attempt++)
+                    Backoff.idle(attempt);
+
+                writer.append(line);
+
+                writtenId = id;
+            }
+
+            writer.finish();
+        }
+
+        preserved.clear();
+
+        Map<String, Long> groupOffsets = this.groupOffsets;
+
+        if (groupOffsets != null)
+            ConsumerGroup.writeOffsets(Paths.get(path + ConsumerGroup.FILE_SUFFIX), groupOffsets);
+
+        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,154 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Fixed-size memory-mapped file which holds the contiguous range of lines spilled from {@link LineQueue}. The lines are
+ * kept in blocks of {@link BlockCodec}, which are compressed if the storage is configured so.
+ */
+class SpillSegment {
+    /** Path to the file of this segment. */
+    final Path path;
+
+    /** Id of the first line in this segment. */
+    final long firstId;
+
+    /** Id of the last line in this segment. */
+    long lastId;
+
+    /** {@code true} if the blocks are compressed. */
+    private final boolean compressed;
+
+    /** Mapped content of the file: blocks one by one. */
+    private final MappedByteBuffer buf;
+
+    /** Id of the first line of each block. */
+    private long[] blockFirstIds = new long[64];
+
+    /** Offset of each block in the file. */
+    private int[] blockOffsets = new int[64];
+
+    /** Number of blocks. */
+    private int blockCount;
+
+    /** Lines which were taken by poll before they were removed from memory, they shouldn't be loaded back. */
+    private final BitSet taken = new BitSet();
+
+    /** {@code true} if lines of this segment were loaded back to memory. */
+    boolean loaded;
+
+    SpillSegment(Path path, int size, long firstId, boolean compressed) throws IOException {
+        this.path = path;
+        this.firstId = firstId;
+        this.compressed = compressed;
+
+        lastId = firstId - 1;
+
+        try (FileChannel ch = FileChannel.open(path, CREATE_NEW, READ, WRITE)) {
+            buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Append the next lines to this segment as one block.
+     *
+     * @param lines Lines for append.
+     * @return {@code false} if the segment doesn't have enough space for the block.
+     */
+    boolean append(List<byte[]> lines) {
+        ByteBuffer block = BlockCodec.encode(lines, compressed);
+
+        if (buf.remaining() < block.remaining())
+            return false;
+
+        if (blockCount == blockOffsets.length) {
+            blockFirstIds = Arrays.copyOf(blockFirstIds, blockCount * 2);
+            blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+        }
+
+        blockFirstIds[blockCount] = lastId + 1;
+        blockOffsets[blockCount] = buf.position();
+
+        blockCount++;
+
+        buf.put(block);
+
+        lastId += lines.size();
+
+        return true;
+    }
+
+    /**
+     * @param id Id of the line.
+     * @return {@code true} if the line with given id is in this segment.
+     */
+    boolean contains(long id) {
+        return id >= firstId && id <= lastId;
+    }
+
+    /**
+     * Read the line from this segment, its whole block is decoded.
+     *
+     * @param id Id of the line.
+     * @return Content of the line.
+     */
+    byte[] read(long id) {
+        int block = Arrays.binarySearch(blockFirstIds, 0, blockCount, id);
+
+        if (block < 0)
+            block = -block - 2;
+
+        return readBlock(block).get((int)(id - blockFirstIds[block]));
+    }
+
+    /**
+     * Read all lines of this segment block by block.
+     *
+     * @param sink Receiver of lines by their ids.
+     */
+    void readAll(DumpLoader.LineSink sink) {
+        for (int block = 0; block < blockCount; block++) {
+            long id = blockFirstIds[block];
+
+            for (byte[] line : readBlock(block))
+                sink.accept(id++, line);
+        }
+    }
+
+    private List<byte[]> readBlock(int block) {
+        ByteBuffer src = buf.duplicate();
+
+        src.position(blockOffsets[block]);
+
+        return BlockCodec.decode(src, compressed);
+    }
+    /** Mark that the line was taken by poll before it was removed from memory. */
+    void markTaken(long id) {
+        taken.set((int)(id - firstId));
+    }
+
+    /**
+     * @param id Id of the line.
+     * @return {@code true} if the line was taken by poll before it was removed from memory.
+     */
+    boolean isTaken(long id) {
+        return taken.get((int)(id - firstId));
+    }
+
+    /** Delete the file of this segment. */
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
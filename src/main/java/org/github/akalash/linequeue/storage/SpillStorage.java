@@ -0,0 +1,360 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Disk tier of {@link LineQueue}. When the size of lines kept in memory exceeds the threshold, the lines from the middle
+ * of the queue are moved to fixed-size memory-mapped segment files while the head and the tail of the queue stay in
+ * memory. The segments are loaded back in order when the head of the queue gets close to them, so the depth of the
+ * queue is limited by the disk rather than by the heap.
+ *
+ * The segments can be compressed: the spilled lines are the cold backlog, so they are compressed in blocks of a few
+ * hundred lines and each block is decompressed whole when the head of the queue reaches it.
+ *
+ * The spilling is done by passes on the executor which can be shared by the spill storages of all queues.
+ */
+public class SpillStorage implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(SpillStorage.class);
+
+    /** Extension of the segment file. */
+    private static final String SEGMENT_EXTENSION = ".spill";
+
+    /** Pause before the next pass of the spiller when there is nothing to do. */
+    private static final long IDLE_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** Directory of the segment files. */
+    private final Path spillDir;
+
+    /** Size of lines in memory after which the spilling starts. */
+    private final long threshold;
+
+    /** Size of the segment file. */
+    private final int segmentSize;
+
+    /** Number of lines at the head and at the tail of the queue which are always kept in memory. */
+    private final int window;
+
+    /** {@code true} if the segments are compressed. */
+    private final boolean compression;
+
+    /** Approximate size of lines in memory. */
+    private final LongAdder memorySize = new LongAdder();
+
+    /** Spilled segments by the id of their first line. */
+    private final ConcurrentSkipListMap<Long, SpillSegment> segments = new ConcurrentSkipListMap<>();
+
+    /** In-memory storage of the queue. */
+    private ChunkedRingBuffer<byte[]> storage;
+
+    /** Inner sequential number of last stored entry of the queue. */
+    private AtomicLong lastStoredId;
+
+    /** Inner sequential number of last read entry of the queue. */
+    private AtomicLong lastReadId;
+
+    /** Id of the last line which was considered for spilling. Only the spiller changes it. */
+    private long spilledUpTo;
+
+    /** Index of the next segment file. Only the spiller changes it. */
+    private long nextSegmentIndex;
+
+    private volatile boolean closed;
+
+    /** Guard of the pass of the spiller, so the close waits for the running pass. */
+    private final Object passMux = new Object();
+
+    /** Executor of the passes of the spiller or {@code null} if the storage should start its own thread. */
+    private ScheduledExecutorService spiller;
+
+    /** {@code true} if the executor was created by this storage and it should be stopped on close. */
+    private boolean ownSpiller;
+
+    /**
+     * @param spillDir Directory of the segment files.
+     * @param threshold Size of lines in memory after which the spilling starts.
+     * @param segmentSize Size of the segment file.
+     * @param window Number of lines at the head and at the tail of the queue which are always kept in memory.
+     */
+    public SpillStorage(Path spillDir, long threshold, int segmentSize, int window) {
+        this(spillDir, threshold, segmentSize, window, false);
+    }
+
+    /**
+     * @param spillDir Directory of the segment files.
+     * @param threshold Size of lines in memory after which the spilling starts.
+     * @param segmentSize Size of the segment file.
+     * @param window Number of lines at the head and at the tail of the queue which are always kept in memory.
+     * @param compression {@code true} if the segments should be compressed.
+     */
+    public SpillStorage(Path spillDir, long threshold, int segmentSize, int window, boolean compression) {
+        this(spillDir, threshold, segmentSize, window, compression, null);
+    }
+
+    /**
+     * @param spillDir Directory of the segment files.
+     * @param threshold Size of lines in memory after which the spilling starts.
+     * @param segmentSize Size of the segment file.
+     * @param window Number of lines at the head and at the tail of the queue which are always kept in memory.
+     * @param compression {@code true} if the segments should be compressed.
+     * @param spiller Executor of the passes of the spiller which is shared with other storages or {@code null} if the
+     * storage should start its own thread.
+     */
+    public SpillStorage(
+        Path spillDir,
+        long threshold,
+        int segmentSize,
+        int window,
+        boolean compression,
+        ScheduledExecutorService spiller
+    ) {
+        this.spillDir = spillDir;
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+        this.window = window;
+        this.compression = compression;
+        this.spiller = spiller;
+    }
+
+    /**
+     * Start spilling of the given queue. Segments left by the previous run are deleted, since all lines are restored
+     * from the dump or from the write-ahead log.
+     */
+    void start(ChunkedRingBuffer<byte[]> storage, AtomicLong lastStoredId, AtomicLong lastReadId) throws IOException {
+        this.storage = storage;
+        this.lastStoredId = lastStoredId;
+        this.lastReadId = lastReadId;
+
+        Files.createDirectories(spillDir);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(spillDir, "*" + SEGMENT_EXTENSION)) {
+            for (Path path : stream)
+                Files.delete(path);
+        }
+
+        if (spiller == null) {
+            ownSpiller = true;
+
+            spiller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "line-queue-spiller");
+
+                t.setDaemon(true);
+
+                return t;
+            });
+        }
+
+        spiller.execute(this::spillPass);
+    }
+
+    /** Notify that the line was added to memory. */
+    void onAdded(byte[] line) {
+        memorySize.add(line.length);
+    }
+
+    /** Notify that the line was removed from memory. */
+    void onRemoved(byte[] line) {
+        memorySize.add(-line.length);
+    }
+
+    /**
+     * Load the segment which contains the given id back to memory.
+     *
+     * @param id Id of the line.
+     * @return {@code true} if the line was spilled and now it is in memory.
+     */
+    boolean load(long id) {
+        Map.Entry<Long, SpillSegment> entry = segments.floorEntry(id);
+
+        if (entry == null || !entry.getValue().contains(id))
+            return false;
+
+        load(entry.getValue());
+
+        return true;
+    }
+
+    /**
+     * Read the spilled line without loading it to memory.
+     *
+     * @param id Id of the line.
+     * @return Spilled line or {@code null} if the line isn't spilled.
+     */
+    byte[] get(long id) {
+        Map.Entry<Long, SpillSegment> entry = segments.floorEntry(id);
+
+        if (entry == null)
+            return null;
+
+        SpillSegment segment = entry.getValue();
+
+        synchronized (segment) {
+            if (segment.loaded || !segment.contains(id) || segment.isTaken(id))
+                return null;
+
+            return segment.read(id);
+        }
+    }
+
+    /**
+     * Pass of the spiller which spills lines when the memory is over the threshold and loads them back in order when the
+     * head of the queue gets close to them. The next pass is submitted right after it if there was a progress, or after
+     * the pause otherwise, until the storage is closed.
+     */
+    private void spillPass() {
+        synchronized (passMux) {
+            if (closed)
+                return;
+
+            try {
+                boolean progress = prefetch();
+
+                if (memorySize.sum() > threshold)
+                    progress |= spill();
+
+                if (progress)
+                    spiller.execute(this::spillPass);
+                else
+                    spiller.schedule(this::spillPass, IDLE_PAUSE_NANOS, TimeUnit.NANOSECONDS);
+            }
+            catch (Exception e) {
+                log.error("Spilling of lines to the disk failed :: ", e);
+            }
+        }
+    }
+
+    /** Load the first segment if the head of the queue is close to it. */
+    private boolean prefetch() {
+        Map.Entry<Long, SpillSegment> first = segments.firstEntry();
+
+        if (first == null || first.getKey() > lastReadId.get() + window)
+            return false;
+
+        load(first.getValue());
+
+        return true;
+    }
+
+    /** Move the next range of lines from the middle of the queue to the new segment. */
+    private boolean spill() throws IOException {
+        long from = Math.max(spilledUpTo, lastReadId.get() + window) + 1;
+        long to = lastStoredId.get() - window;
+
+        if (from > to)
+            return false;
+
+        SpillSegment segment = new SpillSegment(
+            spillDir.resolve(String.format("%016d%s", nextSegmentIndex++, SEGMENT_EXTENSION)),
+            segmentSize,
+            from,
+            compression
+        );
+
+        List<byte[]> block = new ArrayList<>(BlockCodec.BLOCK_LINES);
+
+        for (long id = from; id <= to; ) {
+            block.clear();
+
+            //The line is not published yet or it is already polled.
+            for (byte[] line; id <= to && block.size() < BlockCodec.BLOCK_LINES && (line = storage.get(id)) != null; id++)
+                block.add(line);
+
+            //The block which doesn't fit is split, so the segment is filled up to the end.
+            int fit = block.size();
+
+            while (fit > 0 && !segment.append(block.subList(0, fit)))
+                fit /= 2;
+
+            if (fit < BlockCodec.BLOCK_LINES)
+                break;
+        }
+
+        if (segment.lastId < from) {
+            segment.delete();
+
+            //The line which is bigger than the segment stays in memory.
+            if (storage.get(from) != null)
+                spilledUpTo = from;
+
+            return false;
+        }
+
+        synchronized (segment) {
+            //The segment should be visible before the lines are removed, so poll can find them.
+            segments.put(from, segment);
+
+            for (long id = from; id <= segment.lastId; id++) {
+                byte[] line = storage.take(id);
+
+                if (line == null)
+                    segment.markTaken(id);
+                else
+                    onRemoved(line);
+            }
+        }
+
+        spilledUpTo = segment.lastId;
+
+        return true;
+    }
+
+    /** Load all lines of the segment which were not taken back to memory and delete the segment. */
+    private void load(SpillSegment segment) {
+        synchronized (segment) {
+            if (segment.loaded)
+                return;
+
+            segment.readAll((id, line) -> {
+                if (!segment.isTaken(id)) {
+                    storage.put(id, line);
+
+                    onAdded(line);
+                }
+            });
+
+            segment.loaded = true;
+
+            segments.remove(segment.firstId);
+
+            try {
+                segment.delete();
+            }
+            catch (IOException e) {
+                log.error("Spilled segment can't be deleted :: " + segment.path, e);
+            }
+        }
+    }
+
+    /** Stop spilling and delete all segments. */
+    @Override public void close() {
+        closed = true;
+
+        //Wait for the running pass, the next ones see the flag.
+        synchronized (passMux) {
+            if (ownSpiller)
+                spiller.shutdownNow();
+        }
+
+        for (SpillSegment segment : segments.values()) {
+            try {
+                segment.delete();
+            }
+            catch (IOException e) {
+                log.error("Spilled segment can't be deleted :: " + segment.path, e);
+            }
+        }
+    }
+}
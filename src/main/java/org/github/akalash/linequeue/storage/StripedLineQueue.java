@@ -0,0 +1,834 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Queue which is split to independent stripes, every stripe is {@link LineQueue} with its own ids, so producers and
+ * consumers of different stripes don't contend on the same counters.
+ *
+ * The producer is pinned to one stripe, so its lines are kept in order. The consumer starts from its own stripe and goes
+ * to the next ones round-robin if there are not enough lines. The requested lines are taken from one stripe if it has
+ * enough of them, otherwise they are collected from several stripes. So one stripe gives strict global FIFO, several
+ * stripes give FIFO per producer.
+ *
+ * The consumer can wait for lines with the timeout. The waiting consumer doesn't hold any thread, it is parked in the
+ * list of waiters which is checked by producers after every add.
+ *
+ * Polled lines can be leased by {@link #leases()} until they are acknowledged, the returned lines are polled before
+ * any new line. Producers which number their lines are tracked by {@link #producers()}, so their retransmits are
+ * dropped.
+ *
+ * The queue can have several priority lanes, every lane has its own stripes and the producer chooses the lane of the
+ * line. Consumers visit lanes in the {@link PriorityOrder}, the stripe which has enough lines is still preferred.
+ */
+public class StripedLineQueue implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(StripedLineQueue.class);
+
+    /** Timer of all waiters, it only expires them, so one thread is enough. */
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "line-queue-timer");
+
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Stripes of all lanes of this queue. */
+    private final LineQueue[] stripes;
+
+    /** Stripes by lanes. */
+    private final LineQueue[][] lanes;
+
+    /** Order of lanes for consumers. */
+    private final PriorityOrder order;
+
+    /**
+     * Number of polls of the current thread, it chooses the first lane of the weighted order. Every thread counts its
+     * own polls, so consumers don't contend on one counter and every thread keeps the shares of lanes.
+     */
+    private final ThreadLocal<long[]> turns = ThreadLocal.withInitial(() -> new long[1]);
+
+    /** Consumers which wait for lines in order of their arrival. */
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    /** Number of attempts to wake up waiters, the waiter which is being served checks it to not miss new lines. */
+    private final AtomicLong wakeUps = new AtomicLong();
+
+    /** Polled lines which are not acknowledged yet. */
+    private final Leases leases;
+
+    /** Marks of producers which number their lines, they are dumped separately. */
+    private final ProducerSequences producers = new ProducerSequences();
+
+    /** Limit of lines which is shared with other queues or {@code null} if it is unlimited. */
+    private final QueueCapacity capacity;
+
+    /**
+     * @param stripes Stripes of this queue.
+     */
+    public StripedLineQueue(LineQueue... stripes) {
+        this(null, stripes);
+    }
+
+    /**
+     * @param capacity Limit of lines which is shared with other queues or {@code null} if it is unlimited.
+     * @param stripes Stripes of this queue.
+     */
+    public StripedLineQueue(QueueCapacity capacity, LineQueue... stripes) {
+        this(capacity, PriorityOrder.strict(1), stripes);
+    }
+
+    /**
+     * @param capacity Limit of lines which is shared with other queues or {@code null} if it is unlimited.
+     * @param order Order of priority lanes for consumers.
+     * @param stripes Stripes of all lanes one lane after another, every lane has the same number of stripes.
+     */
+    public StripedLineQueue(QueueCapacity capacity, PriorityOrder order, LineQueue... stripes) {
+        if (stripes.length % order.levels() != 0)
+            throw new IllegalArgumentException("Every priority level should have the same number of stripes :: " +
+                "levels = " + order.levels() + ", stripes = " + stripes.length);
+
+        this.capacity = capacity;
+        this.order = order;
+        this.stripes = stripes;
+
+        leases = new Leases(() -> {
+            if (!waiters.isEmpty())
+                wakeUpWaiters();
+        }, capacity);
+
+        int stripeCount = stripes.length / order.levels();
+
+        lanes = new LineQueue[order.levels()][];
+
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = Arrays.copyOfRange(stripes, i * stripeCount, (i + 1) * stripeCount);
+
+        for (LineQueue stripe : stripes) {
+            stripe.capacity(capacity);
+            stripe.producers(producers);
+        }
+    }
+
+    /**
+     * @param index Index of the stripe, the stripes of the lane {@code i} follow the ones of the lane {@code i - 1}.
+     * @return Stripe.
+     */
+    public LineQueue stripe(int index) {
+        return stripes[index];
+    }
+
+    /**
+     * @return Polled lines which are not acknowledged yet.
+     */
+    public Leases leases() {
+        return leases;
+    }
+
+    /**
+     * @return Marks of producers which number their lines to drop retransmits.
+     */
+    public ProducerSequences producers() {
+        return producers;
+    }
+
+    /**
+     * @return Number of stripes of every lane.
+     */
+    public int stripeCount() {
+        return lanes[0].length;
+    }
+
+    /**
+     * @return Number of priority lanes.
+     */
+    public int priorityLevels() {
+        return lanes.length;
+    }
+
+    /**
+     * Adding new value to the stripe of the producer.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param producer Id of the producer.
+     * @return Future which is completed when the value reaches the requested durability.
+     * @throws IllegalArgumentException If the requested durability can't be provided by this queue.
+     */
+    public CompletableFuture<Void> add(byte[] value, Durability durability, int producer) {
+        return add(value, durability, producer, 0);
+    }
+
+    /**
+     * Adding new value to the stripe of the producer which is dropped if it isn't delivered in time.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param producer Id of the producer.
+     * @param ttlMs Time to live in milliseconds or {@code 0} if the value never expires.
+     * @return Future which is completed when the value reaches the requested durability.
+     * @throws IllegalArgumentException If the requested durability can't be provided by this queue.
+     */
+    public CompletableFuture<Void> add(byte[] value, Durability durability, int producer, long ttlMs) {
+        return add(value, durability, producer, ttlMs, 0);
+    }
+
+    /**
+     * Adding new value to the stripe of the producer in the given priority lane.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param producer Id of the producer.
+     * @param ttlMs Time to live in milliseconds or {@code 0} if the value never expires.
+     * @param priority Priority lane, {@code 0} is the default one and the bigger one is more urgent.
+     * @return Future which is completed when the value reaches the requested durability.
+     * @throws IllegalArgumentException If the requested durability can't be provided by this queue or the lane is
+     * unknown.
+     */
+    public CompletableFuture<Void> add(byte[] value, Durability durability, int producer, long ttlMs, int priority) {
+        return add(value, durability, producer, ttlMs, priority, null, 0);
+    }
+
+    /**
+     * Adding new value like {@link #add(byte[], Durability, int, long, int)}, the sequence number of the producer which
+     * numbers its lines is logged together with the value, so its mark is restored after the crash. The line should
+     * be accepted by {@link #producers()} before.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param producer Id of the producer.
+     * @param ttlMs Time to live in milliseconds or {@code 0} if the value never expires.
+     * @param priority Priority lane, {@code 0} is the default one and the bigger one is more urgent.
+     * @param producerId Id of the producer which numbers its lines or {@code null}.
+     * @param seq Sequence number of the value of the producer.
+     * @return Future which is completed when the value reaches the requested durability.
+     * @throws IllegalArgumentException If the requested durability can't be provided by this queue or the lane is
+     * unknown.
+     */
+    public CompletableFuture<Void> add(
+        byte[] value,
+        Durability durability,
+        int producer,
+        long ttlMs,
+        int priority,
+        String producerId,
+        long seq
+    ) {
+        if (priority < 0 || priority >= lanes.length)
+            throw new IllegalArgumentException("Unknown priority :: " + priority);
+
+        LineQueue[] lane = lanes[priority];
+
+        CompletableFuture<Void> res = lane[stripeOf(producer, lane.length)].add(value, durability, ttlMs, producerId,
+            seq);
+
+        //The mark is persisted only after its line is stored, so the dump doesn't have the mark without the line.
+        if (producerId != null)
+            producers.stored(producerId, seq);
+
+        if (!waiters.isEmpty())
+            wakeUpWaiters();
+
+        return res;
+    }
+
+    /**
+     * @return {@code true} if one more line can be added without exceeding the limit of lines.
+     */
+    public boolean hasRoom() {
+        return capacity == null || capacity.hasRoom();
+    }
+
+    /**
+     * Add the value like {@link #add(byte[], Durability, int)}, but wait for the room first if the limit of lines is
+     * reached. The waiting producer doesn't hold any thread.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param producer Id of the producer.
+     * @return Future which is completed when the value is added and it reaches the requested durability.
+     */
+    public CompletableFuture<Void> addWhenRoom(byte[] value, Durability durability, int producer) {
+        return addWhenRoom(value, durability, producer, 0);
+    }
+
+    /**
+     * Add the value like {@link #add(byte[], Durability, int, long)}, but wait for the room first if the limit of lines
+     * is reached. The time of waiting counts towards TTL.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param producer Id of the producer.
+     * @param ttlMs Time to live in milliseconds or {@code 0} if the value never expires.
+     * @return Future which is completed when the value is added and it reaches the requested durability.
+     */
+    public CompletableFuture<Void> addWhenRoom(byte[] value, Durability durability, int producer, long ttlMs) {
+        return addWhenRoom(value, durability, producer, ttlMs, 0);
+    }
+
+    /**
+     * Add the value like {@link #add(byte[], Durability, int, long, int)}, but wait for the room first if the limit of
+     * lines is reached. The time of waiting counts towards TTL.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param producer Id of the producer.
+     * @param ttlMs Time to live in milliseconds or {@code 0} if the value never expires.
+     * @param priority Priority lane, {@code 0} is the default one and the bigger one is more urgent.
+     * @return Future which is completed when the value is added and it reaches the requested durability.
+     */
+    public CompletableFuture<Void> addWhenRoom(
+        byte[] value,
+        Durability durability,
+        int producer,
+        long ttlMs,
+        int priority
+    ) {
+        return addWhenRoom(value, durability, producer, ttlMs, priority, null, 0);
+    }
+
+    /**
+     * Add the value like {@link #add(byte[], Durability, int, long, int, String, long)}, but wait for the room first if
+     * the limit of lines is reached. The time of waiting counts towards TTL.
+     *
+     * @param value Value for adding.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param producer Id of the producer.
+     * @param ttlMs Time to live in milliseconds or {@code 0} if the value never expires.
+     * @param priority Priority lane, {@code 0} is the default one and the bigger one is more urgent.
+     * @param producerId Id of the producer which numbers its lines or {@code null}.
+     * @param seq Sequence number of the value of the producer.
+     * @return Future which is completed when the value is added and it reaches the requested durability.
+     */
+    public CompletableFuture<Void> addWhenRoom(
+        byte[] value,
+        Durability durability,
+        int producer,
+        long ttlMs,
+        int priority,
+        String producerId,
+        long seq
+    ) {
+        if (hasRoom())
+            return add(value, durability, producer, ttlMs, priority, producerId, seq);
+
+        long deadline = ttlMs > 0 ? System.currentTimeMillis() + ttlMs : 0;
+
+        return capacity.awaitRoom().thenCompose(ignore -> {
+            long rest = deadline == 0 ? 0 : Math.max(1, deadline - System.currentTimeMillis());
+
+            return addWhenRoom(value, durability, producer, rest, priority, producerId, seq);
+        });
+    }
+
+    /**
+     * @return Number of lines of all stripes which are not polled yet.
+     */
+    public long size() {
+        long size = 0;
+
+        for (LineQueue stripe : stripes)
+            size += stripe.size();
+
+        return size;
+    }
+
+    /**
+     * @return Number of lines of all stripes which expired before they were delivered.
+     */
+    public long expiredLines() {
+        long expired = 0;
+
+        for (LineQueue stripe : stripes)
+            expired += stripe.expiredLines();
+
+        return expired;
+    }
+
+    /**
+     * Poll first {@code count} lines from the stripe of the consumer or from the next stripe which has enough lines. If
+     * no stripe has enough lines, they are collected from several stripes like by {@link #pollUpTo(int, int)} and the
+     * collected lines are put back to the head of the queue if there are still not enough of them.
+     *
+     * @param count Number of lines which should be polled.
+     * @param consumer Id of the consumer.
+     * @return Returned lines and then polled lines or {@code null} if there are not enough lines.
+     */
+    public List<byte[]> poll(int count, int consumer) {
+        List<byte[]> returned = leases.takeReturned(count, false, rest -> pollStripes(rest, consumer));
+
+        return returned != null ? returned : pollStripes(count, consumer);
+    }
+
+    private List<byte[]> pollStripes(int count, int consumer) {
+        long turn = turn();
+
+        for (int i = 0; i < lanes.length; i++) {
+            LineQueue[] lane = lanes[order.lane(turn, i)];
+
+            int first = stripeOf(consumer, lane.length);
+
+            for (int j = 0; j < lane.length; j++) {
+                List<byte[]> res = lane[(first + j) % lane.length].poll(count);
+
+                if (res != null)
+                    return res;
+            }
+        }
+
+        //The lines can be spread over several stripes.
+        if (stripes.length == 1 || size() < count)
+            return null;
+
+        List<byte[]> res = collect(count, consumer, turn, (stripe, rest) -> stripe.pollUpTo(rest));
+
+        if (res.size() == count)
+            return res;
+
+        //Other consumers took the lines in between, so the taken ones are returned to the head of the queue.
+        if (!res.isEmpty())
+            leases.putBack(res);
+
+        return null;
+    }
+
+    /**
+     * @return Number of the poll for the weighted order of lanes.
+     */
+    private long turn() {
+        return order.isWeighted() ? turns.get()[0]++ : 0;
+    }
+
+    /**
+     * Poll available lines, but not more than {@code count}. The lines are taken from the stripe of the consumer first
+     * and then from the next stripes, so the order of every producer is kept.
+     *
+     * @param count Max number of lines which should be polled.
+     * @param consumer Id of the consumer.
+     * @return Polled lines, the list is empty if there are no lines.
+     */
+    public List<byte[]> pollUpTo(int count, int consumer) {
+        List<byte[]> returned = leases.takeReturned(count, true, rest -> pollStripesUpTo(rest, consumer));
+
+        return returned != null ? returned : pollStripesUpTo(count, consumer);
+    }
+
+    private List<byte[]> pollStripesUpTo(int count, int consumer) {
+        return collect(count, consumer, turn(), (stripe, rest) -> stripe.pollUpTo(rest));
+    }
+
+    /**
+     * Take available lines from stripes of all lanes until the requested number is reached. Every lane is visited from
+     * the stripe of the consumer.
+     *
+     * @param count Max number of lines.
+     * @param consumer Id of the consumer.
+     * @param turn Number of the poll for the weighted order of lanes.
+     * @param take Function which takes available lines of the stripe, but not more than the given number.
+     * @return Taken lines, the list is empty if there are no lines.
+     */
+    private List<byte[]> collect(
+        int count,
+        int consumer,
+        long turn,
+        BiFunction<LineQueue, Integer, List<byte[]>> take
+    ) {
+        List<byte[]> res = Collections.emptyList();
+
+        for (int i = 0; i < lanes.length && (i == 0 || res.size() < count); i++) {
+            LineQueue[] lane = lanes[order.lane(turn, i)];
+
+            int first = stripeOf(consumer, lane.length);
+
+            for (int j = 0; j < lane.length && (i + j == 0 || res.size() < count); j++) {
+                List<byte[]> next = take.apply(lane[(first + j) % lane.length], count - res.size());
+
+                if (next.isEmpty())
+                    continue;
+
+                if (res.isEmpty())
+                    res = next;
+                else {
+                    res = new ArrayList<>(res);
+
+                    res.addAll(next);
+                }
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Read lines by the consumer group without removing them, all requested lines are read from one stripe like
+     * {@link #poll(int, int)}.
+     *
+     * @param group Name of the consumer group.
+     * @param count Number of lines which should be read.
+     * @param consumer Id of the consumer.
+     * @return Read lines of one stripe or {@code null} if no stripe has the requested number of unread lines.
+     * @throws IllegalArgumentException If the name of the group is incorrect.
+     * @throws IllegalStateException If this queue has no consumer groups.
+     */
+    public List<byte[]> read(String group, int count, int consumer) {
+        long turn = turn();
+
+        for (int i = 0; i < lanes.length; i++) {
+            LineQueue[] lane = lanes[order.lane(turn, i)];
+
+            int first = stripeOf(consumer, lane.length);
+
+            for (int j = 0; j < lane.length; j++) {
+                List<byte[]> res = lane[(first + j) % lane.length].read(group, count, false);
+
+                if (res != null)
+                    return res;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Read available lines by the consumer group without removing them, but not more than {@code count}. The stripes
+     * are visited like by {@link #pollUpTo(int, int)}.
+     *
+     * @param group Name of the consumer group.
+     * @param count Max number of lines which should be read.
+     * @param consumer Id of the consumer.
+     * @return Read lines, the list is empty if the group has read everything.
+     * @throws IllegalArgumentException If the name of the group is incorrect.
+     * @throws IllegalStateException If this queue has no consumer groups.
+     */
+    public List<byte[]> readUpTo(String group, int count, int consumer) {
+        return collect(count, consumer, turn(), (stripe, rest) -> stripe.read(group, rest, true));
+    }
+
+    /**
+     * Poll first {@code count} lines like {@link #poll(int, int)}, but wait for them if there are not enough lines.
+     *
+     * @param count Number of lines which should be polled.
+     * @param consumer Id of the consumer.
+     * @param timeoutMs Max time of waiting in milliseconds.
+     * @return Future of the requested lines, it is completed by {@code null} if the lines didn't arrive in time.
+     */
+    public CompletableFuture<List<byte[]>> poll(int count, int consumer, long timeoutMs) {
+        return await(count, consumer, timeoutMs, false);
+    }
+
+    /**
+     * Poll available lines like {@link #pollUpTo(int, int)}, but wait for at least one line if there are no lines.
+     *
+     * @param count Max number of lines which should be polled.
+     * @param consumer Id of the consumer.
+     * @param timeoutMs Max time of waiting in milliseconds.
+     * @return Future of polled lines, it is completed by the empty list if no line arrived in time.
+     */
+    public CompletableFuture<List<byte[]>> pollUpTo(int count, int consumer, long timeoutMs) {
+        return await(count, consumer, timeoutMs, true);
+    }
+
+    /**
+     * Poll lines or park the consumer until lines arrive or the timeout expires.
+     *
+     * @param count Number of lines which should be polled.
+     * @param consumer Id of the consumer.
+     * @param timeoutMs Max time of waiting in milliseconds.
+     * @param upTo {@code true} if any number of lines up to the given count is enough.
+     * @return Future of polled lines.
+     */
+    private CompletableFuture<List<byte[]>> await(int count, int consumer, long timeoutMs, boolean upTo) {
+        Waiter waiter = new Waiter(count, consumer, upTo);
+
+        List<byte[]> res = waiter.tryPoll();
+
+        if (res != null || timeoutMs <= 0)
+            return CompletableFuture.completedFuture(res != null ? res : waiter.nothing());
+
+        waiters.add(waiter);
+
+        waiter.timeout = TIMER.schedule(() -> {
+            waiter.expire();
+
+            waiters.remove(waiter);
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        //The lines could be added before the waiter was visible to producers.
+        wakeUpWaiters();
+
+        return waiter.future;
+    }
+
+    /**
+     * Give lines to waiters in order of their arrival while there are enough lines. The waiter which can't be served
+     * stops the others, so the big request isn't starved by the small ones.
+     */
+    private void wakeUpWaiters() {
+        wakeUps.incrementAndGet();
+
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+
+            if (waiter.isDone() || waiter.tryServe())
+                it.remove();
+            else
+                break;
+        }
+    }
+
+    private static int stripeOf(int client, int stripeCount) {
+        return stripeCount == 1 ? 0 : Math.floorMod(client, stripeCount);
+    }
+
+    /**
+     * Restoring of all stripes.
+     *
+     * @return {@code true} if all stripes were restored.
+     */
+    public boolean restore() {
+        boolean restored = true;
+
+        for (LineQueue stripe : stripes)
+            restored &= stripe.restore();
+
+        try {
+            leases.restore(leasesPath(), stripes[0].isLogged() ? leaseJournalPath() : null);
+        }
+        catch (IOException e) {
+            log.error("Something was going wrong during the restore of leases :: ", e);
+
+            return false;
+        }
+
+        try {
+            producers.restore(producersPath());
+        }
+        catch (IOException e) {
+            log.error("Something was going wrong during the restore of producer sequences :: ", e);
+
+            return false;
+        }
+
+        return restored;
+    }
+
+    /**
+     * Dumping all stripes to their files, the lines which are not acknowledged and the marks of producers are dumped
+     * separately.
+     */
+    public void dump() {
+        for (LineQueue stripe : stripes)
+            stripe.dump();
+
+        try {
+            leases.dump(leasesPath());
+        }
+        catch (IOException e) {
+            log.error("Something was going wrong during the dump of leases :: ", e);
+        }
+
+        try {
+            producers.dump(producersPath());
+        }
+        catch (IOException e) {
+            log.error("Something was going wrong during the dump of producer sequences :: ", e);
+        }
+    }
+
+    private Path leasesPath() {
+        return Paths.get(stripes[0].dumpFilePath() + Leases.FILE_SUFFIX);
+    }
+
+    private Path leaseJournalPath() {
+        return Paths.get(stripes[0].dumpFilePath() + LeaseJournal.FILE_SUFFIX);
+    }
+
+    private Path producersPath() {
+        return Paths.get(stripes[0].dumpFilePath() + ProducerSequences.FILE_SUFFIX);
+    }
+
+    /**
+     * Start writing of snapshots of all stripes in background. The lines which are not acknowledged are written right
+     * after the stripes are frozen, so the line which is polled in between can be redelivered twice, but it isn't lost.
+     * The marks of producers are written right before the stripes are frozen if the stripes have no write-ahead log,
+     * so the retransmit of the line which is added in between is accepted again rather than lost.
+     *
+     * @return Future which is completed when all snapshots are in place.
+     */
+    public CompletableFuture<Void> snapshot() {
+        if (!stripes[0].isLogged()) {
+            try {
+                producers.dump(producersPath());
+            }
+            catch (IOException e) {
+                log.error("Something was going wrong during the snapshot of producer sequences :: ", e);
+
+                return failed(e);
+            }
+        }
+
+        CompletableFuture<?>[] snapshots = new CompletableFuture<?>[stripes.length];
+
+        for (int i = 0; i < stripes.length; i++)
+            snapshots[i] = stripes[i].snapshot();
+
+        try {
+            leases.snapshot(leasesPath());
+        }
+        catch (IOException e) {
+            log.error("Something was going wrong during the snapshot of leases :: ", e);
+
+            return failed(e);
+        }
+
+        return CompletableFuture.allOf(snapshots);
+    }
+
+    private static CompletableFuture<Void> failed(IOException e) {
+        CompletableFuture<Void> fut = new CompletableFuture<>();
+
+        fut.completeExceptionally(e);
+
+        return fut;
+    }
+
+    /** Release all stripes, waiters get nothing. */
+    @Override public void close() {
+        for (Waiter waiter; (waiter = waiters.poll()) != null; )
+            waiter.expire();
+
+        for (LineQueue stripe : stripes)
+            stripe.close();
+
+        leases.close();
+    }
+
+    /** Consumer which waits for lines. */
+    private class Waiter {
+        /** State of the waiter which waits for lines. */
+        private static final int WAITING = 0;
+
+        /** State of the waiter which is being served by the producer. */
+        private static final int SERVING = 1;
+
+        /** State of the completed waiter. */
+        private static final int DONE = 2;
+
+        /** Number of lines which should be polled. */
+        final int count;
+
+        /** Id of the consumer. */
+        final int consumer;
+
+        /** {@code true} if any number of lines up to the count is enough. */
+        final boolean upTo;
+
+        /** Future of polled lines. */
+        final CompletableFuture<List<byte[]>> future = new CompletableFuture<>();
+
+        /** State of this waiter. */
+        private final AtomicInteger state = new AtomicInteger();
+
+        /** {@code true} if the timeout expired while this waiter was being served. */
+        private volatile boolean expired;
+
+        /** Expiration task. */
+        volatile ScheduledFuture<?> timeout;
+
+        Waiter(int count, int consumer, boolean upTo) {
+            this.count = count;
+            this.consumer = consumer;
+            this.upTo = upTo;
+        }
+
+        /**
+         * @return Polled lines or {@code null} if there are not enough lines.
+         */
+        List<byte[]> tryPoll() {
+            if (!upTo)
+                return poll(count, consumer);
+
+            List<byte[]> res = pollUpTo(count, consumer);
+
+            return res.isEmpty() ? null : res;
+        }
+
+        /**
+         * @return Result of the waiter which got no lines.
+         */
+        List<byte[]> nothing() {
+            return upTo ? Collections.emptyList() : null;
+        }
+
+        boolean isDone() {
+            return state.get() == DONE;
+        }
+
+        /**
+         * Poll lines for this waiter if there are enough of them.
+         *
+         * @return {@code true} if this waiter was completed.
+         */
+        boolean tryServe() {
+            while (state.compareAndSet(WAITING, SERVING)) {
+                long wakeUpsBefore = wakeUps.get();
+
+                List<byte[]> res = tryPoll();
+
+                if (res != null) {
+                    state.set(DONE);
+
+                    ScheduledFuture<?> timeout = this.timeout;
+
+                    if (timeout != null)
+                        timeout.cancel(false);
+
+                    future.complete(res);
+
+                    return true;
+                }
+
+                state.set(WAITING);
+
+                //The timeout is ignored while the waiter is being served, so it should be applied now.
+                if (expired)
+                    expire();
+
+                //Producers skip the waiter which is being served, so their lines should be checked again.
+                if (wakeUps.get() == wakeUpsBefore)
+                    break;
+            }
+
+            return isDone();
+        }
+
+        /** Complete this waiter without lines if it isn't completed yet. */
+        void expire() {
+            expired = true;
+
+            if (state.compareAndSet(WAITING, DONE))
+                future.complete(nothing());
+        }
+    }
+}
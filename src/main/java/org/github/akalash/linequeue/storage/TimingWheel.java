@@ -0,0 +1,206 @@
+package org.github.akalash.linequeue.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Hierarchical timing wheel for a big number of timeouts which are usually cancelled before they expire. Scheduling and
+ * cancellation are O(1) and don't allocate anything except the task itself: the cancelled task is just skipped when
+ * its bucket is visited.
+ *
+ * Every level has the same number of buckets and one bucket of the next level covers the whole previous level, so the
+ * far tasks don't stay in the buckets of near ones. When the lower level makes a revolution, the tasks of the current
+ * bucket of the next level are moved down to their exact ticks. The top level keeps tasks which are further than all
+ * levels until their time comes closer.
+ *
+ * Only the thread of the wheel touches the buckets, new tasks are handed over to it through the lock-free queue.
+ */
+class TimingWheel {
+    private static final Logger log = LogManager.getLogger(TimingWheel.class);
+
+    /** Number of levels of the wheel. */
+    private static final int LEVELS = 4;
+
+    /** Duration of one tick in milliseconds. */
+    private final long tickMs;
+
+    /** Buckets of tasks by levels and by their ticks modulo the number of buckets at the level. */
+    private final List<Task>[][] levels;
+
+    /** Number of bits of the index of the bucket, the number of buckets is a power of two. */
+    private final int bits;
+
+    /** Mask of the index of the bucket. */
+    private final int mask;
+
+    /** Tasks which are scheduled but not placed to their buckets yet. */
+    private final ConcurrentLinkedQueue<Task> incoming = new ConcurrentLinkedQueue<>();
+
+    /** Start time of the wheel in nanoseconds. */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * @param name Name of the thread of the wheel.
+     * @param tickMs Duration of one tick in milliseconds, it is the precision of timeouts.
+     * @param bucketCount Number of buckets of every level, it is rounded up to the power of two.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(String name, long tickMs, int bucketCount) {
+        this.tickMs = tickMs;
+
+        int size = Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1;
+
+        levels = new List[LEVELS][size];
+        bits = Integer.numberOfTrailingZeros(size);
+        mask = size - 1;
+
+        for (List<Task>[] buckets : levels) {
+            for (int i = 0; i < size; i++)
+                buckets[i] = new ArrayList<>();
+        }
+
+        Thread thread = new Thread(this::run, name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedule the task. The task can be scheduled only once.
+     *
+     * @param task Task which should be expired.
+     * @param delayMs Delay in milliseconds.
+     */
+    void schedule(Task task, long delayMs) {
+        scheduleAt(task, deadline(delayMs));
+    }
+
+    /**
+     * Schedule the task to the tick which is calculated by {@link #deadline(long)}. The task can be scheduled only
+     * once.
+     *
+     * @param task Task which should be expired.
+     * @param deadline Tick when the task should be expired.
+     */
+    void scheduleAt(Task task, long deadline) {
+        task.deadline = deadline;
+
+        incoming.add(task);
+    }
+
+    /**
+     * @param delayMs Delay in milliseconds.
+     * @return Tick when the task with the given delay should be expired, the tasks of the same tick expire together.
+     */
+    long deadline(long delayMs) {
+        return currentTick() + (delayMs + tickMs - 1) / tickMs;
+    }
+
+    private long currentTick() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) / tickMs;
+    }
+
+    /** Visit buckets tick by tick and expire their tasks. */
+    private void run() {
+        long tick = 0;
+
+        while (true) {
+            long now = currentTick();
+
+            if (now < tick) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(tickMs));
+
+                continue;
+            }
+
+            //The upper levels go first, so their tasks can be moved down to the bucket which is visited right now.
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << bits * level) - 1)) == 0)
+                    cascade(level, tick);
+            }
+
+            for (Task task; (task = incoming.poll()) != null; )
+                place(task, tick);
+
+            expire(levels[0][(int)(tick & mask)], tick);
+
+            tick++;
+        }
+    }
+
+    /** Move tasks of the current bucket of the level to the lower levels, the cancelled ones are dropped. */
+    private void cascade(int level, long tick) {
+        List<Task> bucket = levels[level][(int)((tick >>> bits * level) & mask)];
+
+        if (bucket.isEmpty())
+            return;
+
+        List<Task> tasks = new ArrayList<>(bucket);
+
+        bucket.clear();
+
+        for (Task task : tasks) {
+            if (!task.isCancelled())
+                place(task, tick);
+        }
+    }
+
+    /** Put the task to the lowest level which covers its deadline. */
+    private void place(Task task, long tick) {
+        //The task which is late is expired by the current tick.
+        task.deadline = Math.max(task.deadline, tick);
+
+        long delay = task.deadline - tick;
+
+        int level = 0;
+
+        while (level < LEVELS - 1 && delay >>> bits * (level + 1) != 0)
+            level++;
+
+        levels[level][(int)((task.deadline >>> bits * level) & mask)].add(task);
+    }
+
+    /** Expire tasks of the bucket which deadline is reached and drop the cancelled ones. */
+    private static void expire(List<Task> bucket, long tick) {
+        int kept = 0;
+
+        for (int i = 0; i < bucket.size(); i++) {
+            Task task = bucket.get(i);
+
+            if (task.isCancelled())
+                continue;
+
+            if (task.deadline > tick) {
+                bucket.set(kept++, task);
+
+                continue;
+            }
+
+            try {
+                task.expire();
+            }
+            catch (RuntimeException e) {
+                log.error("Timeout task failed :: ", e);
+            }
+        }
+
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    /** Task of the wheel. */
+    abstract static class Task {
+        /** Tick when this task should be expired. */
+        private long deadline;
+
+        /** @return {@code true} if this task shouldn't be expired anymore. */
+        abstract boolean isCancelled();
+
+        /** Handle the expiration of this task, it is called by the thread of the wheel. */
+        abstract void expire();
+    }
+}
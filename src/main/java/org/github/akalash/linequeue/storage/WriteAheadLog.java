@@ -0,0 +1,895 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only segmented log of all changes of {@link LineQueue}. It contains the records of stored lines and the markers
+ * of consumed offset, so the unconsumed lines can be replayed after the crash of the process. The line of the producer
+ * which numbers its lines is followed by the record of its sequence number, and every new segment starts with the
+ * marks of all producers, so the marks are replayed as well, even if the segments of their lines are deleted.
+ *
+ * Appending only copies the record to the memory buffer, all writes to the file are done by passes of the flusher.
+ * Each pass writes everything which was appended since the previous pass and forces it to the disk by one {@code fsync}
+ * if anybody waits for it, so the cost of {@code fsync} is shared between all concurrent appenders. The passes run on
+ * the executor which can be shared by the logs of all queues, only one pass of the log runs at a time.
+ */
+public class WriteAheadLog implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(WriteAheadLog.class);
+
+    /** Extension of the segment file. */
+    static final String SEGMENT_EXTENSION = ".wal";
+
+    /** Record of the stored line. */
+    private static final byte PUT_RECORD = 1;
+
+    /** Record of the last consumed id. */
+    private static final byte CONSUMED_RECORD = 2;
+
+    /** First record of the run, all records after it are written by the recovery or after it. */
+    private static final byte RECOVERY_RECORD = 3;
+
+    /** Record of the sequence number of the producer: the id is the number, the payload is the id of the producer. */
+    private static final byte PRODUCER_RECORD = 4;
+
+    /** Record of the finished recovery, the run which has it has the complete copy of all previous runs. */
+    private static final byte RECOVERED_RECORD = 5;
+
+    /** Size of the record without payload: crc, type, id, payload length. */
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + 1 + Long.BYTES + Integer.BYTES;
+
+    /** Directory of the segment files. */
+    private final Path walDir;
+
+    /** Size of the segment after which the next one should be started. */
+    private final long segmentSize;
+
+    /** Segments which were left by the previous run and not recovered yet. */
+    private final List<Path> recoverySegments;
+
+    /** Segments which were completely written by this run. */
+    private final ArrayDeque<Segment> closedSegments = new ArrayDeque<>();
+
+    /** Guard of all fields which are shared between the appenders and the flusher. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signal for the closing thread that the pass of the flusher is over. */
+    private final Condition flushFinished = lock.newCondition();
+
+    /** Signal for the appenders that the buffer was taken by the flusher. */
+    private final Condition bufferFreed = lock.newCondition();
+
+    /** Appenders which wait for the write of their records. */
+    private final ArrayDeque<Waiter> writeWaiters = new ArrayDeque<>();
+
+    /** Appenders which wait for the fsync of their records. */
+    private final ArrayDeque<Waiter> syncWaiters = new ArrayDeque<>();
+
+    /** Buffer which the records are appended to. */
+    private ByteBuffer appendBuffer;
+
+    /** Buffer which is written by the flusher. */
+    private ByteBuffer flushBuffer;
+
+    /** Total number of appended bytes. */
+    private long appendedPosition;
+
+    /** Max id of the line in the append buffer. */
+    private long appendedMaxId;
+
+    /** Max consumed id which was appended to the log. */
+    private long consumedId;
+
+    /** Max sequence numbers by producers which were appended to the log. */
+    private final Map<String, Long> marks = new HashMap<>();
+
+    /** {@code true} if the append buffer is full and appenders wait for the flusher. */
+    private boolean bufferFull;
+
+    /** Cause of the failure of the log or {@code null} if the log is fine. */
+    private IOException failure;
+
+    private boolean closed;
+
+    /** {@code true} if the pass of the flusher is submitted or running. */
+    private boolean flushScheduled;
+
+    /** The segment which is being written by the flusher. Only the flusher changes it. */
+    private Segment currentSegment;
+
+    /** Index of the next segment file. Only the flusher changes it. */
+    private long nextSegmentIndex;
+
+    /** Executor of the passes of the flusher. */
+    private final ScheduledExecutorService flusher;
+
+    /** {@code true} if the executor was created by this log and it should be stopped on close. */
+    private final boolean ownFlusher;
+
+    /** Periodic check of records which nobody waits for. */
+    private final ScheduledFuture<?> flushTimer;
+
+    /**
+     * @param walDir Directory of the segment files.
+     * @param segmentSize Size of the segment after which the next one should be started.
+     * @param bufferSize Initial size of the append buffer.
+     * @param flushFrequencyMs Max time between the append of the record and its write to the file.
+     * @throws IOException If the directory can't be prepared.
+     */
+    public WriteAheadLog(Path walDir, long segmentSize, int bufferSize, long flushFrequencyMs) throws IOException {
+        this(walDir, segmentSize, bufferSize, flushFrequencyMs, null);
+    }
+
+    /**
+     * @param walDir Directory of the segment files.
+     * @param segmentSize Size of the segment after which the next one should be started.
+     * @param bufferSize Initial size of the append buffer.
+     * @param flushFrequencyMs Max time between the append of the record and its write to the file.
+     * @param flusher Executor of the passes of the flusher which is shared with other logs or {@code null} if the log
+     * should start its own thread.
+     * @throws IOException If the directory can't be prepared.
+     */
+    public WriteAheadLog(
+        Path walDir,
+        long segmentSize,
+        int bufferSize,
+        long flushFrequencyMs,
+        ScheduledExecutorService flusher
+    ) throws IOException {
+        this.walDir = walDir;
+        this.segmentSize = segmentSize;
+
+        appendBuffer = ByteBuffer.allocate(bufferSize);
+        flushBuffer = ByteBuffer.allocate(bufferSize);
+
+        Files.createDirectories(walDir);
+
+        recoverySegments = listSegments(walDir);
+
+        nextSegmentIndex = recoverySegments.isEmpty() ? 0 : segmentIndex(recoverySegments.get(recoverySegments.size() - 1)) + 1;
+
+        currentSegment = openNextSegment();
+
+        writeFully(record(RECOVERY_RECORD, 0));
+
+        ownFlusher = flusher == null;
+
+        this.flusher = ownFlusher ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "wal-flusher");
+
+            t.setDaemon(true);
+
+            return t;
+        }) : flusher;
+
+        long period = Math.max(1, flushFrequencyMs);
+
+        flushTimer = this.flusher.scheduleWithFixedDelay(this::onFlushTimer, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Append the record of the stored line.
+     *
+     * @param id Id of the line in the queue.
+     * @param line Content of the line.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @return Future which is completed when the record reaches the requested durability. It never throws itself.
+     */
+    public CompletableFuture<Void> appendPut(long id, byte[] line, Durability durability) {
+        return append(PUT_RECORD, id, line, null, 0, durability);
+    }
+
+    /**
+     * Append the record of the stored line together with the record of the sequence number of its producer.
+     *
+     * @param id Id of the line in the queue.
+     * @param line Content of the line.
+     * @param durability Durability which should be reached before the returned future is completed.
+     * @param producer Id of the producer or {@code null} if the producer doesn't number its lines.
+     * @param seq Sequence number of the line of the producer.
+     * @return Future which is completed when both records reach the requested durability. It never throws itself.
+     */
+    public CompletableFuture<Void> appendPut(long id, byte[] line, Durability durability, String producer, long seq) {
+        return append(PUT_RECORD, id, line, producer, seq, durability);
+    }
+
+    /**
+     * Append the sequence number of the producer without the line, like the replayed one.
+     *
+     * @param producer Id of the producer.
+     * @param seq Sequence number of the last accepted line of the producer.
+     */
+    public void appendMark(String producer, long seq) {
+        append(PRODUCER_RECORD, seq, producer.getBytes(StandardCharsets.US_ASCII), null, 0, Durability.MEMORY);
+    }
+
+    /**
+     * Append the marker that all lines up to the given id were consumed.
+     *
+     * @param lastReadId Last consumed id.
+     */
+    public void appendConsumed(long lastReadId) {
+        append(CONSUMED_RECORD, lastReadId, null, null, 0, Durability.MEMORY);
+    }
+
+    /**
+     * @return Future which is completed when everything appended before is forced to the disk.
+     */
+    public CompletableFuture<Void> sync() {
+        lock.lock();
+        try {
+            if (closed || failure != null)
+                return failed(failure != null ? failure : new IOException("Write-ahead log is closed"));
+
+            return await(Durability.FSYNCED);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Append the record and the record of the sequence number of the producer if it is given, both records are
+     * appended together.
+     */
+    private CompletableFuture<Void> append(
+        byte type,
+        long id,
+        byte[] payload,
+        String producer,
+        long seq,
+        Durability durability
+    ) {
+        int crc = checksum(type, id, payload);
+        int size = RECORD_HEADER_SIZE + (payload == null ? 0 : payload.length);
+
+        byte[] producerId = producer == null ? null : producer.getBytes(StandardCharsets.US_ASCII);
+        int markCrc = 0;
+
+        if (producerId != null) {
+            markCrc = checksum(PRODUCER_RECORD, seq, producerId);
+            size += RECORD_HEADER_SIZE + producerId.length;
+        }
+
+        lock.lock();
+        try {
+            if (closed || failure != null)
+                return failed(failure != null ? failure : new IOException("Write-ahead log is closed"));
+
+            ensureSpace(size);
+
+            put(appendBuffer, crc, type, id, payload);
+
+            if (producerId != null) {
+                put(appendBuffer, markCrc, PRODUCER_RECORD, seq, producerId);
+
+                marks.merge(producer, seq, Math::max);
+            }
+
+            appendedPosition += size;
+
+            if (type == PUT_RECORD)
+                appendedMaxId = Math.max(appendedMaxId, id);
+            else if (type == CONSUMED_RECORD)
+                consumedId = Math.max(consumedId, id);
+            else if (type == PRODUCER_RECORD)
+                marks.merge(new String(payload, StandardCharsets.US_ASCII), id, Math::max);
+
+            return await(durability);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return failed(new IOException("Append to write-ahead log was interrupted", e));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static void put(ByteBuffer buf, int crc, byte type, long id, byte[] payload) {
+        buf.putInt(crc);
+        buf.put(type);
+        buf.putLong(id);
+        buf.putInt(payload == null ? 0 : payload.length);
+
+        if (payload != null)
+            buf.put(payload);
+    }
+
+    /** Register the waiter for everything appended up to now. Should be called under the lock. */
+    private CompletableFuture<Void> await(Durability durability) {
+        if (durability == Durability.MEMORY)
+            return CompletableFuture.completedFuture(null);
+
+        CompletableFuture<Void> fut = new CompletableFuture<>();
+
+        (durability == Durability.FSYNCED ? syncWaiters : writeWaiters).add(new Waiter(appendedPosition, fut));
+
+        requestFlush();
+
+        return fut;
+    }
+
+    /** Wait until the append buffer has enough space for the record. Should be called under the lock. */
+    private void ensureSpace(int recordSize) throws InterruptedException {
+        while (appendBuffer.remaining() < recordSize) {
+            if (appendBuffer.position() == 0) {
+                //Record is bigger than the whole buffer, so the buffer should be grown.
+                appendBuffer = ByteBuffer.allocate(recordSize);
+
+                return;
+            }
+
+            bufferFull = true;
+
+            requestFlush();
+
+            bufferFreed.await();
+        }
+    }
+
+    /** Submit the pass of the flusher if it isn't submitted yet. Should be called under the lock. */
+    private void requestFlush() {
+        if (flushScheduled || closed)
+            return;
+
+        flusher.execute(this::flush);
+
+        flushScheduled = true;
+    }
+
+    /** Write the records which nobody waits for, so they aren't kept in memory longer than the flush interval. */
+    private void onFlushTimer() {
+        lock.lock();
+        try {
+            if (appendBuffer.position() > 0)
+                requestFlush();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Pass of the flusher, the next pass is submitted right after it if there is something more to write. */
+    private void flush() {
+        boolean more = false;
+
+        try {
+            more = flushPass();
+        }
+        finally {
+            lock.lock();
+            try {
+                flushScheduled = false;
+
+                if (more)
+                    requestFlush();
+
+                flushFinished.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write everything appended since the previous pass to the segment files and complete the waiters.
+     *
+     * @return {@code true} if there is something more to write.
+     */
+    private boolean flushPass() {
+        long endPosition;
+        long maxId;
+        long consumed;
+        Map<String, Long> checkpoint;
+        boolean sync;
+
+        lock.lock();
+        try {
+            if (appendBuffer.position() == 0 && syncWaiters.isEmpty() && writeWaiters.isEmpty())
+                return false;
+
+            ByteBuffer buf = appendBuffer;
+            appendBuffer = flushBuffer;
+            flushBuffer = buf;
+
+            endPosition = appendedPosition;
+            maxId = appendedMaxId;
+            consumed = consumedId;
+            sync = !syncWaiters.isEmpty();
+
+            //The marks are copied only for the new segment, they are as new as the records of the buffer.
+            checkpoint = currentSegment.size >= segmentSize && !marks.isEmpty() ? new HashMap<>(marks) : null;
+
+            appendedMaxId = 0;
+            bufferFull = false;
+
+            bufferFreed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        List<Waiter> completed = new ArrayList<>();
+
+        try {
+            write(flushBuffer, maxId, consumed, checkpoint);
+
+            if (sync)
+                currentSegment.channel.force(false);
+
+            deleteConsumedSegments(consumed);
+        }
+        catch (IOException e) {
+            log.error("Write to write-ahead log failed :: ", e);
+
+            lock.lock();
+            try {
+                failure = e;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        boolean more;
+
+        lock.lock();
+        try {
+            drain(writeWaiters, endPosition, completed);
+
+            if (sync || failure != null)
+                drain(syncWaiters, endPosition, completed);
+
+            //Waiters of records appended during the write are served by the next pass without the wait for the timer.
+            more = !writeWaiters.isEmpty() || !syncWaiters.isEmpty() || bufferFull ||
+                closed && appendBuffer.position() > 0;
+        }
+        finally {
+            lock.unlock();
+        }
+
+        for (Waiter waiter : completed) {
+            if (failure == null)
+                waiter.future.complete(null);
+            else
+                waiter.future.completeExceptionally(failure);
+        }
+
+        return more;
+    }
+
+    /**
+     * Write the buffer to the current segment, the next segment is started if the current one is full.
+     *
+     * @param buf Buffer for write.
+     * @param maxId Max id of the line in the buffer.
+     * @param consumed Max consumed id which was appended to the log.
+     * @param checkpoint Marks of producers up to the end of the buffer or {@code null} if there are no marks.
+     * @throws IOException If fail.
+     */
+    private void write(ByteBuffer buf, long maxId, long consumed, Map<String, Long> checkpoint) throws IOException {
+        buf.flip();
+
+        try {
+            if (!buf.hasRemaining())
+                return;
+
+            boolean rollover = currentSegment.size >= segmentSize;
+
+            if (rollover) {
+                currentSegment.channel.force(false);
+                currentSegment.channel.close();
+
+                closedSegments.add(currentSegment);
+
+                currentSegment = openNextSegment();
+
+                //The consumed offset is carried to the new segment, so the older segments can be deleted independently.
+                writeFully(record(CONSUMED_RECORD, consumed));
+            }
+
+            writeFully(buf);
+
+            //The marks are carried after the lines of the buffer, so they are never ahead of the written lines.
+            if (rollover && checkpoint != null) {
+                for (Map.Entry<String, Long> mark : checkpoint.entrySet()) {
+                    byte[] producer = mark.getKey().getBytes(StandardCharsets.US_ASCII);
+
+                    writeFully(record(PRODUCER_RECORD, mark.getValue(), producer));
+                }
+            }
+
+            currentSegment.maxId = Math.max(currentSegment.maxId, maxId);
+        }
+        finally {
+            buf.clear();
+        }
+    }
+
+    /** Make the record without payload. */
+    private static ByteBuffer record(byte type, long id) {
+        return record(type, id, null);
+    }
+
+    private static ByteBuffer record(byte type, long id, byte[] payload) {
+        ByteBuffer res = ByteBuffer.allocate(RECORD_HEADER_SIZE + (payload == null ? 0 : payload.length));
+
+        put(res, checksum(type, id, payload), type, id, payload);
+
+        res.flip();
+
+        return res;
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        currentSegment.size += buf.remaining();
+
+        while (buf.hasRemaining())
+            currentSegment.channel.write(buf);
+    }
+
+    /** Delete the segments which contain only consumed lines. */
+    private void deleteConsumedSegments(long consumed) throws IOException {
+        for (Iterator<Segment> it = closedSegments.iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+
+            if (segment.maxId <= consumed) {
+                Files.deleteIfExists(segment.path);
+
+                it.remove();
+            }
+        }
+    }
+
+    private Segment openNextSegment() throws IOException {
+        Path path = walDir.resolve(String.format("%016d%s", nextSegmentIndex++, SEGMENT_EXTENSION));
+
+        return new Segment(path, FileChannel.open(path, WRITE, CREATE_NEW));
+    }
+
+    private void closeCurrentSegment() {
+        try {
+            currentSegment.channel.force(false);
+            currentSegment.channel.close();
+        }
+        catch (IOException e) {
+            log.error("Segment of write-ahead log can't be closed :: ", e);
+        }
+    }
+
+    /**
+     * Replay the segments left by the previous run.
+     *
+     * @param lineConsumer Consumer of unconsumed lines in order of their ids.
+     * @return {@code true} if the segments were successfully read.
+     */
+    public boolean replay(Consumer<byte[]> lineConsumer) {
+        return replay(lineConsumer, (producer, seq) -> { });
+    }
+
+    /**
+     * Replay the segments left by the previous run together with the marks of producers.
+     *
+     * @param lineConsumer Consumer of unconsumed lines in order of their ids.
+     * @param markConsumer Consumer of the max sequence number of every producer, it is called after all lines.
+     * @return {@code true} if the segments were successfully read.
+     */
+    public boolean replay(Consumer<byte[]> lineConsumer, BiConsumer<String, Long> markConsumer) {
+        TreeMap<Long, byte[]> lines = new TreeMap<>();
+        Map<String, Long> replayedMarks = new HashMap<>();
+        long[] consumed = {0};
+
+        try {
+            int from = lastRecoveredRun();
+
+            for (int i = from; i < recoverySegments.size(); i++) {
+                Path segment = recoverySegments.get(i);
+
+                //The later recovery which wasn't finished is only the partial copy of the replayed segments.
+                if (i != from && startsRun(segment))
+                    break;
+
+                readRecords(segment, true, (type, id, payload) -> {
+                    if (type == PUT_RECORD) {
+                        if (id > consumed[0])
+                            lines.put(id, payload);
+                    }
+                    else if (type == CONSUMED_RECORD && id > consumed[0]) {
+                        consumed[0] = id;
+
+                        lines.headMap(consumed[0], true).clear();
+                    }
+                    else if (type == PRODUCER_RECORD)
+                        replayedMarks.merge(new String(payload, StandardCharsets.US_ASCII), id, Math::max);
+                });
+            }
+        }
+        catch (IOException e) {
+            log.error("Something was going wrong during the replay of write-ahead log :: ", e);
+
+            return false;
+        }
+
+        for (Map.Entry<Long, byte[]> entry : lines.entrySet())
+            lineConsumer.accept(entry.getValue());
+
+        for (Map.Entry<String, Long> mark : replayedMarks.entrySet())
+            markConsumer.accept(mark.getKey(), mark.getValue());
+
+        return true;
+    }
+
+    /**
+     * Find the last run which finished its recovery. Its segments have the complete copy of all older segments, which
+     * can still exist if the run crashed while it was deleting them.
+     *
+     * @return Index of the first segment of the run or {@code 0} if no run finished the recovery.
+     * @throws IOException If fail.
+     */
+    private int lastRecoveredRun() throws IOException {
+        int res = 0;
+        int runStart = 0;
+
+        for (int i = 0; i < recoverySegments.size(); i++) {
+            Path segment = recoverySegments.get(i);
+
+            if (startsRun(segment))
+                runStart = i;
+
+            boolean[] recovered = {false};
+
+            readRecords(segment, false, (type, id, payload) -> recovered[0] |= type == RECOVERED_RECORD);
+
+            if (recovered[0])
+                res = runStart;
+        }
+
+        return res;
+    }
+
+    /**
+     * @param segment Segment file.
+     * @return {@code true} if the segment is the first one of its run.
+     * @throws IOException If fail.
+     */
+    private static boolean startsRun(Path segment) throws IOException {
+        try (FileChannel ch = FileChannel.open(segment, READ)) {
+            ByteBuffer type = ByteBuffer.allocate(1);
+
+            return ch.read(type, Integer.BYTES) == 1 && type.get(0) == RECOVERY_RECORD;
+        }
+    }
+
+    /**
+     * Read records of the segment up to the end or up to the torn tail.
+     *
+     * @param segment Segment file.
+     * @param payloads {@code true} if payloads should be read, otherwise they are skipped without the check of their
+     * checksums and {@code null} is given instead of them.
+     * @param handler Handler of records.
+     * @throws IOException If fail.
+     */
+    private static void readRecords(Path segment, boolean payloads, RecordHandler handler) throws IOException {
+        try (FileChannel ch = FileChannel.open(segment, READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+            while (buf.remaining() >= RECORD_HEADER_SIZE) {
+                int crc = buf.getInt();
+                byte type = buf.get();
+                long id = buf.getLong();
+                int size = buf.getInt();
+
+                if (size < 0 || size > buf.remaining())
+                    break;
+
+                boolean hasPayload = type == PUT_RECORD || type == PRODUCER_RECORD;
+
+                byte[] payload = hasPayload && payloads ? new byte[size] : null;
+
+                if (payload != null)
+                    buf.get(payload);
+                else
+                    buf.position(buf.position() + size);
+
+                //The tail of the segment can be torn by the crash, nothing after it can be trusted.
+                if ((payload != null || !hasPayload) && crc != checksum(type, id, payload))
+                    break;
+
+                handler.accept(type, id, payload);
+            }
+
+            if (payloads && buf.hasRemaining())
+                log.warn("Segment of write-ahead log has the torn tail :: {}", segment);
+        }
+    }
+
+    /**
+     * @return {@code true} if there are segments left by the previous run which should be replayed.
+     */
+    public boolean hasRecoverySegments() {
+        return !recoverySegments.isEmpty();
+    }
+
+    /**
+     * Finish the recovery: the actual state is forced to the disk together with the record of the finished recovery and
+     * the segments of previous run are deleted. If the deletion is interrupted by the crash, the next replay starts
+     * from this run, since it has the complete copy of the rest of deleted segments.
+     *
+     * @return {@code true} if the recovery was successfully finished.
+     */
+    public boolean finishRecovery() {
+        if (recoverySegments.isEmpty())
+            return true;
+
+        try {
+            append(RECOVERED_RECORD, 0, null, null, 0, Durability.MEMORY);
+
+            sync().join();
+
+            for (Path segment : recoverySegments)
+                Files.deleteIfExists(segment);
+
+            recoverySegments.clear();
+
+            return true;
+        }
+        catch (Exception e) {
+            log.error("Segments of previous run can't be deleted :: ", e);
+
+            return false;
+        }
+    }
+
+    /** Write everything appended and stop the flusher. */
+    @Override public void close() {
+        flushTimer.cancel(false);
+
+        lock.lock();
+        try {
+            closed = true;
+
+            //The running pass is finished by the executor, the rest is written by the closing thread.
+            while (flushScheduled)
+                flushFinished.awaitUninterruptibly();
+
+            flushScheduled = true;
+        }
+        finally {
+            lock.unlock();
+        }
+
+        try {
+            boolean more = true;
+
+            while (more)
+                more = flushPass();
+        }
+        finally {
+            closeCurrentSegment();
+
+            if (ownFlusher)
+                flusher.shutdownNow();
+        }
+    }
+
+    private static void drain(ArrayDeque<Waiter> waiters, long position, List<Waiter> res) {
+        while (!waiters.isEmpty() && waiters.peek().position <= position)
+            res.add(waiters.poll());
+    }
+
+    private static int checksum(byte type, long id, byte[] payload) {
+        CRC32 crc = new CRC32();
+
+        ByteBuffer header = ByteBuffer.allocate(1 + Long.BYTES);
+        header.put(type);
+        header.putLong(id);
+
+        crc.update(header.array());
+
+        if (payload != null)
+            crc.update(payload);
+
+        return (int)crc.getValue();
+    }
+
+    private static CompletableFuture<Void> failed(IOException e) {
+        CompletableFuture<Void> fut = new CompletableFuture<>();
+
+        fut.completeExceptionally(e);
+
+        return fut;
+    }
+
+    private static List<Path> listSegments(Path dir) throws IOException {
+        List<Path> res = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_EXTENSION)) {
+            for (Path path : stream)
+                res.add(path);
+        }
+
+        Collections.sort(res);
+
+        return res;
+    }
+
+    private static long segmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+    }
+
+    /** Appender which waits for its record to reach some durability. */
+    private static class Waiter {
+        /** Position right after the record. */
+        final long position;
+
+        final CompletableFuture<Void> future;
+
+        Waiter(long position, CompletableFuture<Void> future) {
+            this.position = position;
+            this.future = future;
+        }
+    }
+
+    /** File of the log. */
+    private static class Segment {
+        final Path path;
+
+        final FileChannel channel;
+
+        /** Number of written bytes. */
+        long size;
+
+        /** Max id of the line in this segment. */
+        long maxId;
+
+        Segment(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /** Handler of records of the segment. */
+    private interface RecordHandler {
+        /**
+         * @param type Type of the record.
+         * @param id Id of the record.
+         * @param payload Payload of the record or {@code null}.
+         */
+        void accept(byte type, long id, byte[] payload);
+    }
+}
@@ -15,6 +15,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
+import org.github.akalash.linequeue.command.BinaryProtocol;
 import org.junit.Test;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -22,6 +23,7 @@ import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 
 public class LineQueueApplicationTest {
@@ -128,6 +130,128 @@ public class LineQueueApplicationTest {
         }
     }
 
+    @Test
+    public void inlineExecution() throws IOException, InterruptedException, ExecutionException {
+        LineQueueApplication app = new LineQueueApplication();
+        new File(DUMP_FILE).delete();
+
+        try {
+            app.start(new LineQueueConfiguration()
+                .setDumpFilePath(DUMP_FILE)
+                .setPort(TEST_PORT)
+                .setReadWriteSocketThreadCount(2)
+                .setInlineExecution(true)
+            );
+
+            ExecutorService executorService = Executors.newFixedThreadPool(1);
+
+            Future<List<String>> future = executorService.submit(makeClient(Arrays.asList(
+                "PUT 1\r\n",
+                "PUT 2\r\n",
+                "GET 2\r\n",
+                "PUT 3\r\n",
+                "GET 2\r\n",
+                "GET 1\r\n"
+            )));
+
+            assertThat(future.get(), contains("1\r\n2\r\n", "ERR\r\n", "3\r\n"));
+        }
+        finally {
+            app.stop();
+        }
+    }
+
+    @Test
+    public void threadPerConnectionEngine() throws IOException, InterruptedException, ExecutionException {
+        LineQueueApplication app = new LineQueueApplication();
+        new File(DUMP_FILE).delete();
+
+        try {
+            app.start(new LineQueueConfiguration()
+                .setDumpFilePath(DUMP_FILE)
+                .setPort(TEST_PORT)
+                .setServerEngine(ServerEngine.THREAD_PER_CONNECTION)
+            );
+
+            ExecutorService executorService = Executors.newFixedThreadPool(2);
+
+            Future<List<String>> consumer = executorService.submit(makeClient(Arrays.asList(
+                "GET 2 10000\r\n",
+                "GET 1 10000\r\n"
+            )));
+
+            Future<List<String>> producer = executorService.submit(makeClient(Arrays.asList(
+                "PUT 1\r\n",
+                "PUT 2\r\n",
+                "PUT 3\r\n"
+            )));
+
+            producer.get();
+
+            assertThat(consumer.get(), contains("1\r\n2\r\n", "3\r\n"));
+        }
+        finally {
+            app.stop();
+        }
+    }
+
+    @Test
+    public void binaryProtocol() throws IOException, InterruptedException, ExecutionException {
+        for (ServerEngine engine : ServerEngine.values()) {
+            LineQueueApplication app = new LineQueueApplication();
+            new File(DUMP_FILE).delete();
+
+            try {
+                app.start(new LineQueueConfiguration()
+                    .setDumpFilePath(DUMP_FILE)
+                    .setPort(TEST_PORT)
+                    .setServerEngine(engine)
+                );
+
+                try (SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", TEST_PORT))) {
+                    ByteBuffer request = ByteBuffer.allocate(1024);
+
+                    request.put(BinaryProtocol.MAGIC);
+
+                    //PUT of two lines.
+                    request.putInt(1 + 2 + 4 + 4 + 1 + 4 + 3);
+                    request.put(BinaryProtocol.OP_PUT).putShort((short)0).putInt(2);
+                    request.putInt(1).put((byte)'1');
+                    request.putInt(3).put(new byte[] {'2', ' ', '3'});
+
+                    //GET of both lines.
+                    request.putInt(1 + 2 + 4 + 8);
+                    request.put(BinaryProtocol.OP_GET).putShort((short)0).putInt(2).putLong(0);
+
+                    request.flip();
+
+                    client.write(request);
+
+                    ByteBuffer expected = ByteBuffer.allocate(1024);
+
+                    expected.putInt(5).put(BinaryProtocol.STATUS_OK).putInt(2);
+                    expected.putInt(1 + 8 + 4 + 4 + 1 + 4 + 3).put(BinaryProtocol.STATUS_OK).putLong(0).putInt(2);
+                    expected.putInt(1).put((byte)'1');
+                    expected.putInt(3).put(new byte[] {'2', ' ', '3'});
+
+                    expected.flip();
+
+                    ByteBuffer response = ByteBuffer.allocate(expected.remaining());
+
+                    for (int read = 0; read != -1 && response.hasRemaining(); )
+                        read = client.read(response);
+
+                    response.flip();
+
+                    assertThat(response, is(expected));
+                }
+            }
+            finally {
+                app.stop();
+            }
+        }
+    }
+
     private Callable<List<String>> makeClient(List<String> commands) {
         return () -> {
             List<String> result = new ArrayList<>();
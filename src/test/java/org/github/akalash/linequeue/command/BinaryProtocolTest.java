@@ -0,0 +1,162 @@
+package org.github.akalash.linequeue.command;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.github.akalash.linequeue.storage.LineQueue;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+import org.github.akalash.linequeue.storage.QueueCapacity;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BinaryProtocolTest {
+
+    @Test
+    public void batchIsStoredAndPolledByFrames() {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        ByteBuffer put = putFrame("QUEUE=q", "a", "multi line", "");
+
+        assertThat(body(executor.handleFrameAsync(put.array(), 0).join()), is(status(BinaryProtocol.STATUS_OK, 3)));
+
+        ByteBuffer res = ByteBuffer.wrap(body(executor.handleFrameAsync(getFrame("QUEUE=q", 2), 0).join()));
+
+        assertThat(res.get(), is(BinaryProtocol.STATUS_OK));
+        assertThat(res.getLong(), is(0L));
+        assertThat(res.getInt(), is(2));
+        assertThat(line(res), is("a"));
+        assertThat(line(res), is("multi line"));
+        assertThat(res.hasRemaining(), is(false));
+
+        //Not enough lines without the mode.
+        assertThat(body(executor.handleFrameAsync(getFrame("QUEUE=q", 2), 0).join()), is(error()));
+
+        res = ByteBuffer.wrap(body(executor.handleFrameAsync(getFrame("QUEUE=q:MODE=UPTO", 2), 0).join()));
+
+        assertThat(res.get(), is(BinaryProtocol.STATUS_OK));
+        assertThat(res.getLong(), is(0L));
+        assertThat(res.getInt(), is(1));
+        assertThat(line(res), is(""));
+    }
+
+    @Test
+    public void batchIsCutWhenQueuesAreFull() {
+        LineQueueRegistry queues = new LineQueueRegistry("", null, 1, (name, stripe, path) -> new LineQueue(path),
+            new QueueCapacity(2, 0));
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues, false), new GetCommand(queues)));
+
+        ByteBuffer put = putFrame("", "a", "b", "c");
+
+        assertThat(body(executor.handleFrameAsync(put.array(), 0).join()), is(status(BinaryProtocol.STATUS_BUSY, 2)));
+
+        assertThat(executor.handleRequest("GET 2\r\n".getBytes()), is("a\r\nb\r\n".getBytes()));
+    }
+
+    @Test
+    public void linesAreSharedWithTextProtocol() {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        //Text lines are received by the binary consumer without line breaks.
+        executor.handleRequest("PUT a\r\n".getBytes());
+        executor.handleRequest("PUT b\n".getBytes());
+
+        ByteBuffer res = ByteBuffer.wrap(body(executor.handleFrameAsync(getFrame("", 2), 0).join()));
+
+        assertThat(res.get(), is(BinaryProtocol.STATUS_OK));
+        assertThat(res.getLong(), is(0L));
+        assertThat(res.getInt(), is(2));
+        assertThat(line(res), is("a"));
+        assertThat(line(res), is("b"));
+
+        //Binary lines are received by the text consumer as separate lines.
+        executor.handleFrameAsync(putFrame("", "c", "d").array(), 0).join();
+
+        assertThat(executor.handleRequest("GET 2\r\n".getBytes()), is("c\r\nd\r\n".getBytes()));
+
+        //The line with the line break would be split by the text consumer.
+        assertThat(body(executor.handleFrameAsync(putFrame("", "e", "f\ng").array(), 0).join()), is(error()));
+        assertThat(body(executor.handleFrameAsync(putFrame("", "h\r").array(), 0).join()), is(error()));
+        assertThat(executor.handleRequest("GET:MODE=UPTO 2\r\n".getBytes()), is("0\r\n".getBytes()));
+    }
+
+    @Test
+    public void textRequestIsFramed() {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        executor.handleRequest("PUT a\r\n".getBytes());
+
+        byte[] get = "\u0003GET 1\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        ByteBuffer res = ByteBuffer.wrap(body(executor.handleFrameAsync(get, 0).join()));
+
+        assertThat(res.get(), is(BinaryProtocol.STATUS_OK));
+        assertThat(StandardCharsets.US_ASCII.decode(res).toString(), is("a\r\n"));
+
+        //Unknown operation and the unexpected end of the frame.
+        assertThat(body(executor.handleFrameAsync(new byte[] {9}, 0).join()), is(error()));
+        assertThat(body(executor.handleFrameAsync(new byte[] {BinaryProtocol.OP_GET, 0}, 0).join()), is(error()));
+    }
+
+    /** @return Frame without its length. */
+    private static ByteBuffer putFrame(String qualifiers, String... lines) {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+
+        buf.put(BinaryProtocol.OP_PUT);
+        buf.putShort((short)qualifiers.length());
+        buf.put(qualifiers.getBytes(StandardCharsets.US_ASCII));
+        buf.putInt(lines.length);
+
+        for (String line : lines) {
+            buf.putInt(line.length());
+            buf.put(line.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        return ByteBuffer.wrap(Arrays.copyOf(buf.array(), buf.position()));
+    }
+
+    /** @return Frame without its length. */
+    private static byte[] getFrame(String qualifiers, int count) {
+        return ByteBuffer.allocate(1 + 2 + qualifiers.length() + 4 + 8)
+            .put(BinaryProtocol.OP_GET)
+            .putShort((short)qualifiers.length())
+            .put(qualifiers.getBytes(StandardCharsets.US_ASCII))
+            .putInt(count)
+            .putLong(0)
+            .array();
+    }
+
+    /** @return Body of the response frame after the checked length. */
+    private static byte[] body(List<byte[]> parts) {
+        ByteBuffer frame = ByteBuffer.wrap(Command.concat(parts));
+
+        assertThat(frame.getInt(), is(frame.remaining()));
+
+        return Arrays.copyOfRange(frame.array(), frame.position(), frame.limit());
+    }
+
+    private static byte[] status(byte status, int stored) {
+        return ByteBuffer.allocate(5).put(status).putInt(stored).array();
+    }
+
+    private static byte[] error() {
+        return new byte[] {BinaryProtocol.STATUS_ERROR};
+    }
+
+    private static String line(ByteBuffer buf) {
+        byte[] line = new byte[buf.getInt()];
+
+        buf.get(line);
+
+        return new String(line, StandardCharsets.US_ASCII);
+    }
+}
@@ -6,7 +6,6 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
-import static org.github.akalash.linequeue.command.CommandExecutor.ERROR;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
@@ -15,6 +14,8 @@ public class CommandExecutorTest {
 
     public static final String TEST_COMMAND_NAME = "TEST";
 
+    private static final String ERROR = new String(CommandExecutor.ERROR);
+
     @Parameterized.Parameters
     public static Collection<Object[]> data() {
         return Arrays.asList(new Object[][] {
@@ -25,6 +26,8 @@ public class CommandExecutorTest {
             {"FF", ERROR},
             {"TEST", null},
             {"TEST  ", " "},
+            {"TEST:KEY=VALUE 123", ERROR},
+            {"TEST: 123", ERROR},
         });
     }
 
@@ -36,14 +39,14 @@ public class CommandExecutorTest {
                 return TEST_COMMAND_NAME;
             }
 
-            @Override public String execute(String payload) {
+            @Override public byte[] execute(byte[] payload) {
                 return payload;
             }
         }));
 
-        String res = executor.handleRequest(request);
+        byte[] res = executor.handleRequest(request.getBytes());
 
-        assertThat(res, is(expectedResult));
+        assertThat(res == null ? null : new String(res), is(expectedResult));
     }
 
     private final String request;
@@ -0,0 +1,222 @@
+package org.github.akalash.linequeue.command;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.github.akalash.linequeue.storage.LineQueue;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+import org.github.akalash.linequeue.storage.PriorityOrder;
+import org.github.akalash.linequeue.storage.QueueCapacity;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+public class GetCommandTest {
+
+    @Test
+    public void linesAreReturnedByteToByte() {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        //Not a valid text in any charset.
+        byte[] first = {'P', 'U', 'T', ' ', (byte)0xD0, (byte)0x96, (byte)0xFF, '\r', '\n'};
+        byte[] second = {'P', 'U', 'T', ' ', (byte)0x80, '\n'};
+
+        assertThat(executor.handleRequest(first).length, is(0));
+        assertThat(executor.handleRequest(second).length, is(0));
+
+        assertThat(
+            executor.handleRequest("GET 2\r\n".getBytes()),
+            is(new byte[] {(byte)0xD0, (byte)0x96, (byte)0xFF, '\r', '\n', (byte)0x80, '\n'})
+        );
+        assertThat(executor.handleRequest("GET 1\r\n".getBytes()), is(CommandExecutor.ERROR));
+    }
+
+    @Test
+    public void unknownQueueIsNotCreated() {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(
+            new PutCommand(queues), new GetCommand(queues), new StatsCommand(queues)));
+
+        assertThat(executor.handleRequest("GET:QUEUE=q 1\r\n".getBytes()), is(CommandExecutor.ERROR));
+        assertThat(executor.handleRequest("STATS:QUEUE=q\r\n".getBytes()), is(CommandExecutor.ERROR));
+
+        //The incorrect line doesn't create the queue as well.
+        assertThat(executor.handleRequest("PUT:QUEUE=q:TTL=0 a\r\n".getBytes()), is(CommandExecutor.ERROR));
+        assertThat(executor.handleRequest("GET:QUEUE=q 1\r\n".getBytes()), is(CommandExecutor.ERROR));
+
+        executor.handleRequest("PUT:QUEUE=q a\r\n".getBytes());
+
+        assertThat(executor.handleRequest("GET:QUEUE=q 1\r\n".getBytes()), is("a\r\n".getBytes()));
+    }
+
+    @Test
+    public void getWaitsForLines() throws Exception {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        CompletableFuture<byte[]> waiting = executor.handleRequestAsync("GET 1 10000\r\n".getBytes());
+
+        assertFalse(waiting.isDone());
+
+        executor.handleRequest("PUT a\r\n".getBytes());
+
+        assertThat(waiting.get(10, TimeUnit.SECONDS), is("a\r\n".getBytes()));
+
+        assertThat(executor.handleRequest("GET 1 10\r\n".getBytes()), is(CommandExecutor.ERROR));
+        assertThat(executor.handleRequest("GET 1 -1\r\n".getBytes()), is(CommandExecutor.ERROR));
+    }
+
+    @Test
+    public void getUpToCount() {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        assertThat(executor.handleRequest("GET:MODE=UPTO 1000\r\n".getBytes()), is("0\r\n".getBytes()));
+
+        executor.handleRequest("PUT a\r\n".getBytes());
+        executor.handleRequest("PUT b\r\n".getBytes());
+        executor.handleRequest("PUT c\r\n".getBytes());
+
+        assertThat(executor.handleRequest("GET:MODE=UPTO 2\r\n".getBytes()), is("2\r\na\r\nb\r\n".getBytes()));
+        assertThat(executor.handleRequest("GET:MODE=UPTO 1000\r\n".getBytes()), is("1\r\nc\r\n".getBytes()));
+        assertThat(executor.handleRequest("GET:MODE=UPTO 1000 10\r\n".getBytes()), is("0\r\n".getBytes()));
+        assertThat(executor.handleRequest("GET:MODE=ALL 1\r\n".getBytes()), is(CommandExecutor.ERROR));
+    }
+
+    @Test
+    public void leasedLinesAreRedelivered() throws Exception {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(
+            new PutCommand(queues),
+            new GetCommand(queues),
+            new AckCommand(queues),
+            new NackCommand(queues)
+        ));
+
+        executor.handleRequest("PUT a\r\n".getBytes());
+        executor.handleRequest("PUT b\r\n".getBytes());
+        executor.handleRequest("PUT c\r\n".getBytes());
+
+        String[] first = new String(executor.handleRequest("GET:LEASE=100000 1\r\n".getBytes())).split("\r\n");
+        String[] second = new String(executor.handleRequest("GET:LEASE=100 1\r\n".getBytes())).split("\r\n");
+
+        assertThat(first[1], is("a"));
+        assertThat(second[1], is("b"));
+
+        //The expired lease is redelivered before new lines.
+        Thread.sleep(500);
+
+        assertThat(executor.handleRequest("GET 2\r\n".getBytes()), is("b\r\nc\r\n".getBytes()));
+        assertThat(executor.handleRequest(("ACK " + second[0]).getBytes()), is(CommandExecutor.ERROR));
+
+        //The returned lease is redelivered immediately.
+        assertThat(executor.handleRequest(("NACK " + first[0]).getBytes()), is(Command.OK));
+
+        String[] third = new String(executor.handleRequest("GET:LEASE=100000:MODE=UPTO 5\r\n".getBytes())).split("\r\n");
+
+        assertThat(Arrays.copyOfRange(third, 1, third.length), is(new String[] {"1", "a"}));
+        assertThat(executor.handleRequest(("ACK " + third[0]).getBytes()), is(Command.OK));
+        assertThat(executor.handleRequest(("ACK " + third[0]).getBytes()), is(CommandExecutor.ERROR));
+        assertThat(executor.handleRequest("GET:LEASE=100000:MODE=UPTO 5\r\n".getBytes()), is("0\r\n0\r\n".getBytes()));
+    }
+
+    @Test
+    public void expiredLinesAreCounted() throws Exception {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues),
+            new StatsCommand(queues)));
+
+        executor.handleRequest("PUT:TTL=50 a\r\n".getBytes());
+        executor.handleRequest("PUT b\r\n".getBytes());
+
+        assertThat(executor.handleRequest("PUT:TTL=0 c\r\n".getBytes()), is(CommandExecutor.ERROR));
+
+        Thread.sleep(300);
+
+        assertThat(executor.handleRequest("STATS\r\n".getBytes()), is("lines=1 expired=1\r\n".getBytes()));
+        assertThat(executor.handleRequest("GET 1\r\n".getBytes()), is("b\r\n".getBytes()));
+        assertThat(executor.handleRequest("STATS\r\n".getBytes()), is("lines=0 expired=1\r\n".getBytes()));
+    }
+
+    @Test
+    public void putChoosesPriority() {
+        LineQueueRegistry queues = new LineQueueRegistry("", null, 1, (name, stripe, path) -> new LineQueue(path),
+            null, PriorityOrder.strict(2));
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        executor.handleRequest("PUT a\r\n".getBytes());
+        executor.handleRequest("PUT:PRIORITY=1 b\r\n".getBytes());
+
+        assertThat(executor.handleRequest("PUT:PRIORITY=2 c\r\n".getBytes()), is(CommandExecutor.ERROR));
+        assertThat(executor.handleRequest("GET 1\r\n".getBytes()), is("b\r\n".getBytes()));
+        assertThat(executor.handleRequest("GET 1\r\n".getBytes()), is("a\r\n".getBytes()));
+    }
+
+    @Test
+    public void retransmitsAreDropped() {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        assertThat(executor.handleRequest("PUT:PRODUCER=p1:SEQ=1 a\r\n".getBytes()).length, is(0));
+        assertThat(executor.handleRequest("PUT:PRODUCER=p1:SEQ=2 b\r\n".getBytes()).length, is(0));
+        assertThat(executor.handleRequest("PUT:PRODUCER=p1:SEQ=2 b\r\n".getBytes()).length, is(0));
+        assertThat(executor.handleRequest("PUT:PRODUCER=p1:SEQ=1 a\r\n".getBytes()).length, is(0));
+        assertThat(executor.handleRequest("PUT:PRODUCER=p2:SEQ=1 c\r\n".getBytes()).length, is(0));
+
+        assertThat(executor.handleRequest("PUT:PRODUCER=p1 d\r\n".getBytes()), is(CommandExecutor.ERROR));
+        assertThat(executor.handleRequest("PUT:PRODUCER=p1:SEQ=0 d\r\n".getBytes()), is(CommandExecutor.ERROR));
+
+        assertThat(executor.handleRequest("GET 3\r\n".getBytes()), is("a\r\nb\r\nc\r\n".getBytes()));
+        assertThat(executor.handleRequest("GET 1\r\n".getBytes()), is(CommandExecutor.ERROR));
+    }
+
+    @Test
+    public void linesAreRespondedByParts() {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        executor.handleRequest("PUT a\r\n".getBytes());
+        executor.handleRequest("PUT b\r\n".getBytes());
+        executor.handleRequest("PUT c\r\n".getBytes());
+
+        List<byte[]> parts = executor.handleRequestPartsAsync("GET 2\r\n".getBytes(), 0).join();
+
+        assertThat(parts, contains("a\r\n".getBytes(), "b\r\n".getBytes()));
+
+        parts = executor.handleRequestPartsAsync("GET:MODE=UPTO 5\r\n".getBytes(), 0).join();
+
+        assertThat(parts, contains("1\r\n".getBytes(), "c\r\n".getBytes()));
+
+        parts = executor.handleRequestPartsAsync("GET 1\r\n".getBytes(), 0).join();
+
+        assertThat(parts, contains(CommandExecutor.ERROR));
+    }
+
+    @Test
+    public void putIsRejectedWhenQueuesAreFull() {
+        LineQueueRegistry queues = new LineQueueRegistry("", null, 1, (name, stripe, path) -> new LineQueue(path),
+            new QueueCapacity(1, 0));
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues, false), new GetCommand(queues)));
+
+        assertThat(executor.handleRequest("PUT a\r\n".getBytes()).length, is(0));
+        assertThat(executor.handleRequest("PUT b\r\n".getBytes()), is(Command.BUSY));
+        assertThat(executor.handleRequest("GET 1\r\n".getBytes()), is("a\r\n".getBytes()));
+        assertThat(executor.handleRequest("PUT c\r\n".getBytes()).length, is(0));
+        assertThat(executor.handleRequest("GET 1\r\n".getBytes()), is("c\r\n".getBytes()));
+    }
+}
@@ -0,0 +1,58 @@
+package org.github.akalash.linequeue.network;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void buffersAreReused() {
+        BufferPool pool = BufferPool.local();
+
+        ByteBuffer small = pool.acquire(100);
+
+        assertTrue(small.isDirect());
+        assertThat(small.capacity(), is(512));
+        assertThat(small.remaining(), is(512));
+
+        ByteBuffer other = pool.acquire(2000);
+
+        assertThat(other.capacity(), is(2048));
+
+        small.put((byte)1).flip();
+
+        pool.release(small);
+
+        ByteBuffer reused = pool.acquire(512);
+
+        assertThat(reused, sameInstance(small));
+        assertThat(reused.remaining(), is(512));
+
+        //Neighbour buffers of one slab don't overlap.
+        ByteBuffer next = pool.acquire(512);
+
+        reused.put(0, (byte)7);
+        next.put(0, (byte)8);
+
+        assertThat(reused.get(0), is((byte)7));
+        assertThat(next, not(sameInstance(reused)));
+
+        ByteBuffer big = pool.acquire(1024 * 1024);
+
+        assertThat(big.capacity(), is(1024 * 1024));
+
+        pool.release(big);
+
+        assertThat(pool.acquire(1024 * 1024), not(sameInstance(big)));
+
+        pool.release(reused);
+        pool.release(next);
+        pool.release(other);
+    }
+}
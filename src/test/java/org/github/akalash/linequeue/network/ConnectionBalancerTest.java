@@ -0,0 +1,40 @@
+package org.github.akalash.linequeue.network;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConnectionBalancerTest {
+
+    @Test
+    public void connectionsAreSpreadAcrossWorkers() throws IOException {
+        ReadWriteSocketWorker first = new ReadWriteSocketWorker(notifier -> null);
+        ReadWriteSocketWorker second = new ReadWriteSocketWorker(notifier -> null);
+        ReadWriteSocketWorker third = new ReadWriteSocketWorker(notifier -> null);
+
+        ConnectionBalancer balancer = new ConnectionBalancer(first, second, third);
+
+        try {
+            for (int i = 0; i < 6; i++)
+                balancer.accept(SocketChannel.open());
+
+            assertThat(first.connectionCount(), is(2));
+            assertThat(second.connectionCount(), is(2));
+            assertThat(third.connectionCount(), is(2));
+
+            //The least loaded worker wins regardless of the turn.
+            second.establishNewConnection(SocketChannel.open());
+            third.establishNewConnection(SocketChannel.open());
+
+            assertThat(balancer.next(), is(first));
+        }
+        finally {
+            first.stop();
+            second.stop();
+            third.stop();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.github.akalash.linequeue.request;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class DataExchangerTest {
+
+    @Test
+    public void responsesAreWrittenByParts() {
+        DataExchanger exchanger = new DataExchanger(facade -> {}, () -> {});
+
+        exchanger.responseReceived("abc".getBytes());
+        exchanger.responseReceived(Arrays.asList("de".getBytes(), "fgh".getBytes()));
+
+        ByteBuffer[] bufs = new ByteBuffer[2];
+
+        //The cap cuts the second buffer, the third one doesn't fit into the array.
+        assertThat(exchanger.nextResponses(bufs, 4), is(2));
+        assertThat(bufs[0].remaining(), is(3));
+        assertThat(bufs[1].remaining(), is(1));
+
+        //Partial write: "abc" and nothing of "de".
+        bufs[0].position(3);
+
+        exchanger.responsesWritten();
+
+        assertThat(exchanger.nextResponses(bufs, 100), is(2));
+        assertThat(new String(bufs[0].array(), bufs[0].position(), bufs[0].remaining()), is("de"));
+        assertThat(bufs[1].remaining(), is(3));
+
+        bufs[0].position(bufs[0].limit());
+        bufs[1].position(1);
+
+        exchanger.responsesWritten();
+
+        assertTrue(exchanger.hasNextResponse());
+        assertThat(exchanger.nextResponses(bufs, 100), is(1));
+        assertThat(new String(bufs[0].array(), bufs[0].position(), bufs[0].remaining()), is("gh"));
+
+        bufs[0].position(bufs[0].limit());
+
+        exchanger.responsesWritten();
+
+        assertFalse(exchanger.hasNextResponse());
+        assertThat(exchanger.nextResponses(bufs, 100), is(0));
+
+        exchanger.finish();
+
+        assertThat(exchanger.nextResponses(bufs, 100), is(-1));
+    }
+}
@@ -0,0 +1,62 @@
+package org.github.akalash.linequeue.request;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.github.akalash.linequeue.command.BinaryProtocol;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertThat;
+
+public class FrameTokenizerTest {
+
+    @Test
+    public void framesAreExtractedFromAnySplit() {
+        byte[] input = ByteBuffer.allocate(4 + 3 + 4 + 1 + 4 + 5)
+            .putInt(3).put(new byte[] {1, '\n', 2})
+            .putInt(1).put((byte)7)
+            .putInt(5).put(new byte[] {'\r', 0, 0, 0, 5})
+            .array();
+
+        //Every split of the input into two reads gives the same frames.
+        for (int split = 0; split <= input.length; split++) {
+            FrameTokenizer tokenizer = new FrameTokenizer(16);
+
+            List<byte[]> frames = new ArrayList<>();
+
+            frames.addAll(tokenizer.extractFrames(ByteBuffer.wrap(input, 0, split)));
+            frames.addAll(tokenizer.extractFrames(ByteBuffer.wrap(input, split, input.length - split)));
+
+            assertThat(frames, contains(new byte[] {1, '\n', 2}, new byte[] {7}, new byte[] {'\r', 0, 0, 0, 5}));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tooBigFrameIsRejected() {
+        new FrameTokenizer(16).extractFrames(ByteBuffer.wrap(ByteBuffer.allocate(4).putInt(17).array()));
+    }
+
+    @Test
+    public void protocolIsChosenByFirstByte() {
+        RequestDecoder binary = new RequestDecoder(16);
+
+        byte[] frame = ByteBuffer.allocate(1 + 4 + 2).put(BinaryProtocol.MAGIC).putInt(2).put(new byte[] {'A', '\n'})
+            .array();
+
+        assertThat(binary.decode(ByteBuffer.wrap(frame)), contains(new byte[] {'A', '\n'}));
+        assertThat(binary.isBinary(), is(true));
+
+        RequestDecoder text = new RequestDecoder(16);
+
+        assertThat(text.decode(ByteBuffer.wrap("A\nB\n".getBytes())), contains("A\n".getBytes(), "B\n".getBytes()));
+        assertThat(text.isBinary(), is(false));
+
+        //Nothing is chosen by the empty read.
+        RequestDecoder empty = new RequestDecoder(16);
+
+        assertThat(empty.decode(ByteBuffer.allocate(0)).isEmpty(), is(true));
+        assertThat(empty.decode(ByteBuffer.wrap(frame)), contains(new byte[] {'A', '\n'}));
+    }
+}
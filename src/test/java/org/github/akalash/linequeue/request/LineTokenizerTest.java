@@ -42,7 +42,9 @@ public class LineTokenizerTest {
         List<String> result = new ArrayList<>();
 
         inputLine.forEach(
-            line -> result.addAll(tokenizer.extractCompletedLines(ByteBuffer.wrap(line.getBytes())))
+            line -> tokenizer.extractCompletedLines(ByteBuffer.wrap(line.getBytes())).forEach(
+                bytes -> result.add(new String(bytes))
+            )
         );
 
         assertThat(result, Matchers.is(expectedResult));
@@ -0,0 +1,91 @@
+package org.github.akalash.linequeue.request;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.github.akalash.linequeue.command.CommandExecutor;
+import org.github.akalash.linequeue.command.GetCommand;
+import org.github.akalash.linequeue.command.PutCommand;
+import org.github.akalash.linequeue.command.SnapshotCommand;
+import org.github.akalash.linequeue.storage.LineQueueRegistry;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class RequestExecutionWorkerTest {
+
+    @Test
+    public void requestsAreExecutedInline() throws Exception {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(
+            new PutCommand(queues),
+            new GetCommand(queues),
+            new SnapshotCommand(queues)
+        ));
+
+        RequestRegistry registry = new RequestRegistry();
+
+        RequestExecutionWorker worker = new RequestExecutionWorker(registry, executor);
+
+        DataExchanger exchanger = new DataExchanger(worker::executeInline, () -> {});
+
+        exchanger.requestReceived(ByteBuffer.wrap("PUT a\r\nPUT b\r\nGET 1\r\n".getBytes()));
+
+        //Nothing is passed to the workers, the response is ready right after the read.
+        assertThat(registry.poll(0, TimeUnit.MILLISECONDS), nullValue());
+        assertThat(response(exchanger), is("a\r\n"));
+
+        //The slow command and everything after it go to the workers in order.
+        exchanger.requestReceived(ByteBuffer.wrap("SNAPSHOT\r\nGET 1\r\n".getBytes()));
+
+        assertThat(registry.poll(0, TimeUnit.MILLISECONDS), sameInstance(exchanger));
+        assertThat(exchanger.peekRequest(), is("SNAPSHOT\r\n".getBytes()));
+
+        //The facade is still being handled, so the next read doesn't execute anything.
+        exchanger.requestReceived(ByteBuffer.wrap("GET 1\r\n".getBytes()));
+
+        assertThat(exchanger.peekRequest(), is("SNAPSHOT\r\n".getBytes()));
+    }
+
+    @Test
+    public void failedRequestIsRespondedInline() throws Exception {
+        LineQueueRegistry queues = new LineQueueRegistry("");
+
+        CommandExecutor executor = new CommandExecutor(Arrays.asList(new PutCommand(queues), new GetCommand(queues)));
+
+        RequestRegistry registry = new RequestRegistry();
+
+        RequestExecutionWorker worker = new RequestExecutionWorker(registry, executor);
+
+        DataExchanger exchanger = new DataExchanger(worker::executeInline, () -> {});
+
+        //GET without arguments fails the command on the I/O thread.
+        exchanger.requestReceived(ByteBuffer.wrap("PUT a\r\nGET\r\n".getBytes()));
+
+        assertThat(response(exchanger), is("ERR\r\n"));
+
+        //The facade is released, so the next requests are executed inline as well.
+        exchanger.requestReceived(ByteBuffer.wrap("GET 1\r\n".getBytes()));
+
+        assertThat(registry.poll(0, TimeUnit.MILLISECONDS), nullValue());
+        assertThat(response(exchanger), is("a\r\n"));
+    }
+
+    private static String response(DataExchanger exchanger) {
+        ByteBuffer[] bufs = new ByteBuffer[1];
+
+        assertThat(exchanger.nextResponses(bufs, 100), is(1));
+
+        String res = new String(bufs[0].array(), bufs[0].position(), bufs[0].remaining());
+
+        bufs[0].position(bufs[0].limit());
+
+        exchanger.responsesWritten();
+
+        return res;
+    }
+}
@@ -0,0 +1,83 @@
+package org.github.akalash.linequeue.storage;
+
+import org.junit.Test;
+
+import static org.github.akalash.linequeue.storage.ChunkedRingBuffer.CHUNK_SIZE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ChunkedRingBufferTest {
+
+    @Test
+    public void elementsAcrossManyChunks() {
+        ChunkedRingBuffer<Long> buffer = new ChunkedRingBuffer<>(true);
+
+        long total = CHUNK_SIZE * 40L + 7;
+
+        //The directory grows while nothing is consumed.
+        for (long seq = 1; seq <= total / 2; seq++)
+            buffer.put(seq, seq);
+
+        for (long seq = 1; seq <= total / 2; seq++)
+            assertThat(buffer.take(seq), is(seq));
+
+        buffer.consumed(1, total / 2);
+
+        //Released chunks are reused for the rest of elements.
+        for (long seq = total / 2 + 1; seq <= total; seq++) {
+            buffer.put(seq, seq);
+
+            assertThat(buffer.get(seq), is(seq));
+            assertThat(buffer.take(seq), is(seq));
+            assertThat(buffer.take(seq), nullValue());
+
+            buffer.consumed(seq, seq);
+        }
+    }
+
+    @Test
+    public void notPublishedElement() {
+        ChunkedRingBuffer<String> buffer = new ChunkedRingBuffer<>(true);
+
+        buffer.put(2, "b");
+
+        assertThat(buffer.get(1), nullValue());
+        assertThat(buffer.take(1), nullValue());
+        assertThat(buffer.take(CHUNK_SIZE * 3L), nullValue());
+
+        buffer.put(1, "a");
+
+        assertThat(buffer.take(1), is("a"));
+        assertThat(buffer.take(2), is("b"));
+    }
+
+    @Test
+    public void stalledProducerWhileDirectoryGrows() {
+        ChunkedRingBuffer<Long> buffer = new ChunkedRingBuffer<>(true);
+
+        long total = CHUNK_SIZE * 40L;
+
+        //The first chunk isn't created yet while other producers go far ahead.
+        for (long seq = CHUNK_SIZE + 1; seq <= total; seq++)
+            buffer.put(seq, seq);
+
+        for (long seq = 1; seq <= CHUNK_SIZE; seq++)
+            buffer.put(seq, seq);
+
+        for (long seq = 1; seq <= total; seq++)
+            assertThat(buffer.take(seq), is(seq));
+
+        buffer.consumed(1, total);
+
+        //The producer of the next chunk is stalled while all other chunks are released.
+        long stalled = total + 1;
+
+        for (long seq = total + CHUNK_SIZE + 1; seq <= total * 2; seq++)
+            buffer.put(seq, seq);
+
+        buffer.put(stalled, stalled);
+
+        assertThat(buffer.take(stalled), is(stalled));
+    }
+}
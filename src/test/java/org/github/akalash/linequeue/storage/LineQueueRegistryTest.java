@@ -0,0 +1,167 @@
+package org.github.akalash.linequeue.storage;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LineQueueRegistryTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void queuesAreIndependent() {
+        LineQueueRegistry registry = new LineQueueRegistry(tmp.getRoot().toPath().resolve("queues.dump").toString());
+
+        registry.queue(null).add("a".getBytes(), Durability.MEMORY, 0);
+        registry.queueOrCreate("first").add("b".getBytes(), Durability.MEMORY, 0);
+        registry.queueOrCreate("second").add("c".getBytes(), Durability.MEMORY, 0);
+
+        assertThat(registry.queue(LineQueueRegistry.DEFAULT_QUEUE), sameInstance(registry.queue(null)));
+
+        assertThat(lines(registry.queue("second").poll(1, 0)), contains("c"));
+        assertThat(lines(registry.queue("first").poll(1, 0)), contains("b"));
+        assertThat(lines(registry.queue(null).poll(1, 0)), contains("a"));
+        assertThat(registry.queueOrCreate("third").poll(1, 0), nullValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownQueueIsNotCreated() {
+        new LineQueueRegistry(tmp.getRoot().toPath().resolve("queues.dump").toString()).queue("first");
+    }
+
+    @Test
+    public void numberOfQueuesIsLimited() {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("queues.dump").toString();
+
+        LineQueueRegistry.QueueFactory factory = (name, stripe, path) -> new LineQueue(path);
+
+        LineQueueRegistry registry = new LineQueueRegistry(dumpFilePath, null, 1, factory, null,
+            PriorityOrder.strict(1), 1);
+
+        registry.queueOrCreate("first").add("a".getBytes(), Durability.MEMORY, 0);
+
+        try {
+            registry.queueOrCreate("second");
+
+            fail();
+        }
+        catch (IllegalStateException expected) {
+            //The limit is reached.
+        }
+
+        //The default queue and the existing one are still available.
+        assertThat(registry.queueOrCreate(null).size(), is(0L));
+        assertThat(registry.queueOrCreate("first").size(), is(1L));
+
+        registry.dump();
+        registry.close();
+
+        //The persisted queues are restored regardless of the limit.
+        LineQueueRegistry restored = new LineQueueRegistry(dumpFilePath, null, 1, factory, null,
+            PriorityOrder.strict(1), 0);
+
+        assertTrue(restored.restore());
+
+        assertThat(lines(restored.queue("first").poll(1, 0)), contains("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void incorrectQueueName() {
+        new LineQueueRegistry(tmp.getRoot().toPath().resolve("queues.dump").toString()).queue("../queue");
+    }
+
+    @Test
+    public void allQueuesAreDumpedAndRestored() {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("queues.dump").toString();
+
+        LineQueueRegistry registry = new LineQueueRegistry(dumpFilePath);
+
+        registry.queue(null).add("a".getBytes(), Durability.MEMORY, 0);
+        registry.queueOrCreate("first").add("b".getBytes(), Durability.MEMORY, 0);
+        registry.queueOrCreate("first").add("c".getBytes(), Durability.MEMORY, 0);
+        registry.queueOrCreate("empty");
+
+        registry.dump();
+        registry.close();
+
+        LineQueueRegistry restored = new LineQueueRegistry(dumpFilePath);
+
+        assertTrue(restored.restore());
+
+        assertThat(lines(restored.queue("first").poll(2, 0)), contains("b", "c"));
+        assertThat(lines(restored.queue(null).poll(1, 0)), contains("a"));
+        assertThat(restored.queue("empty").poll(1, 0), is(nullValue()));
+    }
+
+    @Test
+    public void queueIsNotRestoredWithAnotherNumberOfStripes() {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("queues.dump").toString();
+
+        LineQueueRegistry.QueueFactory factory = (name, stripe, path) -> new LineQueue(path);
+
+        LineQueueRegistry registry = new LineQueueRegistry(dumpFilePath, null, 2, factory);
+
+        registry.queueOrCreate("first").add("a".getBytes(), Durability.MEMORY, 0);
+        registry.queueOrCreate("first").add("b".getBytes(), Durability.MEMORY, 1);
+
+        registry.dump();
+        registry.close();
+
+        //The line of the second stripe would be lost with one stripe.
+        LineQueueRegistry narrowed = new LineQueueRegistry(dumpFilePath, null, 1, factory);
+
+        assertFalse(narrowed.restore());
+
+        narrowed.close();
+
+        LineQueueRegistry restored = new LineQueueRegistry(dumpFilePath, null, 2, factory);
+
+        assertTrue(restored.restore());
+
+        assertThat(lines(restored.queue("first").pollUpTo(2, 0)), contains("a", "b"));
+    }
+
+    @Test
+    public void queueIsNotRestoredWithAnotherNumberOfLanes() {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("queues.dump").toString();
+
+        LineQueueRegistry.QueueFactory factory = (name, stripe, path) -> new LineQueue(path);
+
+        LineQueueRegistry registry = new LineQueueRegistry(dumpFilePath, null, 1, factory, null,
+            PriorityOrder.strict(2));
+
+        registry.queue(null).add("a".getBytes(), Durability.MEMORY, 0, 0, 1);
+
+        registry.dump();
+        registry.close();
+
+        //The urgent line would be lost without the second lane.
+        LineQueueRegistry narrowed = new LineQueueRegistry(dumpFilePath, null, 1, factory);
+
+        assertFalse(narrowed.restore());
+
+        narrowed.close();
+
+        LineQueueRegistry restored = new LineQueueRegistry(dumpFilePath, null, 1, factory, null,
+            PriorityOrder.weighted(1, 1));
+
+        assertTrue(restored.restore());
+
+        assertThat(lines(restored.queue(null).poll(1, 0)), contains("a"));
+    }
+
+    private static List<String> lines(List<byte[]> polled) {
+        return polled == null ? null : polled.stream().map(String::new).collect(Collectors.toList());
+    }
+}
@@ -1,51 +1,64 @@
 package org.github.akalash.linequeue.storage;
 
+import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class LineQueueTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
 
     @Test
     public void oneThreadAddPollScenario() {
         LineQueue queue = new LineQueue("");
 
         //Adding some values.
-        queue.add("a");
-        queue.add("b");
-        queue.add("c");
+        queue.add("a".getBytes());
+        queue.add("b".getBytes());
+        queue.add("c".getBytes());
 
         //Assert that poll for 1 works well.
-        assertThat(queue.poll(1), contains("a"));
+        assertThat(lines(queue.poll(1)), contains("a"));
 
         //Adding after poll.
-        queue.add("d");
+        queue.add("d".getBytes());
 
         //Assert that poll for more than 1 works well.
-        assertThat(queue.poll(3), contains("b", "c", "d"));
+        assertThat(lines(queue.poll(3)), contains("b", "c", "d"));
 
         //Assert that poll for empty queue works well.
-        assertThat(queue.poll(1), nullValue());
+        assertThat(lines(queue.poll(1)), nullValue());
 
         //Adding after empty queue.
-        queue.add("e");
+        queue.add("e".getBytes());
 
-        assertThat(queue.poll(1), contains("e"));
+        assertThat(lines(queue.poll(1)), contains("e"));
     }
 
     @Test
@@ -55,9 +68,9 @@ public class LineQueueTest {
         LineQueue queue = new LineQueue(dumpFilePath);
 
         //Adding some values.
-        queue.add("a");
-        queue.add("b");
-        queue.add("c");
+        queue.add("a".getBytes());
+        queue.add("b".getBytes());
+        queue.add("c".getBytes());
 
         queue.dump();
 
@@ -66,11 +79,456 @@ public class LineQueueTest {
 
         assertTrue(restoredQueue.restore());
 
-        assertThat(queue.poll(3), contains("a", "b", "c"));
-        assertThat(queue.poll(1), nullValue());
+        assertThat(lines(queue.poll(3)), contains("a", "b", "c"));
+        assertThat(lines(queue.poll(1)), nullValue());
         assertFalse(Files.exists(Paths.get(dumpFilePath)));
     }
 
+    @Test
+    public void walRestoreScenario() throws IOException {
+        Path walDir = tmp.newFolder().toPath();
+
+        LineQueue queue = new LineQueue("", new WriteAheadLog(walDir, 1024, 1024, 1000));
+
+        //Adding some values.
+        queue.add("a".getBytes());
+        queue.add("b".getBytes());
+        queue.add("c".getBytes(), Durability.FSYNCED).join();
+
+        assertThat(lines(queue.poll(1)), contains("a"));
+
+        queue.close();
+
+        //Nothing is dumped, so the queue is restored from the log.
+        LineQueue restoredQueue = new LineQueue("", new WriteAheadLog(walDir, 1024, 1024, 1000));
+
+        assertTrue(restoredQueue.restore());
+
+        assertThat(lines(restoredQueue.poll(2)), contains("b", "c"));
+        assertThat(lines(restoredQueue.poll(1)), nullValue());
+
+        restoredQueue.close();
+    }
+
+    @Test
+    public void spillScenario() throws Exception {
+        Path spillDir = tmp.newFolder().toPath();
+        String dumpFilePath = tmp.getRoot().toPath().resolve("spill.dump").toString();
+
+        LineQueue queue = new LineQueue(dumpFilePath, null, new SpillStorage(spillDir, 100, 256, 4));
+
+        int total = 1000;
+
+        for (int i = 0; i < total; i++)
+            queue.add(("line" + i).getBytes());
+
+        //Await the middle of the queue is spilled to the disk.
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.list(spillDir).count() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertTrue(Files.list(spillDir).count() >= 2);
+
+        assertThat(lines(queue.poll(2)), contains("line0", "line1"));
+
+        //Spilled lines are dumped as well.
+        queue.dump();
+        queue.close();
+
+        LineQueue restoredQueue = new LineQueue(dumpFilePath, null, new SpillStorage(spillDir, 100, 256, 4));
+
+        assertTrue(restoredQueue.restore());
+
+        for (int i = 2; i < total; i++)
+            assertThat(lines(restoredQueue.poll(1)), contains("line" + i));
+
+        assertThat(lines(restoredQueue.poll(1)), nullValue());
+
+        restoredQueue.close();
+    }
+
+    @Test
+    public void spilledLinesOfDumpAreLogged() throws Exception {
+        Path walDir = tmp.newFolder().toPath();
+        String dumpFilePath = tmp.getRoot().toPath().resolve("spilled-restore.dump").toString();
+
+        LineQueue queue = new LineQueue(dumpFilePath);
+
+        int total = 10_000;
+
+        for (int i = 0; i < total; i++)
+            queue.add(("line" + i).getBytes());
+
+        queue.dump();
+
+        //The restored lines are spilled while they are copied to the log.
+        LineQueue restoredQueue = new LineQueue(dumpFilePath, new WriteAheadLog(walDir, 1 << 20, 1024, 1000),
+            new SpillStorage(tmp.newFolder().toPath(), 100, 256, 4));
+
+        assertTrue(restoredQueue.restore());
+
+        restoredQueue.close();
+
+        //The dump is deleted, so the queue is restored from the log.
+        LineQueue replayedQueue = new LineQueue("", new WriteAheadLog(walDir, 1 << 20, 1024, 1000));
+
+        assertTrue(replayedQueue.restore());
+
+        for (int i = 0; i < total; i++)
+            assertThat(lines(replayedQueue.poll(1)), contains("line" + i));
+
+        assertThat(lines(replayedQueue.poll(1)), nullValue());
+
+        replayedQueue.close();
+    }
+
+    @Test
+    public void compressionScenario() throws Exception {
+        Path spillDir = tmp.newFolder().toPath();
+        String dumpFilePath = tmp.getRoot().toPath().resolve("compressed.dump").toString();
+
+        LineQueue queue = new LineQueue(dumpFilePath, null, new SpillStorage(spillDir, 1000, 4096, 4, true), false, true);
+
+        int total = 10_000;
+        long rawSize = 0;
+
+        for (int i = 0; i < total; i++) {
+            byte[] line = ("INFO [worker-" + i % 4 + "] request is handled :: id = " + i + "\r\n").getBytes();
+
+            rawSize += Integer.BYTES + line.length;
+
+            queue.add(line);
+        }
+
+        //Await the middle of the queue is spilled to the disk.
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.list(spillDir).count() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertTrue(Files.list(spillDir).count() >= 2);
+
+        queue.snapshot().get(10, TimeUnit.SECONDS);
+        queue.dump();
+        queue.close();
+
+        //Repetitive lines are compressed several times.
+        assertTrue(Files.size(Paths.get(dumpFilePath)) * 3 < rawSize);
+        assertTrue(Files.size(Paths.get(dumpFilePath + LineQueue.SNAPSHOT_SUFFIX)) * 3 < rawSize);
+
+        LineQueue restoredQueue = new LineQueue(dumpFilePath);
+
+        assertTrue(restoredQueue.restore());
+
+        for (int i = 0; i < total; i++) {
+            assertThat(lines(restoredQueue.poll(1)),
+                contains("INFO [worker-" + i % 4 + "] request is handled :: id = " + i + "\r\n"));
+        }
+
+        assertThat(lines(restoredQueue.poll(1)), nullValue());
+    }
+
+    @Test
+    public void expirationScenario() throws Exception {
+        LineQueue queue = new LineQueue("");
+
+        queue.add("a".getBytes());
+        queue.add("b".getBytes(), Durability.MEMORY, 50);
+        queue.add("c".getBytes(), Durability.MEMORY, 50);
+        queue.add("d".getBytes());
+        queue.add("e".getBytes(), Durability.MEMORY, 50);
+        queue.add("f".getBytes(), Durability.MEMORY, 60_000);
+
+        Thread.sleep(300);
+
+        //The expired lines behind the live one are skipped by the poll.
+        assertThat(lines(queue.poll(4)), nullValue());
+        assertThat(lines(queue.poll(3)), contains("a", "d", "f"));
+        assertThat(queue.expiredLines(), is(3L));
+
+        queue.add("g".getBytes(), Durability.MEMORY, 50);
+        queue.add("h".getBytes(), Durability.MEMORY, 50);
+
+        //The expired lines at the head are removed without any poll.
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (queue.size() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertThat(queue.size(), is(0L));
+        assertThat(queue.expiredLines(), is(5L));
+        assertThat(queue.pollUpTo(10).size(), is(0));
+    }
+
+    @Test
+    public void lazyRestoreScenario() throws Exception {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("lazy.dump").toString();
+
+        LineQueue queue = new LineQueue(dumpFilePath);
+
+        int total = DumpLoader.BATCH_SIZE * 50 + 3;
+
+        for (int i = 0; i < total; i++)
+            queue.add(("line" + i).getBytes());
+
+        queue.dump();
+
+        LineQueue restoredQueue = new LineQueue(dumpFilePath);
+
+        assertTrue(restoredQueue.restore());
+
+        //New lines are going after the restored ones even if they are added before the restore is finished.
+        restoredQueue.add("new".getBytes());
+
+        for (int i = 0; i < total; i++)
+            assertThat(lines(restoredQueue.poll(1)), contains("line" + i));
+
+        assertThat(lines(restoredQueue.poll(1)), contains("new"));
+        assertThat(lines(restoredQueue.poll(1)), nullValue());
+
+        //The dump is deleted only after all lines are loaded.
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.exists(Paths.get(dumpFilePath)) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertFalse(Files.exists(Paths.get(dumpFilePath)));
+    }
+
+    @Test
+    public void corruptedDumpIsKept() throws IOException {
+        Path dump = tmp.getRoot().toPath().resolve("corrupted.dump");
+
+        Files.write(dump, new byte[] {0, 0, 0, 5, 'a', 'b'});
+
+        assertFalse(new LineQueue(dump.toString()).restore());
+        assertTrue(Files.exists(dump));
+    }
+
+    @Test
+    public void dumpOfFormatV1IsRestored() throws IOException {
+        Path dump = tmp.getRoot().toPath().resolve("v1.dump");
+
+        Files.write(dump, new byte[] {0, 0, 0, 1, 'a', 0, 0, 0, 2, 'b', 'c'});
+
+        LineQueue queue = new LineQueue(dump.toString());
+
+        assertTrue(queue.restore());
+        assertThat(lines(queue.poll(2)), contains("a", "bc"));
+    }
+
+    @Test
+    public void shorterDumpReplacesLongerOne() throws IOException {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("shorter.dump").toString();
+
+        LineQueue queue = new LineQueue(dumpFilePath);
+
+        for (int i = 0; i < 100; i++)
+            queue.add(("line" + i).getBytes());
+
+        queue.dump();
+
+        assertThat(queue.poll(90).size(), is(90));
+
+        queue.dump();
+
+        LineQueue restoredQueue = new LineQueue(dumpFilePath);
+
+        assertTrue(restoredQueue.restore());
+        assertThat(restoredQueue.pollUpTo(100).size(), is(10));
+    }
+
+    @Test
+    public void damagedDumpIsDetected() throws IOException {
+        Path dump = tmp.getRoot().toPath().resolve("damaged.dump");
+
+        LineQueue queue = new LineQueue(dump.toString());
+
+        for (int i = 0; i < 10; i++)
+            queue.add(("line" + i).getBytes());
+
+        queue.dump();
+
+        byte[] bytes = Files.readAllBytes(dump);
+
+        //The truncated dump is recognized by the missing end.
+        Files.write(dump, Arrays.copyOf(bytes, bytes.length - 1));
+
+        assertFalse(new LineQueue(dump.toString()).restore());
+
+        //The damaged line is recognized by the checksum of its block before any line is handed over.
+        bytes[bytes.length - 20] ^= 1;
+
+        Files.write(dump, bytes);
+
+        try {
+            DumpLoader.open(dump, 1, (id, line) -> fail("Line of the damaged dump is loaded"));
+
+            fail("Damaged block is opened");
+        }
+        catch (IOException e) {
+            assertThat(e.getMessage(), containsString("checksum"));
+        }
+
+        assertFalse(new LineQueue(dump.toString()).restore());
+        assertTrue(Files.exists(dump));
+    }
+
+    @Test
+    public void dumpIsWrittenInSegments() throws Exception {
+        Path dump = tmp.getRoot().toPath().resolve("segmented.dump");
+
+        LineQueue queue = new LineQueue(dump.toString(), null, null, false, true, 4);
+
+        int total = DumpWriter.MIN_SEGMENT_LINES * 4 + 5;
+
+        for (int i = 0; i < total; i++)
+            queue.add(("line" + i).getBytes());
+
+        queue.dump();
+
+        List<Path> segments = DumpWriter.segments(dump);
+
+        assertThat(segments.size(), is(4));
+
+        LineQueue restoredQueue = new LineQueue(dump.toString(), null, null, false, false, 4);
+
+        assertTrue(restoredQueue.restore());
+
+        for (int i = 0; i < total; i++)
+            assertThat(lines(restoredQueue.poll(1)), contains("line" + i));
+
+        //The empty dump is written as one file, the segments of the previous dump are deleted.
+        restoredQueue.dump();
+
+        assertTrue(DumpWriter.segments(dump).isEmpty());
+
+        for (Path segment : segments)
+            assertFalse(Files.exists(segment));
+    }
+
+    @Test
+    public void repeatedSegmentedDumpKeepsItsSegments() throws Exception {
+        Path dump = tmp.getRoot().toPath().resolve("repeated.dump");
+
+        LineQueue queue = new LineQueue(dump.toString(), null, null, false, false, 4);
+
+        int total = DumpWriter.MIN_SEGMENT_LINES * 4;
+
+        for (int i = 0; i < total; i++)
+            queue.add(("line" + i).getBytes());
+
+        queue.dump();
+
+        List<Path> first = DumpWriter.segments(dump);
+
+        //The next dump gets the next generation, so it never overwrites the segments of the previous one.
+        queue.dump();
+
+        List<Path> second = DumpWriter.segments(dump);
+
+        assertThat(second.size(), is(4));
+
+        for (Path segment : second) {
+            assertFalse(first.contains(segment));
+            assertTrue(Files.exists(segment));
+        }
+
+        for (Path segment : first)
+            assertFalse(Files.exists(segment));
+
+        LineQueue restoredQueue = new LineQueue(dump.toString(), null, null, false, false, 4);
+
+        assertTrue(restoredQueue.restore());
+        assertThat(restoredQueue.pollUpTo(total + 1).size(), is(total));
+    }
+
+    @Test
+    public void snapshotScenario() throws Exception {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("snapshot.dump").toString();
+
+        LineQueue queue = new LineQueue(dumpFilePath);
+
+        int total = 10_000;
+
+        for (int i = 0; i < total; i++)
+            queue.add(("line" + i).getBytes());
+
+        assertThat(lines(queue.poll(2)), contains("line0", "line1"));
+
+        CompletableFuture<Void> snapshot = queue.snapshot();
+
+        //Lines which are added and polled during the snapshot don't change it.
+        for (int i = 0; i < 100; i++) {
+            queue.add(("new" + i).getBytes());
+
+            assertThat(queue.poll(100).size(), is(100));
+        }
+
+        snapshot.get(10, TimeUnit.SECONDS);
+
+        assertTrue(Paths.get(dumpFilePath + LineQueue.SNAPSHOT_SUFFIX).toFile().exists());
+
+        LineQueue restoredQueue = new LineQueue(dumpFilePath);
+
+        assertTrue(restoredQueue.restore());
+
+        for (int i = 2; i < total; i++)
+            assertThat(lines(restoredQueue.poll(1)), contains("line" + i));
+
+        assertThat(lines(restoredQueue.poll(1)), nullValue());
+    }
+
+    @Test
+    public void consumerGroupsScenario() throws IOException {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("groups.dump").toString();
+
+        LineQueue queue = new LineQueue(dumpFilePath, null, null, true);
+
+        //Groups are registered by the first read, GET reads as the default group.
+        assertThat(lines(queue.read("second", 0, false)), is(Collections.emptyList()));
+        assertThat(lines(queue.poll(0)), is(Collections.emptyList()));
+
+        queue.add("a".getBytes());
+        queue.add("b".getBytes());
+        queue.add("c".getBytes());
+
+        //Every group reads all lines.
+        assertThat(lines(queue.read("first", 2, false)), contains("a", "b"));
+        assertThat(lines(queue.read("second", 3, false)), contains("a", "b", "c"));
+        assertThat(lines(queue.read("first", 2, false)), nullValue());
+        assertThat(lines(queue.read("first", 2, true)), contains("c"));
+        assertThat(lines(queue.read("first", 2, true)), is(Collections.emptyList()));
+
+        //Lines are kept until all groups read them.
+        assertThat(lines(queue.poll(1)), contains("a"));
+
+        queue.add("d".getBytes());
+
+        queue.dump();
+
+        LineQueue restoredQueue = new LineQueue(dumpFilePath, null, null, true);
+
+        assertTrue(restoredQueue.restore());
+
+        //Groups continue from their offsets.
+        assertThat(lines(restoredQueue.read("first", 1, false)), contains("d"));
+        assertThat(lines(restoredQueue.read("second", 1, false)), contains("d"));
+        assertThat(lines(restoredQueue.pollUpTo(5)), contains("b", "c", "d"));
+
+        //The new group starts from the lines which aren't read by all groups.
+        restoredQueue.add("e".getBytes());
+
+        assertThat(lines(restoredQueue.read("third", 5, true)), contains("e"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void readWithoutConsumerGroups() {
+        new LineQueue("").read("group", 1, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durabilityWithoutWal() {
+        new LineQueue("").add("a".getBytes(), Durability.WRITTEN);
+    }
+
     @Test
     public void multiThreadAddPollScenario() throws ExecutionException, InterruptedException {
         LineQueue queue = new LineQueue("");
@@ -90,7 +548,7 @@ public class LineQueueTest {
 
                 int i1 = totalEntryPerThread;
                 while (i1-- > 0)
-                    queue.add(index + ":" + i1);
+                    queue.add((index + ":" + i1).getBytes());
             }));
         }
 
@@ -102,7 +560,7 @@ public class LineQueueTest {
             int index = i + 1;
             executorService.submit(() -> {
                 while (!stop.get()) {
-                    List<String> list = queue.poll(index);
+                    List<String> list = lines(queue.poll(index));
                     if (list != null)
                         result.addAll(list);
                 }
@@ -119,7 +577,7 @@ public class LineQueueTest {
         //Read rest data.
         List<String> res;
         do {
-            res = queue.poll(1);
+            res = lines(queue.poll(1));
 
             if (res != null)
                 result.addAll(res);
@@ -129,4 +587,9 @@ public class LineQueueTest {
         //Ensure that number of unique data the same as expected.
         assertThat(result.size(), is(totalEntryPerThread * totalPutThreads));
     }
-}
\ No newline at end of file
+
+    /** Lines as strings or {@code null} if nothing was polled. */
+    private static List<String> lines(List<byte[]> polled) {
+        return polled == null ? null : polled.stream().map(String::new).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,516 @@
+package org.github.akalash.linequeue.storage;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class StripedLineQueueTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void consumerDrainsOtherStripes() {
+        StripedLineQueue queue = new StripedLineQueue(new LineQueue(""), new LineQueue(""), new LineQueue(""));
+
+        queue.add("a".getBytes(), Durability.MEMORY, 1);
+        queue.add("b".getBytes(), Durability.MEMORY, 1);
+        queue.add("c".getBytes(), Durability.MEMORY, 2);
+
+        //Lines are taken from the stripe of the consumer first and then from the next stripes.
+        assertThat(lines(queue.poll(1, 2)), contains("c"));
+        assertThat(lines(queue.poll(2, 0)), contains("a", "b"));
+
+        //Lines of one request are collected from different stripes if no stripe has enough of them.
+        queue.add("d".getBytes(), Durability.MEMORY, 0);
+        queue.add("e".getBytes(), Durability.MEMORY, 1);
+
+        assertThat(queue.poll(3, 0), nullValue());
+        assertThat(lines(queue.poll(2, 0)), contains("d", "e"));
+        assertThat(queue.poll(1, 0), nullValue());
+    }
+
+    @Test
+    public void waitingConsumerGetsLinesOfSeveralStripes() throws Exception {
+        StripedLineQueue queue = new StripedLineQueue(new LineQueue(""), new LineQueue(""));
+
+        CompletableFuture<List<byte[]>> waiting = queue.poll(2, 0, 10_000);
+
+        queue.add("a".getBytes(), Durability.MEMORY, 0);
+
+        assertFalse(waiting.isDone());
+
+        queue.add("b".getBytes(), Durability.MEMORY, 1);
+
+        assertThat(lines(waiting.get(10, TimeUnit.SECONDS)), contains("a", "b"));
+    }
+
+    @Test
+    public void linesPutBackArePolledFirst() {
+        QueueCapacity capacity = new QueueCapacity(10, 0);
+
+        StripedLineQueue queue = new StripedLineQueue(capacity, new LineQueue(""), new LineQueue(""));
+
+        queue.add("a".getBytes(), Durability.MEMORY, 0);
+        queue.add("b".getBytes(), Durability.MEMORY, 1);
+
+        //The request which took some lines, but couldn't be completed gives them back.
+        queue.leases().putBack(queue.pollUpTo(1, 0));
+
+        assertThat(capacity.lines(), is(2L));
+        assertThat(lines(queue.poll(2, 1)), contains("a", "b"));
+        assertThat(capacity.lines(), is(0L));
+    }
+
+    @Test
+    public void urgentLanesArePolledFirst() {
+        StripedLineQueue queue = new StripedLineQueue(null, PriorityOrder.strict(3),
+            new LineQueue(""), new LineQueue(""), new LineQueue(""));
+
+        for (int i = 0; i < 3; i++)
+            queue.add(("bulk" + i).getBytes(), Durability.MEMORY, 0, 0, 0);
+
+        queue.add("urgent".getBytes(), Durability.MEMORY, 0, 0, 2);
+        queue.add("normal".getBytes(), Durability.MEMORY, 0, 0, 1);
+
+        assertThat(lines(queue.poll(1, 0)), contains("urgent"));
+        assertThat(lines(queue.pollUpTo(2, 0)), contains("normal", "bulk0"));
+
+        //The lane which has not enough lines is passed.
+        queue.add("urgent".getBytes(), Durability.MEMORY, 0, 0, 2);
+
+        assertThat(lines(queue.poll(2, 0)), contains("bulk1", "bulk2"));
+        assertThat(lines(queue.poll(1, 0)), contains("urgent"));
+    }
+
+    @Test
+    public void lanesArePolledByWeights() {
+        StripedLineQueue queue = new StripedLineQueue(null, PriorityOrder.weighted(1, 3), new LineQueue(""),
+            new LineQueue(""));
+
+        for (int i = 0; i < 100; i++) {
+            queue.add("bulk".getBytes(), Durability.MEMORY, 0, 0, 0);
+            queue.add("urgent".getBytes(), Durability.MEMORY, 0, 0, 1);
+        }
+
+        List<String> polled = new ArrayList<>();
+
+        for (int i = 0; i < 40; i++)
+            polled.addAll(lines(queue.poll(1, 0)));
+
+        assertThat(polled.stream().filter("bulk"::equals).count(), is(10L));
+
+        //The lane which is drained doesn't stop polls.
+        assertThat(lines(queue.pollUpTo(200, 0)).size(), is(160));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPriority() {
+        new StripedLineQueue(null, PriorityOrder.strict(2), new LineQueue(""), new LineQueue(""))
+            .add("a".getBytes(), Durability.MEMORY, 0, 0, 2);
+    }
+
+    @Test
+    public void pollUpToCount() throws Exception {
+        StripedLineQueue queue = new StripedLineQueue(new LineQueue(""), new LineQueue(""));
+
+        assertTrue(queue.pollUpTo(10, 0).isEmpty());
+
+        CompletableFuture<List<byte[]>> waiting = queue.pollUpTo(10, 0, 10_000);
+
+        queue.add("a".getBytes(), Durability.MEMORY, 1);
+
+        assertThat(lines(waiting.get(10, TimeUnit.SECONDS)), contains("a"));
+
+        queue.add("b".getBytes(), Durability.MEMORY, 1);
+        queue.add("c".getBytes(), Durability.MEMORY, 0);
+        queue.add("d".getBytes(), Durability.MEMORY, 1);
+
+        //Lines of different stripes are returned together.
+        assertThat(lines(queue.pollUpTo(2, 0)), contains("c", "b"));
+        assertThat(lines(queue.pollUpTo(10, 0)), contains("d"));
+    }
+
+    @Test
+    public void waitingConsumer() throws Exception {
+        StripedLineQueue queue = new StripedLineQueue(new LineQueue(""));
+
+        CompletableFuture<List<byte[]>> first = queue.poll(2, 0, 10_000);
+        CompletableFuture<List<byte[]>> second = queue.poll(1, 1, 10_000);
+        CompletableFuture<List<byte[]>> expired = queue.poll(1, 2, 50);
+
+        assertThat(expired.get(10, TimeUnit.SECONDS), nullValue());
+
+        queue.add("a".getBytes(), Durability.MEMORY, 3);
+
+        assertFalse(first.isDone());
+
+        queue.add("b".getBytes(), Durability.MEMORY, 3);
+        queue.add("c".getBytes(), Durability.MEMORY, 3);
+
+        //Waiters are served in order of their arrival.
+        assertThat(lines(first.get(10, TimeUnit.SECONDS)), contains("a", "b"));
+        assertThat(lines(second.get(10, TimeUnit.SECONDS)), contains("c"));
+
+        //Available lines are returned immediately.
+        queue.add("d".getBytes(), Durability.MEMORY, 3);
+
+        assertThat(lines(queue.poll(1, 0, 10_000).getNow(null)), contains("d"));
+    }
+
+    @Test
+    public void orderOfEveryProducerIsKept() throws Exception {
+        int stripes = 4;
+        int producers = 8;
+        int linesPerProducer = 20_000;
+
+        LineQueue[] stripeQueues = new LineQueue[stripes];
+
+        for (int i = 0; i < stripes; i++)
+            stripeQueues[i] = new LineQueue("");
+
+        StripedLineQueue queue = new StripedLineQueue(stripeQueues);
+
+        ExecutorService executor = Executors.newFixedThreadPool(producers * 2);
+
+        List<Future<?>> producerFuts = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+
+            producerFuts.add(executor.submit(() -> {
+                for (int i = 0; i < linesPerProducer; i++)
+                    queue.add((producer + ":" + i).getBytes(), Durability.MEMORY, producer);
+            }));
+        }
+
+        List<Future<List<String>>> consumerFuts = new ArrayList<>();
+
+        for (int c = 0; c < producers; c++) {
+            int consumer = c;
+
+            consumerFuts.add(executor.submit(() -> {
+                List<String> res = new ArrayList<>();
+
+                while (res.size() < linesPerProducer) {
+                    List<byte[]> polled = queue.poll(1, consumer);
+
+                    if (polled != null)
+                        res.add(new String(polled.get(0)));
+                }
+
+                return res;
+            }));
+        }
+
+        for (Future<?> fut : producerFuts)
+            fut.get();
+
+        int[] counts = new int[producers];
+        int total = 0;
+
+        for (Future<List<String>> fut : consumerFuts) {
+            int[] consumerLastSeen = new int[producers];
+
+            Arrays.fill(consumerLastSeen, -1);
+
+            for (String line : fut.get()) {
+                String[] parts = line.split(":");
+
+                int producer = Integer.parseInt(parts[0]);
+                int seq = Integer.parseInt(parts[1]);
+
+                //Every consumer sees lines of one producer in the order they were added.
+                assertTrue(seq > consumerLastSeen[producer]);
+
+                consumerLastSeen[producer] = seq;
+                counts[producer]++;
+                total++;
+            }
+        }
+
+        executor.shutdown();
+
+        assertThat(total, is(producers * linesPerProducer));
+
+        for (int count : counts)
+            assertThat(count, is(linesPerProducer));
+    }
+
+    @Test
+    public void unacknowledgedLinesAreDumped() throws Exception {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("leases.dump").toString();
+
+        StripedLineQueue queue = new StripedLineQueue(new LineQueue(dumpFilePath));
+
+        queue.add("a".getBytes(), Durability.MEMORY, 0);
+        queue.add("b".getBytes(), Durability.MEMORY, 0);
+        queue.add("c".getBytes(), Durability.MEMORY, 0);
+
+        long first = queue.leases().lease(queue.poll(1, 0), 100_000);
+        long second = queue.leases().lease(queue.poll(1, 0), 100_000);
+
+        assertTrue(queue.leases().ack(second));
+
+        queue.dump();
+
+        StripedLineQueue restoredQueue = new StripedLineQueue(new LineQueue(dumpFilePath));
+
+        assertTrue(restoredQueue.restore());
+
+        //The line which wasn't acknowledged is redelivered first.
+        assertThat(lines(restoredQueue.poll(2, 0)), contains("a", "c"));
+        assertFalse(restoredQueue.leases().ack(first));
+    }
+
+    @Test
+    public void leasesSurviveCrash() throws Exception {
+        Path walDir = tmp.newFolder().toPath();
+        String dumpFilePath = tmp.getRoot().toPath().resolve("crash.dump").toString();
+
+        StripedLineQueue queue = new StripedLineQueue(
+            new LineQueue(dumpFilePath, new WriteAheadLog(walDir, 1024, 1024, 1)));
+
+        assertTrue(queue.restore());
+
+        queue.add("a".getBytes(), Durability.MEMORY, 0);
+        queue.add("b".getBytes(), Durability.MEMORY, 0);
+        queue.add("c".getBytes(), Durability.FSYNCED, 0).join();
+
+        queue.leases().lease(queue.poll(1, 0), 100_000);
+        long second = queue.leases().lease(queue.poll(1, 0), 100_000);
+        long third = queue.leases().lease(queue.poll(1, 0), 100_000);
+
+        assertTrue(queue.leases().ack(second));
+
+        //Nothing is dumped, the line of the returned lease is polled again before the crash.
+        assertTrue(queue.leases().nack(third));
+        assertThat(lines(queue.poll(1, 0)), contains("c"));
+
+        queue.close();
+
+        StripedLineQueue restoredQueue = new StripedLineQueue(
+            new LineQueue(dumpFilePath, new WriteAheadLog(walDir, 1024, 1024, 1)));
+
+        assertTrue(restoredQueue.restore());
+
+        assertThat(lines(restoredQueue.pollUpTo(5, 0)), contains("a"));
+
+        restoredQueue.close();
+    }
+
+    @Test
+    public void leasesAreWrittenBySnapshot() throws Exception {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("snapshot.dump").toString();
+
+        StripedLineQueue queue = new StripedLineQueue(new LineQueue(dumpFilePath));
+
+        queue.add("a".getBytes(), Durability.MEMORY, 0);
+        queue.add("b".getBytes(), Durability.MEMORY, 0);
+
+        queue.leases().lease(queue.poll(1, 0), 100_000);
+
+        queue.snapshot().get(10, TimeUnit.SECONDS);
+
+        StripedLineQueue restoredQueue = new StripedLineQueue(new LineQueue(dumpFilePath));
+
+        assertTrue(restoredQueue.restore());
+
+        assertThat(lines(restoredQueue.pollUpTo(5, 0)), contains("a", "b"));
+    }
+
+    @Test
+    public void leasedLinesHoldRoomUntilAck() {
+        QueueCapacity capacity = new QueueCapacity(2, 0);
+
+        StripedLineQueue queue = new StripedLineQueue(capacity, new LineQueue(""));
+
+        queue.add("a".getBytes(), Durability.MEMORY, 0);
+        queue.add("b".getBytes(), Durability.MEMORY, 0);
+
+        long lease = queue.leases().lease(queue.poll(1, 0), 100_000);
+
+        assertFalse(queue.hasRoom());
+
+        //The returned line is still counted until it is polled without the lease.
+        assertTrue(queue.leases().nack(lease));
+        assertFalse(queue.hasRoom());
+
+        lease = queue.leases().lease(queue.poll(1, 0), 100_000);
+
+        assertThat(capacity.lines(), is(2L));
+
+        assertTrue(queue.leases().ack(lease));
+        assertThat(capacity.lines(), is(1L));
+        assertTrue(queue.hasRoom());
+
+        assertThat(lines(queue.poll(1, 0)), contains("b"));
+        assertThat(capacity.lines(), is(0L));
+    }
+
+    @Test
+    public void producerSequencesAreDumped() throws Exception {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("producers.dump").toString();
+
+        StripedLineQueue queue = new StripedLineQueue(new LineQueue(dumpFilePath));
+
+        assertTrue(queue.producers().accept("p1", 1));
+
+        queue.add("a".getBytes(), Durability.MEMORY, 0, 0, 0, "p1", 1);
+
+        assertTrue(queue.producers().accept("p1", 5));
+
+        queue.add("b".getBytes(), Durability.MEMORY, 0, 0, 0, "p1", 5);
+
+        assertFalse(queue.producers().accept("p1", 5));
+        assertTrue(queue.producers().accept("p2", 3));
+
+        queue.producers().failed("p2", 3);
+
+        //The retransmit of the failed line is accepted.
+        assertTrue(queue.producers().accept("p2", 3));
+
+        queue.producers().failed("p2", 3);
+
+        queue.dump();
+
+        StripedLineQueue restoredQueue = new StripedLineQueue(new LineQueue(dumpFilePath));
+
+        assertTrue(restoredQueue.restore());
+
+        assertFalse(restoredQueue.producers().accept("p1", 4));
+        assertTrue(restoredQueue.producers().accept("p1", 6));
+        assertThat(restoredQueue.producers().mark("p2"), is(0L));
+    }
+
+    @Test
+    public void producerSequencesSurviveCrash() throws Exception {
+        Path walDir = tmp.newFolder().toPath();
+        String dumpFilePath = tmp.getRoot().toPath().resolve("crash.dump").toString();
+
+        StripedLineQueue queue = new StripedLineQueue(
+            new LineQueue(dumpFilePath, new WriteAheadLog(walDir, 1024, 1024, 1)));
+
+        assertTrue(queue.restore());
+
+        assertTrue(queue.producers().accept("p1", 3));
+
+        queue.add("a".getBytes(), Durability.FSYNCED, 0, 0, 0, "p1", 3).join();
+
+        assertThat(lines(queue.poll(1, 0)), contains("a"));
+
+        //Nothing is dumped, the mark is restored from the log although its line is consumed.
+        queue.close();
+
+        StripedLineQueue restoredQueue = new StripedLineQueue(
+            new LineQueue(dumpFilePath, new WriteAheadLog(walDir, 1024, 1024, 1)));
+
+        assertTrue(restoredQueue.restore());
+
+        assertThat(restoredQueue.producers().mark("p1"), is(3L));
+
+        restoredQueue.close();
+
+        //The mark is carried to the log of the restored queue as well.
+        StripedLineQueue restoredTwice = new StripedLineQueue(
+            new LineQueue(dumpFilePath, new WriteAheadLog(walDir, 1024, 1024, 1)));
+
+        assertTrue(restoredTwice.restore());
+
+        assertThat(restoredTwice.producers().mark("p1"), is(3L));
+
+        restoredTwice.close();
+    }
+
+    @Test
+    public void producerSequencesAreWrittenBySnapshot() throws Exception {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("snapshot.dump").toString();
+
+        StripedLineQueue queue = new StripedLineQueue(new LineQueue(dumpFilePath));
+
+        assertTrue(queue.producers().accept("p1", 2));
+
+        queue.add("a".getBytes(), Durability.MEMORY, 0, 0, 0, "p1", 2);
+
+        queue.snapshot().get(10, TimeUnit.SECONDS);
+
+        StripedLineQueue restoredQueue = new StripedLineQueue(new LineQueue(dumpFilePath));
+
+        assertTrue(restoredQueue.restore());
+
+        assertThat(restoredQueue.producers().mark("p1"), is(2L));
+    }
+
+    @Test
+    public void producerWaitsForRoom() throws Exception {
+        QueueCapacity capacity = new QueueCapacity(2, 0);
+
+        StripedLineQueue queue = new StripedLineQueue(capacity, new LineQueue(""), new LineQueue(""));
+
+        queue.addWhenRoom("a".getBytes(), Durability.MEMORY, 0).get(10, TimeUnit.SECONDS);
+        queue.addWhenRoom("b".getBytes(), Durability.MEMORY, 1).get(10, TimeUnit.SECONDS);
+
+        assertFalse(queue.hasRoom());
+
+        CompletableFuture<Void> waiting = queue.addWhenRoom("c".getBytes(), Durability.MEMORY, 0);
+
+        assertFalse(waiting.isDone());
+
+        //The polled line frees the room for the waiting producer.
+        assertThat(lines(queue.poll(1, 1)), contains("b"));
+
+        waiting.get(10, TimeUnit.SECONDS);
+
+        assertThat(capacity.lines(), is(2L));
+        assertThat(capacity.bytes(), is(2L));
+        assertThat(lines(queue.pollUpTo(5, 0)), contains("a", "c"));
+        assertTrue(queue.hasRoom());
+    }
+
+    @Test
+    public void markOfWaitingLineIsNotDumped() throws Exception {
+        String dumpFilePath = tmp.getRoot().toPath().resolve("waiting.dump").toString();
+
+        StripedLineQueue queue = new StripedLineQueue(new QueueCapacity(1, 0), new LineQueue(dumpFilePath));
+
+        assertTrue(queue.producers().accept("p1", 1));
+
+        queue.addWhenRoom("a".getBytes(), Durability.MEMORY, 0, 0, 0, "p1", 1).get(10, TimeUnit.SECONDS);
+
+        assertTrue(queue.producers().accept("p1", 2));
+
+        CompletableFuture<Void> waiting = queue.addWhenRoom("b".getBytes(), Durability.MEMORY, 0, 0, 0, "p1", 2);
+
+        assertFalse(waiting.isDone());
+
+        queue.snapshot().get(10, TimeUnit.SECONDS);
+
+        StripedLineQueue restoredQueue = new StripedLineQueue(new LineQueue(dumpFilePath));
+
+        assertTrue(restoredQueue.restore());
+
+        //The line which waits for the room isn't in the snapshot, so its retransmit is accepted.
+        assertThat(restoredQueue.producers().mark("p1"), is(1L));
+        assertTrue(restoredQueue.producers().accept("p1", 2));
+    }
+
+    private static List<String> lines(List<byte[]> polled) {
+        return polled == null ? null : polled.stream().map(String::new).collect(Collectors.toList());
+    }
+}
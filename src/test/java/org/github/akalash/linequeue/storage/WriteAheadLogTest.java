@@ -0,0 +1,235 @@
+package org.github.akalash.linequeue.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class WriteAheadLogTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void replayUnconsumedLinesAfterCrash() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+
+        WriteAheadLog wal = new WriteAheadLog(dir, 1024, 1024, 1000);
+
+        for (int i = 1; i <= 5; i++)
+            wal.appendPut(i, ("line" + i).getBytes(), Durability.MEMORY);
+
+        wal.appendConsumed(2);
+
+        //The log isn't closed as if the process was killed right after the fsync.
+        wal.sync().join();
+
+        assertThat(replay(new WriteAheadLog(dir, 1024, 1024, 1000)), contains("line3", "line4", "line5"));
+    }
+
+    @Test
+    public void concurrentAppendsShareFsync() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1024 * 1024, 1024, 1000)) {
+            List<CompletableFuture<Void>> futs = new ArrayList<>();
+
+            for (int i = 1; i <= 1000; i++)
+                futs.add(wal.appendPut(i, "line".getBytes(), i % 2 == 0 ? Durability.FSYNCED : Durability.WRITTEN));
+
+            CompletableFuture.allOf(futs.toArray(new CompletableFuture<?>[0])).join();
+        }
+
+        assertThat(replay(new WriteAheadLog(dir, 1024, 1024, 1000)).size(), is(1000));
+    }
+
+    @Test
+    public void consumedSegmentsAreDeleted() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 64, 64, 1)) {
+            for (int i = 1; i <= 20; i++)
+                wal.appendPut(i, "line".getBytes(), Durability.WRITTEN).join();
+
+            assertThat(segments(dir).size(), greaterThan(2));
+
+            wal.appendConsumed(20);
+
+            //Roll to the next segment, after that all previous segments contain only consumed lines.
+            wal.appendPut(21, "line".getBytes(), Durability.WRITTEN).join();
+            wal.appendPut(22, "line".getBytes(), Durability.WRITTEN).join();
+        }
+
+        assertThat(replay(new WriteAheadLog(dir, 64, 64, 1)), contains("line", "line"));
+    }
+
+    @Test
+    public void marksOutliveConsumedSegments() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 64, 64, 1)) {
+            wal.appendPut(1, "line".getBytes(), Durability.WRITTEN, "p1", 5).join();
+            wal.appendPut(2, "line".getBytes(), Durability.WRITTEN, "p2", 3).join();
+            wal.appendPut(3, "line".getBytes(), Durability.WRITTEN, "p1", 7).join();
+
+            for (int i = 4; i <= 20; i++)
+                wal.appendPut(i, "line".getBytes(), Durability.WRITTEN).join();
+
+            wal.appendConsumed(20);
+
+            //The segments of numbered lines are deleted, the marks are carried by the next segments.
+            wal.appendPut(21, "line".getBytes(), Durability.WRITTEN).join();
+            wal.appendPut(22, "line".getBytes(), Durability.WRITTEN).join();
+        }
+
+        WriteAheadLog wal = new WriteAheadLog(dir, 64, 64, 1);
+
+        List<String> replayed = new ArrayList<>();
+        Map<String, Long> marks = new HashMap<>();
+
+        assertTrue(wal.replay(line -> replayed.add(new String(line)), marks::put));
+        assertThat(replayed, contains("line", "line"));
+        assertThat(marks.get("p1"), is(7L));
+        assertThat(marks.get("p2"), is(3L));
+
+        wal.close();
+    }
+
+    @Test
+    public void unfinishedRecoveryIsIgnored() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1024, 1024, 1)) {
+            wal.appendPut(1, "a".getBytes(), Durability.WRITTEN);
+            wal.appendPut(2, "b".getBytes(), Durability.WRITTEN);
+        }
+
+        //Recovery is interrupted after the replayed lines were partially logged again.
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1024, 1024, 1)) {
+            wal.appendPut(1, "a".getBytes(), Durability.WRITTEN);
+        }
+
+        WriteAheadLog wal = new WriteAheadLog(dir, 1024, 1024, 1);
+
+        List<String> replayed = new ArrayList<>();
+
+        assertTrue(wal.replay(line -> replayed.add(new String(line))));
+        assertThat(replayed, contains("a", "b"));
+        assertTrue(wal.finishRecovery());
+        assertThat(segments(dir).size(), is(1));
+
+        wal.close();
+
+        assertThat(replay(new WriteAheadLog(dir, 1024, 1024, 1)), empty());
+    }
+
+    @Test
+    public void interruptedDeletionOfRecoveredSegments() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 64, 64, 1)) {
+            for (int i = 1; i <= 10; i++)
+                wal.appendPut(i, ("line" + i).getBytes(), Durability.WRITTEN).join();
+        }
+
+        List<Path> oldSegments = segments(dir);
+
+        Collections.sort(oldSegments);
+
+        assertThat(oldSegments.size(), greaterThan(2));
+
+        WriteAheadLog wal = new WriteAheadLog(dir, 64, 64, 1);
+
+        List<String> replayed = new ArrayList<>();
+
+        assertTrue(wal.replay(line -> replayed.add(new String(line))));
+
+        for (int i = 0; i < replayed.size(); i++)
+            wal.appendPut(i + 1, replayed.get(i).getBytes(), Durability.WRITTEN);
+
+        //The crash happens after the first old segment is deleted.
+        List<byte[]> rest = new ArrayList<>();
+
+        for (Path segment : oldSegments.subList(1, oldSegments.size()))
+            rest.add(Files.readAllBytes(segment));
+
+        assertTrue(wal.finishRecovery());
+
+        wal.close();
+
+        for (int i = 1; i < oldSegments.size(); i++)
+            Files.write(oldSegments.get(i), rest.get(i - 1));
+
+        List<String> expected = new ArrayList<>();
+
+        for (int i = 1; i <= 10; i++)
+            expected.add("line" + i);
+
+        assertThat(replay(new WriteAheadLog(dir, 64, 64, 1)), is(expected));
+    }
+
+    @Test
+    public void logsShareOneFlusher() throws IOException {
+        Path dir1 = tmp.getRoot().toPath().resolve("1");
+        Path dir2 = tmp.getRoot().toPath().resolve("2");
+
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
+        try {
+            try (WriteAheadLog wal1 = new WriteAheadLog(dir1, 64, 64, 1000, flusher);
+                 WriteAheadLog wal2 = new WriteAheadLog(dir2, 64, 64, 1000, flusher)) {
+                List<CompletableFuture<Void>> futs = new ArrayList<>();
+
+                for (int i = 1; i <= 100; i++) {
+                    futs.add(wal1.appendPut(i, "line1".getBytes(), Durability.FSYNCED));
+                    futs.add(wal2.appendPut(i, "line2".getBytes(), Durability.WRITTEN));
+                }
+
+                CompletableFuture.allOf(futs.toArray(new CompletableFuture<?>[0])).join();
+
+                //The records which nobody waits for are written on close.
+                wal1.appendPut(101, "line1".getBytes(), Durability.MEMORY);
+            }
+
+            assertThat(replay(new WriteAheadLog(dir1, 64, 64, 1000, flusher)).size(), is(101));
+            assertThat(replay(new WriteAheadLog(dir2, 64, 64, 1000, flusher)).size(), is(100));
+        }
+        finally {
+            flusher.shutdownNow();
+        }
+    }
+
+    private static List<String> replay(WriteAheadLog wal) {
+        List<String> res = new ArrayList<>();
+
+        assertTrue(wal.replay(line -> res.add(new String(line))));
+
+        wal.close();
+
+        return res;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+}